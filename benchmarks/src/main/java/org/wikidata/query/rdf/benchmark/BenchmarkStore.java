@@ -0,0 +1,113 @@
+package org.wikidata.query.rdf.benchmark;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openrdf.model.Statement;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.wikidata.query.rdf.blazegraph.WikibaseContextListener;
+import org.wikidata.query.rdf.blazegraph.WikibaseExtensionFactory;
+import org.wikidata.query.rdf.blazegraph.WikibaseInlineUriFactory;
+import org.wikidata.query.rdf.blazegraph.WikibaseOptimizers;
+import org.wikidata.query.rdf.blazegraph.WikibaseVocabulary;
+
+import com.bigdata.bop.engine.QueryEngine;
+import com.bigdata.bop.fed.QueryEngineFactory;
+import com.bigdata.cache.SynchronizedHardReferenceQueueWithTimeout;
+import com.bigdata.journal.TemporaryStore;
+import com.bigdata.rdf.sail.sparql.Bigdata2ASTSPARQLParser;
+import com.bigdata.rdf.sparql.ast.ASTContainer;
+import com.bigdata.rdf.sparql.ast.eval.ASTEvalHelper;
+import com.bigdata.rdf.store.AbstractTripleStore;
+import com.bigdata.rdf.store.TempTripleStore;
+
+/**
+ * Temporary Blazegraph triple store configured like the Wikidata Query
+ * Service's. Built the same way as the one AbstractRandomizedBlazegraphTestBase
+ * gives the Blazegraph tests.
+ */
+public class BenchmarkStore implements Closeable {
+    /*
+     * Initialize the Wikibase services including shutting off remote SERVICE
+     * calls and turning on label service calls.
+     */
+    static {
+        WikibaseContextListener.initializeServices();
+        System.setProperty("ASTOptimizerClass", WikibaseOptimizers.class.getName());
+    }
+
+    /**
+     * Holds the triple store.
+     */
+    private final TemporaryStore temporaryStore;
+    /**
+     * The triple store.
+     */
+    private final AbstractTripleStore store;
+
+    public BenchmarkStore() {
+        temporaryStore = new TemporaryStore();
+        Properties properties = new Properties();
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.vocabularyClass",
+                WikibaseVocabulary.VOCABULARY_CLASS.getName());
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.inlineURIFactory",
+                WikibaseInlineUriFactory.V002.class.getName());
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.extensionFactoryClass",
+                WikibaseExtensionFactory.V003.class.getName());
+        store = new TempTripleStore(temporaryStore, properties, null);
+    }
+
+    /**
+     * The triple store.
+     */
+    public AbstractTripleStore store() {
+        return store;
+    }
+
+    /**
+     * Add statements to the store.
+     */
+    public void add(Collection<Statement> statements) {
+        for (Statement s : statements) {
+            store.addStatement(s.getSubject(), s.getPredicate(), s.getObject(), null);
+        }
+    }
+
+    /**
+     * Run a query.
+     */
+    public TupleQueryResult query(String query) {
+        try {
+            ASTContainer astContainer = new Bigdata2ASTSPARQLParser().parseQuery2(query, null);
+            return ASTEvalHelper.evaluateTupleQuery(store, astContainer, new QueryBindingSet(), null);
+        } catch (MalformedQueryException | QueryEvaluationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Close the store and stop the threads Blazegraph started for it.
+     */
+    @Override
+    public void close() {
+        ExecutorService executorService = temporaryStore.getExecutorService();
+        store.close();
+        temporaryStore.close();
+        QueryEngine queryEngine = QueryEngineFactory.getInstance().getExistingQueryController(temporaryStore);
+        if (queryEngine != null) {
+            queryEngine.shutdownNow();
+        }
+        SynchronizedHardReferenceQueueWithTimeout.stopStaleReferenceCleaner();
+        try {
+            executorService.awaitTermination(20, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
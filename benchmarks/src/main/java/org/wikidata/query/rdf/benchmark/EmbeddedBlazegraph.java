@@ -0,0 +1,87 @@
+package org.wikidata.query.rdf.benchmark;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.jetty.server.Server;
+import org.wikidata.query.rdf.blazegraph.WikibaseContextListener;
+import org.wikidata.query.rdf.blazegraph.WikibaseExtensionFactory;
+import org.wikidata.query.rdf.blazegraph.WikibaseInlineUriFactory;
+import org.wikidata.query.rdf.blazegraph.WikibaseOptimizers;
+import org.wikidata.query.rdf.blazegraph.WikibaseVocabulary;
+
+import com.bigdata.journal.Journal;
+import com.bigdata.rdf.sail.webapp.ConfigParams;
+import com.bigdata.rdf.sail.webapp.NanoSparqlServer;
+
+/**
+ * Blazegraph's SPARQL endpoint running in this JVM on an in memory journal,
+ * configured like dist's RWStore.properties. The store is the same one
+ * BenchmarkStore builds but the updater talks to it over http like it talks
+ * to the real thing.
+ */
+public class EmbeddedBlazegraph {
+    /*
+     * Initialize the Wikibase services like BenchmarkStore does.
+     */
+    static {
+        WikibaseContextListener.initializeServices();
+        System.setProperty("ASTOptimizerClass", WikibaseOptimizers.class.getName());
+    }
+
+    /**
+     * Namespace holding the data, same as production.
+     */
+    private static final String NAMESPACE = "wdq";
+
+    /**
+     * The journal holding the store.
+     */
+    private final Journal journal;
+    /**
+     * Jetty serving the SPARQL endpoint.
+     */
+    private final Server server;
+
+    public EmbeddedBlazegraph() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("com.bigdata.journal.AbstractJournal.bufferMode", "MemStore");
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.quads", "false");
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.statementIdentifiers", "false");
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.textIndex", "true");
+        properties.setProperty("com.bigdata.rdf.sail.truthMaintenance", "false");
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.axiomsClass",
+                "com.bigdata.rdf.axioms.NoAxioms");
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.geoSpatial", "false");
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.vocabularyClass",
+                WikibaseVocabulary.VOCABULARY_CLASS.getName());
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.inlineURIFactory",
+                WikibaseInlineUriFactory.V002.class.getName());
+        properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.extensionFactoryClass",
+                WikibaseExtensionFactory.V003.class.getName());
+        journal = new Journal(properties);
+        Map<String, String> initParams = new HashMap<>();
+        initParams.put(ConfigParams.NAMESPACE, NAMESPACE);
+        initParams.put(ConfigParams.CREATE, "true");
+        server = NanoSparqlServer.newInstance(0, journal, initParams);
+        server.start();
+    }
+
+    /**
+     * Uri of the SPARQL endpoint.
+     */
+    public URI sparqlUri() {
+        return URI.create("http://localhost:" + NanoSparqlServer.getLocalPort(server) + "/bigdata/namespace/"
+                + NAMESPACE + "/sparql");
+    }
+
+    /**
+     * Stop the server and throw away the journal.
+     */
+    public void stop() throws Exception {
+        server.stop();
+        journal.destroy();
+    }
+}
@@ -0,0 +1,119 @@
+package org.wikidata.query.rdf.benchmark;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.Munge;
+import org.wikidata.query.rdf.tool.Munge.AlwaysOutputPicker;
+import org.wikidata.query.rdf.tool.rdf.Munger;
+import org.wikidata.query.rdf.tool.rdf.NormalizingRdfHandler;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharSource;
+import com.google.common.io.Resources;
+
+/**
+ * The data the benchmarks run against. The dump slice is the truncated
+ * test.wikidata.org dump that MungeIntegrationTest loads, moved onto
+ * Wikidata's uris so Blazegraph inlines it the way it does production data.
+ * The large entities come from LargeEntity.
+ */
+public final class Fixtures {
+    /**
+     * Uris all the fixtures use.
+     */
+    public static final WikibaseUris URIS = WikibaseUris.WIKIDATA;
+    /**
+     * Id of the first large entity. Well clear of the ids in the dump slice.
+     */
+    private static final int FIRST_LARGE_ENTITY = 1000001;
+
+    /**
+     * Load the dump slice.
+     */
+    public static String dumpSlice() throws IOException {
+        String slice = Resources.toString(Resources.getResource(Munge.class, "test.ttl"), Charsets.UTF_8);
+        return slice.replace("test.wikidata.org", "www.wikidata.org");
+    }
+
+    /**
+     * Id of one of the large entities.
+     */
+    public static String largeEntityId(int index) {
+        return "Q" + (FIRST_LARGE_ENTITY + index);
+    }
+
+    /**
+     * Build some large entities one after another, the way they'd appear in a
+     * dump.
+     *
+     * @param count number of entities
+     * @param claims number of claims each entity has
+     */
+    public static String largeEntities(int count, int claims) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            b.append(LargeEntity.turtle(URIS, largeEntityId(i), claims));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Load either the dump slice or a few large entities.
+     *
+     * @param fixture "slice" or "large"
+     */
+    public static String dump(String fixture) throws IOException {
+        switch (fixture) {
+        case "slice":
+            return dumpSlice();
+        case "large":
+            return largeEntities(10, 500);
+        default:
+            throw new IllegalArgumentException("Unknown fixture:  " + fixture);
+        }
+    }
+
+    /**
+     * Parse Turtle, normalizing it like the updater does.
+     */
+    public static List<Statement> parse(String turtle) throws OpenRDFException, IOException {
+        StatementCollector collector = new StatementCollector();
+        parse(turtle, new NormalizingRdfHandler(collector));
+        return new ArrayList<>(collector.getStatements());
+    }
+
+    /**
+     * Parse Turtle into a handler.
+     */
+    public static void parse(String turtle, RDFHandler handler) throws OpenRDFException, IOException {
+        RDFParser parser = Rio.createParser(RDFFormat.TURTLE);
+        parser.setRDFHandler(handler);
+        parser.parse(CharSource.wrap(turtle).openStream(), URIS.root());
+    }
+
+    /**
+     * Munge a dump, returning the munged statements.
+     */
+    public static List<Statement> munge(String dump) throws OpenRDFException, IOException {
+        StringWriter munged = new StringWriter();
+        new Munge(URIS, new Munger(URIS), CharSource.wrap(dump).openStream(), new AlwaysOutputPicker<Writer>(munged))
+                .run();
+        return parse(munged.toString());
+    }
+
+    private Fixtures() {
+        // Uncallable utility constructor
+    }
+}
@@ -0,0 +1,335 @@
+package org.wikidata.query.rdf.benchmark;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+import org.wikidata.query.rdf.common.uri.OWL;
+import org.wikidata.query.rdf.common.uri.Ontology;
+import org.wikidata.query.rdf.common.uri.Provenance;
+import org.wikidata.query.rdf.common.uri.RDF;
+import org.wikidata.query.rdf.common.uri.RDFS;
+import org.wikidata.query.rdf.common.uri.SKOS;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Builds the Turtle that Special:EntityData returns for a large item. The
+ * items that hurt the updater most have hundreds of claims with qualifiers and
+ * references and labels and sitelinks in dozens of languages. Everything is
+ * derived from the entity id so the same entity comes out every time.
+ */
+public final class LargeEntity {
+    /**
+     * Languages of the labels, descriptions, aliases and sitelinks.
+     */
+    private static final String[] LANGUAGES = {"en", "de", "fr", "es", "it", "nl", "pl", "ru", "ja", "zh", "pt", "sv",
+        "uk", "ca", "nb", "fi", "cs", "hu", "ko", "fa", "id", "tr", "ar", "he", "ro", "da", "eo", "sr", "lt", "sk",
+        "bg", "vi", "el", "et", "hr", "sl", "gl", "hi", "th", "ms", "eu", "nn", "la", "ka", "hy", "be", "az", "bn",
+        "ta", "ur", "cy", "ga", "is", "sq", "mk", "lv", "af", "sw"};
+    /**
+     * Properties with item values.
+     */
+    private static final int[] ITEM_PROPERTIES = {31, 17, 27, 106, 166, 39, 69, 463, 1412, 737, 800, 101, 135, 361};
+    /**
+     * Properties with external identifier values.
+     */
+    private static final int[] ID_PROPERTIES = {214, 213, 227, 244, 268, 269, 345, 646, 1006, 1417};
+    /**
+     * Properties with time values.
+     */
+    private static final int[] TIME_PROPERTIES = {569, 570, 571, 576, 577, 580, 582, 585};
+    /**
+     * Properties with quantity values.
+     */
+    private static final int[] QUANTITY_PROPERTIES = {1082, 2046, 2044, 2048, 1128};
+
+    /**
+     * Build the Turtle for a large entity.
+     *
+     * @param uris uris the entity uses
+     * @param id the entity's id, like Q42
+     * @param claims number of claims the entity has
+     */
+    public static String turtle(WikibaseUris uris, String id, int claims) {
+        return new LargeEntity(uris, id).build(claims, -1);
+    }
+
+    /**
+     * Build the Turtle for a revision of a large entity. Building the same
+     * entity with more claims adds claims to the end, like an edit does.
+     *
+     * @param uris uris the entity uses
+     * @param id the entity's id, like Q42
+     * @param claims number of claims the entity has
+     * @param revision the revision, written as the entity's schema:version
+     */
+    public static String turtle(WikibaseUris uris, String id, int claims, long revision) {
+        return new LargeEntity(uris, id).build(claims, revision);
+    }
+
+    /**
+     * Uris the entity uses.
+     */
+    private final WikibaseUris uris;
+    /**
+     * The entity's id.
+     */
+    private final String id;
+    /**
+     * Source of the entity's values, seeded from its id.
+     */
+    private final Random random;
+    /**
+     * The entity, its terms, sitelinks and statements.
+     */
+    private final StringBuilder b = new StringBuilder();
+    /**
+     * Value and reference nodes. Wikibase writes them after the statements.
+     */
+    private final StringBuilder nodes = new StringBuilder();
+    /**
+     * Value and reference nodes that have already been written. Their uris
+     * are hashes of their content so claims share them.
+     */
+    private final Set<String> written = new HashSet<>();
+
+    private LargeEntity(WikibaseUris uris, String id) {
+        this.uris = uris;
+        this.id = id;
+        random = new Random(id.hashCode());
+    }
+
+    /**
+     * Build the entity.
+     *
+     * @param revision the entity's revision or -1 to make one up
+     */
+    private String build(int claims, long revision) {
+        long version = random.nextInt(Integer.MAX_VALUE);
+        if (revision >= 0) {
+            version = revision;
+        }
+        prefixes();
+        b.append("data:").append(id).append(" a schema:Dataset ;\n");
+        b.append("\tschema:about wd:").append(id).append(" ;\n");
+        b.append("\tschema:version \"").append(version).append("\"^^xsd:integer ;\n");
+        b.append("\tschema:dateModified \"2016-02-11T12:43:51Z\"^^xsd:dateTime .\n\n");
+        b.append("wd:").append(id).append(" a wikibase:Item");
+        for (String language : LANGUAGES) {
+            String label = "\"" + id + " in " + language + "\"@" + language;
+            b.append(" ;\n\trdfs:label ").append(label);
+            b.append(" ;\n\tskos:prefLabel ").append(label);
+            b.append(" ;\n\tschema:name ").append(label);
+            b.append(" ;\n\tschema:description \"A very large item described in ").append(language).append("\"@")
+                    .append(language);
+            b.append(" ;\n\tskos:altLabel \"").append(id).append(" alias in ").append(language).append("\"@")
+                    .append(language);
+        }
+        b.append(" .\n\n");
+        for (String language : LANGUAGES) {
+            String wiki = "https://" + language + ".wikipedia.org/";
+            b.append('<').append(wiki).append("wiki/Large_item_").append(id).append("> a schema:Article ;\n");
+            b.append("\tschema:about wd:").append(id).append(" ;\n");
+            b.append("\tschema:inLanguage \"").append(language).append("\" ;\n");
+            b.append("\tschema:isPartOf <").append(wiki).append("> .\n\n");
+        }
+        for (int claim = 0; claim < claims; claim++) {
+            claim(claim);
+        }
+        b.append(nodes);
+        return b.toString();
+    }
+
+    /**
+     * Write the prefixes Wikibase declares.
+     */
+    private void prefixes() {
+        prefix("rdf", RDF.NAMESPACE);
+        prefix("xsd", XMLSchema.NAMESPACE);
+        prefix("rdfs", RDFS.NAMESPACE);
+        prefix("owl", OWL.NAMESPACE);
+        prefix("wikibase", Ontology.NAMESPACE);
+        prefix("data", uris.entityDataHttps());
+        prefix("schema", SchemaDotOrg.NAMESPACE);
+        prefix("prov", Provenance.NAMESPACE);
+        prefix("skos", SKOS.NAMESPACE);
+        prefix("geo", GeoSparql.NAMESPACE);
+        prefix("wd", uris.entity());
+        prefix("wds", uris.statement());
+        prefix("wdv", uris.value());
+        prefix("wdref", uris.reference());
+        for (PropertyType p : PropertyType.values()) {
+            prefix(p.prefix(), uris.property(p));
+        }
+        b.append('\n');
+    }
+
+    /**
+     * Write a prefix.
+     */
+    private void prefix(String prefix, String namespace) {
+        b.append("@prefix ").append(prefix).append(": <").append(namespace).append("> .\n");
+    }
+
+    /**
+     * Write a claim. Four in ten claims have item values, two in ten have
+     * external identifiers and the rest are times, quantities and
+     * coordinates. One in twenty is deprecated and one in three has a
+     * qualifier. They all have a reference.
+     */
+    private void claim(int claim) {
+        String property;
+        String simple;
+        String value = null;
+        int kind = claim % 10;
+        if (kind < 4) {
+            property = "P" + pick(ITEM_PROPERTIES);
+            simple = "wd:Q" + (random.nextInt(1000000) + 1);
+        } else if (kind < 6) {
+            property = "P" + pick(ID_PROPERTIES);
+            simple = "\"" + Integer.toHexString(random.nextInt()) + "\"";
+        } else if (kind < 8) {
+            property = "P" + pick(TIME_PROPERTIES);
+            simple = time();
+            value = timeValue(simple);
+        } else if (kind == 8) {
+            property = "P" + pick(QUANTITY_PROPERTIES);
+            double amount = random.nextInt(10000000) / 10.0;
+            simple = String.format(Locale.ROOT, "\"%+.1f\"^^xsd:decimal", amount);
+            value = quantityValue(amount);
+        } else {
+            property = "P625";
+            double latitude = random.nextInt(18000) / 100.0 - 90;
+            double longitude = random.nextInt(36000) / 100.0 - 180;
+            simple = String.format(Locale.ROOT, "\"Point(%.2f %.2f)\"^^geo:wktLiteral", longitude, latitude);
+            value = coordinateValue(latitude, longitude);
+        }
+        String statement = "wds:" + id + "-" + new UUID(random.nextLong(), random.nextLong()).toString().toUpperCase(Locale.ROOT);
+        boolean deprecated = random.nextInt(20) == 0;
+        b.append("wd:").append(id).append(" p:").append(property).append(' ').append(statement).append(" .\n");
+        if (!deprecated) {
+            b.append("wd:").append(id).append(" wdt:").append(property).append(' ').append(simple).append(" .\n");
+        }
+        b.append(statement).append(" a wikibase:Statement");
+        if (!deprecated) {
+            b.append(", wikibase:BestRank");
+        }
+        b.append(" ;\n\tps:").append(property).append(' ').append(simple);
+        if (value != null) {
+            b.append(" ;\n\tpsv:").append(property).append(' ').append(value);
+        }
+        b.append(" ;\n\twikibase:rank wikibase:").append(deprecated ? "DeprecatedRank" : "NormalRank");
+        if (claim % 3 == 0) {
+            String start = time();
+            b.append(" ;\n\tpq:P580 ").append(start);
+            b.append(" ;\n\tpqv:P580 ").append(timeValue(start));
+        }
+        b.append(" ;\n\tprov:wasDerivedFrom ").append(reference(claim)).append(" .\n\n");
+    }
+
+    /**
+     * Pick a random property.
+     */
+    private int pick(int[] properties) {
+        return properties[random.nextInt(properties.length)];
+    }
+
+    /**
+     * Build a time literal. Most are from the last few hundred years but
+     * some are BCE and a few are deep time.
+     */
+    private String time() {
+        int kind = random.nextInt(100);
+        if (kind == 0) {
+            return "\"-13798000000-01-01T00:00:00Z\"^^xsd:dateTime";
+        }
+        if (kind < 6) {
+            return String.format(Locale.ROOT, "\"-%04d-01-01T00:00:00Z\"^^xsd:dateTime", random.nextInt(3000) + 1);
+        }
+        return String.format(Locale.ROOT, "\"%04d-%02d-%02dT00:00:00Z\"^^xsd:dateTime", random.nextInt(516) + 1500,
+                random.nextInt(12) + 1, random.nextInt(28) + 1);
+    }
+
+    /**
+     * Write a time value node.
+     *
+     * @return the node
+     */
+    private String timeValue(String time) {
+        return valueNode("wikibase:TimeValue ;\n"
+                + "\twikibase:timeValue " + time + " ;\n"
+                + "\twikibase:timePrecision \"11\"^^xsd:integer ;\n"
+                + "\twikibase:timeTimezone \"0\"^^xsd:integer ;\n"
+                + "\twikibase:timeCalendarModel <http://www.wikidata.org/entity/Q1985727>");
+    }
+
+    /**
+     * Write a quantity value node.
+     *
+     * @return the node
+     */
+    private String quantityValue(double amount) {
+        return valueNode(String.format(Locale.ROOT, "wikibase:QuantityValue ;\n"
+                + "\twikibase:quantityAmount \"%+.1f\"^^xsd:decimal ;\n"
+                + "\twikibase:quantityUpperBound \"%+.1f\"^^xsd:decimal ;\n"
+                + "\twikibase:quantityLowerBound \"%+.1f\"^^xsd:decimal ;\n"
+                + "\twikibase:quantityUnit <http://www.wikidata.org/entity/Q11573>", amount, amount + 0.1, amount - 0.1));
+    }
+
+    /**
+     * Write a globe coordinate value node.
+     *
+     * @return the node
+     */
+    private String coordinateValue(double latitude, double longitude) {
+        return valueNode(String.format(Locale.ROOT, "wikibase:GlobecoordinateValue ;\n"
+                + "\twikibase:geoLatitude \"%.2f\"^^xsd:double ;\n"
+                + "\twikibase:geoLongitude \"%.2f\"^^xsd:double ;\n"
+                + "\twikibase:geoPrecision \"0.01\"^^xsd:double ;\n"
+                + "\twikibase:geoGlobe <http://www.wikidata.org/entity/Q2>", latitude, longitude));
+    }
+
+    /**
+     * Write a value node unless it has already been written.
+     *
+     * @param body the node's type and properties
+     * @return the node
+     */
+    private String valueNode(String body) {
+        String node = "wdv:" + Hashing.md5().hashString(body, Charsets.UTF_8);
+        if (written.add(node)) {
+            nodes.append(node).append(" a ").append(body).append(" .\n\n");
+        }
+        return node;
+    }
+
+    /**
+     * Write a reference unless it has already been written. Claims share a
+     * reference every twenty or so claims, like claims imported from the same
+     * source do.
+     *
+     * @return the reference node
+     */
+    private String reference(int claim) {
+        int source = claim / 20;
+        String retrieved = String.format(Locale.ROOT, "\"2015-%02d-%02dT00:00:00Z\"^^xsd:dateTime", source % 12 + 1,
+                source % 28 + 1);
+        String body = "pr:P248 wd:Q" + (36578 + source) + " ;\n"
+                + "\tpr:P813 " + retrieved + " ;\n"
+                + "\tprv:P813 " + timeValue(retrieved);
+        String node = "wdref:" + Hashing.sha1().hashString(body, Charsets.UTF_8);
+        if (written.add(node)) {
+            nodes.append(node).append(" a wikibase:Reference ;\n\t").append(body).append(" .\n\n");
+        }
+        return node;
+    }
+}
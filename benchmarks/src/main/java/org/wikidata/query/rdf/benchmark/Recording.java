@@ -0,0 +1,260 @@
+package org.wikidata.query.rdf.benchmark;
+
+import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.inputDateFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Recent changes and the Turtle Special:EntityData returned for each revision
+ * in them, for ReplayWikibase to replay. Recordings are either generated or
+ * loaded from a directory holding:
+ * <ul>
+ * <li>recentchanges.json - the query.recentchanges arrays the api returned,
+ * concatenated into one array
+ * <li>&lt;revid&gt;.ttl - what Special:EntityData/&lt;title&gt;.ttl?revision=&lt;revid&gt;&amp;flavor=dump
+ * returned for each revision. Revisions without one are replayed as deleted.
+ * </ul>
+ */
+public final class Recording {
+    /**
+     * When generated recordings start, 2016-02-11T00:00:00Z.
+     */
+    private static final long GENERATED_START = 1455148800000L;
+    /**
+     * Edits per second in generated recordings.
+     */
+    private static final int GENERATED_EDITS_PER_SECOND = 5;
+    /**
+     * One in this many generated entities is large.
+     */
+    private static final int GENERATED_LARGE_ODDS = 50;
+    /**
+     * Revision id of the first generated change.
+     */
+    private static final long GENERATED_FIRST_REVISION = 300000000L;
+    /**
+     * Recent changes id of the first generated change.
+     */
+    private static final long GENERATED_FIRST_RCID = 400000000L;
+
+    /**
+     * Generate a recording. Most of the entities are small but one in fifty
+     * has hundreds of claims. Edits are skewed towards a few hot entities like
+     * bots editing the same items make them and every edit adds a claim.
+     * The same recording comes out every time.
+     *
+     * @param changes number of changes
+     * @param entities number of entities the changes edit
+     */
+    @SuppressWarnings("unchecked")
+    public static Recording generate(int changes, int entities) {
+        Random random = new Random(entities);
+        int[] claims = new int[entities];
+        for (int entity = 0; entity < entities; entity++) {
+            if (random.nextInt(GENERATED_LARGE_ODDS) == 0) {
+                claims[entity] = 500 + random.nextInt(1500);
+            } else {
+                claims[entity] = 5 + random.nextInt(60);
+            }
+        }
+        DateFormat df = inputDateFormat();
+        List<JSONObject> recentChanges = new ArrayList<>(changes);
+        Map<Long, byte[]> turtle = new HashMap<>();
+        for (int i = 0; i < changes; i++) {
+            // Cubing skews the edits towards the first few entities
+            int entity = (int) (entities * Math.pow(random.nextDouble(), 3));
+            String id = Fixtures.largeEntityId(entity);
+            long revision = GENERATED_FIRST_REVISION + i;
+            JSONObject rc = new JSONObject();
+            rc.put("type", "edit");
+            rc.put("ns", 0L);
+            rc.put("title", id);
+            rc.put("revid", revision);
+            rc.put("rcid", GENERATED_FIRST_RCID + i);
+            rc.put("timestamp", df.format(new Date(GENERATED_START
+                    + TimeUnit.SECONDS.toMillis(i / GENERATED_EDITS_PER_SECOND))));
+            recentChanges.add(rc);
+            turtle.put(revision, LargeEntity.turtle(Fixtures.URIS, id, claims[entity]++, revision)
+                    .getBytes(Charsets.UTF_8));
+        }
+        return new Recording(recentChanges, turtle);
+    }
+
+    /**
+     * Load a recording from a directory.
+     */
+    public static Recording load(File dir) throws IOException {
+        List<JSONObject> recentChanges = new ArrayList<>();
+        try (Reader reader = Files.newReader(new File(dir, "recentchanges.json"), Charsets.UTF_8)) {
+            for (Object rc : (JSONArray) new JSONParser().parse(reader)) {
+                recentChanges.add((JSONObject) rc);
+            }
+        } catch (ParseException e) {
+            throw new IOException("Invalid recentchanges.json in " + dir, e);
+        }
+        Map<Long, byte[]> turtle = new HashMap<>();
+        for (JSONObject rc : recentChanges) {
+            long revision = (long) rc.get("revid");
+            File file = new File(dir, revision + ".ttl");
+            if (file.exists()) {
+                turtle.put(revision, Files.toByteArray(file));
+            }
+        }
+        return new Recording(recentChanges, turtle);
+    }
+
+    /**
+     * The changes in the order the api lists them.
+     */
+    private final List<JSONObject> changes;
+    /**
+     * The time of each change.
+     */
+    private final long[] timestamps;
+    /**
+     * Turtle for each revision by revision id.
+     */
+    private final Map<Long, byte[]> turtle;
+    /**
+     * Index of each change to each entity by title.
+     */
+    private final Map<String, List<Integer>> changesByTitle = new HashMap<>();
+
+    private Recording(List<JSONObject> changes, Map<Long, byte[]> turtle) {
+        this.changes = changes;
+        this.turtle = turtle;
+        Collections.sort(changes, new Comparator<JSONObject>() {
+            @Override
+            public int compare(JSONObject lhs, JSONObject rhs) {
+                int result = lhs.get("timestamp").toString().compareTo(rhs.get("timestamp").toString());
+                if (result != 0) {
+                    return result;
+                }
+                return Long.compare((long) lhs.get("rcid"), (long) rhs.get("rcid"));
+            }
+        });
+        timestamps = new long[changes.size()];
+        DateFormat df = inputDateFormat();
+        for (int i = 0; i < changes.size(); i++) {
+            JSONObject rc = changes.get(i);
+            try {
+                timestamps[i] = df.parse(rc.get("timestamp").toString()).getTime();
+            } catch (java.text.ParseException e) {
+                throw new IllegalArgumentException("Invalid timestamp in " + rc, e);
+            }
+            String title = rc.get("title").toString();
+            List<Integer> forTitle = changesByTitle.get(title);
+            if (forTitle == null) {
+                forTitle = new ArrayList<>();
+                changesByTitle.put(title, forTitle);
+            }
+            forTitle.add(i);
+        }
+    }
+
+    /**
+     * Number of changes.
+     */
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * A change as the api lists it.
+     */
+    public JSONObject change(int index) {
+        return changes.get(index);
+    }
+
+    /**
+     * Time of a change.
+     */
+    public Date timestamp(int index) {
+        return new Date(timestamps[index]);
+    }
+
+    /**
+     * Recent changes id of a change.
+     */
+    public long rcid(int index) {
+        return (long) changes.get(index).get("rcid");
+    }
+
+    /**
+     * Time of the first change.
+     */
+    public Date start() {
+        return timestamp(0);
+    }
+
+    /**
+     * Recent changes id of the last change to an entity. The updater is
+     * caught up once it has synced it.
+     */
+    public long lastRcid() {
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            long namespace = (long) changes.get(i).get("ns");
+            if (namespace == 0 || namespace == 120) {
+                return rcid(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the first change at or after a time and recent changes id.
+     *
+     * @return size() if there aren't any
+     */
+    public int firstAtOrAfter(long timestamp, long rcid) {
+        for (int i = 0; i < changes.size(); i++) {
+            if (timestamps[i] > timestamp || (timestamps[i] == timestamp && rcid(i) >= rcid)) {
+                return i;
+            }
+        }
+        return changes.size();
+    }
+
+    /**
+     * The Turtle of an entity as of a change, meaning the newest revision of
+     * the entity up to that change.
+     *
+     * @param title title of the entity
+     * @param asOf index of the change
+     * @return null if the entity is deleted or was never changed
+     */
+    public byte[] turtle(String title, int asOf) {
+        List<Integer> forTitle = changesByTitle.get(title);
+        if (forTitle == null) {
+            return null;
+        }
+        int newest = forTitle.get(0);
+        for (int index : forTitle) {
+            if (index > asOf) {
+                break;
+            }
+            newest = index;
+        }
+        return turtle.get((long) changes.get(newest).get("revid"));
+    }
+}
@@ -0,0 +1,97 @@
+package org.wikidata.query.rdf.benchmark;
+
+import java.util.Date;
+import java.util.List;
+
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+
+/**
+ * Wraps the change source an update replays a recording from and makes the
+ * batch holding the recording's last change the last batch so the update
+ * returns once it has caught up rather than polling for more.
+ *
+ * @param <B> type of the wrapped source's batches
+ */
+public class ReplaySource<B extends Change.Batch> implements Change.Source<ReplaySource.Batch<B>> {
+    /**
+     * The wrapped source.
+     */
+    private final Change.Source<B> delegate;
+    /**
+     * Recent changes id of the recording's last change.
+     */
+    private final long lastRcid;
+
+    public ReplaySource(Change.Source<B> delegate, long lastRcid) {
+        this.delegate = delegate;
+        this.lastRcid = lastRcid;
+    }
+
+    @Override
+    public Batch<B> firstBatch() throws RetryableException {
+        return new Batch<>(delegate.firstBatch(), lastRcid);
+    }
+
+    @Override
+    public Batch<B> nextBatch(Batch<B> lastBatch) throws RetryableException {
+        return new Batch<>(delegate.nextBatch(lastBatch.inner), lastRcid);
+    }
+
+    /**
+     * Batch wrapping the wrapped source's batch.
+     *
+     * @param <B> type of the wrapped source's batches
+     */
+    public static final class Batch<B extends Change.Batch> implements Change.Batch {
+        /**
+         * The wrapped source's batch.
+         */
+        private final B inner;
+        /**
+         * Is this the last batch?
+         */
+        private final boolean last;
+
+        private Batch(B inner, long lastRcid) {
+            this.inner = inner;
+            boolean found = inner.last();
+            for (Change change : inner.changes()) {
+                if (change.rcid() == lastRcid) {
+                    found = true;
+                }
+            }
+            last = found;
+        }
+
+        @Override
+        public List<Change> changes() {
+            return inner.changes();
+        }
+
+        @Override
+        public String advancedUnits() {
+            return inner.advancedUnits();
+        }
+
+        @Override
+        public long advanced() {
+            return inner.advanced();
+        }
+
+        @Override
+        public String leftOffHuman() {
+            return inner.leftOffHuman();
+        }
+
+        @Override
+        public Date leftOffDate() {
+            return inner.leftOffDate();
+        }
+
+        @Override
+        public boolean last() {
+            return last;
+        }
+    }
+}
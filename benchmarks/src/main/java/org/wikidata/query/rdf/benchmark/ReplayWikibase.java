@@ -0,0 +1,129 @@
+package org.wikidata.query.rdf.benchmark;
+
+import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.outputDateFormat;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Stub wikibase that replays a recording. It answers the recent changes api
+ * the way MediaWiki does, a page at a time with a continue parameter, and
+ * serves each entity's Turtle as of the newest change it has listed so far,
+ * like wikibase serves the current revision. Modeled on the integration
+ * tests' Proxy but nothing it serves comes from a real wikibase.
+ */
+public class ReplayWikibase extends NanoHTTPD {
+    /**
+     * Path to entity data, followed by the title and .ttl.
+     */
+    private static final String ENTITY_DATA = "/wiki/Special:EntityData/";
+
+    /**
+     * The recording to replay.
+     */
+    private final Recording recording;
+    /**
+     * Index of the newest change listed so far.
+     */
+    private final AtomicInteger listedThrough = new AtomicInteger(-1);
+
+    public ReplayWikibase(Recording recording) {
+        super(0);
+        this.recording = recording;
+    }
+
+    /**
+     * Host to point WikibaseRepository at. Only valid once started.
+     */
+    public String host() {
+        return "localhost:" + getListeningPort();
+    }
+
+    /**
+     * Start the replay over from the beginning.
+     */
+    public void rewind() {
+        listedThrough.set(-1);
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        String uri = session.getUri();
+        if (uri.equals("/w/api.php") && "recentchanges".equals(session.getParms().get("list"))) {
+            return recentChanges(session.getParms());
+        }
+        if (uri.startsWith(ENTITY_DATA) && uri.endsWith(".ttl")) {
+            return entityData(uri.substring(ENTITY_DATA.length(), uri.length() - ".ttl".length()));
+        }
+        return new Response(Response.Status.NOT_FOUND, "text/plain", "not in the recording");
+    }
+
+    /**
+     * List a page of recent changes.
+     */
+    @SuppressWarnings("unchecked")
+    private Response recentChanges(Map<String, String> parms) {
+        int first;
+        int limit;
+        try {
+            limit = Integer.parseInt(parms.get("rclimit"));
+            String rccontinue = parms.get("rccontinue");
+            if (rccontinue == null) {
+                first = recording.firstAtOrAfter(outputDateFormat().parse(parms.get("rcstart")).getTime(), 0);
+            } else {
+                String[] parts = rccontinue.split("\\|");
+                first = recording.firstAtOrAfter(outputDateFormat().parse(parts[0]).getTime(),
+                        Long.parseLong(parts[1]));
+            }
+        } catch (java.text.ParseException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return new Response(Response.Status.BAD_REQUEST, "text/plain", "invalid rclimit, rcstart or rccontinue");
+        }
+        int end = Math.min(first + limit, recording.size());
+        JSONArray changes = new JSONArray();
+        for (int i = first; i < end; i++) {
+            changes.add(recording.change(i));
+        }
+        JSONObject query = new JSONObject();
+        query.put("recentchanges", changes);
+        JSONObject result = new JSONObject();
+        result.put("batchcomplete", "");
+        result.put("query", query);
+        if (end < recording.size()) {
+            JSONObject next = new JSONObject();
+            next.put("rccontinue", outputDateFormat().format(recording.timestamp(end)) + "|" + recording.rcid(end));
+            next.put("continue", "-||");
+            result.put("continue", next);
+        }
+        listed(end - 1);
+        return new Response(Response.Status.OK, "application/json", result.toJSONString());
+    }
+
+    /**
+     * Serve an entity's Turtle.
+     */
+    private Response entityData(String title) {
+        byte[] turtle = recording.turtle(title, listedThrough.get());
+        if (turtle == null) {
+            return new Response(Response.Status.NOT_FOUND, "text/plain", "deleted");
+        }
+        return new Response(Response.Status.OK, "text/turtle; charset=utf-8", new ByteArrayInputStream(turtle));
+    }
+
+    /**
+     * Record that changes up to an index have been listed.
+     */
+    private void listed(int index) {
+        while (true) {
+            int current = listedThrough.get();
+            if (index <= current || listedThrough.compareAndSet(current, index)) {
+                return;
+            }
+        }
+    }
+}
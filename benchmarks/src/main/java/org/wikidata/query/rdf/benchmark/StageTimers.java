@@ -0,0 +1,244 @@
+package org.wikidata.query.rdf.benchmark;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.openrdf.model.Statement;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.rdf.ExistingNodes;
+import org.wikidata.query.rdf.tool.rdf.Munger;
+import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Times each stage of an update: polling recent changes, fetching and munging
+ * entities, checking the store's revisions and existing nodes, and syncing.
+ * The updater's wikibase repository, munger and rdf repository are built
+ * here as subclasses that time the calls they get so Update itself doesn't
+ * change. Fetching and munging run on the update's threads so their totals
+ * can add up to more than the wall clock time.
+ */
+public class StageTimers {
+    /**
+     * Polling recent changes.
+     */
+    private static final String POLL = "poll";
+    /**
+     * Fetching an entity's RDF.
+     */
+    private static final String FETCH = "fetch";
+    /**
+     * Munging an entity.
+     */
+    private static final String MUNGE = "munge";
+    /**
+     * Asking the store which changes it needs.
+     */
+    private static final String REVISIONS = "revisions";
+    /**
+     * Asking the store for the changed entities' value and reference nodes.
+     */
+    private static final String EXISTING = "existing";
+    /**
+     * Syncing changes to the store.
+     */
+    private static final String SYNC = "sync";
+    /**
+     * Stages in the order they happen.
+     */
+    private static final String[] STAGES = {POLL, FETCH, MUNGE, REVISIONS, EXISTING, SYNC};
+
+    /**
+     * The timers. Replaced on reset.
+     */
+    private volatile MetricRegistry metrics = new MetricRegistry();
+
+    /**
+     * Build a wikibase repository that times polling and fetching.
+     */
+    public WikibaseRepository wikibase(String scheme, String host) {
+        return new TimedWikibaseRepository(this, scheme, host);
+    }
+
+    /**
+     * Build a munger that times munging.
+     */
+    public Munger munger(WikibaseUris uris) {
+        return new TimedMunger(this, uris);
+    }
+
+    /**
+     * Build an rdf repository that times revision checks, existing node
+     * lookups and syncs.
+     */
+    public RdfRepository rdf(URI uri, WikibaseUris uris) {
+        return new TimedRdfRepository(this, uri, uris);
+    }
+
+    /**
+     * Forget everything timed so far.
+     */
+    public void reset() {
+        metrics = new MetricRegistry();
+    }
+
+    /**
+     * Number of entities synced since the last reset.
+     */
+    public long synced() {
+        return metrics.counter("synced").getCount();
+    }
+
+    /**
+     * Describe the stages, one per line.
+     */
+    public String report() {
+        StringBuilder b = new StringBuilder();
+        Map<String, Timer> timers = metrics.getTimers();
+        Map<String, Counter> counters = metrics.getCounters();
+        for (String stage : STAGES) {
+            Timer timer = timers.get(stage);
+            if (timer == null) {
+                continue;
+            }
+            Snapshot snapshot = timer.getSnapshot();
+            b.append(String.format(Locale.ROOT, "%-10s%8d calls%10.2f ms mean%10.2f ms p99%10.2f s total%n", stage,
+                    timer.getCount(), snapshot.getMean() / 1e6, snapshot.get99thPercentile() / 1e6,
+                    counters.get(stage + ".total").getCount() / 1e9));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Record a call to a stage.
+     *
+     * @param start System.nanoTime() when the call started
+     */
+    private void record(String stage, long start) {
+        long elapsed = System.nanoTime() - start;
+        MetricRegistry current = metrics;
+        current.timer(stage).update(elapsed, TimeUnit.NANOSECONDS);
+        current.counter(stage + ".total").inc(elapsed);
+    }
+
+    /**
+     * Times polling and fetching.
+     */
+    private static class TimedWikibaseRepository extends WikibaseRepository {
+        /**
+         * Where the times go.
+         */
+        private final StageTimers timers;
+
+        TimedWikibaseRepository(StageTimers timers, String scheme, String host) {
+            super(scheme, host);
+            this.timers = timers;
+        }
+
+        @Override
+        public JSONObject fetchRecentChanges(Date nextStartTime, JSONObject lastContinue, int batchSize)
+                throws RetryableException {
+            long start = System.nanoTime();
+            try {
+                return super.fetchRecentChanges(nextStartTime, lastContinue, batchSize);
+            } finally {
+                timers.record(POLL, start);
+            }
+        }
+
+        @Override
+        public Collection<Statement> fetchRdfForEntity(String entityId) throws RetryableException {
+            long start = System.nanoTime();
+            try {
+                return super.fetchRdfForEntity(entityId);
+            } finally {
+                timers.record(FETCH, start);
+            }
+        }
+    }
+
+    /**
+     * Times munging.
+     */
+    private static class TimedMunger extends Munger {
+        /**
+         * Where the times go.
+         */
+        private final StageTimers timers;
+
+        TimedMunger(StageTimers timers, WikibaseUris uris) {
+            super(uris);
+            this.timers = timers;
+        }
+
+        @Override
+        public void munge(String entityId, Collection<Statement> statements, Collection<String> existingValues,
+                Collection<String> existingRefs, Change sourceChange) {
+            long start = System.nanoTime();
+            try {
+                super.munge(entityId, statements, existingValues, existingRefs, sourceChange);
+            } finally {
+                timers.record(MUNGE, start);
+            }
+        }
+    }
+
+    /**
+     * Times revision checks, existing node lookups and syncs.
+     */
+    private static class TimedRdfRepository extends RdfRepository {
+        /**
+         * Where the times go.
+         */
+        private final StageTimers timers;
+
+        TimedRdfRepository(StageTimers timers, URI uri, WikibaseUris uris) {
+            super(uri, uris);
+            this.timers = timers;
+        }
+
+        @Override
+        public Set<String> hasRevisions(Collection<Change> candidates) {
+            long start = System.nanoTime();
+            try {
+                return super.hasRevisions(candidates);
+            } finally {
+                timers.record(REVISIONS, start);
+            }
+        }
+
+        @Override
+        public ExistingNodes getExistingNodes(Collection<String> entityIds) {
+            long start = System.nanoTime();
+            try {
+                return super.getExistingNodes(entityIds);
+            } finally {
+                timers.record(EXISTING, start);
+            }
+        }
+
+        @Override
+        public int syncFromChanges(Collection<Change> changes, boolean verifyResult, Collection<String> unusedNodes) {
+            long start = System.nanoTime();
+            try {
+                return super.syncFromChanges(changes, verifyResult, unusedNodes);
+            } finally {
+                timers.record(SYNC, start);
+                timers.metrics.counter("synced").inc(changes.size());
+            }
+        }
+    }
+}
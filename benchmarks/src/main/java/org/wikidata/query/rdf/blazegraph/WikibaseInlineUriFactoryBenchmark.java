@@ -0,0 +1,132 @@
+package org.wikidata.query.rdf.blazegraph;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.wikidata.query.rdf.benchmark.BenchmarkStore;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+
+import com.bigdata.rdf.internal.IV;
+import com.bigdata.rdf.lexicon.LexiconRelation;
+
+/**
+ * Runs every uri in a munged fixture through the inline uri handlers
+ * WikibaseInlineUriFactory installs, in the mix the fixture has them. Uris no
+ * handler inlines still pay for the factory looking for a handler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WikibaseInlineUriFactoryBenchmark {
+    /**
+     * The dump to take uris from. See Fixtures#dump.
+     */
+    @Param({"slice", "large"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public String fixture;
+
+    /**
+     * Store configured with the factory.
+     */
+    private BenchmarkStore store;
+    /**
+     * The store's lexicon which does the inlining.
+     */
+    private LexiconRelation lexicon;
+    /**
+     * The uris.
+     */
+    private URI[] uris;
+    /**
+     * Index of the next uri to use.
+     */
+    private int next;
+
+    /**
+     * Build the store and collect the uris.
+     */
+    @Setup
+    public void setup() throws OpenRDFException, IOException {
+        store = new BenchmarkStore();
+        lexicon = store.store().getLexiconRelation();
+        Set<URI> found = new LinkedHashSet<>();
+        for (Statement statement : Fixtures.munge(Fixtures.dump(fixture))) {
+            add(found, statement.getSubject());
+            add(found, statement.getPredicate());
+            add(found, statement.getObject());
+        }
+        uris = found.toArray(new URI[found.size()]);
+    }
+
+    /**
+     * Close the store.
+     */
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    /**
+     * Inline a uri.
+     */
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public IV encode() {
+        return lexicon.getInlineIV(uris[nextIndex()]);
+    }
+
+    /**
+     * Inline a uri and turn it back into a uri like reading it from the store
+     * does.
+     */
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public Value roundTrip() {
+        IV iv = lexicon.getInlineIV(uris[nextIndex()]);
+        if (iv == null) {
+            return null;
+        }
+        return iv.asValue(lexicon);
+    }
+
+    /**
+     * Add a value if it is a uri.
+     */
+    private static void add(Set<URI> found, Value value) {
+        if (value instanceof URI) {
+            found.add((URI) value);
+        }
+    }
+
+    /**
+     * Cycle through the uris.
+     */
+    private int nextIndex() {
+        next++;
+        if (next == uris.length) {
+            next = 0;
+        }
+        return next;
+    }
+}
@@ -0,0 +1,161 @@
+package org.wikidata.query.rdf.blazegraph.inline.uri;
+
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.bigdata.rdf.internal.impl.literal.AbstractLiteralIV;
+import com.bigdata.rdf.internal.impl.literal.XSDIntegerIV;
+import com.bigdata.rdf.model.BigdataLiteral;
+
+/**
+ * Compares encoding and decoding statement uris with
+ * WikibaseStyleStatementInlineUriHandler against the BigInteger arithmetic it
+ * used to do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WikibaseStyleStatementInlineUriHandlerBenchmark {
+    /**
+     * Number of distinct statements to cycle through.
+     */
+    private static final int STATEMENTS = 1024;
+
+    /**
+     * The handler under test.
+     */
+    private WikibaseStyleStatementInlineUriHandler handler;
+    /**
+     * Local names to encode.
+     */
+    private String[] localNames;
+    /**
+     * Encoded local names to decode.
+     */
+    private XSDIntegerIV<BigdataLiteral>[] encoded;
+    /**
+     * Index of the next statement to use.
+     */
+    private int next;
+
+    /**
+     * Build the statements.
+     */
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        handler = new WikibaseStyleStatementInlineUriHandler(WikibaseUris.WIKIDATA.statement());
+        Random random = new Random(42);
+        localNames = new String[STATEMENTS];
+        encoded = new XSDIntegerIV[STATEMENTS];
+        for (int i = 0; i < STATEMENTS; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            localNames[i] = (random.nextBoolean() ? "Q" : "P") + (random.nextInt(30000000) + 1) + "-"
+                    + uuid.toString().toUpperCase(Locale.ROOT);
+            encoded[i] = (XSDIntegerIV<BigdataLiteral>) handler.createInlineIV(localNames[i]);
+        }
+    }
+
+    /**
+     * Encode with the handler.
+     */
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public AbstractLiteralIV encode() {
+        return handler.createInlineIV(localNames[nextIndex()]);
+    }
+
+    /**
+     * Encode with BigInteger arithmetic.
+     */
+    @Benchmark
+    public BigInteger encodeBigInteger() {
+        return bigIntegerEncode(localNames[nextIndex()]);
+    }
+
+    /**
+     * Decode with the handler.
+     */
+    @Benchmark
+    public String decode() {
+        return handler.getLocalNameFromDelegate(encoded[nextIndex()]);
+    }
+
+    /**
+     * Decode with BigInteger arithmetic.
+     */
+    @Benchmark
+    public String decodeBigInteger() {
+        return bigIntegerDecode(encoded[nextIndex()].integerValue());
+    }
+
+    /**
+     * Cycle through the statements.
+     */
+    private int nextIndex() {
+        next = (next + 1) & (STATEMENTS - 1);
+        return next;
+    }
+
+    /**
+     * How the handler used to encode statements.
+     */
+    private static BigInteger bigIntegerEncode(String localName) {
+        int signum = localName.charAt(0) == 'Q' ? 1 : -1;
+        int firstDash = localName.indexOf('-');
+        long entity = Long.valueOf(localName.substring(1, firstDash), 10);
+        UUID u = UUID.fromString(localName.substring(firstDash + 1));
+        BigInteger i = BigInteger.valueOf(signum * entity);
+        i = i.shiftLeft(Long.SIZE).or(unsigned(u.getMostSignificantBits()));
+        return i.shiftLeft(Long.SIZE).or(unsigned(u.getLeastSignificantBits()));
+    }
+
+    /**
+     * How the handler used to decode statements.
+     */
+    private static String bigIntegerDecode(BigInteger i) {
+        long least = i.longValue();
+        BigInteger shifted = i.shiftRight(Long.SIZE);
+        long most = shifted.longValue();
+        shifted = shifted.shiftRight(Long.SIZE);
+        long entity = shifted.longValue();
+        StringBuilder b = new StringBuilder();
+        if (entity < 0) {
+            entity = -entity;
+            b.append('P');
+        } else {
+            b.append('Q');
+        }
+        b.append(entity).append('-').append(new UUID(most, least).toString().toUpperCase(Locale.ROOT));
+        return b.toString();
+    }
+
+    /**
+     * Convert a long into an unsigned BigInteger holding it.
+     */
+    private static BigInteger unsigned(long l) {
+        BigInteger i = BigInteger.valueOf(l & 0x7fffffffffffffffL);
+        if (l < 0) {
+            i = i.setBit(Long.SIZE - 1);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,114 @@
+package org.wikidata.query.rdf.blazegraph.label;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.OpenRDFException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.wikidata.query.rdf.benchmark.BenchmarkStore;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+import org.wikidata.query.rdf.common.uri.Ontology;
+import org.wikidata.query.rdf.common.uri.RDFS;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+
+/**
+ * Resolves labels with the label service over the munged dump slice and large
+ * entities. Most of the items the large entities link to have no labels so
+ * those resolve to their ids, like links to obscure items do in production.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LabelServiceBenchmark {
+    /**
+     * Languages to ask the label service for.
+     */
+    @Param({"en", "ja,fr,de,en"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public String languages;
+
+    /**
+     * Store holding the fixtures.
+     */
+    private BenchmarkStore store;
+    /**
+     * Prefixes for the queries.
+     */
+    private String prefixes;
+
+    /**
+     * Build the store and load the fixtures.
+     */
+    @Setup
+    public void setup() throws OpenRDFException, IOException {
+        store = new BenchmarkStore();
+        store.add(Fixtures.munge(Fixtures.dump("slice")));
+        store.add(Fixtures.munge(Fixtures.dump("large")));
+        StringBuilder b = Fixtures.URIS.prefixes(new StringBuilder());
+        b = RDFS.prefix(SchemaDotOrg.prefix(Ontology.prefix(b)));
+        prefixes = b.append("PREFIX bd: <http://www.bigdata.com/rdf#>\n").toString();
+    }
+
+    /**
+     * Close the store.
+     */
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    /**
+     * Resolve the label, description and aliases of every entity.
+     */
+    @Benchmark
+    public int entities() throws QueryEvaluationException {
+        return count("SELECT ?entity ?entityLabel ?entityDescription ?entityAltLabel WHERE {\n"
+                + "  ?entity schema:version ?version .\n"
+                + "  SERVICE ontology:label { bd:serviceParam ontology:language \"" + languages + "\" }\n"
+                + "}");
+    }
+
+    /**
+     * Resolve the labels of every item linked from the large entities.
+     */
+    @Benchmark
+    public int linked() throws QueryEvaluationException {
+        return count("SELECT ?entity ?value ?valueLabel WHERE {\n"
+                + "  ?entity wdt:P31|wdt:P17|wdt:P27|wdt:P106|wdt:P166 ?value .\n"
+                + "  SERVICE ontology:label { bd:serviceParam ontology:language \"" + languages + "\" }\n"
+                + "}");
+    }
+
+    /**
+     * Run a query and count the results.
+     */
+    private int count(String query) throws QueryEvaluationException {
+        TupleQueryResult result = store.query(prefixes + query);
+        try {
+            int count = 0;
+            while (result.hasNext()) {
+                result.next();
+                count++;
+            }
+            return count;
+        } finally {
+            result.close();
+        }
+    }
+}
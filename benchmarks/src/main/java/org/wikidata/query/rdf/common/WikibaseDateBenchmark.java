@@ -0,0 +1,107 @@
+package org.wikidata.query.rdf.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+import org.wikidata.query.rdf.common.WikibaseDate.ToStringFormat;
+
+/**
+ * Converts the dates in the fixtures the way Blazegraph's date extension does:
+ * to seconds since epoch when they are written and back to a string when they
+ * are read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WikibaseDateBenchmark {
+    /**
+     * The dates as strings.
+     */
+    private String[] strings;
+    /**
+     * The dates as seconds since epoch.
+     */
+    private long[] seconds;
+    /**
+     * Index of the next date to use.
+     */
+    private int next;
+
+    /**
+     * Collect every xsd:dateTime in the fixtures.
+     */
+    @Setup
+    public void setup() throws OpenRDFException, IOException {
+        List<String> dates = new ArrayList<>();
+        for (String fixture : new String[] {"slice", "large"}) {
+            for (Statement statement : Fixtures.parse(Fixtures.dump(fixture))) {
+                if (statement.getObject() instanceof Literal
+                        && XMLSchema.DATETIME.equals(((Literal) statement.getObject()).getDatatype())) {
+                    dates.add(statement.getObject().stringValue());
+                }
+            }
+        }
+        strings = dates.toArray(new String[dates.size()]);
+        seconds = new long[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            seconds[i] = WikibaseDate.fromString(strings[i]).cleanWeirdStuff().secondsSinceEpoch();
+        }
+    }
+
+    /**
+     * Parse a date.
+     */
+    @Benchmark
+    public WikibaseDate parse() {
+        return WikibaseDate.fromString(strings[nextIndex()]);
+    }
+
+    /**
+     * Convert a date to seconds since epoch like the date extension does on
+     * write.
+     */
+    @Benchmark
+    public long toSecondsSinceEpoch() {
+        return WikibaseDate.fromString(strings[nextIndex()]).cleanWeirdStuff().secondsSinceEpoch();
+    }
+
+    /**
+     * Convert seconds since epoch to a date string like the date extension
+     * does on read.
+     */
+    @Benchmark
+    public String fromSecondsSinceEpoch() {
+        return WikibaseDate.fromSecondsSinceEpoch(seconds[nextIndex()]).toString(ToStringFormat.DATE_TIME);
+    }
+
+    /**
+     * Cycle through the dates.
+     */
+    private int nextIndex() {
+        next++;
+        if (next == strings.length) {
+            next = 0;
+        }
+        return next;
+    }
+}
@@ -0,0 +1,65 @@
+package org.wikidata.query.rdf.tool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+import org.wikidata.query.rdf.tool.Munge.AlwaysOutputPicker;
+import org.wikidata.query.rdf.tool.rdf.Munger;
+
+import com.google.common.io.CharSource;
+import com.google.common.io.CharStreams;
+
+/**
+ * Munges a dump end to end - parsing, normalizing, munging each entity and
+ * writing the result - like the munge tool does when loading a new server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MungeBenchmark {
+    /**
+     * The dump to munge. See Fixtures#dump.
+     */
+    @Param({"slice", "large"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public String fixture;
+
+    /**
+     * The dump.
+     */
+    private String dump;
+
+    /**
+     * Load the dump.
+     */
+    @Setup
+    public void setup() throws IOException {
+        dump = Fixtures.dump(fixture);
+    }
+
+    /**
+     * Munge the dump.
+     */
+    @Benchmark
+    public void munge() throws IOException {
+        Munger munger = new Munger(Fixtures.URIS);
+        new Munge(Fixtures.URIS, munger, CharSource.wrap(dump).openStream(), new AlwaysOutputPicker<Writer>(
+                CharStreams.nullWriter())).run();
+    }
+}
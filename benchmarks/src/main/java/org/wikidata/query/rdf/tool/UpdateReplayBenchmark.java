@@ -0,0 +1,182 @@
+package org.wikidata.query.rdf.tool;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.benchmark.EmbeddedBlazegraph;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+import org.wikidata.query.rdf.benchmark.Recording;
+import org.wikidata.query.rdf.benchmark.ReplaySource;
+import org.wikidata.query.rdf.benchmark.ReplayWikibase;
+import org.wikidata.query.rdf.benchmark.StageTimers;
+import org.wikidata.query.rdf.tool.change.PrefetchingChangeSource;
+import org.wikidata.query.rdf.tool.change.RecentChangesPoller;
+import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Replays a recording of recent changes through the updater, fetching from a
+ * stub wikibase and syncing to Blazegraph running in this JVM, so updater
+ * throughput problems can be reproduced away from production. The score is
+ * the time it takes to replay the whole recording into an empty store. Each
+ * replay logs changes per second and how long each stage took. Run with
+ * -prof gc for allocation rates.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateReplayBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(UpdateReplayBenchmark.class);
+
+    /**
+     * Number of changes in the generated recording.
+     */
+    private static final int GENERATED_CHANGES = 1000;
+    /**
+     * Number of entities the generated recording edits.
+     */
+    private static final int GENERATED_ENTITIES = 250;
+
+    /**
+     * Directory holding the recording to replay or "generated" to generate
+     * one. See Recording.
+     */
+    @Param({"generated"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public String recording;
+    /**
+     * Number of threads fetching and munging, like --threadCount.
+     */
+    @Param({"1", "4", "10"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public int threads;
+    /**
+     * Number of recent changes fetched at a time, like --batchSize.
+     */
+    @Param({"10", "100"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public int batchSize;
+
+    /**
+     * The recording.
+     */
+    private Recording replayed;
+    /**
+     * Stub wikibase replaying the recording.
+     */
+    private ReplayWikibase wikibase;
+    /**
+     * Blazegraph the update syncs to.
+     */
+    private EmbeddedBlazegraph blazegraph;
+    /**
+     * Times each stage.
+     */
+    private StageTimers timers;
+    /**
+     * Talks to blazegraph.
+     */
+    private RdfRepository rdfRepository;
+    /**
+     * Fetches and munges.
+     */
+    private ExecutorService executor;
+    /**
+     * The update, run once per replay.
+     */
+    private Update<?> update;
+    /**
+     * Nanoseconds the last replay took.
+     */
+    private long elapsed;
+
+    /**
+     * Load the recording, start wikibase and blazegraph, and build the update
+     * the way Update's defaults would.
+     */
+    @Setup
+    public void setup() throws Exception {
+        if ("generated".equals(recording)) {
+            replayed = Recording.generate(GENERATED_CHANGES, GENERATED_ENTITIES);
+        } else {
+            replayed = Recording.load(new File(recording));
+        }
+        wikibase = new ReplayWikibase(replayed);
+        wikibase.start();
+        blazegraph = new EmbeddedBlazegraph();
+        timers = new StageTimers();
+        WikibaseRepository wikibaseRepository = timers.wikibase("http", wikibase.host());
+        rdfRepository = timers.rdf(blazegraph.sparqlUri(), Fixtures.URIS);
+        ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("update %s");
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory.build());
+        RecentChangesPoller poller = new RecentChangesPoller(wikibaseRepository, replayed.start(), batchSize);
+        update = new Update<>(new ReplaySource<>(new PrefetchingChangeSource<>(poller, 1), replayed.lastRcid()),
+                wikibaseRepository, rdfRepository, timers.munger(Fixtures.URIS), executor, 1, Fixtures.URIS, false);
+    }
+
+    /**
+     * Empty the store and start the recording over.
+     */
+    @Setup(Level.Iteration)
+    public void rewind() {
+        rdfRepository.syncQuery("CLEAR ALL");
+        wikibase.rewind();
+        timers.reset();
+    }
+
+    /**
+     * Replay the recording.
+     */
+    @Benchmark
+    public void replay() {
+        long start = System.nanoTime();
+        update.run();
+        elapsed = System.nanoTime() - start;
+    }
+
+    /**
+     * Log how the replay went.
+     */
+    @TearDown(Level.Iteration)
+    public void report() {
+        double seconds = elapsed / 1e9;
+        log.info(String.format(Locale.ROOT,
+                "Replayed %d changes, syncing %d entities, in %.1f seconds at %.1f changes per second%n%s",
+                replayed.size(), timers.synced(), seconds, replayed.size() / seconds, timers.report()));
+    }
+
+    /**
+     * Stop wikibase and blazegraph.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        wikibase.stop();
+        blazegraph.stop();
+    }
+}
@@ -0,0 +1,86 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Statement;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+import org.wikidata.query.rdf.benchmark.LargeEntity;
+
+/**
+ * Munges a single large entity the way the updater does after fetching it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class MungerBenchmark {
+    /**
+     * Number of claims on the entity.
+     */
+    @Param({"100", "1000"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public int claims;
+
+    /**
+     * The munger under test.
+     */
+    private Munger munger;
+    /**
+     * Id of the entity.
+     */
+    private String entityId;
+    /**
+     * The entity as fetched.
+     */
+    private List<Statement> entity;
+    /**
+     * Copy of the entity for the munger to modify.
+     */
+    private List<Statement> statements;
+
+    /**
+     * Build and parse the entity.
+     */
+    @Setup
+    public void setup() throws OpenRDFException, IOException {
+        munger = new Munger(Fixtures.URIS);
+        entityId = Fixtures.largeEntityId(0);
+        entity = Fixtures.parse(LargeEntity.turtle(Fixtures.URIS, entityId, claims));
+    }
+
+    /**
+     * Give the munger a fresh copy of the entity. Munging an entity takes long
+     * enough that invocation level setup doesn't skew the timing.
+     */
+    @Setup(Level.Invocation)
+    public void copy() {
+        statements = new ArrayList<>(entity);
+    }
+
+    /**
+     * Munge the entity.
+     */
+    @Benchmark
+    public List<Statement> munge() {
+        munger.munge(entityId, statements);
+        return statements;
+    }
+}
@@ -0,0 +1,108 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+
+/**
+ * Measures what NormalizingRdfHandler costs on top of parsing. parse is the
+ * baseline, parseAndNormalize is what the updater and munger do, and normalize
+ * replays already parsed statements through the handler so it is the
+ * handler's cost alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NormalizingRdfHandlerBenchmark {
+    /**
+     * The Turtle to parse. See Fixtures#dump.
+     */
+    @Param({"slice", "large"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public String fixture;
+
+    /**
+     * The Turtle.
+     */
+    private String turtle;
+    /**
+     * The Turtle parsed without normalizing.
+     */
+    private List<Statement> parsed;
+
+    /**
+     * Load and parse the Turtle.
+     */
+    @Setup
+    public void setup() throws OpenRDFException, IOException {
+        turtle = Fixtures.dump(fixture);
+        StatementCollector collector = new StatementCollector();
+        Fixtures.parse(turtle, collector);
+        parsed = new ArrayList<>(collector.getStatements());
+    }
+
+    /**
+     * Parse without normalizing.
+     */
+    @Benchmark
+    public void parse(Blackhole blackhole) throws OpenRDFException, IOException {
+        Fixtures.parse(turtle, consume(blackhole));
+    }
+
+    /**
+     * Parse and normalize.
+     */
+    @Benchmark
+    public void parseAndNormalize(Blackhole blackhole) throws OpenRDFException, IOException {
+        Fixtures.parse(turtle, new NormalizingRdfHandler(consume(blackhole)));
+    }
+
+    /**
+     * Normalize already parsed statements.
+     */
+    @Benchmark
+    public void normalize(Blackhole blackhole) throws RDFHandlerException {
+        RDFHandler handler = new NormalizingRdfHandler(consume(blackhole));
+        handler.startRDF();
+        for (Statement statement : parsed) {
+            handler.handleStatement(statement);
+        }
+        handler.endRDF();
+    }
+
+    /**
+     * Build a handler that hands every statement to the blackhole.
+     */
+    private static RDFHandler consume(final Blackhole blackhole) {
+        return new RDFHandlerBase() {
+            @Override
+            public void handleStatement(Statement statement) {
+                blackhole.consume(statement);
+            }
+        };
+    }
+}
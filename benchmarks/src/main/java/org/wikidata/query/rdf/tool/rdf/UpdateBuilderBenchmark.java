@@ -0,0 +1,93 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Statement;
+import org.wikidata.query.rdf.benchmark.Fixtures;
+import org.wikidata.query.rdf.benchmark.LargeEntity;
+
+/**
+ * Builds the SPARQL update that syncs a munged large entity. Nothing is sent
+ * anywhere - this is just the string building.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateBuilderBenchmark {
+    /**
+     * Number of claims on the entity.
+     */
+    @Param({"100", "1000"})
+    @SuppressWarnings("checkstyle:visibilitymodifier")
+    public int claims;
+
+    /**
+     * Builds the sync query. Never talks to the store.
+     */
+    private RdfRepository repository;
+    /**
+     * Id of the entity.
+     */
+    private String entityId;
+    /**
+     * The munged entity.
+     */
+    private List<Statement> statements;
+    /**
+     * Value nodes the entity uses, for the cleanup part of the update.
+     */
+    private Set<String> values;
+
+    /**
+     * Build and munge the entity.
+     */
+    @Setup
+    public void setup() throws OpenRDFException, IOException {
+        repository = new RdfRepository(URI.create("http://localhost:9999/bigdata/namespace/wdq/sparql"), Fixtures.URIS);
+        entityId = Fixtures.largeEntityId(0);
+        statements = Fixtures.parse(LargeEntity.turtle(Fixtures.URIS, entityId, claims));
+        new Munger(Fixtures.URIS).munge(entityId, statements);
+        values = new HashSet<>();
+        for (Statement statement : statements) {
+            if (statement.getSubject().stringValue().startsWith(Fixtures.URIS.value())) {
+                values.add(statement.getSubject().stringValue());
+            }
+        }
+    }
+
+    /**
+     * Build the update the updater sends for the entity.
+     */
+    @Benchmark
+    public String syncQuery() {
+        return repository.getSyncQuery(entityId, statements, values);
+    }
+
+    /**
+     * Just bind the statements into an update.
+     */
+    @Benchmark
+    public String bindStatements() {
+        return new UpdateBuilder("INSERT DATA {\n%statements%\n}").bindStatements("statements", statements).toString();
+    }
+}
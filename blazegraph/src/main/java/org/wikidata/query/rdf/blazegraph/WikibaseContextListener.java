@@ -8,7 +8,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.blazegraph.constraints.WikibaseDateBOp;
 import org.wikidata.query.rdf.blazegraph.constraints.WikibaseNowBOp;
+import org.wikidata.query.rdf.blazegraph.filters.QueryMetricsFilter;
+import org.wikidata.query.rdf.blazegraph.geo.GeoService;
 import org.wikidata.query.rdf.blazegraph.label.LabelService;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
 import org.wikidata.query.rdf.common.uri.OWL;
 import org.wikidata.query.rdf.common.uri.Ontology;
 import org.wikidata.query.rdf.common.uri.Provenance;
@@ -44,11 +47,12 @@ public class WikibaseContextListener extends BigdataRDFServletContextListener {
 
     /**
      * Replaces the default Blazegraph services with ones that do not allow
-     * remote services and a label resolution service.
+     * remote services, a label resolution service, and geo search services.
      */
     public static void initializeServices() {
         ServiceRegistry.getInstance().setDefaultServiceFactory(new DisableRemotesServiceFactory());
         LabelService.register();
+        GeoService.register();
 
         // Override date functions so that we can handle them
         // via WikibaseDate
@@ -106,12 +110,14 @@ public class WikibaseContextListener extends BigdataRDFServletContextListener {
         defaultDecls.put("prov", Provenance.NAMESPACE);
         defaultDecls.put("skos", SKOS.NAMESPACE);
         defaultDecls.put("owl", OWL.NAMESPACE);
+        defaultDecls.put(GeoSparql.PREFIX, GeoSparql.NAMESPACE);
     }
 
     @Override
     public void contextInitialized(final ServletContextEvent e) {
         super.contextInitialized(e);
         initializeServices();
+        QueryMetricsFilter.register(e.getServletContext());
     }
 
     /**
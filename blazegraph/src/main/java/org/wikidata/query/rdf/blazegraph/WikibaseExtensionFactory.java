@@ -6,6 +6,8 @@ import java.util.Iterator;
 //import org.slf4j.Logger;
 //import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.blazegraph.inline.literal.WikibaseDateExtension;
+import org.wikidata.query.rdf.blazegraph.inline.literal.WikibaseDecimalExtension;
+import org.wikidata.query.rdf.blazegraph.inline.literal.WikibasePointExtension;
 
 import com.bigdata.rdf.internal.DefaultExtensionFactory;
 import com.bigdata.rdf.internal.IDatatypeURIResolver;
@@ -16,7 +18,10 @@ import com.bigdata.rdf.model.BigdataLiteral;
 import com.bigdata.rdf.model.BigdataValue;
 
 /**
- * Setup inline value extensions to Blazegraph for Wikidata.
+ * Setup inline value extensions to Blazegraph for Wikidata. Blazegraph records
+ * the factory's class name in the journal so changing which literals a factory
+ * inlines would break existing journals. Instead new inline extensions go into
+ * new versions of the factory as nested classes.
  */
 public class WikibaseExtensionFactory extends DefaultExtensionFactory {
     // private static final Logger log = LoggerFactory.getLogger(WikibaseExtensionFactory.class);
@@ -36,4 +41,30 @@ public class WikibaseExtensionFactory extends DefaultExtensionFactory {
             // log.warn("Installed Wikidata date extensions");
         }
     }
+
+    /**
+     * Adds inline coordinates. Needs WikibaseVocabulary.V003 or later.
+     */
+    public static class V002 extends WikibaseExtensionFactory {
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected void _init(IDatatypeURIResolver resolver, ILexiconConfiguration<BigdataValue> config,
+                Collection<IExtension<? extends BigdataValue>> extensions) {
+            super._init(resolver, config, extensions);
+            extensions.add(new WikibasePointExtension<BigdataLiteral>(resolver));
+        }
+    }
+
+    /**
+     * Adds inline fixed point decimals.
+     */
+    public static class V003 extends V002 {
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected void _init(IDatatypeURIResolver resolver, ILexiconConfiguration<BigdataValue> config,
+                Collection<IExtension<? extends BigdataValue>> extensions) {
+            super._init(resolver, config, extensions);
+            extensions.add(new WikibaseDecimalExtension<BigdataLiteral>(resolver));
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package org.wikidata.query.rdf.blazegraph;
 
+import org.wikidata.query.rdf.blazegraph.inline.uri.ReferenceHashInlineUriHandler;
 import org.wikidata.query.rdf.blazegraph.inline.uri.UndecoratedUuidInlineUriHandler;
+import org.wikidata.query.rdf.blazegraph.inline.uri.WikibaseStyleStatementInlineUriHandler;
 import org.wikidata.query.rdf.common.uri.CommonValues;
 import org.wikidata.query.rdf.common.uri.WikibaseUris;
 import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
@@ -26,6 +28,10 @@ import com.bigdata.rdf.internal.TrailingSlashRemovingInlineUriHandler;
  * that if the delegate data type is any larger than 6 bytes then its a net loss
  * on index size using it. So you should avoid longs and uuids. Maybe even
  * forbid them entirely.
+ *
+ * Blazegraph records the factory's class name in the journal so changing which
+ * uris a factory inlines would break existing journals. Instead new handlers
+ * go into new versions of the factory as nested classes.
  */
 public class WikibaseInlineUriFactory extends InlineURIFactory {
     public WikibaseInlineUriFactory() {
@@ -61,10 +67,32 @@ public class WikibaseInlineUriFactory extends InlineURIFactory {
          * munger into something less-uuid-ish.
          *
          * References aren't uuids - they are sha1s or sha0s or something
-         * similarly 160 bit wide. 160 bits is too big to fit into a uuid so we
-         * can't inline that without bloating either.
+         * similarly 160 bit wide. 160 bits is too big to fit into a uuid so
+         * they are inlined as integers starting with V002.
          */
         addHandler(new UndecoratedUuidInlineUriHandler(uris.value()));
         // addHandler(new UndecoratedUuidInlineUriHandler(uris.reference()));
     }
+
+    /**
+     * Adds inline reference hashes. Each reference takes a little more space
+     * in the statement indexes but saves its entries in the lexicon.
+     */
+    public static class V002 extends WikibaseInlineUriFactory {
+        public V002() {
+            addHandler(new ReferenceHashInlineUriHandler(WikibaseUris.WIKIDATA.reference()));
+        }
+    }
+
+    /**
+     * Adds inline statements for stores that want them despite the bigger
+     * statement indexes. Only canonical statement local names are inlined so
+     * each one decodes back to exactly the uri that was written. Opt in - dist
+     * still builds stores with V002.
+     */
+    public static class V003 extends V002 {
+        public V003() {
+            addHandler(new WikibaseStyleStatementInlineUriHandler.Canonical(WikibaseUris.WIKIDATA.statement()));
+        }
+    }
 }
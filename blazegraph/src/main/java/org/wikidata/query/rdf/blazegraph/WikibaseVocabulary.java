@@ -1,6 +1,7 @@
 package org.wikidata.query.rdf.blazegraph;
 
 import org.wikidata.query.rdf.blazegraph.vocabulary.CommonValuesVocabularyDecl;
+import org.wikidata.query.rdf.blazegraph.vocabulary.GeoSparqlVocabularyDecl;
 import org.wikidata.query.rdf.blazegraph.vocabulary.OntologyVocabularyDecl;
 import org.wikidata.query.rdf.blazegraph.vocabulary.ProvenanceVocabularyDecl;
 import org.wikidata.query.rdf.blazegraph.vocabulary.SchemaDotOrgVocabularyDecl;
@@ -19,7 +20,7 @@ public class WikibaseVocabulary {
     /**
      * Current vocabulary class.
      */
-    public static final Class VOCABULARY_CLASS = V001.class;
+    public static final Class VOCABULARY_CLASS = V003.class;
 
     protected WikibaseVocabulary() {
         // prevents calls from subclass
@@ -30,6 +31,7 @@ public class WikibaseVocabulary {
      * Vocabulary classes
      * V001: 1.5.x version
      * V002: 2.0 version, extends different class
+     * V003: V002 plus GeoSPARQL datatypes for inline coordinates
      */
 
     /**
@@ -80,4 +82,23 @@ public class WikibaseVocabulary {
         }
     }
 
+    /**
+     * Class for BG 2.0 with GeoSPARQL datatypes. Required by
+     * WikibaseExtensionFactory.V002 and later because they inline coordinates.
+     */
+    public static class V003 extends V002 {
+        public V003() {
+        }
+
+        public V003(String namespace) {
+            super(namespace);
+        }
+
+        @Override
+        protected void addValues() {
+            super.addValues();
+            addDecl(new GeoSparqlVocabularyDecl());
+        }
+    }
+
 }
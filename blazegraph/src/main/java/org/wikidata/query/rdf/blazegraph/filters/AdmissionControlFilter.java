@@ -0,0 +1,262 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.blazegraph.filters.AdmissionController.Lane;
+import org.wikidata.query.rdf.blazegraph.filters.AdmissionController.Ticket;
+
+/**
+ * Limits how many SPARQL requests run at once so a few heavy analytic queries
+ * can't starve the updater. Requests are sorted into lanes: SPARQL updates and
+ * requests with the updater's user agent go in the update lane if they come
+ * from a trusted address, queries that look cheap go in the short lane, and
+ * everything else goes in the heavy lane. See AdmissionController for how the lanes share slots. Shed requests
+ * get a 429. Requests that aren't for a SPARQL endpoint, like the rest of the
+ * multi-tenancy API, aren't limited.
+ * <p>
+ * Init parameters:
+ * <ul>
+ * <li>sharedSlots - slots any request may use (default 32, matching
+ * queryThreadPoolSize)
+ * <li>reservedUpdateSlots - slots only the update lane may use (default 2)
+ * <li>reservedShortSlots - slots only the short lane may use (default 4)
+ * <li>maxQueued - public requests allowed to wait for a slot (default 64)
+ * <li>maxQueueMillis - how long public requests may wait (default 10000)
+ * <li>maxPerClient - public requests a client may have running or waiting, 0
+ * for unlimited (default 4)
+ * <li>shortQueryLength - queries longer than this are never short (default
+ * 1000)
+ * <li>updaterAddresses - comma separated remote addresses allowed to use the
+ * update lane (default the loopback addresses). This is the address of the
+ * connection, never X-Forwarded-For, because clients can set that.
+ * <li>updaterPort - if set then only requests arriving on this local port may
+ * use the update lane. Use this with an internal only connector when a proxy
+ * on the same host forwards public traffic from a loopback address.
+ * <li>updaterUserAgent - prefix of the updater's user agent (default
+ * "Wikidata Query Service Updater"). This is trivial to spoof so it is only a
+ * hint used for requests that are already trusted.
+ * </ul>
+ */
+public class AdmissionControlFilter implements Filter {
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControlFilter.class);
+
+    /**
+     * Default prefix of the updater's user agent.
+     */
+    public static final String DEFAULT_UPDATER_USER_AGENT = "Wikidata Query Service Updater";
+    /**
+     * Default addresses allowed to use the update lane.
+     */
+    public static final String DEFAULT_UPDATER_ADDRESSES = "127.0.0.1,0:0:0:0:0:0:0:1,::1";
+
+    /**
+     * Query features that make us think a query is heavy: aggregation,
+     * sorting, federation, and arbitrary length property paths.
+     */
+    private static final Pattern HEAVY_FEATURES = Pattern.compile(
+            "\\b(?:GROUP\\s+BY|ORDER\\s+BY|DISTINCT|SERVICE|COUNT|SUM|AVG|MIN|MAX)\\b|[\\w>)][*+]",
+            Pattern.CASE_INSENSITIVE);
+    /**
+     * Matches an ASK query, possibly after prologue declarations.
+     */
+    private static final Pattern ASK = Pattern.compile(
+            "^(?:\\s*(?:PREFIX\\s+\\S*\\s*<[^>]*>|BASE\\s*<[^>]*>|#[^\\n]*\\n))*\\s*ASK\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Hands out slots.
+     */
+    private AdmissionController controller;
+    /**
+     * How long public requests may wait in milliseconds.
+     */
+    private long maxQueueMillis;
+    /**
+     * Queries longer than this are never short.
+     */
+    private int shortQueryLength;
+    /**
+     * Prefix of the updater's user agent.
+     */
+    private String updaterUserAgent;
+    /**
+     * Remote addresses allowed to use the update lane.
+     */
+    private Set<String> updaterAddresses;
+    /**
+     * Local port requests must arrive on to use the update lane or 0 for any
+     * port.
+     */
+    private int updaterPort;
+    /**
+     * Name the MBean was registered under.
+     */
+    private ObjectName objectName;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        controller = new AdmissionController(intParam(config, "sharedSlots", 32), intParam(config,
+                "reservedUpdateSlots", 2), intParam(config, "reservedShortSlots", 4), intParam(config, "maxQueued", 64),
+                intParam(config, "maxPerClient", 4));
+        maxQueueMillis = intParam(config, "maxQueueMillis", 10000);
+        shortQueryLength = intParam(config, "shortQueryLength", 1000);
+        updaterUserAgent = config.getInitParameter("updaterUserAgent");
+        if (updaterUserAgent == null) {
+            updaterUserAgent = DEFAULT_UPDATER_USER_AGENT;
+        }
+        String addresses = config.getInitParameter("updaterAddresses");
+        updaterAddresses = new HashSet<>();
+        for (String address : (addresses == null ? DEFAULT_UPDATER_ADDRESSES : addresses).split(",")) {
+            address = address.trim();
+            if (!address.isEmpty()) {
+                updaterAddresses.add(address);
+            }
+        }
+        updaterPort = intParam(config, "updaterPort", 0);
+        objectName = MBeans.register(controller, "AdmissionControl", config.getFilterName());
+    }
+
+    @Override
+    public void destroy() {
+        MBeans.unregister(objectName);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+        if (!(request instanceof HttpServletRequest) || !SparqlRequests.isSparql((HttpServletRequest) request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        Lane lane = lane(httpRequest);
+        if (lane == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        Ticket ticket;
+        try {
+            ticket = controller.acquire(lane, client(httpRequest), maxQueueMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted waiting for a slot", e);
+        }
+        if (ticket == null) {
+            log.debug("Shedding {} request from {}", lane, httpRequest.getRemoteAddr());
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader("Retry-After", "5");
+            httpResponse.sendError(429, "Too many concurrent requests. Please retry later.");
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * The admission controller.
+     */
+    AdmissionController controller() {
+        return controller;
+    }
+
+    /**
+     * Pick the lane for a request.
+     *
+     * @return the lane or null if the request isn't a SPARQL request and
+     *         shouldn't be limited
+     */
+    Lane lane(HttpServletRequest request) {
+        boolean update = request.getParameter("update") != null;
+        if (trusted(request)) {
+            String userAgent = request.getHeader("User-Agent");
+            if (update || userAgent != null && userAgent.startsWith(updaterUserAgent)) {
+                return Lane.UPDATE;
+            }
+        }
+        String query = request.getParameter("query");
+        if (query == null) {
+            // Updates from anyone else have to compete with the heavy queries
+            return update ? Lane.HEAVY : null;
+        }
+        return isShort(query) ? Lane.SHORT : Lane.HEAVY;
+    }
+
+    /**
+     * Is the request from somewhere allowed to use the update lane? Only
+     * looks at things the client can't set: the address of the connection and
+     * the port it came in on.
+     */
+    private boolean trusted(HttpServletRequest request) {
+        if (updaterPort > 0 && request.getLocalPort() != updaterPort) {
+            return false;
+        }
+        return updaterAddresses.contains(request.getRemoteAddr());
+    }
+
+    /**
+     * Guess if a query is going to be cheap. ASK queries are. Otherwise the
+     * query has to be short and not use any of the features that tend to make
+     * queries expensive.
+     */
+    boolean isShort(String query) {
+        if (ASK.matcher(query).find()) {
+            return true;
+        }
+        if (query.length() > shortQueryLength) {
+            return false;
+        }
+        return !HEAVY_FEATURES.matcher(query).find();
+    }
+
+    /**
+     * Identify the client for the per client limit. Uses the first address in
+     * X-Forwarded-For when present so clients behind our own proxies are told
+     * apart.
+     */
+    private static String client(HttpServletRequest request) {
+        String forwarded = request.getHeader("X-Forwarded-For");
+        String address;
+        if (forwarded != null && !forwarded.isEmpty()) {
+            int comma = forwarded.indexOf(',');
+            address = (comma < 0 ? forwarded : forwarded.substring(0, comma)).trim();
+        } else {
+            address = request.getRemoteAddr();
+        }
+        String userAgent = request.getHeader("User-Agent");
+        return address + "|" + (userAgent == null ? "" : userAgent.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Read a numeric init parameter.
+     */
+    private static int intParam(FilterConfig config, String name, int defaultValue) throws ServletException {
+        String value = config.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid " + name + ": " + value, e);
+        }
+    }
+}
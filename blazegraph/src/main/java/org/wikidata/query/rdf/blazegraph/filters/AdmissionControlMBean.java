@@ -0,0 +1,42 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+/**
+ * JMX view of admission control.
+ */
+public interface AdmissionControlMBean {
+    /**
+     * Number of requests currently running.
+     */
+    int getRunning();
+
+    /**
+     * Number of requests currently waiting for a slot.
+     */
+    int getQueued();
+
+    /**
+     * Number of free shared slots.
+     */
+    int getAvailableSharedSlots();
+
+    /**
+     * Number of requests admitted.
+     */
+    long getAdmitted();
+
+    /**
+     * Number of requests shed because the queue was full.
+     */
+    long getShedQueueFull();
+
+    /**
+     * Number of requests shed because they waited too long for a slot.
+     */
+    long getShedTimeout();
+
+    /**
+     * Number of requests shed because their client had too many requests
+     * running.
+     */
+    long getShedClientLimit();
+}
@@ -0,0 +1,429 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out slots to run requests in. There is a pool of shared slots that
+ * any request can use and a few slots reserved for each lane so updates and
+ * short queries can still get in when heavy queries hold all the shared
+ * slots. Requests that can't get a slot wait in a queue ordered by lane and
+ * then by arrival. Public requests are shed when the queue is full, when they
+ * wait too long, or when their client already has too many requests in
+ * flight. Updates are never shed for the first and last reason so the
+ * updater's writes never wait behind the public query backlog.
+ */
+public class AdmissionController implements AdmissionControlMBean {
+    /**
+     * Kinds of requests in priority order.
+     */
+    public enum Lane {
+        /**
+         * Writes and the updater's own queries.
+         */
+        UPDATE,
+        /**
+         * Queries we think will be quick.
+         */
+        SHORT,
+        /**
+         * Everything else.
+         */
+        HEAVY;
+    }
+
+    /**
+     * Guards all of the mutable state in this class.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Free shared slots.
+     */
+    private int shared;
+    /**
+     * Free reserved slots, indexed by lane ordinal.
+     */
+    private final int[] reserved = new int[Lane.values().length];
+    /**
+     * Requests waiting for a slot in the order they should get one.
+     */
+    private final TreeSet<Waiter> waiters = new TreeSet<>();
+    /**
+     * Requests running or waiting by client.
+     */
+    private final Map<String, Integer> clients = new HashMap<>();
+    /**
+     * Maximum number of public requests allowed to wait.
+     */
+    private final int maxQueued;
+    /**
+     * Maximum number of public requests a single client may have running or
+     * waiting. 0 means unlimited.
+     */
+    private final int maxPerClient;
+    /**
+     * Arrival counter used to keep the queue fair within a lane.
+     */
+    private long sequence;
+    /**
+     * Number of running requests.
+     */
+    private int running;
+    /**
+     * Number of public requests waiting.
+     */
+    private int queuedPublic;
+
+    /**
+     * Number of requests admitted.
+     */
+    private final AtomicLong admitted = new AtomicLong();
+    /**
+     * Number of requests shed because the queue was full.
+     */
+    private final AtomicLong shedQueueFull = new AtomicLong();
+    /**
+     * Number of requests shed because they waited too long.
+     */
+    private final AtomicLong shedTimeout = new AtomicLong();
+    /**
+     * Number of requests shed because of the per client limit.
+     */
+    private final AtomicLong shedClientLimit = new AtomicLong();
+
+    /**
+     * Build the controller.
+     *
+     * @param sharedSlots slots any request may use
+     * @param reservedUpdateSlots slots only updates may use
+     * @param reservedShortSlots slots only short queries may use
+     * @param maxQueued maximum number of public requests allowed to wait
+     * @param maxPerClient maximum number of public requests a client may have
+     *            running or waiting, 0 for unlimited
+     */
+    public AdmissionController(int sharedSlots, int reservedUpdateSlots, int reservedShortSlots, int maxQueued,
+            int maxPerClient) {
+        this.shared = sharedSlots;
+        this.reserved[Lane.UPDATE.ordinal()] = reservedUpdateSlots;
+        this.reserved[Lane.SHORT.ordinal()] = reservedShortSlots;
+        this.maxQueued = maxQueued;
+        this.maxPerClient = maxPerClient;
+    }
+
+    /**
+     * Wait for a slot.
+     *
+     * @param lane the kind of request
+     * @param client identifies the client for the per client limit, null to
+     *            skip the limit
+     * @param timeout how long public requests may wait
+     * @param unit unit of timeout
+     * @return a ticket that must be released when the request is done or null
+     *         if the request was shed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Ticket acquire(Lane lane, String client, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean isPublic = lane != Lane.UPDATE;
+        String limitedClient = isPublic && maxPerClient > 0 ? client : null;
+        lock.lock();
+        try {
+            if (limitedClient != null) {
+                Integer count = clients.get(limitedClient);
+                if (count != null && count >= maxPerClient) {
+                    shedClientLimit.incrementAndGet();
+                    return null;
+                }
+            }
+            Ticket ticket = tryTake(lane, limitedClient);
+            if (ticket != null) {
+                addClient(limitedClient);
+                admitted.incrementAndGet();
+                return ticket;
+            }
+            if (isPublic && queuedPublic >= maxQueued) {
+                shedQueueFull.incrementAndGet();
+                return null;
+            }
+            Waiter waiter = new Waiter(lane, limitedClient, sequence++, lock.newCondition());
+            waiters.add(waiter);
+            addClient(limitedClient);
+            if (isPublic) {
+                queuedPublic++;
+            }
+            try {
+                return await(waiter, isPublic, unit.toNanos(timeout));
+            } finally {
+                if (isPublic) {
+                    queuedPublic--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for dispatch to hand the waiter a ticket. Must hold the lock.
+     */
+    private Ticket await(Waiter waiter, boolean isPublic, long nanos) throws InterruptedException {
+        long remaining = nanos;
+        try {
+            while (waiter.ticket == null) {
+                if (isPublic) {
+                    if (remaining <= 0) {
+                        waiters.remove(waiter);
+                        removeClient(waiter.client);
+                        shedTimeout.incrementAndGet();
+                        return null;
+                    }
+                    remaining = waiter.condition.awaitNanos(remaining);
+                } else {
+                    waiter.condition.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            if (waiter.ticket == null) {
+                waiters.remove(waiter);
+                removeClient(waiter.client);
+            } else {
+                waiter.ticket.release();
+            }
+            throw e;
+        }
+        admitted.incrementAndGet();
+        return waiter.ticket;
+    }
+
+    /**
+     * Take a slot if one is free, preferring the lane's reserved slots so the
+     * shared ones stay free for others. Must hold the lock.
+     */
+    private Ticket tryTake(Lane lane, String client) {
+        boolean fromReserved;
+        if (reserved[lane.ordinal()] > 0) {
+            reserved[lane.ordinal()]--;
+            fromReserved = true;
+        } else if (shared > 0) {
+            shared--;
+            fromReserved = false;
+        } else {
+            return null;
+        }
+        running++;
+        return new Ticket(lane, client, fromReserved);
+    }
+
+    /**
+     * Hand freed slots to waiters in priority order. Must hold the lock.
+     */
+    private void dispatch() {
+        Iterator<Waiter> itr = waiters.iterator();
+        while (itr.hasNext()) {
+            Waiter waiter = itr.next();
+            Ticket ticket = tryTake(waiter.lane, waiter.client);
+            if (ticket == null) {
+                if (shared == 0 && noReservedSlots()) {
+                    return;
+                }
+                continue;
+            }
+            itr.remove();
+            waiter.ticket = ticket;
+            waiter.condition.signal();
+        }
+    }
+
+    /**
+     * Are all of the reserved slots taken? Must hold the lock.
+     */
+    private boolean noReservedSlots() {
+        for (int free : reserved) {
+            if (free > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count a request against its client. Must hold the lock.
+     */
+    private void addClient(String client) {
+        if (client == null) {
+            return;
+        }
+        Integer count = clients.get(client);
+        clients.put(client, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Stop counting a request against its client. Must hold the lock.
+     */
+    private void removeClient(String client) {
+        if (client == null) {
+            return;
+        }
+        Integer count = clients.get(client);
+        if (count == null || count <= 1) {
+            clients.remove(client);
+        } else {
+            clients.put(client, count - 1);
+        }
+    }
+
+    @Override
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueued() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getAvailableSharedSlots() {
+        lock.lock();
+        try {
+            return shared;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    @Override
+    public long getShedQueueFull() {
+        return shedQueueFull.get();
+    }
+
+    @Override
+    public long getShedTimeout() {
+        return shedTimeout.get();
+    }
+
+    @Override
+    public long getShedClientLimit() {
+        return shedClientLimit.get();
+    }
+
+    /**
+     * A slot held by a running request.
+     */
+    public final class Ticket {
+        /**
+         * The request's lane.
+         */
+        private final Lane lane;
+        /**
+         * The client the request counts against, null if none.
+         */
+        private final String client;
+        /**
+         * Did the slot come from the lane's reserved slots?
+         */
+        private final boolean fromReserved;
+        /**
+         * Has the slot been released? Guarded by the controller's lock.
+         */
+        private boolean released;
+
+        private Ticket(Lane lane, String client, boolean fromReserved) {
+            this.lane = lane;
+            this.client = client;
+            this.fromReserved = fromReserved;
+        }
+
+        /**
+         * The request's lane.
+         */
+        public Lane lane() {
+            return lane;
+        }
+
+        /**
+         * Give the slot back. Safe to call more than once.
+         */
+        public void release() {
+            lock.lock();
+            try {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (fromReserved) {
+                    reserved[lane.ordinal()]++;
+                } else {
+                    shared++;
+                }
+                running--;
+                removeClient(client);
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static final class Waiter implements Comparable<Waiter> {
+        /**
+         * The request's lane.
+         */
+        private final Lane lane;
+        /**
+         * The client the request counts against, null if none.
+         */
+        private final String client;
+        /**
+         * Arrival order.
+         */
+        private final long sequence;
+        /**
+         * Signaled when the waiter gets a ticket.
+         */
+        private final Condition condition;
+        /**
+         * The ticket once dispatch hands one out.
+         */
+        private Ticket ticket;
+
+        private Waiter(Lane lane, String client, long sequence, Condition condition) {
+            this.lane = lane;
+            this.client = client;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            int byLane = lane.compareTo(o.lane);
+            if (byLane != 0) {
+                return byLane;
+            }
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper that counts the bytes and lines written to the response and
+ * optionally keeps a copy of them as long as they stay under a limit. The
+ * bytes still go to the client as they are written.
+ */
+public class CapturingResponseWrapper extends HttpServletResponseWrapper {
+    /**
+     * Maximum number of bytes to keep a copy of. 0 means don't keep any.
+     */
+    private final int captureLimit;
+    /**
+     * Copy of the bytes written so far, null once they go over captureLimit or
+     * if we aren't capturing.
+     */
+    private ByteArrayOutputStream captured;
+    /**
+     * Number of bytes written.
+     */
+    private long bytesWritten;
+    /**
+     * Number of newlines written.
+     */
+    private long newlines;
+    /**
+     * Did writing to the client fail? If it did the servlet may not have
+     * written the whole body.
+     */
+    private boolean writeFailed;
+    /**
+     * Stream handed to the servlet, created on demand.
+     */
+    private ServletOutputStream stream;
+    /**
+     * Writer handed to the servlet, created on demand.
+     */
+    private PrintWriter writer;
+
+    public CapturingResponseWrapper(HttpServletResponse response, int captureLimit) {
+        super(response);
+        this.captureLimit = captureLimit;
+        if (captureLimit > 0) {
+            captured = new ByteArrayOutputStream();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter already called");
+        }
+        return stream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream already called");
+            }
+            writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        finish();
+        super.flushBuffer();
+    }
+
+    /**
+     * Flush anything buffered in the writer through to the response.
+     */
+    public void finish() {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Number of bytes written to the response body.
+     */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Number of newlines written to the response body. Line oriented formats
+     * like TSV and CSV write one row per line so this is a cheap row count.
+     */
+    public long newlines() {
+        return newlines;
+    }
+
+    /**
+     * Did writing any of the body to the client fail?
+     */
+    public boolean writeFailed() {
+        return writeFailed;
+    }
+
+    /**
+     * The bytes written to the response body.
+     *
+     * @return the bytes or null if we weren't capturing or there were too
+     *         many of them
+     */
+    public byte[] captured() {
+        finish();
+        return captured == null ? null : captured.toByteArray();
+    }
+
+    /**
+     * Lazily build the tee stream.
+     */
+    private ServletOutputStream stream() throws IOException {
+        if (stream == null) {
+            stream = new TeeOutputStream(super.getOutputStream());
+        }
+        return stream;
+    }
+
+    /**
+     * Record bytes written.
+     */
+    private void record(byte[] b, int off, int len) {
+        bytesWritten += len;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                newlines++;
+            }
+        }
+        if (captured == null) {
+            return;
+        }
+        if (captured.size() + len > captureLimit) {
+            captured = null;
+            return;
+        }
+        captured.write(b, off, len);
+    }
+
+    /**
+     * Record a single byte written.
+     */
+    private void record(int b) {
+        bytesWritten++;
+        if ((b & 0xFF) == '\n') {
+            newlines++;
+        }
+        if (captured == null) {
+            return;
+        }
+        if (captured.size() + 1 > captureLimit) {
+            captured = null;
+            return;
+        }
+        captured.write(b);
+    }
+
+    /**
+     * Stream that records everything written to it before passing it on.
+     */
+    private final class TeeOutputStream extends ServletOutputStream {
+        /**
+         * The response's real stream.
+         */
+        private final ServletOutputStream delegate;
+
+        private TeeOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            record(b);
+            boolean written = false;
+            try {
+                delegate.write(b);
+                written = true;
+            } finally {
+                writeFailed |= !written;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            record(b, off, len);
+            boolean written = false;
+            try {
+                delegate.write(b, off, len);
+                written = true;
+            } finally {
+                writeFailed |= !written;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            boolean flushed = false;
+            try {
+                delegate.flush();
+                flushed = true;
+            } finally {
+                writeFailed |= !flushed;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non-negative longs with buckets that grow
+ * exponentially but are split linearly within each power of two, the same
+ * layout HdrHistogram uses. Every power of two range is split into 16
+ * buckets so percentiles are accurate to within about 6% no matter the
+ * magnitude. Small enough to keep a few per filter without worrying about
+ * it.
+ */
+public class LogLinearHistogram {
+    /**
+     * Bits of precision kept below the highest set bit.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Number of buckets needed to cover all non-negative longs.
+     */
+    private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    /**
+     * Counts by bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * Number of values recorded.
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * Sum of the values recorded.
+     */
+    private final AtomicLong sum = new AtomicLong();
+    /**
+     * Largest value recorded.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucket(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long currentMax = max.get();
+        while (v > currentMax && !max.compareAndSet(currentMax, v)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Number of values recorded.
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * Largest value recorded.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Mean of the values recorded, 0 if there aren't any.
+     */
+    public double mean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Estimate a percentile.
+     *
+     * @param percentile between 0 and 100
+     * @return the largest value in the bucket containing the percentile,
+     *         capped at the largest value recorded, or 0 if nothing has been
+     *         recorded
+     */
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= target) {
+                return Math.min(highestInBucket(b), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget everything recorded. Values recorded concurrently with a reset
+     * may be partially forgotten.
+     */
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts.set(b, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * The bucket a value belongs in.
+     */
+    static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * The largest value that belongs in a bucket.
+     */
+    static long highestInBucket(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        long highest = ((mantissa + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
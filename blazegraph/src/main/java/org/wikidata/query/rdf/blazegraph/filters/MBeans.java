@@ -0,0 +1,69 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the filters' statistics with the platform MBean server. Uses
+ * plain JMX so the war doesn't need any more jars than it already ships.
+ */
+public final class MBeans {
+    private static final Logger log = LoggerFactory.getLogger(MBeans.class);
+
+    /**
+     * Domain for all of our MBeans.
+     */
+    public static final String DOMAIN = "org.wikidata.query.rdf";
+
+    /**
+     * Register an MBean, replacing any MBean already registered with the same
+     * name. Failures are logged rather than thrown because statistics aren't
+     * worth refusing to start over.
+     *
+     * @param bean the MBean
+     * @param type the type part of the name
+     * @param name the name part of the name, usually the filter's name
+     * @return the name the bean was registered under or null if it wasn't
+     */
+    public static ObjectName register(Object bean, String type, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + ObjectName.quote(type) + ",name="
+                    + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(bean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            log.warn("Couldn't register {} MBean named {}", type, name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregister an MBean registered with register.
+     *
+     * @param objectName the name returned by register, may be null
+     */
+    public static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Couldn't unregister {}", objectName, e);
+        }
+    }
+
+    private MBeans() {
+        // Utility class.
+    }
+}
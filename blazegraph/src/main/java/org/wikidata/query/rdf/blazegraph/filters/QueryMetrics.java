@@ -0,0 +1,145 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, size, and row count distributions for SPARQL queries.
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+    /**
+     * Query wall time in microseconds.
+     */
+    private final LogLinearHistogram latency = new LogLinearHistogram();
+    /**
+     * Response size in bytes.
+     */
+    private final LogLinearHistogram bytes = new LogLinearHistogram();
+    /**
+     * Rows in responses we can count rows in.
+     */
+    private final LogLinearHistogram rows = new LogLinearHistogram();
+    /**
+     * Number of slow queries.
+     */
+    private final AtomicLong slowQueries = new AtomicLong();
+    /**
+     * Queries slower than this many milliseconds are slow.
+     */
+    private volatile long slowQueryThreshold;
+
+    public QueryMetrics(long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    /**
+     * Record a query.
+     *
+     * @param nanos wall time in nanoseconds
+     * @param responseBytes size of the response
+     * @param responseRows rows in the response or -1 if we can't tell
+     * @return true if the query was slow
+     */
+    public boolean record(long nanos, long responseBytes, long responseRows) {
+        latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        bytes.record(responseBytes);
+        if (responseRows >= 0) {
+            rows.record(responseRows);
+        }
+        if (TimeUnit.NANOSECONDS.toMillis(nanos) < slowQueryThreshold) {
+            return false;
+        }
+        slowQueries.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public long getQueries() {
+        return latency.count();
+    }
+
+    @Override
+    public long getSlowQueries() {
+        return slowQueries.get();
+    }
+
+    @Override
+    public double getLatencyMean() {
+        return latency.mean() / 1000;
+    }
+
+    @Override
+    public long getLatency50thPercentile() {
+        return latencyMillis(50);
+    }
+
+    @Override
+    public long getLatency90thPercentile() {
+        return latencyMillis(90);
+    }
+
+    @Override
+    public long getLatency99thPercentile() {
+        return latencyMillis(99);
+    }
+
+    @Override
+    public long getLatency999thPercentile() {
+        return latencyMillis(99.9);
+    }
+
+    @Override
+    public long getLatencyMax() {
+        return TimeUnit.MICROSECONDS.toMillis(latency.max());
+    }
+
+    @Override
+    public long getBytes50thPercentile() {
+        return bytes.percentile(50);
+    }
+
+    @Override
+    public long getBytes99thPercentile() {
+        return bytes.percentile(99);
+    }
+
+    @Override
+    public long getBytesMax() {
+        return bytes.max();
+    }
+
+    @Override
+    public long getRows50thPercentile() {
+        return rows.percentile(50);
+    }
+
+    @Override
+    public long getRows99thPercentile() {
+        return rows.percentile(99);
+    }
+
+    @Override
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    @Override
+    public void setSlowQueryThreshold(long millis) {
+        slowQueryThreshold = millis;
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        bytes.reset();
+        rows.reset();
+        slowQueries.set(0);
+    }
+
+    /**
+     * A latency percentile in milliseconds.
+     */
+    private long latencyMillis(double percentile) {
+        return TimeUnit.MICROSECONDS.toMillis(latency.percentile(percentile));
+    }
+}
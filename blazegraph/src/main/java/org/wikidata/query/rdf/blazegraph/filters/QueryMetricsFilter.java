@@ -0,0 +1,232 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.FilterRegistration;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records wall time, response size, and row count for every SPARQL query,
+ * including those sent to a namespace's SPARQL endpoint, into histograms exposed over JMX and logs slow queries to a dedicated
+ * logger as one JSON object per line. Registered by WikibaseContextListener
+ * after the filters in web.xml so it measures the time spent actually running
+ * queries rather than cache hits or time waiting for a slot.
+ * <p>
+ * Row counts come from counting lines in line oriented result formats (TSV
+ * and CSV). Counting rows in the other formats would mean parsing them so we
+ * don't.
+ * <p>
+ * Init parameters:
+ * <ul>
+ * <li>slowQueryMillis - queries slower than this are logged (default 10000).
+ * Can be changed at runtime over JMX.
+ * </ul>
+ */
+public class QueryMetricsFilter implements Filter {
+    /**
+     * Name of the logger slow queries are written to so they can be routed to
+     * their own file.
+     */
+    public static final String SLOW_QUERY_LOGGER = "org.wikidata.query.rdf.blazegraph.SlowQueries";
+    private static final Logger log = LoggerFactory.getLogger(QueryMetricsFilter.class);
+    private static final Logger slowLog = LoggerFactory.getLogger(SLOW_QUERY_LOGGER);
+
+    /**
+     * The metrics.
+     */
+    private QueryMetrics metrics;
+    /**
+     * Name the MBean was registered under.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Register the filter after the filters from web.xml so it only measures
+     * queries that actually reach Blazegraph. Must be called from a
+     * ServletContextListener's contextInitialized. The slow query threshold
+     * can be set with the system property named after this class plus
+     * ".slowQueryMillis".
+     */
+    public static void register(ServletContext context) {
+        FilterRegistration.Dynamic registration = context.addFilter("QueryMetrics", QueryMetricsFilter.class);
+        if (registration == null) {
+            log.info("Query metrics filter already registered");
+            return;
+        }
+        registration.setAsyncSupported(true);
+        String slowQueryMillis = System.getProperty(QueryMetricsFilter.class.getName() + ".slowQueryMillis");
+        if (slowQueryMillis != null) {
+            registration.setInitParameter("slowQueryMillis", slowQueryMillis);
+        }
+        // /namespace/* covers /namespace/<ns>/sparql. doFilter skips the rest.
+        registration.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), true, "/sparql", "/namespace/*");
+    }
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        long slowQueryMillis = 10000;
+        String param = config.getInitParameter("slowQueryMillis");
+        if (param != null) {
+            try {
+                slowQueryMillis = Long.parseLong(param.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid slowQueryMillis: " + param, e);
+            }
+        }
+        metrics = new QueryMetrics(slowQueryMillis);
+        objectName = MBeans.register(metrics, "QueryMetrics", config.getFilterName());
+    }
+
+    @Override
+    public void destroy() {
+        MBeans.unregister(objectName);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+        if (!(request instanceof HttpServletRequest) || !SparqlRequests.isSparql((HttpServletRequest) request)
+                || request.getParameter("query") == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final CapturingResponseWrapper wrapper = new CapturingResponseWrapper((HttpServletResponse) response, 0);
+        final long start = System.nanoTime();
+        chain.doFilter(request, wrapper);
+        if (!request.isAsyncStarted()) {
+            record(httpRequest, wrapper, System.nanoTime() - start);
+            return;
+        }
+        request.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                record(httpRequest, wrapper, System.nanoTime() - start);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                // Only finished queries are recorded.
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // Only finished queries are recorded.
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                // Only finished queries are recorded.
+            }
+        });
+    }
+
+    /**
+     * The metrics.
+     */
+    QueryMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Record a finished query and log it if it was slow.
+     */
+    void record(HttpServletRequest request, CapturingResponseWrapper response, long nanos) {
+        response.finish();
+        long rows = rows(response.getContentType(), response.newlines());
+        if (!metrics.record(nanos, response.bytesWritten(), rows)) {
+            return;
+        }
+        if (!slowLog.isInfoEnabled()) {
+            return;
+        }
+        StringBuilder b = new StringBuilder();
+        b.append("{\"millis\":").append(TimeUnit.NANOSECONDS.toMillis(nanos));
+        b.append(",\"status\":").append(response.getStatus());
+        b.append(",\"bytes\":").append(response.bytesWritten());
+        b.append(",\"rows\":").append(rows);
+        b.append(",\"format\":");
+        appendJsonString(b, response.getContentType());
+        b.append(",\"client\":");
+        appendJsonString(b, request.getRemoteAddr());
+        b.append(",\"userAgent\":");
+        appendJsonString(b, request.getHeader("User-Agent"));
+        b.append(",\"query\":");
+        appendJsonString(b, QueryResultCacheFilter.normalize(request.getParameter("query")));
+        b.append('}');
+        slowLog.info(b.toString());
+    }
+
+    /**
+     * Count the rows in a response.
+     *
+     * @return the number of rows or -1 if we can't tell for this format
+     */
+    static long rows(String contentType, long newlines) {
+        if (contentType == null) {
+            return -1;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.startsWith("text/tab-separated-values") || type.startsWith("text/csv")) {
+            // The first line is the header.
+            return Math.max(0, newlines - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Append a string as a JSON string literal, or null.
+     */
+    static void appendJsonString(StringBuilder b, String s) {
+        if (s == null) {
+            b.append("null");
+            return;
+        }
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                b.append("\\\"");
+                break;
+            case '\\':
+                b.append("\\\\");
+                break;
+            case '\n':
+                b.append("\\n");
+                break;
+            case '\r':
+                b.append("\\r");
+                break;
+            case '\t':
+                b.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    b.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    b.append(c);
+                }
+            }
+        }
+        b.append('"');
+    }
+}
@@ -0,0 +1,86 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+/**
+ * JMX view of query metrics. Times are in milliseconds.
+ */
+public interface QueryMetricsMBean {
+    /**
+     * Number of queries recorded.
+     */
+    long getQueries();
+
+    /**
+     * Number of queries that took longer than the slow query threshold.
+     */
+    long getSlowQueries();
+
+    /**
+     * Mean query wall time.
+     */
+    double getLatencyMean();
+
+    /**
+     * Median query wall time.
+     */
+    long getLatency50thPercentile();
+
+    /**
+     * 90th percentile query wall time.
+     */
+    long getLatency90thPercentile();
+
+    /**
+     * 99th percentile query wall time.
+     */
+    long getLatency99thPercentile();
+
+    /**
+     * 99.9th percentile query wall time.
+     */
+    long getLatency999thPercentile();
+
+    /**
+     * Longest query wall time.
+     */
+    long getLatencyMax();
+
+    /**
+     * Median response size in bytes.
+     */
+    long getBytes50thPercentile();
+
+    /**
+     * 99th percentile response size in bytes.
+     */
+    long getBytes99thPercentile();
+
+    /**
+     * Largest response size in bytes.
+     */
+    long getBytesMax();
+
+    /**
+     * Median number of rows for responses in line oriented formats.
+     */
+    long getRows50thPercentile();
+
+    /**
+     * 99th percentile number of rows for responses in line oriented formats.
+     */
+    long getRows99thPercentile();
+
+    /**
+     * Queries slower than this are logged to the slow query log.
+     */
+    long getSlowQueryThreshold();
+
+    /**
+     * Change the slow query threshold.
+     */
+    void setSlowQueryThreshold(long millis);
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset();
+}
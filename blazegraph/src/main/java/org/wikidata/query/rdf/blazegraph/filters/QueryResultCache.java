@@ -0,0 +1,203 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of serialized query results. Keys are expected to
+ * contain the journal's last commit time so results never outlive the data
+ * they were built from. Results also expire after a maximum age to cover
+ * queries whose results change without a commit, like ones calling NOW().
+ */
+public class QueryResultCache implements QueryResultCacheMBean {
+    /**
+     * Maximum total size of the cached results in bytes.
+     */
+    private final long maxBytes;
+    /**
+     * Maximum age of a result in nanoseconds.
+     */
+    private final long maxAgeNanos;
+    /**
+     * The results in access order. Guarded by this.
+     */
+    private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Total size of the cached results. Guarded by this.
+     */
+    private long bytes;
+    /**
+     * Number of hits.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * Number of misses.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * Number of evictions.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    public QueryResultCache(long maxBytes, long maxAge, TimeUnit maxAgeUnit) {
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeUnit.toNanos(maxAge);
+    }
+
+    /**
+     * Fetch a result.
+     *
+     * @return the result or null if there isn't a fresh one
+     */
+    public CachedResult get(String key) {
+        CachedResult result;
+        synchronized (this) {
+            result = results.get(key);
+            if (result != null && System.nanoTime() - result.created > maxAgeNanos) {
+                results.remove(key);
+                bytes -= result.size();
+                evictions.incrementAndGet();
+                result = null;
+            }
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Store a result, evicting the least recently used results to make room.
+     * Results larger than the whole cache are ignored.
+     */
+    public void put(String key, CachedResult result) {
+        if (result.size() > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            CachedResult old = results.put(key, result);
+            if (old != null) {
+                bytes -= old.size();
+            }
+            bytes += result.size();
+            Iterator<Map.Entry<String, CachedResult>> itr = results.entrySet().iterator();
+            while (bytes > maxBytes && itr.hasNext()) {
+                Map.Entry<String, CachedResult> eldest = itr.next();
+                itr.remove();
+                bytes -= eldest.getValue().size();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return results.size();
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized void clear() {
+        results.clear();
+        bytes = 0;
+    }
+
+    /**
+     * A cached result.
+     */
+    public static final class CachedResult {
+        /**
+         * Content type of the response.
+         */
+        private final String contentType;
+        /**
+         * Other headers of the response to replay, by name.
+         */
+        private final Map<String, List<String>> headers;
+        /**
+         * Body of the response.
+         */
+        private final byte[] body;
+        /**
+         * When the result was created according to System.nanoTime.
+         */
+        private final long created = System.nanoTime();
+
+        public CachedResult(String contentType, Map<String, List<String>> headers, byte[] body) {
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * Content type of the response.
+         */
+        public String contentType() {
+            return contentType;
+        }
+
+        /**
+         * Other headers of the response to replay, by name.
+         */
+        public Map<String, List<String>> headers() {
+            return headers;
+        }
+
+        /**
+         * Body of the response.
+         */
+        public byte[] body() {
+            return body;
+        }
+
+        /**
+         * Approximate size of the result in memory.
+         */
+        public long size() {
+            long size = body.length;
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    size += header.getKey().length() + value.length();
+                }
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.blazegraph.filters.QueryResultCache.CachedResult;
+
+import com.bigdata.journal.AbstractJournal;
+import com.bigdata.journal.IIndexManager;
+
+/**
+ * Serves repeated SPARQL queries from a cache of their serialized results. The
+ * cache key is the normalized query, the other request parameters, the Accept
+ * header, and the journal's last commit time so any write invalidates all of
+ * the cached results without having to track what they depend on.
+ * <p>
+ * Hits replay the content type and the other headers of the cached response
+ * except the ones in UNCACHED_HEADERS. Those describe the connection or the
+ * original exchange rather than the result so the container sets fresh ones.
+ * <p>
+ * Only GET requests for a SPARQL endpoint, the default namespace's or a
+ * named one's, are cached.
+ * <p>
+ * Init parameters:
+ * <ul>
+ * <li>maxBytes - maximum total size of the cached results (default 256MB)
+ * <li>maxEntryBytes - results bigger than this aren't cached (default 4MB)
+ * <li>maxAgeSeconds - results older than this are refetched (default 300)
+ * </ul>
+ */
+public class QueryResultCacheFilter implements Filter {
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCacheFilter.class);
+
+    /**
+     * Lower case names of headers that aren't replayed on a hit. Content-Type
+     * is replayed separately. Content-Length and the connection headers are
+     * set by the container for the new response, Date and Set-Cookie belong to
+     * the request that filled the cache.
+     */
+    private static final Set<String> UNCACHED_HEADERS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "content-type", "content-length", "transfer-encoding", "connection", "keep-alive", "date", "set-cookie")));
+
+    /**
+     * The cache.
+     */
+    private QueryResultCache cache;
+    /**
+     * Results bigger than this aren't cached.
+     */
+    private int maxEntryBytes;
+    /**
+     * Servlet context used to find the journal.
+     */
+    private ServletContext context;
+    /**
+     * Name the cache's MBean was registered under.
+     */
+    private ObjectName objectName;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        long maxBytes = longParam(config, "maxBytes", 256L * 1024 * 1024);
+        maxEntryBytes = (int) longParam(config, "maxEntryBytes", 4L * 1024 * 1024);
+        long maxAgeSeconds = longParam(config, "maxAgeSeconds", 300);
+        cache = new QueryResultCache(maxBytes, maxAgeSeconds, TimeUnit.SECONDS);
+        context = config.getServletContext();
+        objectName = MBeans.register(cache, "QueryResultCache", config.getFilterName());
+    }
+
+    @Override
+    public void destroy() {
+        MBeans.unregister(objectName);
+        cache.clear();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+        String key = key(request);
+        if (key == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        if (!"no-cache".equals(httpRequest.getHeader("Cache-Control"))) {
+            CachedResult hit = cache.get(key);
+            if (hit != null) {
+                httpResponse.setContentType(hit.contentType());
+                for (Map.Entry<String, List<String>> header : hit.headers().entrySet()) {
+                    for (String value : header.getValue()) {
+                        httpResponse.addHeader(header.getKey(), value);
+                    }
+                }
+                httpResponse.setContentLength(hit.body().length);
+                httpResponse.getOutputStream().write(hit.body());
+                return;
+            }
+        }
+        CapturingResponseWrapper wrapper = new CapturingResponseWrapper(httpResponse, maxEntryBytes);
+        /*
+         * A query that fails after the 200 has been sent, like one that times
+         * out part way through its results, throws out of the chain so we
+         * never cache its truncated body.
+         */
+        chain.doFilter(request, wrapper);
+        if (request.isAsyncStarted()) {
+            /*
+             * The query is still running so we can't see its result. Blazegraph
+             * doesn't run queries this way at the moment so we don't bother
+             * listening for the async request to finish.
+             */
+            return;
+        }
+        if (wrapper.getStatus() != HttpServletResponse.SC_OK || wrapper.writeFailed()) {
+            // Failed queries and bodies that didn't all make it out aren't complete
+            return;
+        }
+        // Null if the body was bigger than maxEntryBytes and we stopped capturing it
+        byte[] body = wrapper.captured();
+        if (body == null) {
+            return;
+        }
+        cache.put(key, new CachedResult(wrapper.getContentType(), headers(wrapper), body));
+    }
+
+    /**
+     * The headers of a response that should be replayed on a hit.
+     */
+    private static Map<String, List<String>> headers(HttpServletResponse response) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        for (String name : response.getHeaderNames()) {
+            if (UNCACHED_HEADERS.contains(name.toLowerCase(Locale.ROOT)) || headers.containsKey(name)) {
+                continue;
+            }
+            headers.put(name, Collections.unmodifiableList(new ArrayList<>(response.getHeaders(name))));
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * The cache.
+     */
+    QueryResultCache cache() {
+        return cache;
+    }
+
+    /**
+     * Build the cache key for a request.
+     *
+     * @return the key or null if the request can't be cached
+     */
+    private String key(ServletRequest request) {
+        if (!(request instanceof HttpServletRequest)) {
+            return null;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        if (!"GET".equals(httpRequest.getMethod()) || !SparqlRequests.isSparql(httpRequest)) {
+            return null;
+        }
+        String query = request.getParameter("query");
+        if (query == null || request.getParameter("update") != null) {
+            return null;
+        }
+        long commitTime = lastCommitTime();
+        if (commitTime < 0) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(commitTime).append('\n');
+        key.append(httpRequest.getRequestURI()).append('\n');
+        key.append(httpRequest.getHeader("Accept")).append('\n');
+        Map<String, String[]> parameters = request.getParameterMap();
+        String[] names = parameters.keySet().toArray(new String[parameters.size()]);
+        Arrays.sort(names);
+        for (String name : names) {
+            if ("query".equals(name)) {
+                continue;
+            }
+            for (String value : parameters.get(name)) {
+                key.append(name).append('=').append(value).append('\n');
+            }
+        }
+        key.append(normalize(query));
+        return key.toString();
+    }
+
+    /**
+     * The journal's last commit time.
+     *
+     * @return the time or -1 if we can't find it
+     */
+    long lastCommitTime() {
+        Object indexManager = context.getAttribute(IIndexManager.class.getName());
+        if (indexManager instanceof AbstractJournal) {
+            return ((AbstractJournal) indexManager).getLastCommitTime();
+        }
+        log.debug("Can't find the journal so not caching");
+        return -1;
+    }
+
+    /**
+     * Normalize a query so that trivially different copies of it share a cache
+     * entry. Collapses runs of whitespace into a single space and strips
+     * comments but leaves string literals and IRIs alone.
+     */
+    static String normalize(String query) {
+        StringBuilder b = new StringBuilder(query.length());
+        int length = query.length();
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                i++;
+                continue;
+            }
+            if (c == '#') {
+                while (i < length && query.charAt(i) != '\n' && query.charAt(i) != '\r') {
+                    i++;
+                }
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace && b.length() > 0) {
+                b.append(' ');
+            }
+            pendingSpace = false;
+            int end;
+            if (c == '"' || c == '\'') {
+                end = endOfString(query, i);
+            } else if (c == '<') {
+                end = endOfIri(query, i);
+            } else {
+                end = i + 1;
+            }
+            b.append(query, i, end);
+            i = end;
+        }
+        return b.toString();
+    }
+
+    /**
+     * Find the end of the string literal starting at start, handling both
+     * short and long (triple quoted) strings and backslash escapes.
+     *
+     * @return the index just after the literal's closing quote or the end of
+     *         the query if the literal isn't closed
+     */
+    private static int endOfString(String query, int start) {
+        char quote = query.charAt(start);
+        boolean triple = query.startsWith(new String(new char[] {quote, quote, quote}), start);
+        int i = start + (triple ? 3 : 1);
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == quote) {
+                if (!triple) {
+                    return i + 1;
+                }
+                if (i + 2 < query.length() && query.charAt(i + 1) == quote && query.charAt(i + 2) == quote) {
+                    return i + 3;
+                }
+            }
+            i++;
+        }
+        return query.length();
+    }
+
+    /**
+     * Find the end of the IRI starting at start. A &lt; that doesn't start an
+     * IRI, like a less than comparison, is only one character long.
+     */
+    private static int endOfIri(String query, int start) {
+        for (int i = start + 1; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '>') {
+                return i + 1;
+            }
+            if (Character.isWhitespace(c) || c == '<' || c == '"' || c == '{' || c == '}') {
+                return start + 1;
+            }
+        }
+        return start + 1;
+    }
+
+    /**
+     * Read a numeric init parameter.
+     */
+    private static long longParam(FilterConfig config, String name, long defaultValue) throws ServletException {
+        String value = config.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid " + name + ": " + value, e);
+        }
+    }
+}
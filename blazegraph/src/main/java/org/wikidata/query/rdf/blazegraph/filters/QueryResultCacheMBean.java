@@ -0,0 +1,47 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+/**
+ * JMX view of the query result cache.
+ */
+public interface QueryResultCacheMBean {
+    /**
+     * Number of requests served from the cache.
+     */
+    long getHits();
+
+    /**
+     * Number of cacheable requests that weren't in the cache.
+     */
+    long getMisses();
+
+    /**
+     * Fraction of cacheable requests served from the cache.
+     */
+    double getHitRatio();
+
+    /**
+     * Number of results evicted to make room for others or because they got
+     * too old.
+     */
+    long getEvictions();
+
+    /**
+     * Number of results in the cache.
+     */
+    int getEntries();
+
+    /**
+     * Total size of the results in the cache in bytes.
+     */
+    long getBytes();
+
+    /**
+     * Maximum total size of the results in the cache in bytes.
+     */
+    long getMaxBytes();
+
+    /**
+     * Throw away everything in the cache.
+     */
+    void clear();
+}
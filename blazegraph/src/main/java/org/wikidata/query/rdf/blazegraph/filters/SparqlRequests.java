@@ -0,0 +1,25 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tells requests for a SPARQL endpoint apart from the other requests the
+ * filters see. The filters are mapped to /namespace/* as well as /sparql
+ * because that is where the SPARQL endpoints for named namespaces, like
+ * /namespace/wdq/sparql, live. That mapping also covers the rest of the
+ * multi-tenancy API so the filters check the path themselves.
+ */
+final class SparqlRequests {
+    private SparqlRequests() {
+        // Utility class.
+    }
+
+    /**
+     * Is this a request for a SPARQL endpoint, either the default namespace's
+     * or a named one's?
+     */
+    static boolean isSparql(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        return uri != null && uri.endsWith("/sparql");
+    }
+}
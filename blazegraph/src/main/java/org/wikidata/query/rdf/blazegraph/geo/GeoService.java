@@ -0,0 +1,619 @@
+package org.wikidata.query.rdf.blazegraph.geo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.blazegraph.inline.literal.WikibasePointExtension;
+import org.wikidata.query.rdf.common.GeoCell;
+import org.wikidata.query.rdf.common.WikibasePoint;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+import org.wikidata.query.rdf.common.uri.Ontology;
+
+import com.bigdata.bop.BOp;
+import com.bigdata.bop.Constant;
+import com.bigdata.bop.IBindingSet;
+import com.bigdata.bop.IValueExpression;
+import com.bigdata.bop.IVariable;
+import com.bigdata.rdf.internal.IV;
+import com.bigdata.rdf.internal.impl.literal.LiteralExtensionIV;
+import com.bigdata.rdf.internal.impl.literal.XSDNumericIV;
+import com.bigdata.rdf.lexicon.LexiconRelation;
+import com.bigdata.rdf.model.BigdataLiteral;
+import com.bigdata.rdf.sparql.ast.JoinGroupNode;
+import com.bigdata.rdf.sparql.ast.StatementPatternNode;
+import com.bigdata.rdf.sparql.ast.TermNode;
+import com.bigdata.rdf.sparql.ast.VarNode;
+import com.bigdata.rdf.sparql.ast.eval.AbstractServiceFactory;
+import com.bigdata.rdf.sparql.ast.eval.ServiceParams;
+import com.bigdata.rdf.sparql.ast.service.BigdataNativeServiceOptions;
+import com.bigdata.rdf.sparql.ast.service.BigdataServiceCall;
+import com.bigdata.rdf.sparql.ast.service.IServiceOptions;
+import com.bigdata.rdf.sparql.ast.service.ServiceCallCreateParams;
+import com.bigdata.rdf.sparql.ast.service.ServiceRegistry;
+import com.bigdata.rdf.spo.ISPO;
+import com.bigdata.rdf.store.AbstractTripleStore;
+import com.bigdata.rdf.store.BD;
+import com.bigdata.striterator.IChunkedOrderedIterator;
+
+import cutthecrap.utils.striterators.ICloseableIterator;
+
+/**
+ * Implements geographic searches over coordinates. You can search for things
+ * within a radius of a point like this: <code>
+ *  SELECT ?place ?location ?dist
+ *  WHERE {
+ *    SERVICE wikibase:around {
+ *      ?place wdt:P625 ?location .
+ *      bd:serviceParam wikibase:center "Point(52.5 13.4)"^^geo:wktLiteral .
+ *      bd:serviceParam wikibase:radius "10" .
+ *      bd:serviceParam wikibase:distance ?dist .
+ *    }
+ *  }
+ * </code> or inside a bounding box like this: <code>
+ *  SELECT ?place ?location
+ *  WHERE {
+ *    SERVICE wikibase:box {
+ *      ?place wdt:P625 ?location .
+ *      bd:serviceParam wikibase:cornerSouthWest "Point(52.3 13.0)"^^geo:wktLiteral .
+ *      bd:serviceParam wikibase:cornerNorthEast "Point(52.7 13.8)"^^geo:wktLiteral .
+ *    }
+ *  }
+ * </code>
+ * <p>
+ * Radius is in kilometers and wikibase:distance is optional. The center and
+ * corners can also be variables bound earlier in the query.
+ * <p>
+ * This works by looking up entities by the GeoCell ids the munger attaches to
+ * them with wikibase:geoCell, which has to be turned on when loading and
+ * updating. The cells cover the search area with a bounded number of lookups
+ * so the search only looks at entities near the area. Then it checks the
+ * actual coordinates of those entities against the search area, reading them
+ * straight from the IV when WikibasePointExtension inlined them. Distances
+ * assume a globe the size of the Earth.
+ */
+@SuppressWarnings("checkstyle:classfanoutcomplexity")
+public class GeoService extends AbstractServiceFactory {
+    /**
+     * Options configuring this service as a native Blazegraph service.
+     */
+    private static final BigdataNativeServiceOptions SERVICE_OPTIONS = new BigdataNativeServiceOptions();
+
+    /**
+     * The URI service key for radius searches.
+     */
+    public static final URI AROUND_SERVICE_KEY = new URIImpl(Ontology.NAMESPACE + "around");
+    /**
+     * The URI service key for bounding box searches.
+     */
+    public static final URI BOX_SERVICE_KEY = new URIImpl(Ontology.NAMESPACE + "box");
+
+    /**
+     * URI for the center of a radius search.
+     */
+    private static final URIImpl CENTER_PARAM = new URIImpl(Ontology.NAMESPACE + "center");
+    /**
+     * URI for the radius of a radius search.
+     */
+    private static final URIImpl RADIUS_PARAM = new URIImpl(Ontology.NAMESPACE + "radius");
+    /**
+     * URI for the variable to which to bind the distance from the center.
+     */
+    private static final URIImpl DISTANCE_PARAM = new URIImpl(Ontology.NAMESPACE + "distance");
+    /**
+     * URI for the south west corner of a bounding box search.
+     */
+    private static final URIImpl SOUTH_WEST_PARAM = new URIImpl(Ontology.NAMESPACE + "cornerSouthWest");
+    /**
+     * URI for the north east corner of a bounding box search.
+     */
+    private static final URIImpl NORTH_EAST_PARAM = new URIImpl(Ontology.NAMESPACE + "cornerNorthEast");
+
+    /**
+     * Maximum number of cells to look up for a single search. More cells are
+     * more precise but each is an index lookup.
+     */
+    private static final int MAX_CELLS = 64;
+
+    /**
+     * Register the services so they are recognized by Blazegraph.
+     */
+    public static void register() {
+        ServiceRegistry.getInstance().add(AROUND_SERVICE_KEY, new GeoService(true));
+        ServiceRegistry.getInstance().add(BOX_SERVICE_KEY, new GeoService(false));
+    }
+
+    /**
+     * Is this the radius search or the bounding box search?
+     */
+    private final boolean around;
+
+    public GeoService(boolean around) {
+        this.around = around;
+    }
+
+    @Override
+    public IServiceOptions getServiceOptions() {
+        return SERVICE_OPTIONS;
+    }
+
+    @Override
+    public BigdataServiceCall create(ServiceCallCreateParams params, ServiceParams serviceParams) {
+        StatementPatternNode pattern = findPattern(params);
+        GeoSearch search;
+        if (around) {
+            search = new GeoSearch(pattern, singleParam(serviceParams, CENTER_PARAM), singleParam(serviceParams, RADIUS_PARAM),
+                    optionalVariable(serviceParams, DISTANCE_PARAM));
+        } else {
+            search = new GeoSearch(pattern, singleParam(serviceParams, SOUTH_WEST_PARAM),
+                    singleParam(serviceParams, NORTH_EAST_PARAM));
+        }
+        return new GeoServiceCall(params.getTripleStore(), search);
+    }
+
+    /**
+     * Find the statement pattern describing the coordinates to search.
+     */
+    private StatementPatternNode findPattern(ServiceCallCreateParams params) {
+        JoinGroupNode g = (JoinGroupNode) params.getServiceNode().getGraphPattern();
+        StatementPatternNode pattern = null;
+        for (BOp st : g.args()) {
+            StatementPatternNode sn = (StatementPatternNode) st;
+            if (sn.s().isConstant() && BD.SERVICE_PARAM.equals(sn.s().getValue())) {
+                // skip service params
+                continue;
+            }
+            if (pattern != null) {
+                throw new IllegalArgumentException("Geo search supports only a single coordinate pattern.");
+            }
+            pattern = sn;
+        }
+        if (pattern == null) {
+            throw new IllegalArgumentException("Geo search needs a pattern like ?place wdt:P625 ?location.");
+        }
+        if (!(pattern.s() instanceof VarNode) || !pattern.p().isConstant() || !(pattern.o() instanceof VarNode)) {
+            throw new IllegalArgumentException("Geo search needs a pattern like ?place wdt:P625 ?location.");
+        }
+        return pattern;
+    }
+
+    /**
+     * Fetch a required parameter that must be specified exactly once.
+     */
+    private TermNode singleParam(ServiceParams serviceParams, URI param) {
+        List<TermNode> nodes = serviceParams.get(param);
+        if (nodes == null || nodes.size() != 1) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT, "Geo search needs exactly one %s parameter.", param));
+        }
+        return nodes.get(0);
+    }
+
+    /**
+     * Fetch an optional parameter that must be a variable if specified.
+     */
+    @SuppressWarnings("rawtypes")
+    private IVariable optionalVariable(ServiceParams serviceParams, URI param) {
+        List<TermNode> nodes = serviceParams.get(param);
+        if (nodes == null || nodes.isEmpty()) {
+            return null;
+        }
+        if (nodes.size() != 1 || !(nodes.get(0) instanceof VarNode)) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT, "The %s parameter must be a single variable.", param));
+        }
+        return ((VarNode) nodes.get(0)).getValueExpression();
+    }
+
+    /**
+     * Description of the search requested in the query.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class GeoSearch {
+        /**
+         * Variable to which to bind the entities found.
+         */
+        private final IVariable subject;
+        /**
+         * The predicate linking entities to their coordinates.
+         */
+        private final IValueExpression predicate;
+        /**
+         * Variable to which to bind the coordinates found.
+         */
+        private final IVariable location;
+        /**
+         * Center of a radius search or the south west corner of a box search.
+         */
+        private final TermNode first;
+        /**
+         * Radius of a radius search or the north east corner of a box search.
+         */
+        private final TermNode second;
+        /**
+         * Variable to which to bind the distance or null if the distance isn't
+         * wanted or this is a box search.
+         */
+        private final IVariable distance;
+        /**
+         * Is this a radius search?
+         */
+        private final boolean around;
+
+        /**
+         * Build a radius search.
+         */
+        private GeoSearch(StatementPatternNode pattern, TermNode center, TermNode radius, IVariable distance) {
+            this(pattern, center, radius, distance, true);
+        }
+
+        /**
+         * Build a box search.
+         */
+        private GeoSearch(StatementPatternNode pattern, TermNode southWest, TermNode northEast) {
+            this(pattern, southWest, northEast, null, false);
+        }
+
+        private GeoSearch(StatementPatternNode pattern, TermNode first, TermNode second, IVariable distance, boolean around) {
+            subject = ((VarNode) pattern.s()).getValueExpression();
+            predicate = pattern.p().getValueExpression();
+            location = ((VarNode) pattern.o()).getValueExpression();
+            this.first = first;
+            this.second = second;
+            this.distance = distance;
+            this.around = around;
+        }
+    }
+
+    /**
+     * Represents the call site in a particular SPARQL query.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class GeoServiceCall implements BigdataServiceCall {
+        /**
+         * The TripleStore to search.
+         */
+        private final AbstractTripleStore tripleStore;
+        /**
+         * The LexiconRelation for the TripleStore we're working with.
+         */
+        private final LexiconRelation lexiconRelation;
+        /**
+         * The search to perform.
+         */
+        private final GeoSearch search;
+        /**
+         * The IV of wikibase:geoCell or null if it isn't in the store.
+         */
+        private final IV cellPredicate;
+        /**
+         * The IV of geo:wktLiteral if it is in the vocabulary.
+         */
+        private final IV wktLiteral;
+        /**
+         * The IV of geo:wktCRSLiteral if it is in the vocabulary.
+         */
+        private final IV wktCrsLiteral;
+
+        GeoServiceCall(AbstractTripleStore tripleStore, GeoSearch search) {
+            this.tripleStore = tripleStore;
+            this.search = search;
+            lexiconRelation = tripleStore.getLexiconRelation();
+            cellPredicate = tripleStore.getIV(new URIImpl(Ontology.Geo.CELL));
+            wktLiteral = tripleStore.getVocabulary().get(GeoSparql.WKT_LITERAL);
+            wktCrsLiteral = tripleStore.getVocabulary().get(GeoSparql.WKT_CRS_LITERAL);
+        }
+
+        @Override
+        public IServiceOptions getServiceOptions() {
+            return SERVICE_OPTIONS;
+        }
+
+        @Override
+        public ICloseableIterator<IBindingSet> call(IBindingSet[] bindingSets) throws Exception {
+            List<IBindingSet> results = new ArrayList<>();
+            for (IBindingSet binding : bindingSets) {
+                search(binding, results);
+            }
+            return new Results(results);
+        }
+
+        /**
+         * Run the search for a single incoming binding set, adding the results
+         * to results.
+         */
+        private void search(IBindingSet binding, List<IBindingSet> results) {
+            IV predicate = (IV) search.predicate.get(binding);
+            Value first = resolve(search.first, binding);
+            Value second = resolve(search.second, binding);
+            if (cellPredicate == null || predicate == null || predicate.isNullIV() || first == null || second == null) {
+                return;
+            }
+            Area area = search.around ? Area.around(first, second) : Area.box(first, second);
+            Set<IV> seen = new HashSet<>();
+            for (long cell : GeoCell.cover(area.globe, area.south, area.west, area.north, area.east, MAX_CELLS)) {
+                IV cellIv = tripleStore.getIV(lexiconRelation.getValueFactory().createLiteral(cell));
+                if (cellIv == null) {
+                    continue;
+                }
+                IChunkedOrderedIterator<ISPO> entities = tripleStore.getAccessPath(null, cellPredicate, cellIv).iterator();
+                try {
+                    while (entities.hasNext()) {
+                        IV entity = entities.next().s();
+                        if (seen.add(entity)) {
+                            checkEntity(binding, area, entity, predicate, results);
+                        }
+                    }
+                } finally {
+                    entities.close();
+                }
+            }
+        }
+
+        /**
+         * Check the coordinates of an entity that is near the search area and
+         * add a result for each one actually in it.
+         */
+        private void checkEntity(IBindingSet binding, Area area, IV entity, IV predicate, List<IBindingSet> results) {
+            IChunkedOrderedIterator<ISPO> coordinates = tripleStore.getAccessPath(entity, predicate, null).iterator();
+            try {
+                while (coordinates.hasNext()) {
+                    IV coordinate = coordinates.next().o();
+                    if (!coordinate.isLiteral()) {
+                        continue;
+                    }
+                    double[] point = point(area, coordinate);
+                    if (point == null || !area.contains(point[0], point[1])) {
+                        continue;
+                    }
+                    if (!compatible(binding, search.subject, entity) || !compatible(binding, search.location, coordinate)) {
+                        continue;
+                    }
+                    IBindingSet result = binding.clone();
+                    result.set(search.subject, new Constant(entity));
+                    result.set(search.location, new Constant(coordinate));
+                    if (search.distance != null) {
+                        double distance = GeoCell.distance(area.latitude, area.longitude, point[0], point[1]);
+                        result.set(search.distance, new Constant(new XSDNumericIV<BigdataLiteral>(distance)));
+                    }
+                    results.add(result);
+                }
+            } finally {
+                coordinates.close();
+            }
+        }
+
+        /**
+         * Read a coordinate found in the store, straight from the IV if it is
+         * inlined and from the lexicon if it isn't.
+         *
+         * @return latitude and longitude or null if the coordinate isn't on
+         *         the globe being searched
+         */
+        private double[] point(Area area, IV coordinate) {
+            UUID packed = WikibasePointExtension.packedPoint(coordinate);
+            if (packed != null) {
+                IV datatype = ((LiteralExtensionIV) coordinate).getExtensionIV();
+                if (datatype.equals(wktLiteral) || datatype.equals(wktCrsLiteral)) {
+                    URI datatypeUri = datatype.equals(wktLiteral) ? GeoSparql.WKT_LITERAL : GeoSparql.WKT_CRS_LITERAL;
+                    if (GeoCell.partition(datatypeUri, WikibasePointExtension.globe(packed)) != area.globe) {
+                        return null;
+                    }
+                    return WikibasePointExtension.latitudeLongitude(coordinate);
+                }
+            }
+            return area.parse((Literal) lexiconRelation.getTerm(coordinate));
+        }
+
+        /**
+         * Is a variable either unbound or bound to the value we'd bind it to?
+         */
+        private boolean compatible(IBindingSet binding, IVariable variable, IV value) {
+            Object bound = variable.get(binding);
+            return bound == null || bound.equals(value);
+        }
+
+        /**
+         * Resolve a parameter to a value in the current binding set.
+         *
+         * @return the value or null if the parameter is an unbound variable
+         */
+        private Value resolve(TermNode term, IBindingSet binding) {
+            if (term.isConstant()) {
+                return term.getValue();
+            }
+            IV iv = (IV) term.getValueExpression().get(binding);
+            if (iv == null) {
+                return null;
+            }
+            if (iv.hasValue()) {
+                return iv.getValue();
+            }
+            return lexiconRelation.getTerm(iv);
+        }
+    }
+
+    /**
+     * The area being searched.
+     */
+    private static final class Area {
+        /**
+         * Build the area for a radius search.
+         */
+        static Area around(Value center, Value radius) {
+            double[] point = point(center);
+            double radiusKm = number(radius);
+            double[] box = GeoCell.boundingBox(point[0], point[1], radiusKm);
+            return new Area(globe(center), point[0], point[1], radiusKm, box);
+        }
+
+        /**
+         * Build the area for a bounding box search.
+         */
+        static Area box(Value southWest, Value northEast) {
+            double[] sw = point(southWest);
+            double[] ne = point(northEast);
+            if (sw[0] > ne[0]) {
+                throw new IllegalArgumentException("The south west corner must be south of the north east corner.");
+            }
+            if (globe(southWest) != globe(northEast)) {
+                throw new IllegalArgumentException("Both corners must be on the same globe.");
+            }
+            double[] box = {sw[0], sw[1], ne[0], ne[1]};
+            return new Area(globe(southWest), (sw[0] + ne[0]) / 2, (sw[1] + ne[1]) / 2, -1, box);
+        }
+
+        /**
+         * Parse a coordinate literal.
+         *
+         * @return latitude and longitude
+         */
+        private static double[] point(Value value) {
+            if (!(value instanceof Literal)) {
+                throw new IllegalArgumentException("Expected a coordinate literal but got " + value);
+            }
+            WikibasePoint point = new WikibasePoint(((Literal) value).getLabel());
+            return new double[] {Double.parseDouble(point.getLatitude()), Double.parseDouble(point.getLongitude())};
+        }
+
+        /**
+         * Find the globe partition of a coordinate literal.
+         */
+        private static int globe(Value value) {
+            Literal literal = (Literal) value;
+            return GeoCell.partition(literal.getDatatype(), new WikibasePoint(literal.getLabel()));
+        }
+
+        /**
+         * Parse a number literal.
+         */
+        private static double number(Value value) {
+            try {
+                return Double.parseDouble(value.stringValue());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected a number but got " + value, e);
+            }
+        }
+
+        /**
+         * Globe partition being searched.
+         */
+        private final int globe;
+        /**
+         * Latitude of the center of the search.
+         */
+        private final double latitude;
+        /**
+         * Longitude of the center of the search.
+         */
+        private final double longitude;
+        /**
+         * Radius of the search in kilometers or -1 for box searches.
+         */
+        private final double radiusKm;
+        /**
+         * Southern edge of the area's bounding box.
+         */
+        private final double south;
+        /**
+         * Western edge of the area's bounding box.
+         */
+        private final double west;
+        /**
+         * Northern edge of the area's bounding box.
+         */
+        private final double north;
+        /**
+         * Eastern edge of the area's bounding box.
+         */
+        private final double east;
+
+        private Area(int globe, double latitude, double longitude, double radiusKm, double[] box) {
+            this.globe = globe;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radiusKm = radiusKm;
+            south = box[0];
+            west = box[1];
+            north = box[2];
+            east = box[3];
+        }
+
+        /**
+         * Parse a coordinate found in the store if it is on the globe being
+         * searched.
+         *
+         * @return latitude and longitude or null if the literal isn't a
+         *         coordinate on this globe
+         */
+        double[] parse(Literal literal) {
+            try {
+                WikibasePoint point = new WikibasePoint(literal.getLabel());
+                if (GeoCell.partition(literal.getDatatype(), point) != globe) {
+                    return null;
+                }
+                return new double[] {Double.parseDouble(point.getLatitude()), Double.parseDouble(point.getLongitude())};
+            } catch (IllegalArgumentException e) {
+                // Not a coordinate - NumberFormatException is an IllegalArgumentException too
+                return null;
+            }
+        }
+
+        /**
+         * Is the point in the area?
+         */
+        boolean contains(double pointLatitude, double pointLongitude) {
+            if (radiusKm >= 0) {
+                return GeoCell.distance(latitude, longitude, pointLatitude, pointLongitude) <= radiusKm;
+            }
+            return GeoCell.inBox(pointLatitude, pointLongitude, south, west, north, east);
+        }
+    }
+
+    /**
+     * Iterates the results of a call.
+     */
+    private static final class Results implements ICloseableIterator<IBindingSet> {
+        /**
+         * The results.
+         */
+        private final List<IBindingSet> results;
+        /**
+         * Has this been closed?
+         */
+        private boolean closed;
+        /**
+         * Index of the next result to return.
+         */
+        private int i;
+
+        Results(List<IBindingSet> results) {
+            this.results = results;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && i < results.size();
+        }
+
+        @Override
+        public IBindingSet next() {
+            return results.get(i++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
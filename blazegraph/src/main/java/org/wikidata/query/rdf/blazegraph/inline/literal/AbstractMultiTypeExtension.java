@@ -69,7 +69,12 @@ public abstract class AbstractMultiTypeExtension<V extends BigdataValue> impleme
         Literal literal = (Literal) value;
         try {
             BigdataURI dt = resolveDataType(literal);
-            return new LiteralExtensionIV(createDelegateIV(literal, dt), dt.getIV());
+            AbstractLiteralIV delegate = createDelegateIV(literal, dt);
+            if (delegate == null) {
+                // Blazegraph stores literals we can't inline in the lexicon
+                return null;
+            }
+            return new LiteralExtensionIV(delegate, dt.getIV());
         } catch (Exception e) {
             /*
              * Exception logging in blazegraph isn't great for this so we log
@@ -99,7 +104,8 @@ public abstract class AbstractMultiTypeExtension<V extends BigdataValue> impleme
     }
 
     /**
-     * Create the delegate iv for the literal.
+     * Create the delegate iv for the literal. Return null if the literal can't
+     * be inlined exactly and should be stored in the lexicon instead.
      */
     @SuppressWarnings("rawtypes")
     protected abstract AbstractLiteralIV createDelegateIV(Literal literal, BigdataURI dt);
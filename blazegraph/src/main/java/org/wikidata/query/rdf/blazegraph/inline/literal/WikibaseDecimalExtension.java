@@ -0,0 +1,148 @@
+package org.wikidata.query.rdf.blazegraph.inline.literal;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.List;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+import com.bigdata.rdf.internal.IDatatypeURIResolver;
+import com.bigdata.rdf.internal.impl.literal.AbstractLiteralIV;
+import com.bigdata.rdf.internal.impl.literal.LiteralExtensionIV;
+import com.bigdata.rdf.internal.impl.literal.XSDNumericIV;
+import com.bigdata.rdf.model.BigdataLiteral;
+import com.bigdata.rdf.model.BigdataURI;
+import com.bigdata.rdf.model.BigdataValue;
+import com.bigdata.rdf.model.BigdataValueFactory;
+
+/**
+ * This implementation of {@link com.bigdata.rdf.internal.IExtension} inlines
+ * xsd:decimal literals, mostly quantity amounts and bounds, as a fixed point
+ * number in a single long. The top bits hold the value multiplied by
+ * 10^{@value #FIXED_SCALE} and the bottom bits hold the scale the literal was
+ * written with and whether it had an explicit "+" sign, so "+1.50" comes back
+ * as "+1.50" rather than "1.5". Because the value is in the top bits the
+ * encoded longs sort in the same order as the numbers they hold, so range
+ * scans and ORDER BY over the statement indexes see them in numeric order.
+ * <p>
+ * Literals that don't fit, say because they have more than
+ * {@value #FIXED_SCALE} significant decimal places, are too large, or
+ * wouldn't render back exactly as they were written, aren't inlined by this
+ * extension.
+ *
+ * @param <V> Blazegraph value to expand. These are usually treated a bit
+ *            roughly by Blazegraph - lots of rawtypes
+ */
+public class WikibaseDecimalExtension<V extends BigdataValue> extends AbstractMultiTypeExtension<V> {
+    /**
+     * List of data types this extension can inline.
+     */
+    private static final List<URI> SUPPORTED_DATA_TYPES = Collections.singletonList(XMLSchema.DECIMAL);
+
+    /**
+     * Number of decimal places stored in the fixed point value. This is part
+     * of the storage format so it may never change.
+     */
+    private static final int FIXED_SCALE = 6;
+    /**
+     * Number of bits below the fixed point value.
+     */
+    private static final int FLAG_BITS = 5;
+    /**
+     * Flag set if the literal was written with an explicit "+".
+     */
+    private static final long PLUS_FLAG = 0x10;
+    /**
+     * Mask for the scale the literal was written with.
+     */
+    private static final long SCALE_MASK = 0xF;
+    /**
+     * Largest fixed point value we can store.
+     */
+    private static final BigInteger MAX_FIXED = BigInteger.valueOf(Long.MAX_VALUE >> FLAG_BITS);
+    /**
+     * Smallest fixed point value we can store.
+     */
+    private static final BigInteger MIN_FIXED = BigInteger.valueOf(Long.MIN_VALUE >> FLAG_BITS);
+
+    public WikibaseDecimalExtension(final IDatatypeURIResolver resolver) {
+        super(resolver, SUPPORTED_DATA_TYPES);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected AbstractLiteralIV createDelegateIV(Literal literal, BigdataURI dt) {
+        Long packed = pack(literal.getLabel());
+        if (packed == null) {
+            return null;
+        }
+        return new XSDNumericIV(packed);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected BigdataLiteral safeAsValue(LiteralExtensionIV iv, BigdataValueFactory vf, BigdataURI dt) {
+        return vf.createLiteral(unpack(iv.getDelegate().longValue()), dt);
+    }
+
+    /**
+     * The numeric value of a decimal inlined by this extension.
+     */
+    public static BigDecimal value(long packed) {
+        return BigDecimal.valueOf(packed >> FLAG_BITS, FIXED_SCALE);
+    }
+
+    /**
+     * Pack a decimal's label into a long.
+     *
+     * @return the packed label or null if it can't be packed so that it
+     *         unpacks to exactly the same string
+     */
+    static Long pack(String label) {
+        if (label.isEmpty()) {
+            return null;
+        }
+        boolean plus = label.charAt(0) == '+';
+        BigDecimal decimal;
+        try {
+            decimal = new BigDecimal(plus ? label.substring(1) : label);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (decimal.scale() < 0 || decimal.scale() > SCALE_MASK) {
+            return null;
+        }
+        BigInteger fixed;
+        try {
+            fixed = decimal.setScale(FIXED_SCALE, RoundingMode.UNNECESSARY).unscaledValue();
+        } catch (ArithmeticException e) {
+            // Too many significant decimal places
+            return null;
+        }
+        if (fixed.compareTo(MAX_FIXED) > 0 || fixed.compareTo(MIN_FIXED) < 0) {
+            return null;
+        }
+        long packed = fixed.longValue() << FLAG_BITS | decimal.scale();
+        if (plus) {
+            packed |= PLUS_FLAG;
+        }
+        // Paranoia - only inline things that come back exactly the same
+        return label.equals(unpack(packed)) ? packed : null;
+    }
+
+    /**
+     * Unpack a decimal's label from a long.
+     */
+    static String unpack(long packed) {
+        BigDecimal decimal = value(packed).setScale((int) (packed & SCALE_MASK), RoundingMode.UNNECESSARY);
+        String plain = decimal.toPlainString();
+        if ((packed & PLUS_FLAG) != 0) {
+            return "+" + plain;
+        }
+        return plain;
+    }
+}
@@ -0,0 +1,275 @@
+package org.wikidata.query.rdf.blazegraph.inline.literal;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.wikidata.query.rdf.common.WikibasePoint;
+import org.wikidata.query.rdf.common.WikibasePoint.CoordinateOrder;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.bigdata.rdf.internal.IDatatypeURIResolver;
+import com.bigdata.rdf.internal.IV;
+import com.bigdata.rdf.internal.impl.literal.AbstractLiteralIV;
+import com.bigdata.rdf.internal.impl.literal.LiteralExtensionIV;
+import com.bigdata.rdf.internal.impl.literal.UUIDLiteralIV;
+import com.bigdata.rdf.model.BigdataLiteral;
+import com.bigdata.rdf.model.BigdataURI;
+import com.bigdata.rdf.model.BigdataValue;
+import com.bigdata.rdf.model.BigdataValueFactory;
+
+/**
+ * This implementation of {@link com.bigdata.rdf.internal.IExtension} inlines
+ * geo:wktLiteral and geo:wktCRSLiteral points into a fixed width 128 bit
+ * {@link UUIDLiteralIV}. Each coordinate is stored exactly as written as a
+ * 55 bit signed unscaled value and a 4 bit decimal scale so it round trips
+ * without any floating point rounding. The rest of the bits hold an index into
+ * a fixed table of globes and whether the literal was written with "Point" or
+ * "POINT".
+ * <p>
+ * Coordinates are stored in the order they appear in the literal so
+ * WikibasePoint.CoordinateOrder only matters when reading them as latitude
+ * and longitude. Literals that wouldn't render back exactly as they were
+ * written, say because they have extra whitespace, an exponent, too many
+ * digits, or a globe not in the table, are left in the lexicon.
+ * <p>
+ * The datatypes must be in the vocabulary so this needs
+ * WikibaseVocabulary.V003 or later.
+ *
+ * @param <V> Blazegraph value to expand. These are usually treated a bit
+ *            roughly by Blazegraph - lots of rawtypes
+ */
+public class WikibasePointExtension<V extends BigdataValue> extends AbstractMultiTypeExtension<V> {
+    /**
+     * List of data types this extension can inline.
+     */
+    private static final List<URI> SUPPORTED_DATA_TYPES = Collections.unmodifiableList(Arrays.asList(
+            GeoSparql.WKT_LITERAL, GeoSparql.WKT_CRS_LITERAL));
+
+    /**
+     * Globes we can inline. Index 0 means no globe. This list is part of the
+     * storage format so it may only ever be appended to.
+     */
+    private static final List<String> GLOBES = Collections.unmodifiableList(Arrays.asList(
+            null,
+            "Q2", // Earth
+            "Q405", // Moon
+            "Q111", // Mars
+            "Q308", // Mercury
+            "Q313", // Venus
+            "Q319", // Jupiter
+            "Q193", // Saturn
+            "Q324", // Uranus
+            "Q332", // Neptune
+            "Q339", // Pluto
+            "Q3303", // Titan
+            "Q3123", // Io
+            "Q3143", // Europa
+            "Q3169", // Ganymede
+            "Q3134" // Callisto
+    ));
+
+    /**
+     * Number of bits in each coordinate's unscaled value.
+     */
+    private static final int MANTISSA_BITS = 55;
+    /**
+     * Mask for the unscaled value.
+     */
+    private static final long MANTISSA_MASK = (1L << MANTISSA_BITS) - 1;
+    /**
+     * Largest scale we can store.
+     */
+    private static final int MAX_SCALE = 15;
+    /**
+     * Number of header bits stored at the bottom of each half of the uuid.
+     */
+    private static final int HEADER_BITS_PER_WORD = 4;
+    /**
+     * Mask for the header bits in each half of the uuid.
+     */
+    private static final long HEADER_WORD_MASK = 0xF;
+    /**
+     * Header bit set when the literal used "Point" rather than "POINT".
+     */
+    private static final int MIXED_CASE_FLAG = 0x80;
+    /**
+     * Mask for the globe index in the header.
+     */
+    private static final int GLOBE_MASK = 0x7F;
+
+    public WikibasePointExtension(final IDatatypeURIResolver resolver) {
+        super(resolver, SUPPORTED_DATA_TYPES);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected AbstractLiteralIV createDelegateIV(Literal literal, BigdataURI dt) {
+        UUID packed = pack(literal.getLabel());
+        if (packed == null) {
+            return null;
+        }
+        return new UUIDLiteralIV(packed);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected BigdataLiteral safeAsValue(LiteralExtensionIV iv, BigdataValueFactory vf, BigdataURI dt) {
+        return vf.createLiteral(unpack(((UUIDLiteralIV) iv.getDelegate()).getInlineValue()), dt);
+    }
+
+    /**
+     * Read the latitude and longitude of a point inlined by this extension
+     * without looking it up in the lexicon.
+     *
+     * @return latitude and longitude or null if the iv isn't an inlined point
+     */
+    @SuppressWarnings("rawtypes")
+    public static double[] latitudeLongitude(IV iv) {
+        UUID packed = packedPoint(iv);
+        if (packed == null) {
+            return null;
+        }
+        double first = coordinate(packed.getMostSignificantBits()).doubleValue();
+        double second = coordinate(packed.getLeastSignificantBits()).doubleValue();
+        if (WikibasePoint.DEFAULT_ORDER == CoordinateOrder.LAT_LONG) {
+            return new double[] {first, second};
+        }
+        return new double[] {second, first};
+    }
+
+    /**
+     * The globe uri of a point inlined by this extension.
+     *
+     * @return the globe uri or null if the point doesn't have one
+     */
+    public static String globe(UUID packed) {
+        String globe = GLOBES.get(header(packed) & GLOBE_MASK);
+        return globe == null ? null : WikibaseUris.WIKIDATA.entity() + globe;
+    }
+
+    /**
+     * The uuid holding a point inlined by this extension.
+     *
+     * @return the uuid or null if the iv isn't an inlined point
+     */
+    @SuppressWarnings("rawtypes")
+    public static UUID packedPoint(IV iv) {
+        if (!(iv instanceof LiteralExtensionIV)) {
+            return null;
+        }
+        IV delegate = ((LiteralExtensionIV) iv).getDelegate();
+        if (!(delegate instanceof UUIDLiteralIV)) {
+            return null;
+        }
+        return ((UUIDLiteralIV) delegate).getInlineValue();
+    }
+
+    /**
+     * Pack a point's label into a uuid.
+     *
+     * @return the packed label or null if it can't be packed so that it
+     *         unpacks to exactly the same string
+     */
+    static UUID pack(String label) {
+        int globe = 0;
+        String rest = label;
+        if (rest.startsWith("<")) {
+            int endGlobe = rest.indexOf("> ");
+            if (endGlobe < 0) {
+                return null;
+            }
+            String globeUri = rest.substring(1, endGlobe);
+            if (!globeUri.startsWith(WikibaseUris.WIKIDATA.entity())) {
+                return null;
+            }
+            globe = GLOBES.indexOf(globeUri.substring(WikibaseUris.WIKIDATA.entity().length()));
+            if (globe <= 0) {
+                return null;
+            }
+            rest = rest.substring(endGlobe + 2);
+        }
+        int header = globe;
+        if (rest.startsWith("Point(")) {
+            header |= MIXED_CASE_FLAG;
+        } else if (!rest.startsWith("POINT(")) {
+            return null;
+        }
+        if (!rest.endsWith(")")) {
+            return null;
+        }
+        String[] coordinates = rest.substring("POINT(".length(), rest.length() - 1).split(" ", -1);
+        if (coordinates.length != 2) {
+            return null;
+        }
+        Long first = packCoordinate(coordinates[0]);
+        Long second = packCoordinate(coordinates[1]);
+        if (first == null || second == null) {
+            return null;
+        }
+        UUID packed = new UUID(first << HEADER_BITS_PER_WORD | header >>> HEADER_BITS_PER_WORD,
+                second << HEADER_BITS_PER_WORD | header & HEADER_WORD_MASK);
+        // Paranoia - only inline things that come back exactly the same
+        return label.equals(unpack(packed)) ? packed : null;
+    }
+
+    /**
+     * Unpack a point's label from a uuid.
+     */
+    static String unpack(UUID packed) {
+        int header = header(packed);
+        StringBuilder b = new StringBuilder();
+        String globe = globe(packed);
+        if (globe != null) {
+            b.append('<').append(globe).append("> ");
+        }
+        b.append((header & MIXED_CASE_FLAG) == 0 ? "POINT(" : "Point(");
+        b.append(coordinate(packed.getMostSignificantBits()).toPlainString());
+        b.append(' ');
+        b.append(coordinate(packed.getLeastSignificantBits()).toPlainString());
+        b.append(')');
+        return b.toString();
+    }
+
+    /**
+     * Pack a single coordinate into the top 59 bits of a long.
+     *
+     * @return the packed coordinate or null if it can't be packed
+     */
+    private static Long packCoordinate(String coordinate) {
+        BigDecimal decimal;
+        try {
+            decimal = new BigDecimal(coordinate);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (decimal.scale() < 0 || decimal.scale() > MAX_SCALE || decimal.unscaledValue().bitLength() >= MANTISSA_BITS) {
+            return null;
+        }
+        return (long) decimal.scale() << MANTISSA_BITS | decimal.unscaledValue().longValue() & MANTISSA_MASK;
+    }
+
+    /**
+     * Unpack a coordinate from one half of the uuid.
+     */
+    private static BigDecimal coordinate(long word) {
+        long packed = word >>> HEADER_BITS_PER_WORD;
+        int scale = (int) (packed >>> MANTISSA_BITS);
+        // Shift the mantissa up to the top of the long and back to sign extend it
+        long unscaled = packed << (Long.SIZE - MANTISSA_BITS) >> (Long.SIZE - MANTISSA_BITS);
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /**
+     * Reassemble the header from the bottom bits of both halves of the uuid.
+     */
+    private static int header(UUID packed) {
+        return (int) ((packed.getMostSignificantBits() & HEADER_WORD_MASK) << HEADER_BITS_PER_WORD
+                | packed.getLeastSignificantBits() & HEADER_WORD_MASK);
+    }
+}
@@ -0,0 +1,52 @@
+package org.wikidata.query.rdf.blazegraph.inline.uri;
+
+import java.math.BigInteger;
+
+import com.bigdata.rdf.internal.InlineURIHandler;
+import com.bigdata.rdf.internal.impl.literal.AbstractLiteralIV;
+import com.bigdata.rdf.internal.impl.literal.XSDIntegerIV;
+import com.bigdata.rdf.model.BigdataLiteral;
+
+/**
+ * InlineURIHandler for references. Their local names are 160 bit sha1 hashes
+ * written as 40 lowercase hex digits. That is too big for a uuid so we store
+ * them as an integer with an extra bit set just above the hash. The extra bit
+ * keeps hashes with leading zeros from losing them and keeps every encoded
+ * hash exactly the same width in the indexes. Anything that isn't exactly 40
+ * lowercase hex digits is left in the lexicon.
+ */
+public class ReferenceHashInlineUriHandler extends InlineURIHandler {
+    /**
+     * Number of hex digits in a reference hash.
+     */
+    private static final int HASH_LENGTH = 40;
+    /**
+     * Bit set above the hash.
+     */
+    private static final BigInteger SENTINEL = BigInteger.ONE.shiftLeft(HASH_LENGTH * 4);
+
+    public ReferenceHashInlineUriHandler(String namespace) {
+        super(namespace);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected AbstractLiteralIV createInlineIV(String localName) {
+        if (localName.length() != HASH_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            char c = localName.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return null;
+            }
+        }
+        return new XSDIntegerIV(new BigInteger(localName, 16).or(SENTINEL));
+    }
+
+    @Override
+    public String getLocalNameFromDelegate(AbstractLiteralIV<BigdataLiteral, ?> delegate) {
+        // The sentinel bit makes this 41 digits starting with "1"
+        return delegate.integerValue().toString(16).substring(1);
+    }
+}
@@ -1,7 +1,6 @@
 package org.wikidata.query.rdf.blazegraph.inline.uri;
 
 import java.math.BigInteger;
-import java.util.Locale;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
@@ -26,31 +25,92 @@ import com.bigdata.rdf.model.BigdataLiteral;
  * statements to get scattered along the index which causes mighty right
  * amplification during loads and updates and probably doesn't help query
  * performance either.
+ *
+ * Encoding and decoding work on the two's complement bytes of the integer with
+ * primitive arithmetic so each uri costs a single BigInteger rather than a
+ * chain of shifts, a UUID, and a couple of temporary strings. That fast path
+ * only handles local names in the canonical form - "Q" or "P", a number
+ * without leading zeros, and an upper case uuid. Anything else goes through
+ * the original parsing so this handler inlines exactly what it always has.
+ * Canonical inlines only the canonical form because those are the only local
+ * names that decode back to exactly the same string. Since Blazegraph records
+ * the inline uri factory in the journal it is only used by new factory
+ * versions.
  */
 public class WikibaseStyleStatementInlineUriHandler extends InlineURIHandler {
     private static final Logger log = Logger.getLogger(WikibaseStyleStatementInlineUriHandler.class);
 
+    /**
+     * Length of a uuid with dashes.
+     */
+    private static final int UUID_LENGTH = 36;
+    /**
+     * Offset of the second half of the uuid in its string form.
+     */
+    private static final int SECOND_HALF = 19;
+    /**
+     * Number of hex digits in each half of a uuid.
+     */
+    private static final int HALF_DIGITS = 16;
+    /**
+     * Number of bytes in the two's complement encoding of an inlined
+     * statement: the entity id and the two halves of the uuid.
+     */
+    private static final int ENCODED_LENGTH = Long.SIZE / Byte.SIZE * 3;
+    /**
+     * Maximum number of digits we'll parse from an entity id. Anything longer
+     * might not fit into a long.
+     */
+    private static final int MAX_ENTITY_DIGITS = 18;
+    /**
+     * Upper case hex digits for decoding.
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Should we only inline local names in the canonical form?
+     */
+    private final boolean canonicalOnly;
+
     public WikibaseStyleStatementInlineUriHandler(String namespace) {
+        this(namespace, false);
+    }
+
+    protected WikibaseStyleStatementInlineUriHandler(String namespace, boolean canonicalOnly) {
         super(namespace);
+        this.canonicalOnly = canonicalOnly;
     }
 
     @Override
     @SuppressWarnings("rawtypes")
     protected AbstractLiteralIV createInlineIV(String localName) {
+        if (localName.isEmpty()) {
+            return null;
+        }
+        AbstractLiteralIV iv = canonicalInlineIv(localName);
+        if (iv != null || canonicalOnly) {
+            return iv;
+        }
+        return lenientInlineIv(localName);
+    }
+
+    /**
+     * Inline a local name in the canonical form.
+     *
+     * @return null if the local name isn't in the canonical form
+     */
+    @SuppressWarnings("rawtypes")
+    private static AbstractLiteralIV canonicalInlineIv(String localName) {
         switch (localName.charAt(0)) {
-        case 'q':
         case 'Q':
             return inlineIvFrom(1, localName);
-        case 'p':
         case 'P':
             return inlineIvFrom(-1, localName);
         default:
-            try {
-                return new UUIDLiteralIV(UUID.fromString(localName));
-            } catch (IllegalArgumentException e) {
-                log.debug("Invalid uuid:  " + localName, e);
+            if (localName.length() != UUID_LENGTH || !isUuid(localName, 0)) {
                 return null;
             }
+            return new UUIDLiteralIV(new UUID(parseUuidHalf(localName, 0), parseUuidHalf(localName, SECOND_HALF)));
         }
     }
 
@@ -59,24 +119,13 @@ public class WikibaseStyleStatementInlineUriHandler extends InlineURIHandler {
         switch (delegate.getDTE()) {
         case UUID:
             // UUID style statements just decode.
-            return delegate.stringValue().toUpperCase(Locale.ROOT);
+            UUID uuid = (UUID) delegate.getInlineValue();
+            char[] chars = new char[UUID_LENGTH];
+            formatUuid(chars, 0, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            return new String(chars);
         case XSDInteger:
             // Otherwise we've got to decode the BigInteger style:
-            BigInteger i = delegate.integerValue();
-            long least = i.longValue();
-            i = i.shiftRight(Long.SIZE);
-            long most = i.longValue();
-            i = i.shiftRight(Long.SIZE);
-            long entity = i.longValue();
-            StringBuilder b = new StringBuilder();
-            if (entity < 0) {
-                entity = -entity;
-                b.append('P');
-            } else {
-                b.append('Q');
-            }
-            b.append(entity).append('-').append(new UUID(most, least).toString().toUpperCase(Locale.ROOT));
-            return b.toString();
+            return decode(delegate.integerValue().toByteArray());
         default:
             // How in the world did we get here?
             return super.getLocalNameFromDelegate(delegate);
@@ -89,6 +138,58 @@ public class WikibaseStyleStatementInlineUriHandler extends InlineURIHandler {
      */
     @SuppressWarnings("rawtypes")
     private static AbstractLiteralIV inlineIvFrom(int signum, String localName) {
+        int firstDash = localName.indexOf('-');
+        int digits = firstDash - 1;
+        if (digits < 1 || digits > MAX_ENTITY_DIGITS || localName.length() != firstDash + 1 + UUID_LENGTH) {
+            return null;
+        }
+        if (localName.charAt(1) == '0') {
+            // Leading zeros wouldn't survive the trip
+            return null;
+        }
+        long entity = 0;
+        for (int i = 1; i < firstDash; i++) {
+            char c = localName.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            entity = entity * 10 + (c - '0');
+        }
+        if (!isUuid(localName, firstDash + 1)) {
+            return null;
+        }
+        byte[] bytes = new byte[ENCODED_LENGTH];
+        putLong(bytes, 0, signum * entity);
+        putLong(bytes, 8, parseUuidHalf(localName, firstDash + 1));
+        putLong(bytes, 16, parseUuidHalf(localName, firstDash + 1 + SECOND_HALF));
+        return new XSDIntegerIV(new BigInteger(bytes));
+    }
+
+    /**
+     * Inline a local name the way this handler always has, accepting lower
+     * case prefixes, leading zeros and anything UUID.fromString accepts. Slow
+     * but only used for local names that aren't in the canonical form.
+     */
+    @SuppressWarnings("rawtypes")
+    private static AbstractLiteralIV lenientInlineIv(String localName) {
+        int signum;
+        switch (localName.charAt(0)) {
+        case 'q':
+        case 'Q':
+            signum = 1;
+            break;
+        case 'p':
+        case 'P':
+            signum = -1;
+            break;
+        default:
+            try {
+                return new UUIDLiteralIV(UUID.fromString(localName));
+            } catch (IllegalArgumentException e) {
+                log.debug("Invalid uuid:  " + localName, e);
+                return null;
+            }
+        }
         int firstDash = localName.indexOf('-');
         long entity = Long.valueOf(localName.substring(1, firstDash), 10);
         try {
@@ -98,7 +199,7 @@ public class WikibaseStyleStatementInlineUriHandler extends InlineURIHandler {
             i = i.shiftLeft(Long.SIZE).or(unsigned(u.getLeastSignificantBits()));
             return new XSDIntegerIV(i);
         } catch (IllegalArgumentException e) {
-            Logger.getLogger(WikibaseStyleStatementInlineUriHandler.class).warn("tmp", e);
+            log.debug("Invalid uuid:  " + localName, e);
             return null;
         }
     }
@@ -113,4 +214,129 @@ public class WikibaseStyleStatementInlineUriHandler extends InlineURIHandler {
         }
         return i;
     }
+
+    /**
+     * Decode the two's complement bytes of an inlined statement.
+     */
+    static String decode(byte[] bytes) {
+        long least = getLong(bytes, bytes.length - 8);
+        long most = getLong(bytes, bytes.length - 16);
+        long entity = getLong(bytes, bytes.length - 24);
+        char prefix = 'Q';
+        if (entity < 0) {
+            entity = -entity;
+            prefix = 'P';
+        }
+        int digits = 1;
+        for (long e = entity / 10; e > 0; e /= 10) {
+            digits++;
+        }
+        char[] chars = new char[1 + digits + 1 + UUID_LENGTH];
+        chars[0] = prefix;
+        for (int i = digits; i > 0; i--) {
+            chars[i] = (char) ('0' + entity % 10);
+            entity /= 10;
+        }
+        chars[digits + 1] = '-';
+        formatUuid(chars, digits + 2, most, least);
+        return new String(chars);
+    }
+
+    /**
+     * Does the string contain a canonical, upper case uuid starting at
+     * offset? Doesn't check the length of the string.
+     */
+    private static boolean isUuid(String s, int offset) {
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = s.charAt(offset + i);
+            if (isDashPosition(i)) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if ((c < '0' || c > '9') && (c < 'A' || c > 'F')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse half of a uuid that has already been checked by isUuid. Offset
+     * should either be the start of the uuid or the start of its second half.
+     */
+    private static long parseUuidHalf(String s, int offset) {
+        long value = 0;
+        int digits = 0;
+        for (int i = offset; digits < HALF_DIGITS; i++) {
+            char c = s.charAt(i);
+            if (c != '-') {
+                value = value << 4 | Character.digit(c, 16);
+                digits++;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Write a uuid into chars in its canonical upper case form.
+     */
+    private static void formatUuid(char[] chars, int offset, long most, long least) {
+        int digit = 0;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            if (isDashPosition(i)) {
+                chars[offset + i] = '-';
+                continue;
+            }
+            long half = digit < HALF_DIGITS ? most : least;
+            int shift = (HALF_DIGITS - 1 - digit % HALF_DIGITS) * 4;
+            chars[offset + i] = HEX_DIGITS[(int) (half >>> shift) & 0xF];
+            digit++;
+        }
+    }
+
+    /**
+     * Is this position in a uuid's string form a dash?
+     */
+    private static boolean isDashPosition(int i) {
+        return i == 8 || i == 13 || i == 18 || i == 23;
+    }
+
+    /**
+     * Write a long into bytes big endian.
+     */
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>= Byte.SIZE;
+        }
+    }
+
+    /**
+     * Read a big endian long from bytes, sign extending if the bytes start
+     * after offset. That is how BigInteger drops leading bytes from its two's
+     * complement representation.
+     */
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            int b;
+            if (i >= 0) {
+                b = bytes[i] & 0xFF;
+            } else {
+                b = bytes[0] < 0 ? 0xFF : 0;
+            }
+            value = value << Byte.SIZE | b;
+        }
+        return value;
+    }
+
+    /**
+     * Only inlines local names in the canonical form so every inlined uri
+     * decodes back to exactly the same string.
+     */
+    public static class Canonical extends WikibaseStyleStatementInlineUriHandler {
+        public Canonical(String namespace) {
+            super(namespace, true);
+        }
+    }
 }
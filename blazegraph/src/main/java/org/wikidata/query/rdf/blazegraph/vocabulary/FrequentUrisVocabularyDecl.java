@@ -0,0 +1,54 @@
+package org.wikidata.query.rdf.blazegraph.vocabulary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bigdata.rdf.vocab.BaseVocabularyDecl;
+
+/**
+ * Vocabulary containing frequently used entity and property uris loaded from a
+ * resource file, one uri per line. Lines starting with # are comments. Terms
+ * in the vocabulary get tiny fixed ids which makes keys shorter and indexes
+ * denser than inlining them. The files are generated by
+ * org.wikidata.query.rdf.tool.VocabularyFrequencies.
+ * <p>
+ * Blazegraph assigns vocabulary ids by position so a file must never change
+ * once a vocabulary version that loads it has been used to build a journal.
+ * No WikibaseVocabulary version loads one yet. The next version should load a
+ * list generated from a full dump so the ids it freezes go to the terms that
+ * really are the most frequent.
+ */
+public class FrequentUrisVocabularyDecl extends BaseVocabularyDecl {
+    public FrequentUrisVocabularyDecl(String resource) {
+        super(load(resource));
+    }
+
+    /**
+     * Load the uris from a resource next to this class.
+     */
+    private static Object[] load(String resource) {
+        InputStream stream = FrequentUrisVocabularyDecl.class.getResourceAsStream(resource);
+        if (stream == null) {
+            throw new IllegalArgumentException("Can't find vocabulary resource:  " + resource);
+        }
+        List<String> uris = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                uris.add(line);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading vocabulary resource:  " + resource, e);
+        }
+        return uris.toArray();
+    }
+}
@@ -0,0 +1,16 @@
+package org.wikidata.query.rdf.blazegraph.vocabulary;
+
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+
+import com.bigdata.rdf.vocab.BaseVocabularyDecl;
+
+/**
+ * Vocabulary containing the GeoSPARQL datatypes. They have to be in the
+ * vocabulary so that WikibasePointExtension can inline literals of those
+ * types.
+ */
+public class GeoSparqlVocabularyDecl extends BaseVocabularyDecl {
+    public GeoSparqlVocabularyDecl() {
+        super(GeoSparql.NAMESPACE, GeoSparql.WKT_LITERAL, GeoSparql.WKT_CRS_LITERAL);
+    }
+}
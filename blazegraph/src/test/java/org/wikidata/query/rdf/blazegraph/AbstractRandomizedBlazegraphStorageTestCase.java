@@ -77,9 +77,9 @@ public class AbstractRandomizedBlazegraphStorageTestCase extends RandomizedTest
         properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.vocabularyClass",
                 WikibaseVocabulary.VOCABULARY_CLASS.getName());
         properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.inlineURIFactory",
-                WikibaseInlineUriFactory.class.getName());
+                WikibaseInlineUriFactory.V002.class.getName());
         properties.setProperty("com.bigdata.rdf.store.AbstractTripleStore.extensionFactoryClass",
-                WikibaseExtensionFactory.class.getName());
+                WikibaseExtensionFactory.V003.class.getName());
         store = new TempTripleStore(temporaryStore(), properties, null);
         return store;
     }
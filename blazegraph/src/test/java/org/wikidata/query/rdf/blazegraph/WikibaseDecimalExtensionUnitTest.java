@@ -0,0 +1,124 @@
+package org.wikidata.query.rdf.blazegraph;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.wikidata.query.rdf.test.Matchers.binds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.wikidata.query.rdf.common.uri.Ontology;
+
+import com.bigdata.rdf.internal.impl.literal.LiteralExtensionIV;
+import com.bigdata.rdf.model.BigdataStatement;
+
+public class WikibaseDecimalExtensionUnitTest extends AbstractRandomizedBlazegraphTestBase {
+    @Test
+    public void integer() {
+        inlined("5");
+    }
+
+    @Test
+    public void plus() {
+        inlined("+5");
+    }
+
+    @Test
+    public void negative() {
+        inlined("-5.25");
+    }
+
+    @Test
+    public void trailingZeros() {
+        inlined("+1.500");
+    }
+
+    @Test
+    public void small() {
+        inlined("0.000001");
+    }
+
+    @Test
+    public void large() {
+        inlined("+7346235000");
+    }
+
+    @Test
+    public void random() {
+        inlined(Integer.toString(randomIntBetween(-1000000, 1000000)) + "." + randomIntBetween(100, 999));
+    }
+
+    @Test
+    public void tooPrecise() {
+        notInlined("0.0000001");
+    }
+
+    @Test
+    public void tooLarge() {
+        notInlined("+123456789012345678901234567890");
+    }
+
+    @Test
+    public void exponent() {
+        notInlined("1E5");
+    }
+
+    @Test
+    public void negativeZero() {
+        notInlined("-0");
+    }
+
+    @Test
+    public void leadingZero() {
+        notInlined("05");
+    }
+
+    @Test
+    public void garbage() {
+        notInlined("cat");
+    }
+
+    @Test
+    public void filterAndOrder() throws QueryEvaluationException {
+        add("wdv:1", Ontology.Quantity.AMOUNT, new LiteralImpl("+10", XMLSchema.DECIMAL));
+        add("wdv:2", Ontology.Quantity.AMOUNT, new LiteralImpl("-2.5", XMLSchema.DECIMAL));
+        add("wdv:3", Ontology.Quantity.AMOUNT, new LiteralImpl("3.75", XMLSchema.DECIMAL));
+        add("wdv:4", Ontology.Quantity.AMOUNT, new LiteralImpl("0.0000001", XMLSchema.DECIMAL));
+        TupleQueryResult result = query("SELECT ?v WHERE { ?v <" + Ontology.Quantity.AMOUNT + "> ?amount ."
+                + " FILTER(?amount > 0) } ORDER BY ?amount");
+        List<String> values = new ArrayList<>();
+        while (result.hasNext()) {
+            values.add(result.next().getValue("v").stringValue());
+        }
+        assertEquals(3, values.size());
+        assertEquals(convert("wdv:4").stringValue(), values.get(0));
+        assertEquals(convert("wdv:3").stringValue(), values.get(1));
+        assertEquals(convert("wdv:1").stringValue(), values.get(2));
+    }
+
+    @Test
+    public void queryByValue() throws QueryEvaluationException {
+        add("wdv:1", Ontology.Quantity.AMOUNT, new LiteralImpl("+10", XMLSchema.DECIMAL));
+        TupleQueryResult result = query("SELECT * WHERE { ?v <" + Ontology.Quantity.AMOUNT + "> \"+10\"^^xsd:decimal }");
+        assertTrue(result.hasNext());
+        assertThat(result.next(), binds("v", convert("wdv:1")));
+    }
+
+    private void inlined(String label) {
+        LiteralImpl literal = new LiteralImpl(label, XMLSchema.DECIMAL);
+        BigdataStatement statement = roundTrip("wdv:1", Ontology.Quantity.AMOUNT, literal);
+        assertThat(statement.getObject().getIV(), instanceOf(LiteralExtensionIV.class));
+        assertEquals(literal, statement.getObject());
+    }
+
+    private void notInlined(String label) {
+        LiteralImpl literal = new LiteralImpl(label, XMLSchema.DECIMAL);
+        BigdataStatement statement = roundTrip("wdv:1", Ontology.Quantity.AMOUNT, literal);
+        assertThat(statement.getObject().getIV(), not(instanceOf(LiteralExtensionIV.class)));
+    }
+}
@@ -6,11 +6,14 @@ import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.hasToString;
 import static org.hamcrest.Matchers.instanceOf;
 
+import java.util.Locale;
+
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeMatcher;
 import org.junit.Test;
 import org.wikidata.query.rdf.common.uri.CommonValues;
+import org.wikidata.query.rdf.common.uri.Provenance;
 import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
 
 import com.bigdata.rdf.internal.IV;
@@ -71,6 +74,44 @@ public class WikibaseInlineUriFactoryUnitTest extends AbstractRandomizedBlazegra
         assertThat(statement.getObject().getIV(), uriIv(CommonValues.VIAF, "23466"));
     }
 
+    @Test
+    public void referencesAreInlined() {
+        BigdataStatement statement = roundTrip("wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", Provenance.WAS_DERIVED_FROM,
+                "wdref:0d2c2a5e5e8ab8df2fd43a1d6c81d3d54c0a4f4e");
+        assertThat(statement.getObject().getIV(), uriIv(uris().reference(), "0d2c2a5e5e8ab8df2fd43a1d6c81d3d54c0a4f4e"));
+    }
+
+    @Test
+    public void referencesWithLeadingZerosAreInlined() {
+        BigdataStatement statement = roundTrip("wdref:00000000000000000000000000000000000000a1", "pr:P143", "wd:Q328");
+        assertThat(statement.getSubject().getIV(), uriIv(uris().reference(), "00000000000000000000000000000000000000a1"));
+    }
+
+    @Test
+    public void randomReferencesAreInlined() {
+        String hash = randomHash();
+        BigdataStatement statement = roundTrip("wdref:" + hash, "pr:P143", "wd:Q328");
+        assertThat(statement.getSubject().getIV(), uriIv(uris().reference(), hash));
+    }
+
+    @Test
+    public void nonConformingReferencesAreNotInlined() {
+        String hash = "0d2c2a5e5e8ab8df2fd43a1d6c81d3d54c0a4f4e";
+        for (String local : new String[] {hash.toUpperCase(Locale.ROOT), hash.substring(1), hash + "0", hash.substring(1) + "g"}) {
+            BigdataStatement statement = roundTrip("wdref:" + local, "pr:P143", "wd:Q328");
+            assertThat(statement.getSubject().getIV(), instanceOf(TermId.class));
+            assertEquals(uris().reference() + local, statement.getSubject().stringValue());
+        }
+    }
+
+    private String randomHash() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            b.append(Character.forDigit(randomIntBetween(0, 15), 16));
+        }
+        return b.toString();
+    }
+
     @SuppressWarnings("rawtypes")
     public static Matcher<IV> uriIv(String namespace, String localName) {
         /*
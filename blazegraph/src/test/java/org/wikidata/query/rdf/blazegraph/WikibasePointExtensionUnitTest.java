@@ -0,0 +1,114 @@
+package org.wikidata.query.rdf.blazegraph;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.wikidata.query.rdf.test.Matchers.binds;
+
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.wikidata.query.rdf.blazegraph.inline.literal.WikibasePointExtension;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+
+import com.bigdata.rdf.internal.impl.literal.LiteralExtensionIV;
+import com.bigdata.rdf.model.BigdataStatement;
+
+public class WikibasePointExtensionUnitTest extends AbstractRandomizedBlazegraphTestBase {
+
+    @Test
+    public void simple() {
+        inlined("POINT(52.5 13.4)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void negative() {
+        inlined("POINT(-52.516666666667 -0.000001)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void integers() {
+        inlined("POINT(0 180)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void trailingZeros() {
+        inlined("POINT(1.50 2.000)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void mixedCase() {
+        inlined("Point(1.5 2.5)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void crs() {
+        inlined("POINT(1.5 2.5)", GeoSparql.WKT_CRS_LITERAL);
+    }
+
+    @Test
+    public void knownGlobe() {
+        inlined("<" + uris().entity() + "Q405> Point(1.5 2.5)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void unknownGlobe() {
+        notInlined("<" + uris().entity() + "Q123456789> Point(1.5 2.5)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void exponent() {
+        notInlined("POINT(1e5 2)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void tooPrecise() {
+        notInlined("POINT(1.1234567890123456 2)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void extraWhitespace() {
+        notInlined("POINT(1  2)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void negativeZero() {
+        notInlined("POINT(-0 2)", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void garbage() {
+        notInlined("not a point", GeoSparql.WKT_LITERAL);
+    }
+
+    @Test
+    public void latitudeLongitude() {
+        BigdataStatement statement = roundTrip("wd:Q1", "wdt:P625", new LiteralImpl("POINT(-52.5 13.25)", GeoSparql.WKT_LITERAL));
+        double[] point = WikibasePointExtension.latitudeLongitude(statement.getObject().getIV());
+        assertEquals(-52.5, point[0], 0);
+        assertEquals(13.25, point[1], 0);
+    }
+
+    @Test
+    public void queryByValue() throws QueryEvaluationException {
+        add("wd:Q1", "wdt:P625", new LiteralImpl("POINT(52.5 13.4)", GeoSparql.WKT_LITERAL));
+        TupleQueryResult result = query("SELECT * WHERE { ?s wdt:P625 \"POINT(52.5 13.4)\"^^geo:wktLiteral }");
+        assertTrue(result.hasNext());
+        assertThat(result.next(), binds("s", convert("wd:Q1")));
+    }
+
+    private void inlined(String label, URI datatype) {
+        LiteralImpl literal = new LiteralImpl(label, datatype);
+        BigdataStatement statement = roundTrip("wd:Q1", "wdt:P625", literal);
+        assertThat(statement.getObject().getIV(), instanceOf(LiteralExtensionIV.class));
+        assertEquals(literal, statement.getObject());
+    }
+
+    private void notInlined(String label, URI datatype) {
+        LiteralImpl literal = new LiteralImpl(label, datatype);
+        BigdataStatement statement = roundTrip("wd:Q1", "wdt:P625", literal);
+        assertThat(statement.getObject().getIV(), not(instanceOf(LiteralExtensionIV.class)));
+        assertEquals(literal, statement.getObject());
+    }
+}
@@ -0,0 +1,143 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikidata.query.rdf.blazegraph.filters.AdmissionController.Lane;
+
+public class AdmissionControlFilterUnitTest {
+    private final AdmissionControlFilter filter = new AdmissionControlFilter();
+
+    @Before
+    public void init() throws ServletException {
+        FilterConfig config = mock(FilterConfig.class);
+        when(config.getFilterName()).thenReturn("AdmissionControlFilterUnitTest");
+        when(config.getInitParameter("shortQueryLength")).thenReturn("100");
+        filter.init(config);
+    }
+
+    @After
+    public void destroy() {
+        filter.destroy();
+    }
+
+    @Test
+    public void updatesGoInTheUpdateLane() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+        when(request.getParameter("update")).thenReturn("DELETE { ?s ?p ?o } WHERE { ?s ?p ?o }");
+        assertEquals(Lane.UPDATE, filter.lane(request));
+    }
+
+    @Test
+    public void updaterQueriesGoInTheUpdateLane() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("0:0:0:0:0:0:0:1");
+        when(request.getHeader("User-Agent")).thenReturn(AdmissionControlFilter.DEFAULT_UPDATER_USER_AGENT);
+        when(request.getParameter("query")).thenReturn("SELECT (COUNT(*) AS ?c) WHERE { ?s ?p ?o }");
+        assertEquals(Lane.UPDATE, filter.lane(request));
+    }
+
+    @Test
+    public void spoofedUserAgentFromUntrustedAddressIsPublic() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("203.0.113.7");
+        when(request.getHeader("X-Forwarded-For")).thenReturn("127.0.0.1");
+        when(request.getHeader("User-Agent")).thenReturn(AdmissionControlFilter.DEFAULT_UPDATER_USER_AGENT);
+        when(request.getParameter("query")).thenReturn("SELECT * WHERE { wd:Q42 ?p ?o }");
+        assertEquals(Lane.SHORT, filter.lane(request));
+        when(request.getParameter("query")).thenReturn(null);
+        when(request.getParameter("update")).thenReturn("DELETE { ?s ?p ?o } WHERE { ?s ?p ?o }");
+        assertEquals(Lane.HEAVY, filter.lane(request));
+    }
+
+    @Test
+    public void updaterPortMustMatch() throws ServletException {
+        AdmissionControlFilter portFilter = new AdmissionControlFilter();
+        FilterConfig config = mock(FilterConfig.class);
+        when(config.getFilterName()).thenReturn("AdmissionControlFilterUnitTest-port");
+        when(config.getInitParameter("updaterPort")).thenReturn("9998");
+        portFilter.init(config);
+        try {
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+            when(request.getLocalPort()).thenReturn(9999);
+            when(request.getHeader("User-Agent")).thenReturn(AdmissionControlFilter.DEFAULT_UPDATER_USER_AGENT);
+            when(request.getParameter("query")).thenReturn("SELECT * WHERE { wd:Q42 ?p ?o }");
+            assertEquals(Lane.SHORT, portFilter.lane(request));
+            when(request.getLocalPort()).thenReturn(9998);
+            assertEquals(Lane.UPDATE, portFilter.lane(request));
+        } finally {
+            portFilter.destroy();
+        }
+    }
+
+    @Test
+    public void queries() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameter("query")).thenReturn("SELECT * WHERE { wd:Q42 ?p ?o }");
+        assertEquals(Lane.SHORT, filter.lane(request));
+        when(request.getParameter("query")).thenReturn("SELECT * WHERE { ?s wdt:P31/wdt:P279* wd:Q5 }");
+        assertEquals(Lane.HEAVY, filter.lane(request));
+    }
+
+    @Test
+    public void otherRequestsArentLimited() {
+        assertNull(filter.lane(mock(HttpServletRequest.class)));
+    }
+
+    @Test
+    public void onlySparqlEndpointsAreLimited() throws IOException, ServletException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn("/bigdata/namespace/wdq/properties");
+        when(request.getParameter("query")).thenReturn("SELECT * WHERE { wd:Q42 ?p ?o }");
+        filter.doFilter(request, mock(HttpServletResponse.class), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                assertEquals(0, filter.controller().getRunning());
+            }
+        });
+
+        when(request.getRequestURI()).thenReturn("/bigdata/namespace/wdq/sparql");
+        filter.doFilter(request, mock(HttpServletResponse.class), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                assertEquals(1, filter.controller().getRunning());
+            }
+        });
+        assertEquals(1, filter.controller().getAdmitted());
+    }
+
+    @Test
+    public void isShort() {
+        assertTrue(filter.isShort("SELECT * WHERE { wd:Q42 ?p ?o }"));
+        assertTrue(filter.isShort("PREFIX wd: <http://www.wikidata.org/entity/>\nASK { wd:Q42 ?p ?o }"));
+        assertFalse(filter.isShort("SELECT ?s WHERE { ?s ?p ?o } ORDER BY ?s"));
+        assertFalse(filter.isShort("SELECT ?p (count(*) AS ?c) WHERE { ?s ?p ?o } GROUP BY ?p"));
+        assertFalse(filter.isShort("SELECT DISTINCT ?p WHERE { ?s ?p ?o }"));
+        assertFalse(filter.isShort("SELECT * WHERE { ?s (wdt:P31|wdt:P279)+ wd:Q5 }"));
+        StringBuilder longQuery = new StringBuilder("SELECT * WHERE {");
+        while (longQuery.length() < 100) {
+            longQuery.append(" wd:Q42 ?p ?o .");
+        }
+        longQuery.append('}');
+        assertFalse(filter.isShort(longQuery.toString()));
+    }
+}
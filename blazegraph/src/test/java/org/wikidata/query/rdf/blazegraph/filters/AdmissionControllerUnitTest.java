@@ -0,0 +1,129 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wikidata.query.rdf.blazegraph.filters.AdmissionController.Lane;
+import org.wikidata.query.rdf.blazegraph.filters.AdmissionController.Ticket;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+public class AdmissionControllerUnitTest {
+    private final ExecutorService executor = new ThreadPoolExecutor(4, 4, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setDaemon(true).build());
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void usesReservedSlotsFirst() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(1, 1, 1, 10, 0);
+        Ticket update = controller.acquire(Lane.UPDATE, null, 0, TimeUnit.MILLISECONDS);
+        assertNotNull(update);
+        assertEquals(1, controller.getAvailableSharedSlots());
+        Ticket heavy = controller.acquire(Lane.HEAVY, null, 0, TimeUnit.MILLISECONDS);
+        assertNotNull(heavy);
+        assertEquals(0, controller.getAvailableSharedSlots());
+        assertNull(controller.acquire(Lane.HEAVY, null, 0, TimeUnit.MILLISECONDS));
+        assertNotNull(controller.acquire(Lane.SHORT, null, 0, TimeUnit.MILLISECONDS));
+        assertEquals(3, controller.getRunning());
+        assertEquals(1, controller.getShedTimeout());
+        heavy.release();
+        heavy.release();
+        assertEquals(1, controller.getAvailableSharedSlots());
+        assertEquals(2, controller.getRunning());
+    }
+
+    @Test
+    public void updatesGetAReservedSlotWhileHeavyQueriesHoldTheRest() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(2, 1, 0, 10, 0);
+        assertNotNull(controller.acquire(Lane.HEAVY, null, 0, TimeUnit.MILLISECONDS));
+        assertNotNull(controller.acquire(Lane.HEAVY, null, 0, TimeUnit.MILLISECONDS));
+        assertNotNull(controller.acquire(Lane.UPDATE, null, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void updatesJumpTheQueue() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 0, 0, 10, 0);
+        Ticket running = controller.acquire(Lane.HEAVY, null, 0, TimeUnit.MILLISECONDS);
+        Future<Ticket> heavy = acquireLater(controller, Lane.HEAVY);
+        waitForQueued(controller, 1);
+        Future<Ticket> update = acquireLater(controller, Lane.UPDATE);
+        waitForQueued(controller, 2);
+        running.release();
+        Ticket updateTicket = update.get(10, TimeUnit.SECONDS);
+        assertEquals(Lane.UPDATE, updateTicket.lane());
+        assertEquals(1, controller.getQueued());
+        updateTicket.release();
+        assertEquals(Lane.HEAVY, heavy.get(10, TimeUnit.SECONDS).lane());
+    }
+
+    @Test
+    public void shedsWhenQueueIsFull() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 0, 0, 1, 0);
+        Ticket running = controller.acquire(Lane.HEAVY, null, 0, TimeUnit.MILLISECONDS);
+        Future<Ticket> queued = acquireLater(controller, Lane.HEAVY);
+        waitForQueued(controller, 1);
+        assertNull(controller.acquire(Lane.SHORT, null, 1, TimeUnit.MINUTES));
+        assertEquals(1, controller.getShedQueueFull());
+        running.release();
+        assertNotNull(queued.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void updatesAreNeverShedForAFullQueue() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 0, 0, 0, 0);
+        Ticket running = controller.acquire(Lane.HEAVY, null, 0, TimeUnit.MILLISECONDS);
+        Future<Ticket> update = acquireLater(controller, Lane.UPDATE);
+        waitForQueued(controller, 1);
+        running.release();
+        assertNotNull(update.get(10, TimeUnit.SECONDS));
+        assertEquals(0, controller.getShedQueueFull());
+    }
+
+    @Test
+    public void limitsClients() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(10, 0, 0, 10, 2);
+        Ticket first = controller.acquire(Lane.HEAVY, "a", 0, TimeUnit.MILLISECONDS);
+        assertNotNull(first);
+        assertNotNull(controller.acquire(Lane.SHORT, "a", 0, TimeUnit.MILLISECONDS));
+        assertNull(controller.acquire(Lane.SHORT, "a", 0, TimeUnit.MILLISECONDS));
+        assertNotNull(controller.acquire(Lane.SHORT, "b", 0, TimeUnit.MILLISECONDS));
+        assertNotNull(controller.acquire(Lane.UPDATE, "a", 0, TimeUnit.MILLISECONDS));
+        assertEquals(1, controller.getShedClientLimit());
+        first.release();
+        assertNotNull(controller.acquire(Lane.SHORT, "a", 0, TimeUnit.MILLISECONDS));
+    }
+
+    private Future<Ticket> acquireLater(final AdmissionController controller, final Lane lane) {
+        return executor.submit(new Callable<Ticket>() {
+            @Override
+            public Ticket call() throws InterruptedException {
+                return controller.acquire(lane, null, 1, TimeUnit.MINUTES);
+            }
+        });
+    }
+
+    private void waitForQueued(AdmissionController controller, int queued) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (controller.getQueued() < queued) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("Never got " + queued + " queued");
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+public class LogLinearHistogramUnitTest extends RandomizedTest {
+    @Test
+    public void empty() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.mean(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10, histogram.percentile(50));
+        assertEquals(20, histogram.percentile(100));
+        assertEquals(20, histogram.max());
+        assertEquals(10.5, histogram.mean(), 0);
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int b = 0; b < LogLinearHistogram.bucket(Long.MAX_VALUE); b++) {
+            long highest = LogLinearHistogram.highestInBucket(b);
+            assertEquals(b, LogLinearHistogram.bucket(highest));
+            assertEquals(b + 1, LogLinearHistogram.bucket(highest + 1));
+        }
+        assertEquals(Long.MAX_VALUE, LogLinearHistogram.highestInBucket(LogLinearHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentilesAreWithinAFewPercent() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        long value = randomIntBetween(100, Integer.MAX_VALUE) * (long) randomIntBetween(1, 1 << 20);
+        histogram.record(value);
+        histogram.record(value * 2);
+        assertThat(histogram.percentile(50), both(greaterThanOrEqualTo(value)).and(lessThanOrEqualTo(value + value / 15)));
+        assertEquals(value * 2, histogram.percentile(100));
+    }
+
+    @Test
+    public void negativeValuesAreZero() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.record(-10);
+        assertEquals(0, histogram.percentile(50));
+    }
+
+    @Test
+    public void reset() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(50));
+    }
+}
@@ -0,0 +1,121 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryMetricsFilterUnitTest {
+    private final QueryMetricsFilter filter = new QueryMetricsFilter();
+
+    @Before
+    public void init() throws ServletException {
+        FilterConfig config = mock(FilterConfig.class);
+        when(config.getFilterName()).thenReturn("QueryMetricsFilterUnitTest");
+        when(config.getInitParameter("slowQueryMillis")).thenReturn("1000");
+        filter.init(config);
+    }
+
+    @After
+    public void destroy() {
+        filter.destroy();
+    }
+
+    @Test
+    public void records() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameter("query")).thenReturn("SELECT * WHERE { ?s ?p ?o }");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new NullOutputStream());
+        when(response.getContentType()).thenReturn("text/tab-separated-values; charset=UTF-8");
+        CapturingResponseWrapper wrapper = new CapturingResponseWrapper(response, 0);
+        wrapper.getOutputStream().write("?s\t?p\t?o\n<a>\t<b>\t<c>\n<d>\t<e>\t<f>\n".getBytes("UTF-8"));
+
+        filter.record(request, wrapper, TimeUnit.MILLISECONDS.toNanos(10));
+        filter.record(request, wrapper, TimeUnit.SECONDS.toNanos(2));
+
+        QueryMetrics metrics = filter.metrics();
+        assertEquals(2, metrics.getQueries());
+        assertEquals(1, metrics.getSlowQueries());
+        assertEquals(2, metrics.getRows50thPercentile());
+        assertEquals(wrapper.bytesWritten(), metrics.getBytesMax());
+        assertEquals(2000, metrics.getLatencyMax());
+        assertEquals(10, metrics.getLatency50thPercentile());
+    }
+
+    @Test
+    public void recordsOnlySparqlEndpoints() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn("/bigdata/namespace/wdq/properties");
+        when(request.getParameter("query")).thenReturn("SELECT * WHERE { ?s ?p ?o }");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        FilterChain chain = mock(FilterChain.class);
+        filter.doFilter(request, response, chain);
+        verify(chain).doFilter(request, response);
+        assertEquals(0, filter.metrics().getQueries());
+
+        when(request.getRequestURI()).thenReturn("/bigdata/namespace/wdq/sparql");
+        filter.doFilter(request, response, chain);
+        assertEquals(1, filter.metrics().getQueries());
+    }
+
+    @Test
+    public void slowQueryThresholdIsAdjustable() {
+        QueryMetrics metrics = filter.metrics();
+        assertFalse(metrics.record(TimeUnit.MILLISECONDS.toNanos(500), 10, -1));
+        metrics.setSlowQueryThreshold(100);
+        assertTrue(metrics.record(TimeUnit.MILLISECONDS.toNanos(500), 10, -1));
+    }
+
+    @Test
+    public void rows() {
+        assertEquals(3, QueryMetricsFilter.rows("text/csv", 4));
+        assertEquals(0, QueryMetricsFilter.rows("text/tab-separated-values", 0));
+        assertEquals(-1, QueryMetricsFilter.rows("application/sparql-results+json", 4));
+        assertEquals(-1, QueryMetricsFilter.rows(null, 4));
+    }
+
+    @Test
+    public void json() {
+        StringBuilder b = new StringBuilder();
+        QueryMetricsFilter.appendJsonString(b, "a\"b\\c\nd\u0001");
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001\"", b.toString());
+        b.setLength(0);
+        QueryMetricsFilter.appendJsonString(b, null);
+        assertEquals("null", b.toString());
+    }
+
+    /**
+     * Output stream that throws everything away.
+     */
+    private static class NullOutputStream extends ServletOutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.wikidata.query.rdf.blazegraph.filters.QueryResultCacheFilter.normalize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class QueryResultCacheFilterUnitTest {
+    @Test
+    public void hitsReplayHeaders() throws IOException, ServletException {
+        QueryResultCacheFilter filter = filter();
+        try {
+            HttpServletResponse first = response(new ByteArrayOutputStream());
+            when(first.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+            when(first.getContentType()).thenReturn("application/sparql-results+json");
+            when(first.getHeaderNames()).thenReturn(Arrays.asList("Content-Type", "Cache-Control", "Vary", "Date"));
+            when(first.getHeaders("Cache-Control")).thenReturn(Arrays.asList("public", "max-age=60"));
+            when(first.getHeaders("Vary")).thenReturn(Arrays.asList("Accept"));
+            when(first.getHeaders("Date")).thenReturn(Arrays.asList("Mon, 19 Oct 2026 12:00:00 GMT"));
+            filter.doFilter(request(), first, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                    response.getOutputStream().write("result".getBytes(StandardCharsets.UTF_8));
+                }
+            });
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpServletResponse second = response(body);
+            FilterChain chain = mock(FilterChain.class);
+            filter.doFilter(request(), second, chain);
+            verify(chain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+            assertEquals("result", new String(body.toByteArray(), StandardCharsets.UTF_8));
+            verify(second).setContentType("application/sparql-results+json");
+            verify(second).addHeader("Cache-Control", "public");
+            verify(second).addHeader("Cache-Control", "max-age=60");
+            verify(second).addHeader("Vary", "Accept");
+            verify(second, never()).addHeader(eq("Date"), any(String.class));
+            verify(second, never()).addHeader(eq("Content-Type"), any(String.class));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void onlySparqlRequestsAreCached() throws IOException, ServletException {
+        QueryResultCacheFilter filter = filter();
+        try {
+            HttpServletRequest request = request();
+            when(request.getRequestURI()).thenReturn("/bigdata/namespace/wdq/properties");
+            FilterChain chain = mock(FilterChain.class);
+            filter.doFilter(request, response(new ByteArrayOutputStream()), chain);
+            filter.doFilter(request, response(new ByteArrayOutputStream()), chain);
+            verify(chain, times(2)).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+            assertEquals(0, filter.cache().getEntries());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void partialResultsArentCached() throws IOException, ServletException {
+        QueryResultCacheFilter filter = filter();
+        try {
+            HttpServletResponse first = response(new ByteArrayOutputStream());
+            when(first.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+            try {
+                filter.doFilter(request(), first, new FilterChain() {
+                    @Override
+                    public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                        response.getOutputStream().write("res".getBytes(StandardCharsets.UTF_8));
+                        throw new IOException("Query timed out");
+                    }
+                });
+                fail("Expected the failure to make it out of the filter");
+            } catch (IOException e) {
+                assertEquals("Query timed out", e.getMessage());
+            }
+            assertEquals(0, filter.cache().getEntries());
+
+            FilterChain chain = mock(FilterChain.class);
+            filter.doFilter(request(), response(new ByteArrayOutputStream()), chain);
+            verify(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void collapsesWhitespace() {
+        assertEquals("SELECT * WHERE { ?s ?p ?o }", normalize("  SELECT *\n\tWHERE {\r\n  ?s   ?p ?o\n}\n"));
+    }
+
+    @Test
+    public void stripsComments() {
+        assertEquals("SELECT * WHERE { ?s ?p ?o }", normalize("# find everything\nSELECT * WHERE { # all of it\n?s ?p ?o }"));
+    }
+
+    @Test
+    public void leavesStringsAlone() {
+        assertEquals("SELECT * WHERE { ?s ?p \"a  # b\" }", normalize("SELECT * WHERE { ?s ?p \"a  # b\" }"));
+        assertEquals("SELECT * WHERE { ?s ?p 'a \\'  b' }", normalize("SELECT * WHERE { ?s ?p 'a \\'  b' }"));
+        assertEquals("SELECT * WHERE { ?s ?p \"\"\"a \"  \n# b\"\"\" }", normalize("SELECT * WHERE { ?s ?p \"\"\"a \"  \n# b\"\"\" }"));
+    }
+
+    @Test
+    public void leavesIrisAlone() {
+        assertEquals("SELECT * WHERE { ?s <http://example.com/#p> ?o }", normalize("SELECT * WHERE {\n?s <http://example.com/#p> ?o }"));
+    }
+
+    @Test
+    public void lessThanIsntAnIri() {
+        assertEquals("FILTER(?a < ?b)", normalize("FILTER(?a   < ?b)"));
+        assertEquals("FILTER(?a <?b)", normalize("FILTER(?a <?b) # comment"));
+    }
+
+    @Test
+    public void unclosedStringRunsToTheEnd() {
+        assertEquals("SELECT \"a  b", normalize("SELECT   \"a  b"));
+    }
+
+    /**
+     * Build a filter that thinks the journal was last committed at 1.
+     */
+    private static QueryResultCacheFilter filter() throws ServletException {
+        FilterConfig config = mock(FilterConfig.class);
+        when(config.getFilterName()).thenReturn("QueryResultCacheFilterUnitTest");
+        QueryResultCacheFilter filter = new QueryResultCacheFilter() {
+            @Override
+            long lastCommitTime() {
+                return 1;
+            }
+        };
+        filter.init(config);
+        return filter;
+    }
+
+    private static HttpServletRequest request() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/bigdata/namespace/wdq/sparql");
+        when(request.getParameter("query")).thenReturn("SELECT * WHERE { ?s ?p ?o }");
+        return request;
+    }
+
+    private static HttpServletResponse response(final ByteArrayOutputStream body) throws IOException {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        });
+        return response;
+    }
+}
@@ -0,0 +1,87 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.wikidata.query.rdf.blazegraph.filters.QueryResultCache.CachedResult;
+
+public class QueryResultCacheUnitTest {
+    @Test
+    public void hitsAndMisses() {
+        QueryResultCache cache = new QueryResultCache(100, 1, TimeUnit.HOURS);
+        CachedResult result = result(10);
+        assertNull(cache.get("a"));
+        cache.put("a", result);
+        assertSame(result, cache.get("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 0);
+        assertEquals(1, cache.getEntries());
+        assertEquals(10, cache.getBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        QueryResultCache cache = new QueryResultCache(30, 1, TimeUnit.HOURS);
+        cache.put("a", result(10));
+        cache.put("b", result(10));
+        cache.put("c", result(10));
+        assertNotNull(cache.get("a"));
+        cache.put("d", result(10));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(30, cache.getBytes());
+    }
+
+    @Test
+    public void replacingUpdatesSize() {
+        QueryResultCache cache = new QueryResultCache(30, 1, TimeUnit.HOURS);
+        cache.put("a", result(10));
+        cache.put("a", result(20));
+        assertEquals(1, cache.getEntries());
+        assertEquals(20, cache.getBytes());
+    }
+
+    @Test
+    public void skipsResultsBiggerThanTheCache() {
+        QueryResultCache cache = new QueryResultCache(30, 1, TimeUnit.HOURS);
+        cache.put("a", result(10));
+        cache.put("b", result(31));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void expiresOldResults() throws InterruptedException {
+        QueryResultCache cache = new QueryResultCache(30, 1, TimeUnit.MILLISECONDS);
+        cache.put("a", result(10));
+        Thread.sleep(5);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void clear() {
+        QueryResultCache cache = new QueryResultCache(30, 1, TimeUnit.HOURS);
+        cache.put("a", result(10));
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getBytes());
+    }
+
+    private CachedResult result(int size) {
+        return new CachedResult("application/sparql-results+json", Collections.<String, List<String>>emptyMap(), new byte[size]);
+    }
+}
@@ -0,0 +1,118 @@
+package org.wikidata.query.rdf.blazegraph.geo;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.NumericLiteralImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.wikidata.query.rdf.blazegraph.AbstractRandomizedBlazegraphTestBase;
+import org.wikidata.query.rdf.common.GeoCell;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+import org.wikidata.query.rdf.common.uri.Ontology;
+
+public class GeoServiceUnitTest extends AbstractRandomizedBlazegraphTestBase {
+
+    @Test
+    public void around() throws QueryEvaluationException {
+        addPlaces();
+        TupleQueryResult result = query("SELECT ?place ?dist WHERE {\n"
+                + "  SERVICE wikibase:around {\n"
+                + "    ?place wdt:P625 ?location .\n"
+                + "    bd:serviceParam wikibase:center \"POINT(52.5 13.4)\"^^geo:wktLiteral .\n"
+                + "    bd:serviceParam wikibase:radius \"20\" .\n"
+                + "    bd:serviceParam wikibase:distance ?dist .\n"
+                + "  }\n"
+                + "}");
+        assertThat(places(result), containsInAnyOrder(uris().entity() + "Q64", uris().entity() + "Q1000"));
+    }
+
+    @Test
+    public void aroundLarge() throws QueryEvaluationException {
+        addPlaces();
+        TupleQueryResult result = query("SELECT ?place WHERE {\n"
+                + "  SERVICE wikibase:around {\n"
+                + "    ?place wdt:P625 ?location .\n"
+                + "    bd:serviceParam wikibase:center \"POINT(52.5 13.4)\"^^geo:wktLiteral .\n"
+                + "    bd:serviceParam wikibase:radius \"1000\" .\n"
+                + "  }\n"
+                + "}");
+        assertThat(places(result), containsInAnyOrder(uris().entity() + "Q64", uris().entity() + "Q1000",
+                uris().entity() + "Q90"));
+    }
+
+    @Test
+    public void aroundOtherGlobeIsSeparate() throws QueryEvaluationException {
+        addPlaces();
+        TupleQueryResult result = query("SELECT ?place WHERE {\n"
+                + "  SERVICE wikibase:around {\n"
+                + "    ?place wdt:P625 ?location .\n"
+                + "    bd:serviceParam wikibase:center \"POINT(52.5 13.4)\"^^geo:wktCRSLiteral .\n"
+                + "    bd:serviceParam wikibase:radius \"20\" .\n"
+                + "  }\n"
+                + "}");
+        assertThat(places(result), containsInAnyOrder(uris().entity() + "Q2000"));
+    }
+
+    @Test
+    public void box() throws QueryEvaluationException {
+        addPlaces();
+        TupleQueryResult result = query("SELECT ?place WHERE {\n"
+                + "  SERVICE wikibase:box {\n"
+                + "    ?place wdt:P625 ?location .\n"
+                + "    bd:serviceParam wikibase:cornerSouthWest \"POINT(48 2)\"^^geo:wktLiteral .\n"
+                + "    bd:serviceParam wikibase:cornerNorthEast \"POINT(49 3)\"^^geo:wktLiteral .\n"
+                + "  }\n"
+                + "}");
+        assertThat(places(result), containsInAnyOrder(uris().entity() + "Q90"));
+    }
+
+    @Test
+    public void nothingIndexed() throws QueryEvaluationException {
+        TupleQueryResult result = query("SELECT ?place WHERE {\n"
+                + "  SERVICE wikibase:around {\n"
+                + "    ?place wdt:P625 ?location .\n"
+                + "    bd:serviceParam wikibase:center \"POINT(52.5 13.4)\"^^geo:wktLiteral .\n"
+                + "    bd:serviceParam wikibase:radius \"20\" .\n"
+                + "  }\n"
+                + "}");
+        assertThat(places(result), empty());
+    }
+
+    /**
+     * Add some places. Berlin, something near Berlin, Paris, and something on
+     * another globe at Berlin's coordinates.
+     */
+    private void addPlaces() {
+        addPlace("Q64", "POINT(52.5167 13.3833)", GeoSparql.WKT_LITERAL);
+        addPlace("Q1000", "POINT(52.45 13.5)", GeoSparql.WKT_LITERAL);
+        addPlace("Q90", "POINT(48.8567 2.3508)", GeoSparql.WKT_LITERAL);
+        addPlace("Q2000", "POINT(52.5 13.4)", GeoSparql.WKT_CRS_LITERAL);
+    }
+
+    private void addPlace(String id, String point, URI datatype) {
+        add("wd:" + id, "wdt:P625", new LiteralImpl(point, datatype));
+        String[] coordinates = point.substring("POINT(".length(), point.length() - 1).split(" ");
+        int globe = datatype.equals(GeoSparql.WKT_LITERAL) ? GeoCell.EARTH : GeoCell.OTHER_GLOBE;
+        for (long cell : GeoCell.cells(globe, Double.parseDouble(coordinates[0]), Double.parseDouble(coordinates[1]))) {
+            add("wd:" + id, Ontology.Geo.CELL, new NumericLiteralImpl(cell, XMLSchema.LONG));
+        }
+    }
+
+    private List<String> places(TupleQueryResult result) throws QueryEvaluationException {
+        List<String> places = new ArrayList<>();
+        while (result.hasNext()) {
+            BindingSet bindings = result.next();
+            places.add(bindings.getValue("place").stringValue());
+        }
+        return places;
+    }
+}
@@ -0,0 +1,123 @@
+package org.wikidata.query.rdf.blazegraph.inline.uri;
+
+import static org.hamcrest.Matchers.instanceOf;
+
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.bigdata.rdf.internal.impl.literal.AbstractLiteralIV;
+import com.bigdata.rdf.internal.impl.literal.UUIDLiteralIV;
+import com.bigdata.rdf.internal.impl.literal.XSDIntegerIV;
+import com.bigdata.rdf.model.BigdataLiteral;
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+@RunWith(RandomizedRunner.class)
+public class WikibaseStyleStatementInlineUriHandlerUnitTest extends RandomizedTest {
+    private final WikibaseStyleStatementInlineUriHandler handler = new WikibaseStyleStatementInlineUriHandler(
+            WikibaseUris.WIKIDATA.statement());
+    private final WikibaseStyleStatementInlineUriHandler canonical = new WikibaseStyleStatementInlineUriHandler.Canonical(
+            WikibaseUris.WIKIDATA.statement());
+
+    @Test
+    public void item() {
+        roundTrip("Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+    }
+
+    @Test
+    public void property() {
+        roundTrip("P1711-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+    }
+
+    @Test
+    public void uuidOnly() {
+        AbstractLiteralIV<BigdataLiteral, ?> iv = roundTrip("01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        assertThat(iv, instanceOf(UUIDLiteralIV.class));
+    }
+
+    @Test
+    public void random() {
+        for (int i = 0; i < 100; i++) {
+            String prefix = randomBoolean() ? "Q" : "P";
+            String uuid = new UUID(randomLong(), randomLong()).toString().toUpperCase(Locale.ROOT);
+            roundTrip(prefix + randomIntBetween(1, Integer.MAX_VALUE) + "-" + uuid);
+        }
+    }
+
+    @Test
+    public void sameEncodingAsBigIntegerArithmetic() {
+        UUID uuid = new UUID(randomLong(), randomLong());
+        long entity = randomIntBetween(1, Integer.MAX_VALUE);
+        boolean item = randomBoolean();
+        BigInteger expected = BigInteger.valueOf(item ? entity : -entity);
+        expected = expected.shiftLeft(Long.SIZE).or(unsigned(uuid.getMostSignificantBits()));
+        expected = expected.shiftLeft(Long.SIZE).or(unsigned(uuid.getLeastSignificantBits()));
+        String localName = (item ? "Q" : "P") + entity + "-" + uuid.toString().toUpperCase(Locale.ROOT);
+        AbstractLiteralIV<BigdataLiteral, ?> iv = roundTrip(localName);
+        assertEquals(expected, iv.integerValue());
+    }
+
+    @Test
+    public void nonCanonicalInlinedLikeBefore() {
+        inlinedAs("q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", "Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        inlinedAs("Q23-01edeeee-f0df-4a07-980f-5e76866b74d7", "Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        inlinedAs("Q023-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", "Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        inlinedAs("Q23-1EDEEEE-F0DF-4A07-980F-5E76866B74D7", "Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        inlinedAs("01edeeee-f0df-4a07-980f-5e76866b74d7", "01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void canonicalRoundTrips() {
+        AbstractLiteralIV<BigdataLiteral, ?> iv = canonical.createInlineIV("Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        assertEquals("Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", canonical.getLocalNameFromDelegate(iv));
+    }
+
+    @Test
+    public void nonCanonicalNotInlinedByCanonical() {
+        notInlined("q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        notInlined("Q23-01edeeee-f0df-4a07-980f-5e76866b74d7");
+        notInlined("Q023-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        notInlined("Q-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        notInlined("Q23-1EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        notInlined("Q23-01EDEEEEF0DF-4A07-980F-5E76866B74D7A");
+        notInlined("Q1234567890123456789-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        notInlined("Q23");
+        notInlined("cat");
+    }
+
+    @SuppressWarnings("unchecked")
+    private AbstractLiteralIV<BigdataLiteral, ?> roundTrip(String localName) {
+        AbstractLiteralIV<BigdataLiteral, ?> iv = handler.createInlineIV(localName);
+        assertNotNull(localName, iv);
+        if (localName.charAt(0) == 'Q' || localName.charAt(0) == 'P') {
+            assertThat(iv, instanceOf(XSDIntegerIV.class));
+        }
+        assertEquals(localName, handler.getLocalNameFromDelegate(iv));
+        return iv;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void inlinedAs(String localName, String decoded) {
+        AbstractLiteralIV<BigdataLiteral, ?> iv = handler.createInlineIV(localName);
+        assertNotNull(localName, iv);
+        assertEquals(decoded, handler.getLocalNameFromDelegate(iv));
+    }
+
+    private void notInlined(String localName) {
+        assertNull(localName, canonical.createInlineIV(localName));
+    }
+
+    private static BigInteger unsigned(long l) {
+        BigInteger i = BigInteger.valueOf(l & 0x7fffffffffffffffL);
+        if (l < 0) {
+            i = i.setBit(Long.SIZE - 1);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,30 @@
+package org.wikidata.query.rdf.blazegraph.vocabulary;
+
+import static org.hamcrest.Matchers.contains;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.URI;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+public class FrequentUrisVocabularyDeclUnitTest extends RandomizedTest {
+    @Test
+    public void loadsUrisInOrder() {
+        List<String> uris = new ArrayList<>();
+        Iterator<URI> values = new FrequentUrisVocabularyDecl("frequent-test.txt").values();
+        while (values.hasNext()) {
+            uris.add(values.next().stringValue());
+        }
+        assertThat(uris, contains("http://www.wikidata.org/prop/direct/P31", "http://www.wikidata.org/entity/Q5",
+                "http://www.wikidata.org/prop/statement/P31"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingResource() {
+        new FrequentUrisVocabularyDecl("missing.txt");
+    }
+}
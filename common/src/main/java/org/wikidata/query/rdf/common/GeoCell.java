@@ -0,0 +1,296 @@
+package org.wikidata.query.rdf.common;
+
+import java.util.Arrays;
+
+import org.openrdf.model.URI;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+
+/**
+ * Z-order (Morton) cells used to index coordinates so that radius and bounding
+ * box searches only have to look at the entities in a handful of cells rather
+ * than at every coordinate in the database.
+ * <p>
+ * Every point is indexed at several levels, each level splitting the globe into
+ * a finer grid. A search picks the finest level that covers the search area
+ * with a bounded number of cells. Cell ids pack the globe partition, the level
+ * and the interleaved cell coordinates into a single long so they can be
+ * stored as inline xsd:long literals.
+ * <p>
+ * Globes are partitioned coarsely: points on Earth go in one partition and
+ * points on any other globe go into another. That is because
+ * NormalizingRdfHandler strips the globe uri from non-Earth points when it
+ * converts them into wktCRSLiterals so that is all the information we have.
+ */
+public final class GeoCell {
+    /**
+     * Partition for points on Earth.
+     */
+    public static final int EARTH = 0;
+    /**
+     * Partition for points on any other globe.
+     */
+    public static final int OTHER_GLOBE = 1;
+    /**
+     * Mean radius of the Earth in kilometers.
+     */
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+    /**
+     * Suffix of Earth's entity uri. Points with this globe are on Earth.
+     */
+    private static final String EARTH_ENTITY_SUFFIX = "/Q2";
+    /**
+     * Bits per axis at each level from the coarsest to the finest. At the
+     * equator that is roughly 600km, 40km and 2.4km wide cells.
+     */
+    private static final int[] LEVEL_BITS = {6, 10, 14};
+    /**
+     * Offset of the level bits in the cell id.
+     */
+    private static final int LEVEL_SHIFT = 32;
+    /**
+     * Offset of the globe partition in the cell id.
+     */
+    private static final int GLOBE_SHIFT = 40;
+
+    /**
+     * Number of levels each point is indexed at.
+     */
+    public static int levels() {
+        return LEVEL_BITS.length;
+    }
+
+    /**
+     * Find the globe partition for a parsed point.
+     *
+     * @param datatype datatype of the literal the point was parsed from
+     * @param point the point
+     * @return EARTH or OTHER_GLOBE
+     */
+    public static int partition(URI datatype, WikibasePoint point) {
+        return partition(datatype, point.getGlobe());
+    }
+
+    /**
+     * Find the globe partition for a point.
+     *
+     * @param datatype datatype of the literal the point was parsed from
+     * @param globe the point's globe uri or null if it doesn't have one
+     * @return EARTH or OTHER_GLOBE
+     */
+    public static int partition(URI datatype, String globe) {
+        if (GeoSparql.WKT_CRS_LITERAL.equals(datatype)) {
+            return OTHER_GLOBE;
+        }
+        if (globe == null || globe.endsWith(EARTH_ENTITY_SUFFIX)) {
+            return EARTH;
+        }
+        return OTHER_GLOBE;
+    }
+
+    /**
+     * The id of the cell containing a point at a level.
+     *
+     * @param globe globe partition
+     * @param level level index, 0 being the coarsest
+     * @param latitude latitude in degrees
+     * @param longitude longitude in degrees
+     */
+    public static long cell(int globe, int level, double latitude, double longitude) {
+        int bits = LEVEL_BITS[level];
+        return cellId(globe, bits, x(bits, longitude), y(bits, latitude));
+    }
+
+    /**
+     * The ids of the cells containing a point at every level.
+     *
+     * @param globe globe partition
+     * @param latitude latitude in degrees
+     * @param longitude longitude in degrees
+     */
+    public static long[] cells(int globe, double latitude, double longitude) {
+        long[] cells = new long[LEVEL_BITS.length];
+        for (int level = 0; level < LEVEL_BITS.length; level++) {
+            cells[level] = cell(globe, level, latitude, longitude);
+        }
+        return cells;
+    }
+
+    /**
+     * Cells covering a bounding box. Uses the finest level that covers the box
+     * in at most maxCells cells, falling back to the coarsest level if none
+     * does. If west is greater than east then the box is assumed to cross the
+     * antimeridian.
+     *
+     * @param globe globe partition
+     * @param south southern edge in degrees
+     * @param west western edge in degrees
+     * @param north northern edge in degrees
+     * @param east eastern edge in degrees
+     * @param maxCells maximum number of cells to return unless the coarsest
+     *            level needs more
+     */
+    public static long[] cover(int globe, double south, double west, double north, double east, int maxCells) {
+        int level = LEVEL_BITS.length - 1;
+        while (level > 0 && coverSize(LEVEL_BITS[level], south, west, north, east) > maxCells) {
+            level--;
+        }
+        int bits = LEVEL_BITS[level];
+        long[] cells = new long[(int) coverSize(bits, south, west, north, east)];
+        int yStart = y(bits, south);
+        int yEnd = y(bits, north);
+        int i = 0;
+        if (west <= east) {
+            i = fill(cells, i, globe, bits, x(bits, west), x(bits, east), yStart, yEnd);
+        } else {
+            i = fill(cells, i, globe, bits, x(bits, west), (1 << bits) - 1, yStart, yEnd);
+            i = fill(cells, i, globe, bits, 0, x(bits, east), yStart, yEnd);
+        }
+        return i == cells.length ? cells : Arrays.copyOf(cells, i);
+    }
+
+    /**
+     * Bounding box of a circle on the Earth.
+     *
+     * @param latitude latitude of the center in degrees
+     * @param longitude longitude of the center in degrees
+     * @param radiusKm radius in kilometers
+     * @return south, west, north, east in degrees. West is greater than east if
+     *         the box crosses the antimeridian.
+     */
+    public static double[] boundingBox(double latitude, double longitude, double radiusKm) {
+        double deltaLat = Math.toDegrees(radiusKm / EARTH_RADIUS_KM);
+        double south = latitude - deltaLat;
+        double north = latitude + deltaLat;
+        if (south <= -90 || north >= 90) {
+            // Circles containing a pole contain every longitude near it.
+            return new double[] {Math.max(south, -90), -180, Math.min(north, 90), 180};
+        }
+        double deltaLong = Math.toDegrees(Math.asin(Math.min(1, Math.sin(radiusKm / EARTH_RADIUS_KM)
+                / Math.cos(Math.toRadians(latitude)))));
+        if (deltaLong >= 180) {
+            return new double[] {south, -180, north, 180};
+        }
+        return new double[] {south, wrapLongitude(longitude - deltaLong), north, wrapLongitude(longitude + deltaLong)};
+    }
+
+    /**
+     * Great circle distance between two points on Earth in kilometers.
+     */
+    public static double distance(double lat1, double long1, double lat2, double long2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLong = Math.toRadians(long2 - long1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.sin(dLong / 2) * Math.sin(dLong / 2);
+        return 2 * EARTH_RADIUS_KM * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * Is a point inside a bounding box? If west is greater than east then the
+     * box is assumed to cross the antimeridian.
+     */
+    public static boolean inBox(double latitude, double longitude, double south, double west, double north, double east) {
+        if (latitude < south || latitude > north) {
+            return false;
+        }
+        if (west <= east) {
+            return longitude >= west && longitude <= east;
+        }
+        return longitude >= west || longitude <= east;
+    }
+
+    /**
+     * Number of cells needed to cover a box at a given number of bits per axis.
+     */
+    private static long coverSize(int bits, double south, double west, double north, double east) {
+        long rows = y(bits, north) - y(bits, south) + 1L;
+        long columns;
+        if (west <= east) {
+            columns = x(bits, east) - x(bits, west) + 1L;
+        } else {
+            columns = (1L << bits) - x(bits, west) + x(bits, east) + 1L;
+        }
+        return rows * columns;
+    }
+
+    /**
+     * Fill cells with all cells in a rectangle of the grid.
+     *
+     * @return the index after the last cell written
+     */
+    private static int fill(long[] cells, int i, int globe, int bits, int xStart, int xEnd, int yStart, int yEnd) {
+        for (int x = xStart; x <= xEnd; x++) {
+            for (int y = yStart; y <= yEnd; y++) {
+                cells[i++] = cellId(globe, bits, x, y);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Pack the cell id.
+     */
+    private static long cellId(int globe, int bits, int x, int y) {
+        return ((long) globe << GLOBE_SHIFT) | ((long) bits << LEVEL_SHIFT) | interleave(x, y);
+    }
+
+    /**
+     * Grid column of a longitude.
+     */
+    private static int x(int bits, double longitude) {
+        return gridIndex(bits, (wrapLongitude(longitude) + 180) / 360);
+    }
+
+    /**
+     * Grid row of a latitude.
+     */
+    private static int y(int bits, double latitude) {
+        return gridIndex(bits, (latitude + 90) / 180);
+    }
+
+    /**
+     * Convert a fraction of the way across an axis into a grid index, clamping
+     * to the grid.
+     */
+    private static int gridIndex(int bits, double fraction) {
+        int max = (1 << bits) - 1;
+        int index = (int) Math.floor(fraction * (1 << bits));
+        return Math.max(0, Math.min(max, index));
+    }
+
+    /**
+     * Wrap a longitude into [-180, 180].
+     */
+    private static double wrapLongitude(double longitude) {
+        if (longitude >= -180 && longitude <= 180) {
+            return longitude;
+        }
+        double wrapped = (longitude + 180) % 360;
+        if (wrapped < 0) {
+            wrapped += 360;
+        }
+        return wrapped - 180;
+    }
+
+    /**
+     * Interleave the bits of x and y into a Morton code.
+     */
+    private static long interleave(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Spread the low 16 bits of v so there is a zero bit between each of them.
+     */
+    private static long spread(int v) {
+        long r = v & 0xFFFFL;
+        r = (r | (r << 8)) & 0x00FF00FFL;
+        r = (r | (r << 4)) & 0x0F0F0F0FL;
+        r = (r | (r << 2)) & 0x33333333L;
+        r = (r | (r << 1)) & 0x55555555L;
+        return r;
+    }
+
+    private GeoCell() {
+        // Utility class.
+    }
+}
@@ -140,6 +140,12 @@ public final class Ontology {
          * The globe that the point is on.
          */
         public static final String GLOBE = PREFIX + "Globe";
+        /**
+         * Index predicate linking an entity to the GeoCells containing its
+         * coordinates. Not exported by Wikibase - the munger adds it so the
+         * geo search service can find entities near a point.
+         */
+        public static final String CELL = PREFIX + "Cell";
 
         // TODO a better description for precision
 
@@ -0,0 +1,93 @@
+package org.wikidata.query.rdf.common;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+@RunWith(RandomizedRunner.class)
+public class GeoCellUnitTest extends RandomizedTest {
+
+    @Test
+    public void coverContainsPointCells() {
+        for (int i = 0; i < 100; i++) {
+            double latitude = -89 + randomDouble() * 178;
+            double longitude = -180 + randomDouble() * 360;
+            double radius = 0.1 + randomDouble() * 500;
+            double[] box = GeoCell.boundingBox(latitude, longitude, radius);
+            long[] cover = GeoCell.cover(GeoCell.EARTH, box[0], box[1], box[2], box[3], 64);
+            long[] cells = GeoCell.cells(GeoCell.EARTH, latitude, longitude);
+            assertTrue("Cover of " + latitude + "," + longitude + " misses its center", containsAny(cover, cells));
+        }
+    }
+
+    @Test
+    public void coverIsBounded() {
+        long[] cover = GeoCell.cover(GeoCell.EARTH, 50, 10, 55, 15, 16);
+        assertTrue(cover.length <= 16);
+        assertTrue(cover.length > 0);
+    }
+
+    @Test
+    public void coverCrossesAntimeridian() {
+        long[] cover = GeoCell.cover(GeoCell.EARTH, -20, 179, -10, -179, 64);
+        assertTrue(containsAny(cover, GeoCell.cells(GeoCell.EARTH, -15, 179.5)));
+        assertTrue(containsAny(cover, GeoCell.cells(GeoCell.EARTH, -15, -179.5)));
+        assertFalse(containsAny(cover, GeoCell.cells(GeoCell.EARTH, -15, 0)));
+    }
+
+    @Test
+    public void globesArePartitioned() {
+        long[] earth = GeoCell.cells(GeoCell.EARTH, 10, 10);
+        long[] other = GeoCell.cells(GeoCell.OTHER_GLOBE, 10, 10);
+        assertFalse(containsAny(earth, other));
+    }
+
+    @Test
+    public void partition() {
+        assertEquals(GeoCell.EARTH, GeoCell.partition(GeoSparql.WKT_LITERAL, new WikibasePoint("POINT(1 2)")));
+        assertEquals(GeoCell.EARTH, GeoCell.partition(GeoSparql.WKT_LITERAL,
+                new WikibasePoint("<http://www.wikidata.org/entity/Q2> POINT(1 2)")));
+        assertEquals(GeoCell.OTHER_GLOBE, GeoCell.partition(GeoSparql.WKT_LITERAL,
+                new WikibasePoint("<http://www.wikidata.org/entity/Q405> POINT(1 2)")));
+        assertEquals(GeoCell.OTHER_GLOBE, GeoCell.partition(GeoSparql.WKT_CRS_LITERAL, new WikibasePoint("POINT(1 2)")));
+        assertEquals(GeoCell.EARTH, GeoCell.partition(new URIImpl("http://example.com/whatever"), new WikibasePoint("POINT(1 2)")));
+    }
+
+    @Test
+    public void distance() {
+        // Berlin to Paris is about 878km
+        assertEquals(878, GeoCell.distance(52.5167, 13.3833, 48.8567, 2.3508), 5);
+        assertEquals(0, GeoCell.distance(10, 10, 10, 10), 0.0001);
+    }
+
+    @Test
+    public void inBox() {
+        assertTrue(GeoCell.inBox(5, 5, 0, 0, 10, 10));
+        assertFalse(GeoCell.inBox(5, 15, 0, 0, 10, 10));
+        assertTrue(GeoCell.inBox(5, 179.5, 0, 179, 10, -179));
+        assertFalse(GeoCell.inBox(5, 0, 0, 179, 10, -179));
+    }
+
+    @Test
+    public void boundingBoxAroundPole() {
+        double[] box = GeoCell.boundingBox(89.9, 0, 100);
+        assertEquals(-180, box[1], 0);
+        assertEquals(180, box[3], 0);
+        assertEquals(90, box[2], 0);
+    }
+
+    private boolean containsAny(long[] haystack, long[] needles) {
+        for (long h : haystack) {
+            for (long n : needles) {
+                if (h == n) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -6,8 +6,9 @@ START=1
 END=100000
 LOCATION=`pwd`
 FORMAT=wikidump-%09d.ttl.gz
+PARALLEL=2
 
-while getopts h:c:n:s:e:d: option
+while getopts h:c:n:s:e:d:p: option
 do
   case "${option}"
   in
@@ -17,24 +18,22 @@ do
     s) START=${OPTARG};;
     e) END=${OPTARG};;
     d) LOCATION=${OPTARG};;
+    p) PARALLEL=${OPTARG};;
   esac
 done
 
+# allow extra args
+shift $((OPTIND-1))
+
 if [ -z "$NAMESPACE" ]
 then
-  echo "Usage: $0 -n <namespace> [-h <host>] [-c <context>] [-s <start>] [-e <end>] [-d <directory>]"
+  echo "Usage: $0 -n <namespace> [-h <host>] [-c <context>] [-s <start>] [-e <end>] [-d <directory>] [-p <parallel>]"
   exit 1
 fi
 
-i=$START
-while [ $i -le $END ]; do
-        printf -v f $FORMAT $i
-	if [ ! -f "$LOCATION/$f" ]; then
-		echo File $f not found, terminating
-		exit 0
-	fi
-        echo Processing $f
-        curl -XPOST --data-binary update="LOAD <file://$LOCATION/$f>" $HOST/$CONTEXT/namespace/$NAMESPACE/sparql
-        let i++
-done
-
+CP=lib/wikidata-query-tools-*-jar-with-dependencies.jar
+MAIN=org.wikidata.query.rdf.tool.Load
+SPARQL_URL=$HOST/$CONTEXT/namespace/$NAMESPACE/sparql
+echo "Loading via $SPARQL_URL"
+java -cp $CP $MAIN --sparqlUrl $SPARQL_URL --directory $LOCATION --format $FORMAT --start $START --end $END \
+	--parallel $PARALLEL --progress $LOCATION/loadData.progress "$@"
@@ -0,0 +1,201 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.wikidata.query.rdf.tool.StreamUtils.utf8;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directory of finished munge chunks waiting to be served. Chunks are written
+ * to a temporary file and only become available once they are finished so
+ * loaders can fetch any finished chunk, in any order and concurrently. Served
+ * chunks are deleted. Starting a new chunk blocks while the finished chunks
+ * take more than the spool's limit so a slow loader holds back munging rather
+ * than filling the disk.
+ */
+public class ChunkSpool {
+    private static final Logger log = LoggerFactory.getLogger(ChunkSpool.class);
+
+    /**
+     * Names of the files we spool, finished or not.
+     */
+    private static final Pattern SPOOL_FILE = Pattern.compile("\\d{8}\\.ttl(\\.tmp)?");
+
+    /**
+     * Directory holding the chunks.
+     */
+    private final File dir;
+    /**
+     * Block starting new chunks while finished chunks take more bytes than
+     * this.
+     */
+    private final long maxBytes;
+    /**
+     * Finished chunks that haven't been served.
+     */
+    private final Map<Long, File> ready = new HashMap<>();
+    /**
+     * Bytes in the finished chunks.
+     */
+    private long readyBytes;
+    /**
+     * The highest numbered chunk started so far, 0 if none have been.
+     */
+    private long lastStarted;
+    /**
+     * Chunks that have been started but aren't finished. The munger starts
+     * the next chunk before it finishes the last one so there can be more
+     * than one.
+     */
+    private final Set<Long> writing = new HashSet<>();
+    /**
+     * Have all the chunks been started?
+     */
+    private boolean finished;
+
+    /**
+     * Build the spool, creating its directory if needed and clearing out
+     * chunks left by an earlier run.
+     *
+     * @param dir directory holding the chunks
+     * @param maxBytes block starting new chunks while finished chunks take
+     *            more bytes than this
+     * @throws IOException if the directory can't be created
+     */
+    public ChunkSpool(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create spool directory " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        File[] leftovers = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return SPOOL_FILE.matcher(name).matches();
+            }
+        });
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (!leftover.delete()) {
+                    log.warn("Couldn't delete {} left in the spool", leftover);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start writing a chunk, waiting for loaders to make room if the spool is
+     * full. The chunk becomes available to loaders when the writer is closed.
+     *
+     * @param chunk the chunk number
+     * @throws IOException if the chunk can't be created
+     * @throws InterruptedException if interrupted waiting for room
+     */
+    public Writer start(final long chunk) throws IOException, InterruptedException {
+        synchronized (this) {
+            while (readyBytes > maxBytes) {
+                log.info("Waiting for loaders to make room in the spool");
+                wait();
+            }
+            lastStarted = Math.max(lastStarted, chunk);
+            writing.add(chunk);
+        }
+        final File file = new File(dir, String.format(Locale.ROOT, "%08d.ttl", chunk));
+        final File temp = new File(dir, file.getName() + ".tmp");
+        return new FilterWriter(utf8(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            /**
+             * Has the chunk been closed?
+             */
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                super.close();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Couldn't move " + temp + " to " + file);
+                }
+                publish(chunk, file);
+            }
+        };
+    }
+
+    /**
+     * Record that every chunk has been started.
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait for a chunk to be finished.
+     *
+     * @param chunk the chunk number
+     * @return the chunk's file or null if the chunk has already been served or
+     *         will never exist
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized File await(long chunk) throws InterruptedException {
+        while (true) {
+            File file = ready.get(chunk);
+            if (file != null) {
+                return file;
+            }
+            if (!writing.contains(chunk) && (chunk <= lastStarted || finished)) {
+                return null;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Record that a chunk was served, deleting it to make room for more.
+     */
+    public synchronized void served(long chunk) {
+        File file = ready.remove(chunk);
+        if (file == null) {
+            // Another loader beat us to it
+            return;
+        }
+        readyBytes -= file.length();
+        if (!file.delete()) {
+            log.warn("Couldn't delete served chunk {}", file);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Have all the chunks been started, finished and served?
+     */
+    public synchronized boolean drained() {
+        return finished && writing.isEmpty() && ready.isEmpty();
+    }
+
+    /**
+     * Make a finished chunk available.
+     */
+    private synchronized void publish(long chunk, File file) {
+        ready.put(chunk, file);
+        readyBytes += file.length();
+        writing.remove(chunk);
+        notifyAll();
+    }
+}
@@ -0,0 +1,289 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.wikidata.query.rdf.tool.OptionsUtils.handleOptions;
+import static org.wikidata.query.rdf.tool.StreamUtils.utf8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.OptionsUtils.BasicOptions;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Loads the chunks written by munge into the triple store, several at a time.
+ * Each chunk is either loaded by the triple store itself with a LOAD update,
+ * which needs the triple store to be able to read the chunks, or streamed to
+ * it in a POST. Chunks that fail are retried. Every loaded chunk is recorded
+ * in the progress file with how long it took and how many statements it
+ * modified so a load that is interrupted picks up where it left off.
+ */
+public class Load implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(Load.class);
+
+    /**
+     * CLI options for use with JewelCli.
+     */
+    @SuppressWarnings("checkstyle:javadocmethod")
+    public interface Options extends BasicOptions {
+        @Option(shortName = "u", description = "URL to post updates to.")
+        String sparqlUrl();
+
+        @Option(shortName = "d", defaultValue = ".", description = "Directory holding the chunks.")
+        File directory();
+
+        @Option(defaultValue = "wikidump-%09d.ttl.gz", description = "Format of chunk file names. Must contain a single "
+                + "format identifier which is replaced with the chunk number.")
+        String format();
+
+        @Option(shortName = "s", defaultValue = "1", description = "First chunk to load.")
+        long start();
+
+        @Option(shortName = "e", defaultValue = "100000", description = "Last chunk to load. Loading also stops at the first "
+                + "chunk that doesn't exist.")
+        long end();
+
+        @Option(shortName = "p", defaultValue = "2", description = "Number of chunks to load at once.")
+        int parallel();
+
+        @Option(defaultValue = "3", description = "Number of times to retry a chunk that fails to load.")
+        int retries();
+
+        @Option(description = "Stream the chunks to the triple store in POSTs rather than asking it to LOAD them. Use when "
+                + "the triple store can't read the chunks itself.")
+        boolean post();
+
+        @Option(defaultToNull = true, description = "File recording every loaded chunk. Chunks already in it are skipped so "
+                + "an interrupted load can be run again to finish it.")
+        File progress();
+    }
+
+    /**
+     * Run a load configured from the command line.
+     */
+    public static void main(String[] args) {
+        Options options = handleOptions(Options.class, args);
+        RdfRepository rdfRepository;
+        try {
+            rdfRepository = new RdfRepository(new URI(options.sparqlUrl()), WikibaseUris.WIKIDATA);
+        } catch (URISyntaxException e) {
+            log.error("Invalid url:  " + options.sparqlUrl() + " caused by " + e.getMessage());
+            return;
+        }
+        List<File> chunks = new ArrayList<>();
+        for (long chunk = options.start(); chunk <= options.end(); chunk++) {
+            File file = new File(options.directory(), String.format(Locale.ROOT, options.format(), chunk));
+            if (!file.exists()) {
+                log.info("{} not found so stopping there", file);
+                break;
+            }
+            chunks.add(file);
+        }
+        try {
+            new Load(rdfRepository, chunks, options.parallel(), options.retries(), options.post(), options.progress())
+                    .run();
+        } catch (FatalException e) {
+            log.error("Error loading chunks", e);
+        }
+    }
+
+    /**
+     * Repository to load into.
+     */
+    private final RdfRepository rdfRepository;
+    /**
+     * Chunks to load.
+     */
+    private final List<File> chunks;
+    /**
+     * Number of chunks to load at once.
+     */
+    private final int parallel;
+    /**
+     * Number of times to retry a chunk.
+     */
+    private final int retries;
+    /**
+     * Stream chunks in POSTs rather than asking the store to LOAD them?
+     */
+    private final boolean post;
+    /**
+     * File recording loaded chunks, null if we don't record them.
+     */
+    private final File progress;
+    /**
+     * Total statements modified by the chunks loaded in this run.
+     */
+    private final AtomicLong mutations = new AtomicLong();
+
+    public Load(RdfRepository rdfRepository, List<File> chunks, int parallel, int retries, boolean post,
+            File progress) {
+        this.rdfRepository = rdfRepository;
+        this.chunks = chunks;
+        this.parallel = Math.max(1, parallel);
+        this.retries = retries;
+        this.post = post;
+        this.progress = progress;
+    }
+
+    /**
+     * Load all the chunks.
+     *
+     * @throws FatalException if a chunk can't be loaded even after retrying
+     *             or the progress file can't be used
+     */
+    @Override
+    public void run() {
+        Set<String> loaded = loaded();
+        long start = System.currentTimeMillis();
+        ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("load %s");
+        ExecutorService executor = new ThreadPoolExecutor(parallel, parallel, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory.build());
+        List<Future<?>> tasks = new ArrayList<>(chunks.size());
+        try (final Writer progressWriter = progress == null ? null : utf8(new FileOutputStream(progress, true))) {
+            for (final File chunk : chunks) {
+                if (loaded.contains(chunk.getName())) {
+                    log.info("Skipping {} because it was already loaded", chunk);
+                    continue;
+                }
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadWithRetries(chunk, progressWriter);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (IOException e) {
+            throw new FatalException("Error writing progress file " + progress, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FatalException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            throw new FatalException("Error loading a chunk", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("Loaded {} chunks modifying {} statements in {} ms", tasks.size(), mutations.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Load a chunk, retrying if it fails, and record it in the progress file.
+     */
+    private void loadWithRetries(File chunk, Writer progressWriter) {
+        for (int attempt = 0;; attempt++) {
+            long start = System.currentTimeMillis();
+            try {
+                int modified = load(chunk);
+                long took = System.currentTimeMillis() - start;
+                mutations.addAndGet(modified);
+                log.info("Loaded {} in {} ms modifying {} statements", chunk, took, modified);
+                recordProgress(progressWriter, chunk, took, modified);
+                return;
+            } catch (ContainedException | FatalException e) {
+                if (attempt >= retries) {
+                    throw new FatalException("Giving up on " + chunk + " after " + (attempt + 1) + " attempts", e);
+                }
+                log.warn("Error loading {}.  Retrying.", chunk, e);
+            }
+        }
+    }
+
+    /**
+     * Load a chunk once.
+     *
+     * @return number of statements modified
+     */
+    private int load(File chunk) {
+        if (!post) {
+            return rdfRepository.load("file://" + chunk.getAbsolutePath());
+        }
+        try (InputStream in = open(chunk)) {
+            return rdfRepository.loadTurtle(in);
+        } catch (IOException e) {
+            throw new ContainedException("Error reading " + chunk, e);
+        }
+    }
+
+    /**
+     * Open a chunk, unzipping it on the fly if it looks zipped.
+     */
+    private static InputStream open(File chunk) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(chunk), 1 << 16);
+        if (chunk.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+    /**
+     * Record a loaded chunk in the progress file.
+     */
+    private void recordProgress(Writer progressWriter, File chunk, long took, int modified) {
+        if (progressWriter == null) {
+            return;
+        }
+        synchronized (progressWriter) {
+            try {
+                progressWriter.write(String.format(Locale.ROOT, "%s %d %d\n", chunk.getName(), took, modified));
+                progressWriter.flush();
+            } catch (IOException e) {
+                throw new FatalException("Error writing progress file " + progress, e);
+            }
+        }
+    }
+
+    /**
+     * Names of the chunks the progress file says are loaded.
+     */
+    private Set<String> loaded() {
+        Set<String> loaded = new HashSet<>();
+        if (progress == null || !progress.exists()) {
+            return loaded;
+        }
+        try (BufferedReader reader = new BufferedReader(utf8(new FileInputStream(progress)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                // Chunks are recorded after they are loaded but a torn last line might cut the name short
+                if (parts.length == 3) {
+                    loaded.add(parts[0]);
+                }
+            }
+        } catch (IOException e) {
+            throw new FatalException("Error reading progress file " + progress, e);
+        }
+        return loaded;
+    }
+}
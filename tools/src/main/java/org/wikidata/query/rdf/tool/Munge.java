@@ -4,6 +4,8 @@ import static org.wikidata.query.rdf.tool.OptionsUtils.handleOptions;
 import static org.wikidata.query.rdf.tool.OptionsUtils.mungerFromOptions;
 import static org.wikidata.query.rdf.tool.StreamUtils.utf8;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -11,6 +13,9 @@ import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -45,8 +50,10 @@ import org.wikidata.query.rdf.tool.exception.ContainedException;
 import org.wikidata.query.rdf.tool.rdf.Munger;
 import org.wikidata.query.rdf.tool.rdf.NormalizingRdfHandler;
 import org.wikidata.query.rdf.tool.rdf.PrefixRecordingRdfHandler;
+import org.wikidata.query.rdf.tool.rdf.RefCountIndex;
 
 import com.codahale.metrics.Meter;
+import com.google.common.base.Charsets;
 import com.lexicalscope.jewel.cli.Option;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -76,6 +83,27 @@ public class Munge implements Runnable {
                 + "%08d.ttl is a pretty good choice for format string. If \"to\" is in port form then every http request will "
                 + "get the next chunk. Must be greater than 0 and less than " + Integer.MAX_VALUE + ".")
         int chunkSize();
+
+        @Option(defaultToNull = true, description = "Build a reference count index for the updater's --refCounts option in this "
+                + "file while munging. Entities already in the file are replaced.")
+        File refCounts();
+
+        @Option(defaultToNull = true, description = "File in which to record each finished chunk so a munge that crashes can "
+                + "be picked up with --resume. Only works when munging to chunked files.")
+        File checkpoint();
+
+        @Option(description = "Resume from --checkpoint. The input is skipped up to the first unfinished chunk without "
+                + "parsing it and munging continues from that chunk.")
+        boolean resume();
+
+        @Option(defaultToNull = true, description = "When serving chunks over http write finished chunks to this directory "
+                + "and serve them by number, like http://localhost:<port_number>/12, to as many loaders at once as ask. Served "
+                + "chunks are deleted.")
+        File spool();
+
+        @Option(defaultValue = "10240", description = "Megabytes of finished chunks the spool can hold before munging waits "
+                + "for loaders to catch up.")
+        long spoolMb();
     }
 
     /**
@@ -88,12 +116,18 @@ public class Munge implements Runnable {
         Munger munger = mungerFromOptions(options);
 
         int port = parsePort(options.to());
+        MungeCheckpoint checkpoint = loadCheckpoint(options, port);
 
         OutputPicker<Writer> to;
         Httpd httpd = null;
+        ChunkSpool spool = null;
         try {
             if (options.chunkSize() > 0) {
-                if (port > 0) {
+                if (port > 0 && options.spool() != null) {
+                    spool = new ChunkSpool(options.spool(), options.spoolMb() * 1024L * 1024L);
+                    httpd = new Httpd(port, spool);
+                    to = new ChunkedSpoolWriterOutputPicker(spool, options.chunkSize());
+                } else if (port > 0) {
                     // We have two slots just in case
                     BlockingQueue<InputStream> queue = new ArrayBlockingQueue<>(2);
                     httpd = new Httpd(port, queue);
@@ -127,9 +161,24 @@ public class Munge implements Runnable {
             System.exit(1);
             return;
         }
+        RefCountIndex refCounts = null;
         try {
-            Munge munge = new Munge(uris, munger, openInput(options.from()), to);
+            Munge munge = new Munge(uris, munger, openInput(options.from()), to).checkpoint(checkpoint);
+            if (options.refCounts() != null) {
+                refCounts = RefCountIndex.open(options.refCounts(), uris);
+                munge.refCounts(refCounts);
+            }
             munge.run();
+            if (spool != null) {
+                spool.finish();
+            }
+            if (refCounts != null) {
+                refCounts.commit();
+                refCounts.close();
+            }
+        } catch (IOException e) {
+            log.error("Error with reference count index", e);
+            System.exit(1);
         } catch (RuntimeException e) {
             log.error("Fatal error munging RDF", e);
             System.exit(1);
@@ -137,6 +186,36 @@ public class Munge implements Runnable {
         waitForHttpdToShutDownIfNeeded(httpd);
     }
 
+    /**
+     * Load the checkpoint if there should be one, exiting if it can't be used.
+     *
+     * @return null if we aren't keeping a checkpoint
+     */
+    private static MungeCheckpoint loadCheckpoint(Options options, int port) {
+        if (options.checkpoint() == null) {
+            if (options.resume()) {
+                log.error("--resume needs --checkpoint");
+                System.exit(1);
+            }
+            return null;
+        }
+        if (options.chunkSize() <= 0 || port > 0) {
+            log.error("--checkpoint only works when munging to chunked files");
+            System.exit(1);
+            return null;
+        }
+        if (!options.resume()) {
+            return new MungeCheckpoint(options.checkpoint(), options.chunkSize());
+        }
+        try {
+            return MungeCheckpoint.load(options.checkpoint(), options.chunkSize());
+        } catch (IOException e) {
+            log.error("Error loading checkpoint", e);
+            System.exit(1);
+            return null;
+        }
+    }
+
     /**
      * Parse the http port from the "to" parameter if there is one, return 0
      * otherwise.
@@ -169,7 +248,7 @@ public class Munge implements Runnable {
             return;
         }
         log.info("Finished munging and waiting for the http server to finish sending them");
-        while (httpd.busy.get()) {
+        while (httpd.busy()) {
             try {
                 Thread.sleep(100);
             } catch (InterruptedException e) {
@@ -195,6 +274,15 @@ public class Munge implements Runnable {
      * Where the munged RDF is synced.
      */
     private final OutputPicker<Writer> to;
+    /**
+     * Reference count index to update with each munged entity, null if we
+     * aren't building one.
+     */
+    private RefCountIndex refCounts;
+    /**
+     * Records each finished chunk, null if we aren't keeping a checkpoint.
+     */
+    private MungeCheckpoint checkpoint;
 
     public Munge(WikibaseUris uris, Munger munger, Reader from, OutputPicker<Writer> to) {
         this.uris = uris;
@@ -203,17 +291,43 @@ public class Munge implements Runnable {
         this.to = to;
     }
 
+    /**
+     * Update a reference count index with every munged entity. The caller is
+     * responsible for closing the index.
+     *
+     * @return this for chaining
+     */
+    public Munge refCounts(RefCountIndex refCounts) {
+        this.refCounts = refCounts;
+        return this;
+    }
+
+    /**
+     * Record each finished chunk in a checkpoint. If the checkpoint already
+     * has finished chunks then munging picks up after them.
+     *
+     * @return this for chaining
+     */
+    public Munge checkpoint(MungeCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
     @Override
     public void run() {
         try {
             // TODO this is a temporary hack
             // RDFParser parser = Rio.createParser(RDFFormat.TURTLE);
             RDFParser parser = new ForbiddenOk.HackedTurtleParser();
+            if (checkpoint != null && checkpoint.entities() > 0) {
+                log.info("Resuming at entity {} which starts with {}", checkpoint.entities(), checkpoint.subject());
+                to.entitiesMunged((int) checkpoint.entities());
+            }
             OutputPicker<RDFHandler> writer = new WriterToRDFWriterChunkPicker(to);
-            EntityMungingRdfHandler handler = new EntityMungingRdfHandler(uris, munger, writer);
+            EntityMungingRdfHandler handler = new EntityMungingRdfHandler(uris, munger, writer, refCounts, checkpoint);
             parser.setRDFHandler(new NormalizingRdfHandler(handler));
             try {
-                parser.parse(from, uris.entity());
+                parser.parse(checkpoint == null ? from : checkpoint.resume(from, uris), uris.entity());
             } catch (RDFParseException | RDFHandlerException | IOException e) {
                 throw new RuntimeException(e);
             }
@@ -257,6 +371,18 @@ public class Munge implements Runnable {
          * The place where we sync munged entities.
          */
         private final OutputPicker<RDFHandler> next;
+        /**
+         * Reference count index to update, null if we aren't building one.
+         */
+        private final RefCountIndex refCounts;
+        /**
+         * Records each finished chunk, null if we aren't keeping a checkpoint.
+         */
+        private final MungeCheckpoint checkpoint;
+        /**
+         * Entities munged before we started, in chunks we resumed after.
+         */
+        private final long alreadyMunged;
         /**
          * The statements about the current entity.
          */
@@ -277,10 +403,14 @@ public class Munge implements Runnable {
          */
         private String entityId;
 
-        public EntityMungingRdfHandler(WikibaseUris uris, Munger munger, OutputPicker<RDFHandler> next) {
+        public EntityMungingRdfHandler(WikibaseUris uris, Munger munger, OutputPicker<RDFHandler> next,
+                RefCountIndex refCounts, MungeCheckpoint checkpoint) {
             this.uris = uris;
             this.munger = munger;
             this.next = next;
+            this.refCounts = refCounts;
+            this.checkpoint = checkpoint;
+            alreadyMunged = checkpoint == null ? 0 : checkpoint.entities();
         }
 
         @Override
@@ -352,19 +482,29 @@ public class Munge implements Runnable {
          * @throws RDFHandlerException if there is an error syncing it
          */
         private void munge() throws RDFHandlerException {
+            long munged = alreadyMunged + entitiesMeter.getCount();
+            String subject = statements.isEmpty() ? null : statements.get(0).getSubject().stringValue();
             try {
                 log.debug("Munging {}", entityId);
                 munger.munge(entityId, statements);
                 for (Statement statement : statements) {
                     next.output().handleStatement(statement);
                 }
+                if (refCounts != null) {
+                    refCounts.update(entityId, statements);
+                }
+                if (subject != null && munged > 0 && munged % chunkSize() == 0) {
+                    // Writing the first entity of a chunk closed the last one
+                    saveCheckpoint(munged, subject);
+                }
                 entitiesMeter.mark();
                 if (entitiesMeter.getCount() % 10000 == 0) {
+                    commitRefCounts();
                     log.info("Processed {} entities at ({}, {}, {})", entitiesMeter.getCount(),
                             (long) entitiesMeter.getOneMinuteRate(), (long) entitiesMeter.getFiveMinuteRate(),
                             (long) entitiesMeter.getFifteenMinuteRate());
                 }
-                next.entitiesMunged((int) entitiesMeter.getCount());
+                next.entitiesMunged((int) (alreadyMunged + entitiesMeter.getCount()));
 
             } catch (ContainedException e) {
                 log.warn("Error munging {}", entityId, e);
@@ -372,11 +512,52 @@ public class Munge implements Runnable {
             statements.clear();
             haveNonEntityDataStatements = false;
         }
+
+        /**
+         * Number of entities in each chunk if we're keeping a checkpoint,
+         * otherwise something that never divides the number of entities.
+         */
+        private long chunkSize() {
+            return checkpoint == null ? Long.MAX_VALUE : checkpoint.chunkSize();
+        }
+
+        /**
+         * Record that every chunk before the entity is finished. The reference
+         * count index is committed first so it has everything in those chunks.
+         *
+         * @throws RDFHandlerException if the checkpoint can't be written
+         */
+        private void saveCheckpoint(long munged, String subject) throws RDFHandlerException {
+            // Make sure we've switched chunks even if the munger removed all of the entity's statements
+            next.output();
+            commitRefCounts();
+            try {
+                checkpoint.save(munged, subject);
+            } catch (IOException e) {
+                throw new RDFHandlerException("Error writing checkpoint", e);
+            }
+        }
+
+        /**
+         * Persist the reference count index if we're building one.
+         *
+         * @throws RDFHandlerException if the index can't be written
+         */
+        private void commitRefCounts() throws RDFHandlerException {
+            if (refCounts == null) {
+                return;
+            }
+            try {
+                refCounts.commit();
+            } catch (IOException e) {
+                throw new RDFHandlerException("Error writing reference count index", e);
+            }
+        }
     }
 
     /**
      * Very simple HTTP server that only knows how to spit out results from a
-     * queue.
+     * queue or, when there is a spool, serve finished chunks by number.
      */
     public static class Httpd extends NanoHTTPD {
         /**
@@ -385,17 +566,44 @@ public class Munge implements Runnable {
          */
         private final AtomicBoolean busy = new AtomicBoolean(false);
         /**
-         * Queue from which Turtle formatter RDF is read.
+         * Queue from which Turtle formatter RDF is read, null if we serve from
+         * a spool.
          */
         private final BlockingQueue<InputStream> results;
+        /**
+         * Spool from which chunks are served, null if we serve from a queue.
+         */
+        private final ChunkSpool spool;
 
         public Httpd(int port, BlockingQueue<InputStream> results) {
             super(port);
             this.results = results;
+            this.spool = null;
+        }
+
+        /**
+         * Build a server that serves chunks from a spool. Loaders request
+         * chunks by number, like /12, and can fetch as many at once as they
+         * like. Requests for chunks that aren't finished wait for them.
+         */
+        public Httpd(int port, ChunkSpool spool) {
+            super(port);
+            this.results = null;
+            this.spool = spool;
+        }
+
+        /**
+         * Is the server still busy?
+         */
+        public boolean busy() {
+            return spool == null ? busy.get() : !spool.drained();
         }
 
         @Override
         public Response serve(IHTTPSession session) {
+            if (spool != null) {
+                return serveSpooled(session);
+            }
             try {
                 busy.set(true);
                 Response response = new Response(Response.Status.OK, " application/x-turtle", results.take()) {
@@ -414,6 +622,76 @@ public class Munge implements Runnable {
                 return new Response(Response.Status.INTERNAL_ERROR, "text/plain", "internal server error");
             }
         }
+
+        /**
+         * Serve a chunk from the spool.
+         */
+        private Response serveSpooled(IHTTPSession session) {
+            long chunk;
+            try {
+                chunk = Long.parseLong(session.getUri().substring(1));
+            } catch (NumberFormatException e) {
+                return new Response(Response.Status.BAD_REQUEST, "text/plain", "request chunks by number like /1");
+            }
+            try {
+                File file = spool.await(chunk);
+                if (file == null) {
+                    return new Response(Response.Status.NOT_FOUND, "text/plain", "no such chunk or already served");
+                }
+                return new SpooledChunkResponse(spool, chunk, file);
+            } catch (InterruptedException e) {
+                log.error("Interrupted while waiting for chunk {}", chunk, e);
+                Thread.currentThread().interrupt();
+                return new Response(Response.Status.INTERNAL_ERROR, "text/plain", "internal server error");
+            }
+        }
+    }
+
+    /**
+     * Sends a spooled chunk with FileChannel.transferTo and deletes it once
+     * it has all been sent. If sending fails the chunk stays in the spool so
+     * the loader can ask for it again.
+     */
+    private static class SpooledChunkResponse extends NanoHTTPD.Response {
+        /**
+         * The spool the chunk came from.
+         */
+        private final ChunkSpool spool;
+        /**
+         * The chunk number.
+         */
+        private final long chunk;
+        /**
+         * The chunk's file.
+         */
+        private final File file;
+
+        public SpooledChunkResponse(ChunkSpool spool, long chunk, File file) {
+            // We send the chunk ourselves rather than handing it over as a stream
+            super(Status.OK, "application/x-turtle", (InputStream) null);
+            this.spool = spool;
+            this.chunk = chunk;
+            this.file = file;
+        }
+
+        @Override
+        protected void send(OutputStream outputStream) {
+            try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+                long size = channel.size();
+                String headers = "HTTP/1.1 200 OK\r\nContent-Type: application/x-turtle\r\nContent-Length: " + size
+                        + "\r\n\r\n";
+                outputStream.write(headers.getBytes(Charsets.US_ASCII));
+                WritableByteChannel out = Channels.newChannel(outputStream);
+                long sent = 0;
+                while (sent < size) {
+                    sent += channel.transferTo(sent, size - sent, out);
+                }
+                outputStream.flush();
+                spool.served(chunk);
+            } catch (IOException e) {
+                log.warn("Error sending chunk {}.  It can be requested again.", chunk, e);
+            }
+        }
     }
 
     /**
@@ -525,6 +803,30 @@ public class Munge implements Runnable {
         }
     }
 
+    /**
+     * OutputPicker that writes chunks to a spool for the http server to serve.
+     */
+    public static class ChunkedSpoolWriterOutputPicker extends ChunkedWriterOutputPicker {
+        /**
+         * The spool.
+         */
+        private final ChunkSpool spool;
+
+        public ChunkedSpoolWriterOutputPicker(ChunkSpool spool, int chunkSize) {
+            super(chunkSize);
+            this.spool = spool;
+        }
+
+        @Override
+        protected Writer buildWriter(long chunk) {
+            try {
+                return spool.start(chunk);
+            } catch (InterruptedException | IOException e) {
+                throw new RuntimeException("Error switching chunks", e);
+            }
+        }
+    }
+
     /**
      * OutputPicker writes to PipedOutput stream and throws the corresponding
      * PipedInputStreams on a BlockingQueue.
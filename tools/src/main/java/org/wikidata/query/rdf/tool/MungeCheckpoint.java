@@ -0,0 +1,199 @@
+package org.wikidata.query.rdf.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.google.common.io.CharSource;
+
+/**
+ * Records how far a chunked munge has gotten so one that crashes can be
+ * resumed. Each time a chunk is finished we record the number of entities
+ * munged so far and the subject of the first statement of the next entity.
+ * Resuming skips the input up to that subject one line at a time without
+ * parsing or munging it, which is much cheaper than munging it again. We can't
+ * seek because the input is usually one big compressed stream.
+ */
+public class MungeCheckpoint {
+    /**
+     * The checkpoint file.
+     */
+    private final File file;
+    /**
+     * Number of entities in each chunk.
+     */
+    private final int chunkSize;
+    /**
+     * Number of entities munged into finished chunks.
+     */
+    private long entities;
+    /**
+     * Subject of the first statement of the first entity not in a finished
+     * chunk, null if no chunks are finished.
+     */
+    private String subject;
+
+    /**
+     * Load a checkpoint.
+     *
+     * @param file the checkpoint file. If it doesn't exist the checkpoint
+     *            starts at the beginning.
+     * @param chunkSize number of entities in each chunk
+     * @throws IOException if the file can't be read or is for a different
+     *             chunk size
+     */
+    public static MungeCheckpoint load(File file, int chunkSize) throws IOException {
+        MungeCheckpoint checkpoint = new MungeCheckpoint(file, chunkSize);
+        if (!file.exists()) {
+            return checkpoint;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            if (Integer.parseInt(properties.getProperty("chunkSize")) != chunkSize) {
+                throw new IOException("Checkpoint " + file + " is for a different chunk size");
+            }
+            checkpoint.entities = Long.parseLong(properties.getProperty("entities"));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint " + file, e);
+        }
+        checkpoint.subject = properties.getProperty("subject");
+        return checkpoint;
+    }
+
+    public MungeCheckpoint(File file, int chunkSize) {
+        this.file = file;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Number of entities in each chunk.
+     */
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Number of entities munged into finished chunks.
+     */
+    public long entities() {
+        return entities;
+    }
+
+    /**
+     * Subject of the first statement of the first entity not in a finished
+     * chunk, null if no chunks are finished.
+     */
+    public String subject() {
+        return subject;
+    }
+
+    /**
+     * Record that every chunk before the one starting at an entity is
+     * finished. The file is replaced atomically so it is never torn.
+     *
+     * @param entities number of entities munged before the entity
+     * @param subject subject of the entity's first statement
+     * @throws IOException if the checkpoint can't be written
+     */
+    public void save(long entities, String subject) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("chunkSize", Integer.toString(chunkSize));
+        properties.setProperty("entities", Long.toString(entities));
+        properties.setProperty("subject", subject);
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "Munge checkpoint");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.entities = entities;
+        this.subject = subject;
+    }
+
+    /**
+     * Skip the input to where the checkpoint says to resume. The header before
+     * the first entity, with the prefixes and the dump's metadata, is kept so
+     * the rest parses the same way it would have.
+     *
+     * @param from the whole input
+     * @param uris uris used to spot the first entity
+     * @return the header followed by the input from where to resume
+     * @throws IOException if the input can't be read or doesn't contain the
+     *             entity to resume from
+     */
+    public Reader resume(Reader from, WikibaseUris uris) throws IOException {
+        if (subject == null) {
+            return from;
+        }
+        final BufferedReader in = new BufferedReader(from, 1 << 16);
+        Map<String, String> prefixes = new HashMap<>();
+        StringBuilder header = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            String lineSubject = subject(line, prefixes);
+            if (lineSubject != null && (lineSubject.startsWith(uris.entityData())
+                    || lineSubject.startsWith(uris.entityDataHttps()) || lineSubject.startsWith(uris.entity()))) {
+                break;
+            }
+            header.append(line).append('\n');
+        }
+        while (line != null && !subject.equals(subject(line, prefixes))) {
+            line = in.readLine();
+        }
+        if (line == null) {
+            throw new IOException("Couldn't find " + subject + " to resume from in the input");
+        }
+        header.append(line).append('\n');
+        CharSource rest = new CharSource() {
+            @Override
+            public Reader openStream() {
+                return in;
+            }
+        };
+        return CharSource.concat(CharSource.wrap(header), rest).openStream();
+    }
+
+    /**
+     * The subject of a turtle line if it starts a statement, recording
+     * prefixes along the way.
+     *
+     * @return the subject's uri or null if the line doesn't start with a
+     *         subject
+     */
+    private static String subject(String line, Map<String, String> prefixes) {
+        if (line.startsWith("@prefix ")) {
+            int colon = line.indexOf(':');
+            int start = line.indexOf('<');
+            int end = line.indexOf('>');
+            if (colon > 0 && start > colon && end > start) {
+                prefixes.put(line.substring("@prefix ".length(), colon).trim(), line.substring(start + 1, end));
+            }
+            return null;
+        }
+        if (line.startsWith("<")) {
+            int end = line.indexOf('>');
+            return end < 0 ? null : line.substring(1, end);
+        }
+        int space = line.indexOf(' ');
+        int colon = line.indexOf(':');
+        if (space < 0 || colon < 0 || colon > space) {
+            return null;
+        }
+        String namespace = prefixes.get(line.substring(0, colon));
+        return namespace == null ? null : namespace + line.substring(colon + 1, space);
+    }
+}
@@ -59,6 +59,10 @@ public final class OptionsUtils {
 
         @Option(description = "Preserve all types")
         boolean keepTypes();
+
+        @Option(description = "Index coordinates into geo cells for the wikibase:around and wikibase:box services. "
+                + "The loader and the updater must agree on this.")
+        boolean geoCells();
     }
 
     /**
@@ -130,6 +134,9 @@ public final class OptionsUtils {
         if (options.keepTypes()) {
             munger = munger.keepTypes(true);
         }
+        if (options.geoCells()) {
+            munger = munger.indexGeoCells(true);
+        }
         return munger;
     }
 
@@ -6,10 +6,13 @@ import static org.wikidata.query.rdf.tool.OptionsUtils.mungerFromOptions;
 import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.inputDateFormat;
 import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.outputDateFormat;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,19 +36,30 @@ import org.wikidata.query.rdf.tool.OptionsUtils.MungerOptions;
 import org.wikidata.query.rdf.tool.OptionsUtils.WikibaseOptions;
 import org.wikidata.query.rdf.tool.change.Change;
 import org.wikidata.query.rdf.tool.change.Change.Batch;
+import org.wikidata.query.rdf.tool.change.ChangeLog;
+import org.wikidata.query.rdf.tool.change.ChangeLogChangeSource;
+import org.wikidata.query.rdf.tool.change.CoalescingChangeSource;
+import org.wikidata.query.rdf.tool.change.EventStreamChangeSource;
 import org.wikidata.query.rdf.tool.change.IdListChangeSource;
 import org.wikidata.query.rdf.tool.change.IdRangeChangeSource;
+import org.wikidata.query.rdf.tool.change.IdRangeCheckpoint;
+import org.wikidata.query.rdf.tool.change.PrefetchingChangeSource;
 import org.wikidata.query.rdf.tool.change.RecentChangesPoller;
 import org.wikidata.query.rdf.tool.exception.ContainedException;
+import org.wikidata.query.rdf.tool.exception.FatalException;
 import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.rdf.ExistingNodes;
 import org.wikidata.query.rdf.tool.rdf.Munger;
 import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+import org.wikidata.query.rdf.tool.rdf.RefCountIndex;
+import org.wikidata.query.rdf.tool.rdf.ReplicaSyncer;
+import org.wikidata.query.rdf.tool.rdf.SampledVerifier;
 import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
 
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.collect.Multimap;
+import com.codahale.metrics.Timer;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.lexicalscope.jewel.cli.Option;
 
@@ -74,10 +88,20 @@ public class Update<B extends Change.Batch> implements Runnable {
                 + "changes. Start and end are inclusive.")
         String ids();
 
-        @Option(shortName = "u", description = "URL to post updates and queries.")
-        String sparqlUrl();
+        @Option(shortName = "u", description = "URL to post updates and queries. If more than one is given the first is "
+                + "updated as usual and the rest are fed from the same fetch and munge on their own threads.")
+        List<String> sparqlUrl();
 
-        @Option(shortName = "d", defaultValue = "10", description = "Poll delay when no updates found")
+        @Option(defaultValue = "100", description = "Number of batches an extra sparqlUrl can fall behind before it is "
+                + "detached. Detached urls catch up from where they left off when the updater restarts.")
+        int replicaQueue();
+
+        @Option(defaultValue = "60", description = "Seconds to wait for extra sparqlUrls to sync the batches queued for them "
+                + "when the updater stops.")
+        int replicaDrainTimeout();
+
+        @Option(shortName = "d", defaultValue = "10", description = "Poll delay when no updates found. Not used with "
+                + "--eventStream because reading the stream waits for changes.")
         int pollDelay();
 
         @Option(shortName = "t", defaultValue = "10", description = "Thread count")
@@ -86,8 +110,78 @@ public class Update<B extends Change.Batch> implements Runnable {
         @Option(shortName = "b", defaultValue = "100", description = "Number of recent changes fetched at a time.")
         int batchSize();
 
+        @Option(defaultValue = "1", description = "Number of batches of recent changes to fetch ahead while the current batch "
+                + "is synced. 0 disables prefetching.")
+        int prefetch();
+
+        @Option(defaultToNull = true, description = "Url of a server-sent events stream of recent changes, like "
+                + "https://stream.wikimedia.org/v2/stream/recentchange. If set changes are read from the stream instead of "
+                + "polling recent changes.")
+        String eventStream();
+
+        @Option(defaultValue = "300", description = "Seconds the event stream can fall behind before we fall back to polling "
+                + "recent changes until we catch up.")
+        int eventStreamMaxLag();
+
+        @Option(defaultValue = "0", description = "Seconds to hold back repeat changes to an entity after it was synced so "
+                + "bursts of edits to the same entity are synced once. Changes are never held longer than this. 0 disables it.")
+        int coalesce();
+
+        @Option(defaultValue = "0", description = "Entities with more statements than this are synced on their own in the "
+                + "large entity lane so they don't hold up small changes. The next batch still waits for them. 0, the default, "
+                + "syncs everything together.")
+        int largeEntityStatements();
+
+        @Option(defaultValue = "1", description = "Number of large entities synced at once.")
+        int largeEntityThreads();
+
         @Option(shortName = "V", longName = "verify", description = "Verify updates (may have performance impact)")
         boolean verify();
+
+        @Option(defaultValue = "0", description = "Number of entities per batch to verify on a background thread. Entities that "
+                + "don't match are synced again. 0 disables sampled verification.")
+        int verifySample();
+
+        @Option(defaultValue = "1", description = "Maximum number of entities per second checked by sampled verification.")
+        double verifyRate();
+
+        @Option(defaultToNull = true, description = "Reference count index file built by munge. When set the updater tracks which "
+                + "value and reference nodes are shared using the index instead of querying the store and deletes unused ones "
+                + "directly.")
+        File refCounts();
+
+        @Option(defaultToNull = true, description = "Directory in which to keep a log of every munged change synced so other "
+                + "stores can replay it with --replayChangeLog rather than fetching from wikibase.")
+        File changeLog();
+
+        @Option(defaultValue = "64", description = "Megabytes of compressed changes in each change log segment.")
+        int changeLogSegmentMb();
+
+        @Option(defaultValue = "90", description = "Days to keep change log segments.")
+        int changeLogRetentionDays();
+
+        @Option(defaultValue = "102400", description = "Megabytes the change log can use before its oldest segments are deleted.")
+        long changeLogMaxMb();
+
+        @Option(defaultToNull = true, description = "Replay munged changes from this change log directory instead of fetching "
+                + "them from wikibase. Starts where the store left off, or at --start, and stops at the end of the log.")
+        File replayChangeLog();
+
+        @Option(defaultToNull = true, description = "Replay the change log from the first batch with a change at or after "
+                + "this recent changes id rather than by time.")
+        Long replayFromRcid();
+
+        @Option(defaultValue = "1", description = "Number of shards to split an --ids <start>-<end> range into. Each shard is "
+                + "fetched, munged and synced concurrently, sharing --threadCount threads.")
+        int shards();
+
+        @Option(defaultToNull = true, description = "File recording how far each shard of an --ids <start>-<end> range has "
+                + "gotten so a reload that crashes resumes where it left off.")
+        File checkpoint();
+
+        @Option(description = "Ask wikibase which ids in an --ids <start>-<end> range exist before fetching them so deleted "
+                + "and never created ids are skipped cheaply.")
+        boolean skipMissing();
     }
 
     /**
@@ -96,28 +190,195 @@ public class Update<B extends Change.Batch> implements Runnable {
     public static void main(String[] args) {
         Options options = handleOptions(Options.class, args);
         WikibaseRepository wikibaseRepository = new WikibaseRepository(options.wikibaseScheme(), options.wikibaseHost());
-        URI sparqlUri;
-        try {
-            sparqlUri = new URI(options.sparqlUrl());
-        } catch (URISyntaxException e) {
-            log.error("Invalid url:  " + options.sparqlUrl() + " caused by " + e.getMessage());
+        WikibaseUris uris = new WikibaseUris(options.wikibaseHost());
+        List<RdfRepository> rdfRepositories = buildRdfRepositories(options, uris);
+        if (rdfRepositories == null) {
             return;
         }
-        WikibaseUris uris = new WikibaseUris(options.wikibaseHost());
-        RdfRepository rdfRepository = new RdfRepository(sparqlUri, uris);
-        Change.Source<? extends Change.Batch> changeSource = buildChangeSource(options, rdfRepository,
+        RdfRepository rdfRepository = rdfRepositories.get(0);
+        if (options.shards() > 1 || options.checkpoint() != null) {
+            reloadShards(options, wikibaseRepository, rdfRepository, rdfRepositories.size(), uris);
+            return;
+        }
+        Change.Source<? extends Change.Batch> changeSource = buildChangeSource(options, rdfRepositories,
                 wikibaseRepository);
         if (changeSource == null) {
             return;
         }
+        Update<?> update = configure(options, new Update<>(changeSource, wikibaseRepository, rdfRepository,
+                mungerFromOptions(options), buildExecutor(options), options.pollDelay(), uris, options.verify()));
+        if (rdfRepositories.size() > 1) {
+            addReplicas(options, update, rdfRepositories, uris);
+        }
+        try (RefCountIndex refCounts = options.refCounts() == null ? null : RefCountIndex.open(options.refCounts(), uris);
+                ChangeLog changeLog = openChangeLog(options)) {
+            update.refCounts(refCounts).changeLog(changeLog);
+            update.run();
+        } catch (IOException e) {
+            log.error("Error with reference count index {} or change log {}", options.refCounts(), options.changeLog(), e);
+        }
+    }
+
+    /**
+     * Build the executor that fetches and munges entities.
+     */
+    private static ExecutorService buildExecutor(Options options) {
         int threads = options.threadCount();
         ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("update %s");
-        ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(), threadFactory.build());
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory.build());
+    }
 
+    /**
+     * Turn on the optional parts of an update the options ask for.
+     *
+     * @return the update for chaining
+     */
+    private static Update<?> configure(Options options, Update<?> update) {
+        if (options.verifySample() > 0) {
+            update.sampleVerify(options.verifySample(), options.verifyRate());
+        }
+        if (options.largeEntityStatements() > 0) {
+            update.largeEntityLane(options.largeEntityStatements(), options.largeEntityThreads());
+        }
+        return update;
+    }
+
+    /**
+     * Reload an id range split into shards that each run their own update
+     * concurrently, sharing the fetch and munge threads, the store and the
+     * change log. Progress is recorded in the checkpoint file if there is one
+     * and shards that are already done are skipped.
+     */
+    private static void reloadShards(Options options, WikibaseRepository wikibaseRepository,
+            RdfRepository rdfRepository, int repositoryCount, WikibaseUris uris) {
+        String[] ids = options.ids() == null ? new String[0] : options.ids().split("-");
+        if (ids.length != 2) {
+            log.error("--shards and --checkpoint need --ids <start>-<end>.");
+            return;
+        }
+        if (repositoryCount > 1 || options.refCounts() != null) {
+            log.error("--shards and --checkpoint can't be used with more than one sparqlUrl or with --refCounts.");
+            return;
+        }
+        int shards = Math.max(1, options.shards());
+        try (ChangeLog changeLog = openChangeLog(options)) {
+            IdRangeCheckpoint checkpoint = IdRangeCheckpoint.open(options.checkpoint(), Long.parseLong(ids[0]),
+                    Long.parseLong(ids[1]), shards);
+            ExecutorService executor = buildExecutor(options);
+            ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("shard %s");
+            ExecutorService shardExecutor = new ThreadPoolExecutor(shards, shards, 0, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory.build());
+            try {
+                runShards(options, checkpoint, wikibaseRepository, rdfRepository, uris, executor, shardExecutor,
+                        changeLog);
+            } finally {
+                shardExecutor.shutdown();
+                executor.shutdown();
+            }
+        } catch (IOException e) {
+            log.error("Error with checkpoint {} or change log {}", options.checkpoint(), options.changeLog(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start an update for each shard that isn't done and wait for them all to
+     * finish.
+     */
+    private static void runShards(Options options, IdRangeCheckpoint checkpoint,
+            WikibaseRepository wikibaseRepository, RdfRepository rdfRepository, WikibaseUris uris,
+            ExecutorService executor, ExecutorService shardExecutor, ChangeLog changeLog) throws InterruptedException {
         Munger munger = mungerFromOptions(options);
-        new Update<>(changeSource, wikibaseRepository, rdfRepository, munger, executor,
-                options.pollDelay(), uris, options.verify()).run();
+        Map<IdRangeCheckpoint.Shard, Future<?>> running = new HashMap<>();
+        for (IdRangeCheckpoint.Shard shard : checkpoint.shards()) {
+            if (shard.done()) {
+                log.info("Shard {} is already done", shard);
+                continue;
+            }
+            log.info("Reloading shard {} from {}", shard, shard.next());
+            IdRangeChangeSource changeSource = idRange(options, wikibaseRepository, shard.next(), shard.stop());
+            Update<?> update = configure(options, new Update<>(changeSource.checkpointTo(shard), wikibaseRepository,
+                    rdfRepository, munger, executor, options.pollDelay(), uris, options.verify()));
+            // Each shard's metrics get their own domain so their names don't collide
+            update.metricsDomain("metrics.shard." + shard).changeLog(changeLog);
+            running.put(shard, shardExecutor.submit(update));
+        }
+        for (Map.Entry<IdRangeCheckpoint.Shard, Future<?>> entry : running.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (ExecutionException e) {
+                log.error("Shard {} failed.  Run again to resume it.", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Build a change source for an id range, skipping missing ids if the
+     * options ask for it.
+     */
+    private static IdRangeChangeSource idRange(Options options, WikibaseRepository wikibaseRepository, long start,
+            long end) {
+        IdRangeChangeSource changeSource = IdRangeChangeSource.forItems(start, end, options.batchSize());
+        if (options.skipMissing()) {
+            changeSource.skipMissing(wikibaseRepository);
+        }
+        return changeSource;
+    }
+
+    /**
+     * Open the change log if there should be one.
+     *
+     * @return null if there shouldn't be one
+     */
+    private static ChangeLog openChangeLog(Options options) throws IOException {
+        if (options.changeLog() == null) {
+            return null;
+        }
+        return ChangeLog.open(options.changeLog(), options.changeLogSegmentMb() * 1024L * 1024L,
+                options.changeLogRetentionDays(), TimeUnit.DAYS, options.changeLogMaxMb() * 1024L * 1024L);
+    }
+
+    /**
+     * Build a repository for each sparqlUrl.
+     *
+     * @return null if they can't be built - its ok to just exit - errors have
+     *         been logged to the user
+     */
+    private static List<RdfRepository> buildRdfRepositories(Options options, WikibaseUris uris) {
+        List<RdfRepository> rdfRepositories = new ArrayList<>(options.sparqlUrl().size());
+        for (String sparqlUrl : options.sparqlUrl()) {
+            try {
+                rdfRepositories.add(new RdfRepository(new URI(sparqlUrl), uris));
+            } catch (URISyntaxException e) {
+                log.error("Invalid url:  " + sparqlUrl + " caused by " + e.getMessage());
+                return null;
+            }
+        }
+        if (rdfRepositories.size() > 1 && options.refCounts() != null) {
+            log.error("A reference count index only tracks one store so it can't be used with more than one sparqlUrl.");
+            return null;
+        }
+        return rdfRepositories;
+    }
+
+    /**
+     * Feed every repository but the first from the update's fetch and munge.
+     */
+    private static void addReplicas(Options options, Update<?> update, List<RdfRepository> rdfRepositories,
+            WikibaseUris uris) {
+        List<ReplicaSyncer> replicas = new ArrayList<>(rdfRepositories.size() - 1);
+        for (int i = 1; i < rdfRepositories.size(); i++) {
+            replicas.add(new ReplicaSyncer(rdfRepositories.get(i), uris, "replica-" + i, options.replicaQueue(),
+                    update.metrics));
+        }
+        Date unfilteredUntil = null;
+        if (options.start() == null && options.ids() == null) {
+            // We start where the furthest behind repository left off so replicas need changes the first one already has
+            unfilteredUntil = rdfRepositories.get(0).fetchLeftOffTime();
+        }
+        update.replicas(replicas, unfilteredUntil, options.replicaDrainTimeout());
     }
 
     /**
@@ -127,8 +388,8 @@ public class Update<B extends Change.Batch> implements Runnable {
      *         logged to the user
      */
     @SuppressWarnings("checkstyle:cyclomaticcomplexity")
-    private static Change.Source<? extends Batch> buildChangeSource(Options options, RdfRepository rdfRepository,
-            WikibaseRepository wikibaseRepository) {
+    private static Change.Source<? extends Batch> buildChangeSource(Options options,
+            List<RdfRepository> rdfRepositories, WikibaseRepository wikibaseRepository) {
         if (options.ids() != null) {
             if (options.ids().contains(",")) {
                 // Id list
@@ -154,23 +415,24 @@ public class Update<B extends Change.Batch> implements Runnable {
                 log.error("Invalid format for --ids.  Need <start>-<stop>.");
                 return null;
             }
-            return IdRangeChangeSource.forItems(start, end, options.batchSize());
+            return idRange(options, wikibaseRepository, start, end);
         }
-        long startTime;
+        Date startDate = null;
         if (options.start() != null) {
-            try {
-                startTime = outputDateFormat().parse(options.start()).getTime();
-            } catch (java.text.ParseException e) {
-                try {
-                    startTime = inputDateFormat().parse(options.start()).getTime();
-                } catch (java.text.ParseException e2) {
-                    log.error("Invalid date:  {}", options.start());
-                    return null;
-                }
+            startDate = parseStart(options.start());
+            if (startDate == null) {
+                return null;
             }
+        }
+        if (options.replayChangeLog() != null) {
+            return buildReplaySource(options, rdfRepositories, startDate);
+        }
+        long startTime;
+        if (startDate != null) {
+            startTime = startDate.getTime();
         } else {
             log.info("Checking where we left off");
-            Date leftOff = rdfRepository.fetchLeftOffTime();
+            Date leftOff = earliestLeftOffTime(rdfRepositories);
             long minStartTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
             if (leftOff == null) {
                 startTime = minStartTime;
@@ -190,7 +452,104 @@ public class Update<B extends Change.Batch> implements Runnable {
                 log.info("Found start time in the RDF store: {}", inputDateFormat().format(leftOff));
             }
         }
-        return new RecentChangesPoller(wikibaseRepository, new Date(startTime), options.batchSize());
+        return buildRecentChangesSource(options, wikibaseRepository, new Date(startTime));
+    }
+
+    /**
+     * Parse the start time in either of the formats we accept.
+     *
+     * @return null if it isn't valid - errors have been logged to the user
+     */
+    private static Date parseStart(String start) {
+        try {
+            return outputDateFormat().parse(start);
+        } catch (java.text.ParseException e) {
+            try {
+                return inputDateFormat().parse(start);
+            } catch (java.text.ParseException e2) {
+                log.error("Invalid date:  {}", start);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Build a change source that replays the change log. Unlike following
+     * recent changes this isn't limited to the last 30 days - the log's
+     * retention is the limit.
+     *
+     * @param startDate where to start, null to start where the stores left off
+     */
+    private static Change.Source<? extends Batch> buildReplaySource(Options options,
+            List<RdfRepository> rdfRepositories, Date startDate) {
+        if (options.replayFromRcid() != null) {
+            log.info("Replaying change log {} from rcid {}", options.replayChangeLog(), options.replayFromRcid());
+            return new ChangeLogChangeSource(options.replayChangeLog(), options.replayFromRcid());
+        }
+        if (startDate == null) {
+            log.info("Checking where we left off");
+            startDate = earliestLeftOffTime(rdfRepositories);
+            if (startDate == null) {
+                log.info("Replaying the whole change log because the RDF store doesn't know where it left off");
+                startDate = new Date(0);
+            }
+        }
+        log.info("Replaying change log {} from {}", options.replayChangeLog(), inputDateFormat().format(startDate));
+        return new ChangeLogChangeSource(options.replayChangeLog(), startDate);
+    }
+
+    /**
+     * The earliest left off time of the repositories.
+     *
+     * @return null if any of them doesn't have one
+     */
+    private static Date earliestLeftOffTime(List<RdfRepository> rdfRepositories) {
+        Date earliest = null;
+        for (RdfRepository rdfRepository : rdfRepositories) {
+            Date leftOff = rdfRepository.fetchLeftOffTime();
+            if (leftOff == null) {
+                return null;
+            }
+            if (earliest == null || leftOff.before(earliest)) {
+                earliest = leftOff;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * Build a change source that follows recent changes starting at a time.
+     *
+     * @return null if non can be built - its ok to just exit - errors have been
+     *         logged to the user
+     */
+    private static Change.Source<? extends Batch> buildRecentChangesSource(Options options,
+            WikibaseRepository wikibaseRepository, Date startTime) {
+        if (options.eventStream() != null) {
+            try {
+                return coalesce(options, new EventStreamChangeSource(new URI(options.eventStream()), wikibaseRepository,
+                        options.wikibaseHost(), startTime, options.batchSize(),
+                        TimeUnit.SECONDS.toMillis(options.eventStreamMaxLag()), TimeUnit.SECONDS.toMillis(30)));
+            } catch (URISyntaxException e) {
+                log.error("Invalid event stream url:  {}", options.eventStream(), e);
+                return null;
+            }
+        }
+        RecentChangesPoller poller = new RecentChangesPoller(wikibaseRepository, startTime, options.batchSize());
+        if (options.prefetch() > 0) {
+            return coalesce(options, new PrefetchingChangeSource<>(poller, options.prefetch()));
+        }
+        return coalesce(options, poller);
+    }
+
+    /**
+     * Wrap a change source so it coalesces repeat changes if configured to.
+     */
+    private static <B extends Batch> Change.Source<? extends Batch> coalesce(Options options, Change.Source<B> source) {
+        if (options.coalesce() <= 0) {
+            return source;
+        }
+        return new CoalescingChangeSource<>(source, options.coalesce(), TimeUnit.SECONDS);
     }
 
     /**
@@ -209,7 +568,7 @@ public class Update<B extends Change.Batch> implements Runnable {
     /**
      * JMX interface for metrics counters.
      */
-    private final JmxReporter reporter = JmxReporter.forRegistry(metrics).build();
+    private JmxReporter reporter = JmxReporter.forRegistry(metrics).build();
     /**
      * Source of change batches.
      */
@@ -234,6 +593,7 @@ public class Update<B extends Change.Batch> implements Runnable {
      * Seconds to wait after we hit an empty batch. Empty batches signify that
      * there aren't any changes left now but the change stream isn't over. In
      * particular this will happen if the RecentChangesPoller finds no changes.
+     * Not used if the change source waits for changes itself.
      */
     private final int pollDelay;
     /**
@@ -241,17 +601,58 @@ public class Update<B extends Change.Batch> implements Runnable {
      */
     private final WikibaseUris uris;
     /**
-     * Map entity->values list from repository.
-     */
-    private Multimap<String, String> repoValues;
-    /**
-     * Map entity->references list from repository.
+     * Values and references the changed entities have in the repository.
      */
-    private Multimap<String, String> repoRefs;
+    private ExistingNodes existingNodes;
     /**
      * Should we verify updates?
      */
     private final boolean verify;
+    /**
+     * Verifies a sample of each batch in the background, null if we aren't
+     * doing that.
+     */
+    private SampledVerifier sampledVerifier;
+    /**
+     * Reference counts for value and reference nodes, null if we look them up
+     * in the store instead.
+     */
+    private RefCountIndex refCounts;
+    /**
+     * Entities with more statements than this are synced in the large entity
+     * lane. 0 if there isn't a large entity lane.
+     */
+    private int largeEntityStatements;
+    /**
+     * Syncs large entities, null if there isn't a large entity lane.
+     */
+    private ExecutorService largeEntityExecutor;
+    /**
+     * Latency of syncing the small changes in each batch.
+     */
+    private final Timer smallLaneTimer = metrics.timer("sync-small");
+    /**
+     * Latency of syncing each large entity.
+     */
+    private final Timer largeLaneTimer = metrics.timer("sync-large");
+    /**
+     * Log of munged changes, null if we aren't keeping one.
+     */
+    private ChangeLog changeLog;
+    /**
+     * Extra repositories fed from the same fetch and munge.
+     */
+    private List<ReplicaSyncer> replicas = Collections.emptyList();
+    /**
+     * Skip filtering changes by the revisions in the primary repository for
+     * batches that left off before this because some replicas are behind it.
+     * Null once we're past it.
+     */
+    private Date unfilteredUntil;
+    /**
+     * Seconds run waits for the replicas to sync the batches queued for them.
+     */
+    private int replicaDrainSeconds;
 
     public Update(Change.Source<B> changeSource, WikibaseRepository wikibase, RdfRepository rdfRepository,
             Munger munger, ExecutorService executor, int pollDelay, WikibaseUris uris, boolean verify) {
@@ -266,8 +667,132 @@ public class Update<B extends Change.Batch> implements Runnable {
         reporter.start();
     }
 
+    /**
+     * Report metrics to JMX in their own domain rather than the default one so
+     * more than one update can run in the same JVM without their metrics'
+     * names colliding.
+     *
+     * @return this for chaining
+     */
+    public Update<B> metricsDomain(String domain) {
+        reporter.stop();
+        reporter = JmxReporter.forRegistry(metrics).inDomain(domain).build();
+        reporter.start();
+        return this;
+    }
+
+    /**
+     * Verify a sample of each batch on a background thread, syncing entities
+     * that don't match again. Verification stops when run returns.
+     *
+     * @param samplesPerBatch entities to verify from each batch
+     * @param entitiesPerSecond maximum rate to verify entities
+     * @return this for chaining
+     */
+    public Update<B> sampleVerify(int samplesPerBatch, double entitiesPerSecond) {
+        sampledVerifier = new SampledVerifier(rdfRepository, samplesPerBatch, entitiesPerSecond, metrics);
+        return this;
+    }
+
+    /**
+     * Sync entities with more than some number of statements on their own,
+     * concurrently with the rest of the batch, so one huge entity doesn't
+     * make a huge update that everything else in the batch waits on. The
+     * next batch isn't started until the large entities are synced.
+     *
+     * @param statementThreshold entities with more statements than this are
+     *            synced on their own
+     * @param threads number of large entities to sync at once
+     * @return this for chaining
+     */
+    public Update<B> largeEntityLane(int statementThreshold, int threads) {
+        largeEntityStatements = statementThreshold;
+        ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("large sync %s");
+        largeEntityExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory.build());
+        return this;
+    }
+
+    /**
+     * Feed extra repositories from the same fetch and munge. Changes are
+     * munged without looking at what is in the store so every repository can
+     * use them.
+     *
+     * @param replicas the extra repositories
+     * @param unfilteredUntil pass every change to the replicas, even ones the
+     *            primary repository already has, until batches get to here.
+     *            Null if the replicas aren't behind the primary repository.
+     * @param drainSeconds seconds run waits for the replicas to sync the
+     *            batches queued for them before shutting them down
+     * @return this for chaining
+     */
+    public Update<B> replicas(List<ReplicaSyncer> replicas, Date unfilteredUntil, int drainSeconds) {
+        this.replicas = replicas;
+        this.unfilteredUntil = unfilteredUntil;
+        this.replicaDrainSeconds = drainSeconds;
+        return this;
+    }
+
+    /**
+     * Log every munged change synced so other stores can replay them. Changes
+     * are munged without looking at what is in the store so any store can
+     * use them. The caller is responsible for closing the log.
+     *
+     * @return this for chaining
+     */
+    public Update<B> changeLog(ChangeLog changeLog) {
+        this.changeLog = changeLog;
+        return this;
+    }
+
+    /**
+     * Track value and reference nodes with a reference count index rather
+     * than querying the store for them. The caller is responsible for closing
+     * the index.
+     *
+     * @return this for chaining
+     */
+    public Update<B> refCounts(RefCountIndex refCounts) {
+        this.refCounts = refCounts;
+        return this;
+    }
+
     @Override
     public void run() {
+        try {
+            syncBatches();
+        } finally {
+            if (sampledVerifier != null) {
+                sampledVerifier.shutdown();
+            }
+            finishReplicas();
+        }
+    }
+
+    /**
+     * Wait for the replicas to sync the batches queued for them and shut them
+     * down. They share one deadline so stopping doesn't take longer with more
+     * replicas.
+     */
+    private void finishReplicas() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(replicaDrainSeconds);
+        int unfinished = 0;
+        for (ReplicaSyncer replica : replicas) {
+            if (!replica.finish(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                unfinished++;
+            }
+        }
+        if (unfinished > 0) {
+            log.warn("{} of {} replicas didn't get every batch", unfinished, replicas.size());
+        }
+    }
+
+    /**
+     * Fetch and sync batches until the change source runs out of them.
+     *
+     * @throws FatalException if syncing fails
+     */
+    private void syncBatches() {
         B batch = null;
         do {
             try {
@@ -301,8 +826,7 @@ public class Update<B extends Change.Batch> implements Runnable {
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } catch (ExecutionException e) {
-                log.error("Syncing encountered a fatal exception", e);
-                break;
+                throw new FatalException("Syncing encountered a fatal exception", e);
             }
         }
     }
@@ -342,8 +866,104 @@ public class Update<B extends Change.Batch> implements Runnable {
             task.get();
         }
         log.debug("Preparing update data took {} ms", System.currentTimeMillis() - start);
-        rdfRepository.syncFromChanges(trueChanges, verify);
+        for (ReplicaSyncer replica : replicas) {
+            replica.sync(trueChanges, batch.leftOffDate());
+        }
+        if (refCounts == null) {
+            sync(trueChanges, Collections.<String>emptySet());
+        } else {
+            syncAndCommitRefCounts(trueChanges);
+        }
+        if (changeLog != null) {
+            try {
+                changeLog.append(trueChanges, batch.leftOffDate());
+            } catch (IOException e) {
+                throw new FatalException("Couldn't write change log", e);
+            }
+        }
         updateMeter.mark(trueChanges.size());
+        if (sampledVerifier != null) {
+            sampledVerifier.sample(trueChanges);
+        }
+    }
+
+    /**
+     * Sync prepared changes to the repository, deleting the nodes the
+     * reference count index says are no longer used. The index is committed
+     * if the sync works and rolled back if it doesn't so it never counts
+     * changes the store doesn't have.
+     *
+     * @throws InterruptedException if interrupted waiting on large entities
+     * @throws ExecutionException if syncing a large entity fails
+     */
+    private void syncAndCommitRefCounts(Set<Change> changes) throws InterruptedException, ExecutionException {
+        boolean synced = false;
+        try {
+            sync(changes, unusedNodes(changes));
+            synced = true;
+        } finally {
+            if (!synced) {
+                refCounts.rollback();
+            }
+        }
+        try {
+            refCounts.commit();
+        } catch (IOException e) {
+            throw new FatalException("Couldn't write reference count index", e);
+        }
+    }
+
+    /**
+     * Sync prepared changes to the repository. Large entities go to the large
+     * entity lane, one update each, while the rest are synced together.
+     *
+     * @param unusedNodes value and reference nodes to delete
+     * @throws InterruptedException if interrupted waiting on large entities
+     * @throws ExecutionException if syncing a large entity fails
+     */
+    private void sync(Set<Change> changes, Collection<String> unusedNodes) throws InterruptedException,
+            ExecutionException {
+        List<Change> small = new ArrayList<>(changes.size());
+        List<Change> large = new ArrayList<>();
+        for (Change change : changes) {
+            if (largeEntityExecutor == null || change.getStatements() == null
+                    || change.getStatements().size() <= largeEntityStatements) {
+                small.add(change);
+            } else {
+                large.add(change);
+            }
+        }
+        if (small.isEmpty() && !large.isEmpty() && !unusedNodes.isEmpty()) {
+            // Syncing nothing doesn't delete anything so the unused nodes ride along with a large entity
+            small.add(large.remove(0));
+        }
+        List<Future<?>> largeTasks = new ArrayList<>(large.size());
+        for (final Change change : large) {
+            log.debug("Syncing {} with {} statements in the large entity lane", change.entityId(),
+                    change.getStatements().size());
+            largeTasks.add(largeEntityExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Timer.Context timer = largeLaneTimer.time();
+                    try {
+                        rdfRepository.syncFromChanges(Collections.singleton(change), verify);
+                    } finally {
+                        timer.stop();
+                    }
+                }
+            }));
+        }
+        if (!small.isEmpty()) {
+            Timer.Context timer = smallLaneTimer.time();
+            try {
+                rdfRepository.syncFromChanges(small, verify, unusedNodes);
+            } finally {
+                timer.stop();
+            }
+        }
+        for (Future<?> task : largeTasks) {
+            task.get();
+        }
     }
 
     /**
@@ -369,7 +989,21 @@ public class Update<B extends Change.Batch> implements Runnable {
                 changeIds.add(uris.entity() + change.entityId());
             }
         }
-        if (candidateChanges.size() > 0) {
+        if (sampledVerifier != null) {
+            for (String entityId : sampledVerifier.drainResync()) {
+                if (changeIds.add(uris.entity() + entityId)) {
+                    // Force a resync even if the revision in the store is current
+                    candidateChanges.remove(entityId);
+                    trueChanges.add(new Change(entityId, -1, null, -1));
+                }
+            }
+        }
+        if (unfiltered(batch)) {
+            for (Change change : candidateChanges.values()) {
+                changeIds.add(uris.entity() + change.entityId());
+                trueChanges.add(change);
+            }
+        } else if (candidateChanges.size() > 0) {
             for (String entityId: rdfRepository.hasRevisions(candidateChanges.values())) {
                 // Cut off the entity prefix from the resulting URI
                 changeIds.add(entityId);
@@ -377,18 +1011,80 @@ public class Update<B extends Change.Batch> implements Runnable {
             }
         }
         log.debug("Filtered batch contains {} changes", trueChanges.size());
+        existingNodes = fetchExistingNodes(trueChanges, changeIds);
+        return trueChanges;
+    }
 
-        if (trueChanges.size() > 0) {
-            repoValues = rdfRepository.getValues(changeIds);
-            log.debug("Fetched {} values", repoValues.size());
-            repoRefs = rdfRepository.getRefs(changeIds);
-            log.debug("Fetched {} refs", repoRefs.size());
-        } else {
-            repoValues = null;
-            repoRefs = null;
+    /**
+     * Fetch the values and references the changed entities have in the store.
+     *
+     * @return null if there aren't any changes
+     */
+    private ExistingNodes fetchExistingNodes(Set<Change> changes, Set<String> changeIds) {
+        if (changes.isEmpty()) {
+            return null;
+        }
+        if (refCounts != null) {
+            return fetchFromRefCounts(changes);
+        }
+        ExistingNodes nodes = rdfRepository.getExistingNodes(changeIds);
+        log.debug("Fetched {} values and {} refs", nodes.valueCount(), nodes.refCount());
+        return nodes;
+    }
+
+    /**
+     * Should we skip filtering this batch by the revisions in the primary
+     * repository because replicas are still catching up to it?
+     */
+    private boolean unfiltered(Change.Batch batch) {
+        if (unfilteredUntil == null) {
+            return false;
+        }
+        if (batch.leftOffDate() != null && batch.leftOffDate().before(unfilteredUntil)) {
+            return true;
         }
+        log.info("Replicas caught up to the primary repository");
+        unfilteredUntil = null;
+        return false;
+    }
 
-        return trueChanges;
+    /**
+     * Load the values and references each changed entity has in the store
+     * from the reference count index.
+     */
+    private ExistingNodes fetchFromRefCounts(Set<Change> changes) {
+        ExistingNodes.Builder builder = new ExistingNodes.Builder(uris);
+        for (Change change : changes) {
+            for (String node : refCounts.existingNodes(change.entityId())) {
+                builder.add(change.entityId(), node);
+            }
+        }
+        ExistingNodes nodes = builder.build();
+        log.debug("Found {} values and {} refs in the reference count index", nodes.valueCount(), nodes.refCount());
+        return nodes;
+    }
+
+    /**
+     * Update the reference count index with the munged changes.
+     *
+     * @return value and reference nodes nothing uses anymore
+     */
+    private Set<String> unusedNodes(Set<Change> changes) {
+        Set<String> unused = new HashSet<>();
+        for (Change change : changes) {
+            if (change.getStatements() != null) {
+                unused.addAll(refCounts.update(change.entityId(), change.getStatements()));
+            }
+        }
+        // Another entity in the batch might have picked up a node this one dropped
+        Set<String> result = new HashSet<>(unused.size());
+        for (String node : unused) {
+            if (refCounts.count(node) == 0) {
+                result.add(node);
+            }
+        }
+        log.debug("Deleting {} unused values and refs", result.size());
+        return result;
     }
 
     /**
@@ -405,7 +1101,11 @@ public class Update<B extends Change.Batch> implements Runnable {
                 log.warn("Retryable error fetching next batch.  Retrying.", e);
                 continue;
             }
-            if (batch.changes().isEmpty()) {
+            if (batch.changes().isEmpty() && !batch.last()) {
+                if (Change.waitsForChanges(changeSource)) {
+                    // The source already waited for changes
+                    continue;
+                }
                 log.debug("Sleeping for {} secs", pollDelay);
                 Thread.sleep(pollDelay * 1000);
                 continue;
@@ -428,14 +1128,31 @@ public class Update<B extends Change.Batch> implements Runnable {
      *             store
      */
     private void handleChange(Change change) throws RetryableException {
+        if (change.getStatements() != null) {
+            // Replayed from a change log so it is already fetched and munged
+            log.debug("Using replayed data for {}", change);
+            change.setCleanupList(refCounts == null ? existingNodes.unused(change.entityId(), change.getStatements())
+                    : Collections.<String>emptyList());
+            return;
+        }
         log.debug("Processing data for {}", change);
         Collection<Statement> statements = wikibase.fetchRdfForEntity(change.entityId());
-        Set<String> values = new HashSet<>(repoValues.get(change.entityId()));
-        Set<String> refs = new HashSet<>(repoRefs.get(change.entityId()));
-        munger.munge(change.entityId(), statements, values, refs, change);
         List<String> cleanupList = new ArrayList<>();
-        cleanupList.addAll(values);
-        cleanupList.addAll(refs);
+        if (!replicas.isEmpty() || changeLog != null) {
+            // Munge without skipping the nodes the store has so replicas and the change log get all of them
+            munger.munge(change.entityId(), statements, new HashSet<String>(), new HashSet<String>(), change);
+            if (refCounts == null) {
+                cleanupList.addAll(existingNodes.unused(change.entityId(), statements));
+            }
+        } else {
+            Set<String> values = new HashSet<>(existingNodes.values(change.entityId()));
+            Set<String> refs = new HashSet<>(existingNodes.refs(change.entityId()));
+            munger.munge(change.entityId(), statements, values, refs, change);
+            if (refCounts == null) {
+                cleanupList.addAll(values);
+                cleanupList.addAll(refs);
+            }
+        }
         change.setStatements(statements);
         change.setCleanupList(cleanupList);
     }
@@ -0,0 +1,177 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.wikidata.query.rdf.tool.OptionsUtils.handleOptions;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
+import org.wikidata.query.rdf.tool.OptionsUtils.BasicOptions;
+import org.wikidata.query.rdf.tool.OptionsUtils.WikibaseOptions;
+import org.wikidata.query.rdf.tool.rdf.SpaceSavingCounter;
+
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Scans munged dumps and writes the entity and property uris that appear most
+ * often as predicates and objects, one per line. The output is meant to be
+ * checked in as the resource for a new WikibaseVocabulary version so that
+ * journals built with that version store those uris as compact vocabulary
+ * ids.
+ */
+public class VocabularyFrequencies {
+    private static final Logger log = LoggerFactory.getLogger(VocabularyFrequencies.class);
+
+    /**
+     * CLI options for use with JewelCli.
+     */
+    @SuppressWarnings("checkstyle:javadocmethod")
+    public interface Options extends BasicOptions, WikibaseOptions {
+        @Option(shortName = "f", description = "Munged files (or uris) to scan. Files ending in .gz are unzipped on the fly.")
+        List<String> from();
+
+        @Option(shortName = "t", defaultValue = "-", description = "Where to write the uris. Default is - aka stdout.")
+        String to();
+
+        @Option(defaultValue = "1000", description = "Number of uris to write.")
+        int top();
+
+        @Option(defaultValue = "100000", description = "Number of uris to track while counting. Larger is more accurate "
+                + "but uses more memory.")
+        int capacity();
+    }
+
+    /**
+     * Run the scan configured from the command line.
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    public static void main(String[] args) {
+        Options options = handleOptions(Options.class, args);
+        VocabularyFrequencies frequencies = new VocabularyFrequencies(new WikibaseUris(options.wikibaseHost()),
+                options.capacity());
+        try {
+            for (String from : options.from()) {
+                log.info("Scanning {}", from);
+                try (Reader reader = CliUtils.reader(from)) {
+                    frequencies.scan(reader);
+                }
+            }
+            try (Writer writer = CliUtils.writer(options.to())) {
+                frequencies.write(writer, options.top());
+            }
+        } catch (Exception e) {
+            log.error("Error counting uris", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Uris for this wikibase instance.
+     */
+    private final WikibaseUris uris;
+    /**
+     * Counts the uris.
+     */
+    private final SpaceSavingCounter counter;
+    /**
+     * Number of statements scanned.
+     */
+    private long statements;
+
+    public VocabularyFrequencies(WikibaseUris uris, int capacity) {
+        this.uris = uris;
+        counter = new SpaceSavingCounter(capacity);
+    }
+
+    /**
+     * Count the uris in some munged rdf.
+     */
+    public void scan(Reader from) throws RDFParseException, RDFHandlerException, IOException {
+        RDFParser parser = Rio.createParser(RDFFormat.TURTLE);
+        parser.setRDFHandler(new RDFHandlerBase() {
+            @Override
+            public void handleStatement(Statement statement) {
+                statements++;
+                count(statement.getPredicate());
+                count(statement.getObject());
+            }
+        });
+        parser.parse(from, uris.entity());
+    }
+
+    /**
+     * Write the most frequent uris, one per line, most frequent first.
+     */
+    public void write(Writer to, int top) throws IOException {
+        to.write("# Generated by " + VocabularyFrequencies.class.getName() + " from " + statements + " statements.\n");
+        to.write("# Never change this list once a vocabulary version using it has built a journal.\n");
+        for (String uri : counter.top(top)) {
+            to.write(uri);
+            to.write('\n');
+        }
+    }
+
+    /**
+     * Count a value if it is a concrete entity or property uri. Everything
+     * else is either a literal, already in the vocabulary, or too rare to
+     * matter.
+     */
+    private void count(Value value) {
+        if (!(value instanceof URI)) {
+            return;
+        }
+        String uri = value.stringValue();
+        if (isEntityOrProperty(uri)) {
+            counter.offer(uri);
+        }
+    }
+
+    /**
+     * Is this uri a concrete entity or property?
+     */
+    private boolean isEntityOrProperty(String uri) {
+        if (startsWithIdAfter(uri, uris.entity())) {
+            return true;
+        }
+        for (PropertyType p : PropertyType.values()) {
+            if (startsWithIdAfter(uri, uris.property(p))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does the uri look like prefix followed by a Q or P id?
+     */
+    private static boolean startsWithIdAfter(String uri, String prefix) {
+        if (!uri.startsWith(prefix) || uri.length() < prefix.length() + 2) {
+            return false;
+        }
+        char type = uri.charAt(prefix.length());
+        if (type != 'Q' && type != 'P') {
+            return false;
+        }
+        for (int i = prefix.length() + 1; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
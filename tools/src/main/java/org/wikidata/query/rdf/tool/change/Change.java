@@ -124,6 +124,26 @@ public class Change implements Comparable<Change> {
         B nextBatch(B lastBatch) throws RetryableException;
     }
 
+    /**
+     * Implemented by sources that can wait for changes to arrive, like ones
+     * that have changes pushed to them. Their empty batches mean they already
+     * waited so the updater shouldn't wait again before asking for the next
+     * one.
+     */
+    public interface WaitsForChanges {
+        /**
+         * Does nextBatch wait for changes before returning an empty batch?
+         */
+        boolean waitsForChanges();
+    }
+
+    /**
+     * Does this source wait for changes before returning an empty batch?
+     */
+    public static boolean waitsForChanges(Source<?> source) {
+        return source instanceof WaitsForChanges && ((WaitsForChanges) source).waitsForChanges();
+    }
+
     /**
      * A batch of changes. Implementations should be immutable.
      */
@@ -0,0 +1,535 @@
+package org.wikidata.query.rdf.tool.change;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Durable log of the munged changes in each batch the updater syncs so new or
+ * lagging stores can replay them with a ChangeLogChangeSource instead of
+ * fetching everything from wikibase again. The changes must be munged without
+ * knowing what is in the store so they describe every node the entity uses.
+ * Cleanup lists aren't logged because they depend on what is in the store
+ * doing the replaying.
+ * <p>
+ * The log is a directory of gzipped segments. Each segment is named for the
+ * left off time and the lowest rcid of its first batch so finding where to
+ * start replaying by either only needs a directory listing. Each batch is
+ * flushed and synced to disk before append returns. A new segment is started
+ * when the current one gets too big and whenever the log is opened so a
+ * segment is never appended to after a crash. A crash can only tear the
+ * segment being appended to and opening the log cuts the torn batch off the
+ * newest segment, so every other segment is always intact. Segments are
+ * deleted once all of their batches are older than the retention time or to
+ * keep the whole log under its size limit.
+ */
+public class ChangeLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ChangeLog.class);
+
+    /**
+     * Marks the start of each batch.
+     */
+    static final int BATCH = 'B';
+    /**
+     * Value type marker for uris.
+     */
+    private static final int URI_VALUE = 'U';
+    /**
+     * Value type marker for blank nodes.
+     */
+    private static final int BNODE_VALUE = 'N';
+    /**
+     * Value type marker for plain literals.
+     */
+    private static final int PLAIN_LITERAL = 'P';
+    /**
+     * Value type marker for literals with a language.
+     */
+    private static final int LANGUAGE_LITERAL = 'L';
+    /**
+     * Value type marker for literals with a datatype.
+     */
+    private static final int TYPED_LITERAL = 'T';
+    /**
+     * Segment file names. The first group is the left off time of the first
+     * batch in milliseconds, the second tells apart segments started at the
+     * same time and the optional third is the lowest rcid in the first batch.
+     * It is missing if none of the first batch's changes have an rcid.
+     */
+    private static final Pattern SEGMENT = Pattern.compile("changes-(\\d{13})-(\\d{3})(?:-(\\d+))?\\.gz");
+    /**
+     * Size of the buffers used to read and write segments.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Directory holding the segments.
+     */
+    private final File dir;
+    /**
+     * Start a new segment once the current one is this many compressed bytes.
+     */
+    private final long maxSegmentBytes;
+    /**
+     * Delete segments whose batches are all older than this many
+     * milliseconds.
+     */
+    private final long retentionMillis;
+    /**
+     * Delete the oldest segments while the log is bigger than this many bytes.
+     */
+    private final long maxTotalBytes;
+    /**
+     * The file under the current segment, null if we haven't started one.
+     */
+    private FileOutputStream file;
+    /**
+     * Counts compressed bytes in the current segment.
+     */
+    private CountingOutputStream counter;
+    /**
+     * Writes to the current segment.
+     */
+    private DataOutputStream out;
+
+    /**
+     * Open a change log, creating the directory if needed.
+     *
+     * @param dir directory holding the segments
+     * @param maxSegmentBytes start a new segment once the current one is this
+     *            many compressed bytes
+     * @param retention delete segments whose batches are all older than this
+     * @param unit unit of retention
+     * @param maxTotalBytes delete the oldest segments while the log is bigger
+     *            than this
+     * @throws IOException if the directory can't be created
+     */
+    public static ChangeLog open(File dir, long maxSegmentBytes, long retention, TimeUnit unit, long maxTotalBytes)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create change log directory " + dir);
+        }
+        ChangeLog changeLog = new ChangeLog(dir, maxSegmentBytes, unit.toMillis(retention), maxTotalBytes);
+        changeLog.repairNewestSegment();
+        changeLog.applyRetention();
+        return changeLog;
+    }
+
+    private ChangeLog(File dir, long maxSegmentBytes, long retentionMillis, long maxTotalBytes) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Append a batch of munged changes. Changes without statements failed to
+     * sync and are skipped. Safe to call from several updaters at once.
+     *
+     * @param changes the changes
+     * @param leftOffDate where the batch left off, null if it doesn't have a
+     *            date
+     * @throws IOException if the batch couldn't be written
+     */
+    public synchronized void append(Collection<Change> changes, Date leftOffDate) throws IOException {
+        List<Change> logged = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            if (change.getStatements() != null) {
+                logged.add(change);
+            }
+        }
+        if (logged.isEmpty()) {
+            return;
+        }
+        long leftOff = leftOffDate == null ? -1 : leftOffDate.getTime();
+        if (out == null) {
+            startSegment(leftOff < 0 ? System.currentTimeMillis() : leftOff, lowestRcid(logged));
+        }
+        writeBatch(out, logged, leftOff);
+        out.flush();
+        file.getFD().sync();
+        if (counter.getCount() >= maxSegmentBytes) {
+            closeSegment();
+            applyRetention();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    /**
+     * Start a new segment.
+     *
+     * @param leftOff left off time of its first batch
+     * @param rcid lowest rcid in its first batch, -1 if there isn't one
+     */
+    private void startSegment(long leftOff, long rcid) throws IOException {
+        List<File> existing = segments(dir);
+        String name;
+        int sequence = 0;
+        do {
+            name = String.format(Locale.ROOT, "changes-%013d-%03d", leftOff, sequence++);
+        } while (startsAny(existing, name));
+        File segment = new File(dir, name + (rcid < 0 ? ".gz" : "-" + rcid + ".gz"));
+        log.info("Starting change log segment {}", segment);
+        file = new FileOutputStream(segment);
+        counter = new CountingOutputStream(file);
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(counter, BUFFER_SIZE, true),
+                BUFFER_SIZE));
+    }
+
+    /**
+     * Is there a segment for this left off time and sequence number?
+     */
+    private static boolean startsAny(List<File> segments, String name) {
+        for (File segment : segments) {
+            if (segment.getName().equals(name + ".gz") || segment.getName().startsWith(name + "-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The lowest rcid of some changes.
+     *
+     * @return -1 if none of them have one
+     */
+    private static long lowestRcid(Collection<Change> changes) {
+        long lowest = -1;
+        for (Change change : changes) {
+            if (change.rcid() >= 0 && (lowest < 0 || change.rcid() < lowest)) {
+                lowest = change.rcid();
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * Cut a torn batch left by a crash off the end of the newest segment,
+     * deleting the segment if it doesn't have any intact batches.
+     *
+     * @throws IOException if the segment can't be rewritten
+     */
+    private void repairNewestSegment() throws IOException {
+        List<File> segments = segments(dir);
+        if (segments.isEmpty()) {
+            return;
+        }
+        File newest = segments.get(segments.size() - 1);
+        int intact = intactBatchesIfTorn(newest);
+        if (intact < 0) {
+            return;
+        }
+        if (intact == 0) {
+            log.warn("Deleting change log segment {} because it doesn't have any intact batches", newest);
+            if (!newest.delete()) {
+                throw new IOException("Couldn't delete torn change log segment " + newest);
+            }
+            return;
+        }
+        log.warn("Cutting the torn end off of change log segment {}, keeping {} batches", newest, intact);
+        File tmp = new File(newest.getPath() + ".tmp");
+        FileOutputStream tmpFile = new FileOutputStream(tmp);
+        GZIPOutputStream gzip = new GZIPOutputStream(tmpFile, BUFFER_SIZE, true);
+        try (DataInputStream in = openSegment(newest);
+                DataOutputStream copy = new DataOutputStream(new BufferedOutputStream(gzip, BUFFER_SIZE))) {
+            for (int b = 0; b < intact; b++) {
+                in.read();
+                List<Change> changes = new ArrayList<>();
+                Date leftOff = readBatch(in, changes);
+                writeBatch(copy, changes, leftOff == null ? -1 : leftOff.getTime());
+            }
+            copy.flush();
+            gzip.finish();
+            tmpFile.getFD().sync();
+        }
+        if (!tmp.renameTo(newest)) {
+            throw new IOException("Couldn't replace " + newest + " with " + tmp);
+        }
+    }
+
+    /**
+     * Count the intact batches in a segment if it is torn.
+     *
+     * @return the number of intact batches before the tear or -1 if the
+     *         segment isn't torn
+     */
+    private static int intactBatchesIfTorn(File segment) {
+        int batches = 0;
+        try (DataInputStream in = openSegment(segment)) {
+            while (true) {
+                int marker = in.read();
+                if (marker < 0) {
+                    return -1;
+                }
+                if (marker != BATCH) {
+                    return batches;
+                }
+                readBatch(in, new ArrayList<Change>());
+                batches++;
+            }
+        } catch (IOException e) {
+            return batches;
+        }
+    }
+
+    /**
+     * Finish the current segment if there is one.
+     */
+    private void closeSegment() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            counter = null;
+            file = null;
+        }
+    }
+
+    /**
+     * Delete segments that are too old or that put the log over its size
+     * limit. Never deletes the newest segment.
+     */
+    private void applyRetention() {
+        List<File> segments = segments(dir);
+        long total = 0;
+        for (File segment : segments) {
+            total += segment.length();
+        }
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            // A segment's batches all come before the next one's first batch
+            boolean expired = startMillis(segments.get(i + 1)) < oldest;
+            if (!expired && total <= maxTotalBytes) {
+                break;
+            }
+            long length = segments.get(i).length();
+            if (segments.get(i).delete()) {
+                log.info("Deleted change log segment {}", segments.get(i));
+                total -= length;
+            } else {
+                log.warn("Couldn't delete change log segment {}", segments.get(i));
+            }
+        }
+    }
+
+    /**
+     * The segments in a change log directory, oldest first.
+     */
+    static List<File> segments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return SEGMENT.matcher(name).matches();
+            }
+        });
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        // Fixed width numbers make name order time order
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    /**
+     * The left off time of the first batch in a segment.
+     */
+    static long startMillis(File segment) {
+        return Long.parseLong(segmentName(segment).group(1));
+    }
+
+    /**
+     * The lowest rcid in the first batch of a segment.
+     *
+     * @return -1 if the first batch didn't have any rcids
+     */
+    static long startRcid(File segment) {
+        String rcid = segmentName(segment).group(3);
+        return rcid == null ? -1 : Long.parseLong(rcid);
+    }
+
+    /**
+     * Parse a segment's name.
+     */
+    private static Matcher segmentName(File segment) {
+        Matcher m = SEGMENT.matcher(segment.getName());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Not a change log segment:  " + segment);
+        }
+        return m;
+    }
+
+    /**
+     * Open a segment for reading.
+     *
+     * @throws IOException if the segment can't be opened or its gzip header
+     *             is torn
+     */
+    static DataInputStream openSegment(File segment) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(segment),
+                BUFFER_SIZE)));
+    }
+
+    /**
+     * Write a batch, starting with its BATCH marker.
+     *
+     * @param leftOff the batch's left off time, -1 if it doesn't have one
+     */
+    private static void writeBatch(DataOutput out, Collection<Change> changes, long leftOff) throws IOException {
+        out.writeByte(BATCH);
+        out.writeLong(leftOff);
+        out.writeInt(changes.size());
+        for (Change change : changes) {
+            writeString(out, change.entityId());
+            out.writeLong(change.revision());
+            out.writeLong(change.timestamp() == null ? -1 : change.timestamp().getTime());
+            out.writeLong(change.rcid());
+            out.writeInt(change.getStatements().size());
+            for (Statement statement : change.getStatements()) {
+                writeValue(out, statement.getSubject());
+                writeValue(out, statement.getPredicate());
+                writeValue(out, statement.getObject());
+            }
+        }
+    }
+
+    /**
+     * Read a batch after its BATCH marker.
+     *
+     * @param in the segment
+     * @param changes the batch's changes are added here
+     * @return the batch's left off time, null if it doesn't have one
+     * @throws IOException if the batch is torn or corrupt
+     */
+    static Date readBatch(DataInput in, Collection<Change> changes) throws IOException {
+        long leftOff = in.readLong();
+        int count = in.readInt();
+        for (int c = 0; c < count; c++) {
+            String entityId = readString(in);
+            long revision = in.readLong();
+            long timestamp = in.readLong();
+            long rcid = in.readLong();
+            int statementCount = in.readInt();
+            List<Statement> statements = new ArrayList<>(statementCount);
+            for (int s = 0; s < statementCount; s++) {
+                Value subject = readValue(in);
+                Value predicate = readValue(in);
+                Value object = readValue(in);
+                if (!(subject instanceof Resource) || !(predicate instanceof URI)) {
+                    throw new IOException("Corrupt statement in change log:  " + subject + " " + predicate);
+                }
+                statements.add(new StatementImpl((Resource) subject, (URI) predicate, object));
+            }
+            Change change = new Change(entityId, revision, timestamp < 0 ? null : new Date(timestamp), rcid);
+            change.setStatements(statements);
+            changes.add(change);
+        }
+        return leftOff < 0 ? null : new Date(leftOff);
+    }
+
+    /**
+     * Write an rdf value.
+     */
+    private static void writeValue(DataOutput out, Value value) throws IOException {
+        if (value instanceof URI) {
+            out.writeByte(URI_VALUE);
+        } else if (value instanceof BNode) {
+            out.writeByte(BNODE_VALUE);
+        } else {
+            Literal literal = (Literal) value;
+            if (literal.getLanguage() != null) {
+                out.writeByte(LANGUAGE_LITERAL);
+                writeString(out, literal.getLanguage());
+            } else if (literal.getDatatype() != null) {
+                out.writeByte(TYPED_LITERAL);
+                writeString(out, literal.getDatatype().stringValue());
+            } else {
+                out.writeByte(PLAIN_LITERAL);
+            }
+        }
+        writeString(out, value.stringValue());
+    }
+
+    /**
+     * Read an rdf value.
+     */
+    private static Value readValue(DataInput in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+        case URI_VALUE:
+            return new URIImpl(readString(in));
+        case BNODE_VALUE:
+            return new BNodeImpl(readString(in));
+        case PLAIN_LITERAL:
+            return new LiteralImpl(readString(in));
+        case LANGUAGE_LITERAL:
+            String language = readString(in);
+            return new LiteralImpl(readString(in), language);
+        case TYPED_LITERAL:
+            URI datatype = new URIImpl(readString(in));
+            return new LiteralImpl(readString(in), datatype);
+        default:
+            throw new IOException("Unknown value type in change log:  " + type);
+        }
+    }
+
+    /**
+     * Write a string of any length as utf-8.
+     */
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString.
+     */
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt string length in change log:  " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,295 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.inputDateFormat;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Replays the batches in a ChangeLog at disk speed. The changes come with
+ * their munged statements so the updater syncs them without touching
+ * wikibase. Replaying starts at the first batch that left off at or after the
+ * start time, or at the first batch with a change at or after the start
+ * rcid, and the last batch in the log is the last batch. Only the newest
+ * segment can be torn, by a crash or by a batch that is still being written,
+ * so its torn tail is skipped with a warning. A torn or corrupt batch in any
+ * other segment fails the replay rather than silently skipping changes.
+ */
+public class ChangeLogChangeSource implements Change.Source<ChangeLogChangeSource.Batch> {
+    private static final Logger log = LoggerFactory.getLogger(ChangeLogChangeSource.class);
+
+    /**
+     * Directory holding the log.
+     */
+    private final File dir;
+    /**
+     * Skip batches that left off before this. Null if we start by rcid.
+     */
+    private final Date start;
+    /**
+     * Skip batches whose changes all have an rcid before this. -1 if we start
+     * by time.
+     */
+    private final long startRcid;
+    /**
+     * Segments left to read.
+     */
+    private List<File> segments;
+    /**
+     * The segment being read, null if we haven't opened one.
+     */
+    private File segment;
+    /**
+     * Reads the segment being read, null if we haven't opened one.
+     */
+    private DataInputStream in;
+    /**
+     * The next batch, read ahead so we know when we're on the last one. Null
+     * if there aren't any more.
+     */
+    private Batch next;
+
+    /**
+     * Build the source.
+     *
+     * @param dir directory holding the log
+     * @param start replay batches that left off at or after this
+     */
+    public ChangeLogChangeSource(File dir, Date start) {
+        this(dir, start, -1);
+    }
+
+    /**
+     * Build a source that starts at an rcid.
+     *
+     * @param dir directory holding the log
+     * @param startRcid replay batches with any change at or after this rcid
+     *            or without rcids
+     */
+    public ChangeLogChangeSource(File dir, long startRcid) {
+        this(dir, null, startRcid);
+    }
+
+    private ChangeLogChangeSource(File dir, Date start, long startRcid) {
+        this.dir = dir;
+        this.start = start;
+        this.startRcid = startRcid;
+    }
+
+    @Override
+    public Batch firstBatch() throws RetryableException {
+        close();
+        segments = ChangeLog.segments(dir);
+        // Batches in a segment come before the next segment's first batch so we can skip whole segments
+        while (segments.size() > 1 && before(segments.get(1))) {
+            segments.remove(0);
+        }
+        next = read();
+        if (next == null) {
+            log.info("Nothing to replay in change log {}", dir);
+            return new Batch(ImmutableList.<Change>of(), null, true);
+        }
+        return advance();
+    }
+
+    @Override
+    public Batch nextBatch(Batch lastBatch) throws RetryableException {
+        if (next == null) {
+            return new Batch(ImmutableList.<Change>of(), lastBatch.leftOffDate(), true);
+        }
+        return advance();
+    }
+
+    /**
+     * Hand out the read ahead batch and read the one after it.
+     */
+    private Batch advance() {
+        Batch current = next;
+        next = read();
+        if (next == null) {
+            close();
+            return new Batch(ImmutableList.copyOf(current.changes()), current.leftOffDate, true);
+        }
+        return current;
+    }
+
+    /**
+     * Read the next batch that left off after the start.
+     *
+     * @return null if there aren't any more
+     */
+    private Batch read() {
+        while (true) {
+            if (in == null) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                if (!open(segments.remove(0))) {
+                    continue;
+                }
+            }
+            Batch batch = readFromSegment();
+            if (batch == null) {
+                close();
+                continue;
+            }
+            if (wanted(batch)) {
+                return batch;
+            }
+        }
+    }
+
+    /**
+     * Does a segment start at or before where we start so we can skip the
+     * segments before it?
+     */
+    private boolean before(File nextSegment) {
+        if (start != null) {
+            return ChangeLog.startMillis(nextSegment) < start.getTime();
+        }
+        long rcid = ChangeLog.startRcid(nextSegment);
+        return rcid >= 0 && rcid <= startRcid;
+    }
+
+    /**
+     * Should a batch be replayed?
+     */
+    private boolean wanted(Batch batch) {
+        if (start != null) {
+            return batch.leftOffDate == null || !batch.leftOffDate.before(start);
+        }
+        boolean hasRcid = false;
+        for (Change change : batch.changes()) {
+            if (change.rcid() >= startRcid) {
+                return true;
+            }
+            hasRcid |= change.rcid() >= 0;
+        }
+        // Batches without rcids can't be placed so replay them to be safe
+        return !hasRcid;
+    }
+
+    /**
+     * Is the segment being read the newest one, the only one that can be
+     * torn?
+     */
+    private boolean readingNewest() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Read the next batch in the current segment.
+     *
+     * @return null if we're at the end of the segment
+     */
+    private Batch readFromSegment() {
+        try {
+            int marker = in.read();
+            if (marker < 0) {
+                return null;
+            }
+            if (marker != ChangeLog.BATCH) {
+                throw new IOException("Unexpected batch marker:  " + marker);
+            }
+            List<Change> changes = new ArrayList<>();
+            Date leftOff = ChangeLog.readBatch(in, changes);
+            return new Batch(ImmutableList.copyOf(changes), leftOff, false);
+        } catch (IOException e) {
+            return torn(e);
+        }
+    }
+
+    /**
+     * Handle a segment that is torn or corrupt.
+     *
+     * @return null to stop reading the segment if it is the newest
+     * @throws FatalException if it isn't the newest
+     */
+    private Batch torn(IOException e) {
+        if (readingNewest()) {
+            log.warn("Skipping torn end of the newest change log segment {}", segment, e);
+            return null;
+        }
+        throw new FatalException("Change log segment " + segment + " is torn or corrupt. Replay from a store that "
+                + "has the changes in it or rebuild the store.", e);
+    }
+
+    /**
+     * Open a segment.
+     *
+     * @return false if the segment is the newest and is too torn to open so it
+     *         was skipped
+     */
+    private boolean open(File segment) {
+        log.info("Replaying change log segment {}", segment);
+        this.segment = segment;
+        try {
+            in = ChangeLog.openSegment(segment);
+            return true;
+        } catch (IOException e) {
+            torn(e);
+            return false;
+        }
+    }
+
+    /**
+     * Close the current segment if there is one.
+     */
+    private void close() {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.warn("Error closing change log segment", e);
+        }
+        in = null;
+    }
+
+    /**
+     * A batch replayed from the log.
+     */
+    public static final class Batch extends Change.Batch.AbstractDefaultImplementation {
+        /**
+         * Where the batch left off.
+         */
+        private final Date leftOffDate;
+        /**
+         * Is this the last batch in the log?
+         */
+        private final boolean last;
+
+        private Batch(ImmutableList<Change> changes, Date leftOffDate, boolean last) {
+            super(changes, changes.size(), leftOffDate == null ? "unknown" : inputDateFormat().format(leftOffDate));
+            this.leftOffDate = leftOffDate;
+            this.last = last;
+        }
+
+        @Override
+        public String advancedUnits() {
+            return "changes";
+        }
+
+        @Override
+        public Date leftOffDate() {
+            return leftOffDate;
+        }
+
+        @Override
+        public boolean last() {
+            return last;
+        }
+    }
+}
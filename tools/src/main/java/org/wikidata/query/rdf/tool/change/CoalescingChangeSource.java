@@ -0,0 +1,233 @@
+package org.wikidata.query.rdf.tool.change;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Wraps a change source and holds back changes to entities that were released
+ * recently so a flurry of edits to the same entity, like a bot run, turns into
+ * one sync per window rather than one per batch. Changes to an entity that
+ * hasn't been released within the window pass straight through so quiet
+ * entities aren't delayed at all. Held changes are merged, keeping the newest
+ * revision, and released once the window since the entity's last release is
+ * up so they are never more than one window late.
+ * <p>
+ * Batches report a left off date no later than the oldest held change so
+ * restarting the updater can't skip changes that were still held.
+ *
+ * @param <B> type of the wrapped source's batches
+ */
+public class CoalescingChangeSource<B extends Change.Batch> implements Change.Source<CoalescingChangeSource.Batch<B>>,
+        Change.WaitsForChanges {
+    private static final Logger log = LoggerFactory.getLogger(CoalescingChangeSource.class);
+
+    /**
+     * The wrapped source.
+     */
+    private final Change.Source<B> delegate;
+    /**
+     * Minimum time between releases of the same entity in nanoseconds.
+     */
+    private final long windowNanos;
+    /**
+     * Source of time.
+     */
+    private final Ticker ticker;
+    /**
+     * Held changes by entity id in the order they were first held.
+     */
+    private final Map<String, Change> held = new LinkedHashMap<>();
+    /**
+     * When entities were last released, in ticker nanoseconds. Only contains
+     * entities released within the window.
+     */
+    private final Map<String, Long> released = new HashMap<>();
+
+    /**
+     * Build the source.
+     *
+     * @param delegate source to wrap
+     * @param window minimum time between releases of the same entity
+     * @param unit unit of window
+     */
+    public CoalescingChangeSource(Change.Source<B> delegate, long window, TimeUnit unit) {
+        this(delegate, window, unit, Ticker.systemTicker());
+    }
+
+    /**
+     * Build the source with a custom ticker.
+     */
+    CoalescingChangeSource(Change.Source<B> delegate, long window, TimeUnit unit, Ticker ticker) {
+        this.delegate = delegate;
+        this.windowNanos = unit.toNanos(window);
+        this.ticker = ticker;
+    }
+
+    @Override
+    public Batch<B> firstBatch() throws RetryableException {
+        held.clear();
+        released.clear();
+        return coalesce(delegate.firstBatch());
+    }
+
+    @Override
+    public Batch<B> nextBatch(Batch<B> lastBatch) throws RetryableException {
+        return coalesce(delegate.nextBatch(lastBatch.inner));
+    }
+
+    @Override
+    public boolean waitsForChanges() {
+        return Change.waitsForChanges(delegate);
+    }
+
+    /**
+     * Number of changes currently held.
+     */
+    public int heldCount() {
+        return held.size();
+    }
+
+    /**
+     * Merge a batch from the wrapped source into the held changes and release
+     * what is ready.
+     */
+    private Batch<B> coalesce(B inner) {
+        long now = ticker.read();
+        forgetOldReleases(now);
+        int merged = 0;
+        for (Change change : inner.changes()) {
+            Change old = held.get(change.entityId());
+            if (old == null) {
+                held.put(change.entityId(), change);
+            } else {
+                merged++;
+                if (newer(change, old)) {
+                    // Keep the entity's place in line but with the newer change
+                    held.put(change.entityId(), change);
+                }
+            }
+        }
+        List<Change> changes = new ArrayList<>(held.size());
+        Iterator<Change> itr = held.values().iterator();
+        while (itr.hasNext()) {
+            Change change = itr.next();
+            if (inner.last() || !released.containsKey(change.entityId())) {
+                changes.add(change);
+                released.put(change.entityId(), now);
+                itr.remove();
+            }
+        }
+        if (merged > 0 || !held.isEmpty()) {
+            log.debug("Merged {} repeat changes, releasing {} and holding {}", merged, changes.size(), held.size());
+        }
+        return new Batch<>(inner, ImmutableList.copyOf(changes), leftOffDate(inner));
+    }
+
+    /**
+     * Forget releases that happened more than a window ago.
+     */
+    private void forgetOldReleases(long now) {
+        Iterator<Long> itr = released.values().iterator();
+        while (itr.hasNext()) {
+            if (now - itr.next() >= windowNanos) {
+                itr.remove();
+            }
+        }
+    }
+
+    /**
+     * The left off date for a batch, no later than the oldest held change.
+     */
+    private Date leftOffDate(B inner) {
+        Date leftOff = inner.leftOffDate();
+        if (leftOff == null) {
+            return null;
+        }
+        for (Change change : held.values()) {
+            if (change.timestamp() != null && change.timestamp().before(leftOff)) {
+                leftOff = change.timestamp();
+            }
+        }
+        return leftOff;
+    }
+
+    /**
+     * Is this change newer than the other one? Changes without revisions
+     * force a sync so they always win.
+     */
+    private static boolean newer(Change change, Change other) {
+        if (other.revision() < 0) {
+            return false;
+        }
+        return change.revision() < 0 || change.revision() > other.revision();
+    }
+
+    /**
+     * Batch of released changes wrapping the wrapped source's batch.
+     *
+     * @param <B> type of the wrapped source's batches
+     */
+    public static final class Batch<B extends Change.Batch> implements Change.Batch {
+        /**
+         * The wrapped source's batch.
+         */
+        private final B inner;
+        /**
+         * Changes released in this batch.
+         */
+        private final ImmutableList<Change> changes;
+        /**
+         * Where this batch left off.
+         */
+        private final Date leftOffDate;
+
+        private Batch(B inner, ImmutableList<Change> changes, Date leftOffDate) {
+            this.inner = inner;
+            this.changes = changes;
+            this.leftOffDate = leftOffDate;
+        }
+
+        @Override
+        public List<Change> changes() {
+            return changes;
+        }
+
+        @Override
+        public String advancedUnits() {
+            return inner.advancedUnits();
+        }
+
+        @Override
+        public long advanced() {
+            return inner.advanced();
+        }
+
+        @Override
+        public String leftOffHuman() {
+            return inner.leftOffHuman();
+        }
+
+        @Override
+        public Date leftOffDate() {
+            return leftOffDate;
+        }
+
+        @Override
+        public boolean last() {
+            return inner.last();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.inputDateFormat;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Gets changes pushed from a server-sent events stream of recent changes like
+ * the one at https://stream.wikimedia.org/v2/stream/recentchange rather than
+ * polling the recent changes api. Each batch waits a little while for the
+ * first change and then takes whatever else has arrived.
+ * <p>
+ * If the stream falls too far behind, either because it has been disconnected
+ * for too long or because the changes coming out of it are too old, we fall
+ * back to polling with a RecentChangesPoller starting where the stream left
+ * off. Once polling catches up we go back to the stream, starting it where
+ * polling left off. Both may return some changes twice around the switch but
+ * the updater skips revisions it already has.
+ */
+public class EventStreamChangeSource implements Change.Source<Change.Batch>, Change.WaitsForChanges {
+    private static final Logger log = LoggerFactory.getLogger(EventStreamChangeSource.class);
+
+    /**
+     * Url of the stream.
+     */
+    private final URI stream;
+    /**
+     * Wikibase to poll when we fall back to polling.
+     */
+    private final WikibaseRepository wikibase;
+    /**
+     * Only take changes with this server_name from the stream.
+     */
+    private final String serverName;
+    /**
+     * Where to start.
+     */
+    private final Date firstStartTime;
+    /**
+     * Maximum number of changes in a batch.
+     */
+    private final int batchSize;
+    /**
+     * How far behind we can get before falling back to polling.
+     */
+    private final long maxLagMillis;
+    /**
+     * How long to wait for the first change in a batch.
+     */
+    private final long maxWaitMillis;
+    /**
+     * Reads the stream, null if we're polling.
+     */
+    private EventStreamReader reader;
+    /**
+     * Polls when we've fallen back to polling, null if we're reading the
+     * stream.
+     */
+    private RecentChangesPoller poller;
+
+    /**
+     * Build the source.
+     *
+     * @param stream url of the stream
+     * @param wikibase wikibase to poll if the stream falls behind
+     * @param serverName only take changes from this server
+     * @param firstStartTime where to start
+     * @param batchSize maximum number of changes in a batch
+     * @param maxLagMillis how far behind the stream can get before we fall
+     *            back to polling
+     * @param maxWaitMillis how long each batch waits for its first change
+     */
+    public EventStreamChangeSource(URI stream, WikibaseRepository wikibase, String serverName, Date firstStartTime,
+            int batchSize, long maxLagMillis, long maxWaitMillis) {
+        this.stream = stream;
+        this.wikibase = wikibase;
+        this.serverName = serverName;
+        this.firstStartTime = firstStartTime;
+        this.batchSize = batchSize;
+        this.maxLagMillis = maxLagMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public Change.Batch firstBatch() throws RetryableException {
+        stop();
+        startReading(firstStartTime);
+        return read(firstStartTime);
+    }
+
+    @Override
+    public Change.Batch nextBatch(Change.Batch lastBatch) throws RetryableException {
+        Date leftOff = lastBatch.leftOffDate();
+        if (poller == null) {
+            return read(leftOff);
+        }
+        RecentChangesPoller.Batch batch = poller.nextBatch((RecentChangesPoller.Batch) lastBatch);
+        if (batch.changes().isEmpty() || !tooOld(batch.leftOffDate())) {
+            log.info("Polling caught up at {}, switching back to the event stream", batch.leftOffHuman());
+            poller = null;
+            startReading(batch.leftOffDate());
+        }
+        return batch;
+    }
+
+    /**
+     * Reading the stream waits up to maxWaitMillis for the first change. Empty
+     * batches while polling mean polling caught up and we're back on the
+     * stream so the next batch waits too.
+     */
+    @Override
+    public boolean waitsForChanges() {
+        return true;
+    }
+
+    /**
+     * Stop reading the stream.
+     */
+    public void stop() {
+        if (reader != null) {
+            reader.stop();
+            reader = null;
+        }
+        poller = null;
+    }
+
+    /**
+     * Read a batch from the stream, falling back to polling if the stream is
+     * too far behind.
+     *
+     * @param leftOff where the last batch left off
+     */
+    private Change.Batch read(Date leftOff) throws RetryableException {
+        List<Change> changes = new ArrayList<>(batchSize);
+        try {
+            reader.take(changes, batchSize, maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetryableException("Interrupted waiting for events", e);
+        }
+        if (reader.disconnectedMillis() > maxLagMillis
+                || (!changes.isEmpty() && tooOld(changes.get(0).timestamp()))) {
+            log.warn("Event stream is more than {} ms behind, falling back to polling from {}", maxLagMillis,
+                    inputDateFormat().format(leftOff));
+            stop();
+            poller = new RecentChangesPoller(wikibase, leftOff, batchSize);
+            return poller.firstBatch();
+        }
+        // Using LinkedHashMap here so that changes come out sorted by order of arrival
+        Map<String, Change> changesByTitle = new LinkedHashMap<>();
+        long nextStartTime = leftOff.getTime();
+        for (Change change : changes) {
+            Change dupe = changesByTitle.put(change.entityId(), change);
+            if (dupe != null && dupe.revision() > change.revision()) {
+                changesByTitle.remove(change.entityId());
+                changesByTitle.put(change.entityId(), dupe);
+            }
+            nextStartTime = Math.max(nextStartTime, change.timestamp().getTime());
+        }
+        String upTo = inputDateFormat().format(new Date(nextStartTime - 1000));
+        return new Batch(ImmutableList.copyOf(changesByTitle.values()), nextStartTime - leftOff.getTime(), upTo,
+                new Date(nextStartTime));
+    }
+
+    /**
+     * Start reading the stream.
+     */
+    private void startReading(Date since) {
+        reader = new EventStreamReader(stream, serverName, since, batchSize * 10);
+        reader.start();
+    }
+
+    /**
+     * Is this date too far behind now?
+     */
+    private boolean tooOld(Date date) {
+        return System.currentTimeMillis() - date.getTime() > maxLagMillis;
+    }
+
+    /**
+     * Batch of changes read from the stream.
+     */
+    public static final class Batch extends Change.Batch.AbstractDefaultImplementation {
+        /**
+         * The date where we last left off.
+         */
+        private final Date leftOffDate;
+
+        private Batch(ImmutableList<Change> changes, long advanced, String leftOff, Date leftOffDate) {
+            super(changes, advanced, leftOff);
+            this.leftOffDate = leftOffDate;
+        }
+
+        @Override
+        public String advancedUnits() {
+            return "milliseconds";
+        }
+
+        @Override
+        public Date leftOffDate() {
+            return leftOffDate;
+        }
+    }
+}
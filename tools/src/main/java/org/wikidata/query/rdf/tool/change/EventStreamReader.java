@@ -0,0 +1,307 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.wikidata.query.rdf.tool.StreamUtils.utf8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a server-sent events stream of recent changes on a background thread
+ * and queues the changes for one wikibase. Reconnects when the stream drops,
+ * resuming after the last event it read using the Last-Event-ID header. The
+ * queue is bounded so if nothing takes from it the reader stops reading and
+ * the changes get more and more stale.
+ */
+class EventStreamReader implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(EventStreamReader.class);
+
+    /**
+     * Longest we wait between attempts to reconnect.
+     */
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * How long the connection can go without sending anything before we
+     * consider it dead. Servers send keep alive comments far more often.
+     */
+    private static final int SOCKET_TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Url of the stream.
+     */
+    private final URI stream;
+    /**
+     * Only changes with this server_name are queued.
+     */
+    private final String serverName;
+    /**
+     * Where we start reading the stream if we don't have an event id.
+     */
+    private final Date since;
+    /**
+     * Changes read and not yet taken.
+     */
+    private final BlockingQueue<Change> changes;
+    /**
+     * Client used to read the stream.
+     */
+    private final CloseableHttpClient client = HttpClients.createDefault();
+    /**
+     * Thread doing the reading.
+     */
+    private final Thread thread;
+    /**
+     * Id of the last event read, null if we haven't read one.
+     */
+    private volatile String lastEventId;
+    /**
+     * When the stream was last lost, 0 if it is connected.
+     */
+    private volatile long disconnectedSince;
+    /**
+     * The current request so we can abort it to stop.
+     */
+    private volatile HttpGet request;
+    /**
+     * Should we keep reading?
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Build the reader. Call start to start reading.
+     *
+     * @param stream url of the stream
+     * @param serverName only changes from this server are queued
+     * @param since where to start reading the stream
+     * @param capacity maximum number of changes to queue
+     */
+    EventStreamReader(URI stream, String serverName, Date since, int capacity) {
+        this.stream = stream;
+        this.serverName = serverName;
+        this.since = since;
+        changes = new ArrayBlockingQueue<>(capacity);
+        disconnectedSince = System.currentTimeMillis();
+        thread = new Thread(this, "event stream reader");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start reading.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop reading and throw away anything queued.
+     */
+    void stop() {
+        running = false;
+        HttpGet current = request;
+        if (current != null) {
+            current.abort();
+        }
+        thread.interrupt();
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.warn("Error closing event stream client", e);
+        }
+        changes.clear();
+    }
+
+    /**
+     * Take up to max changes, waiting up to timeout for the first one.
+     *
+     * @return the number of changes taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int take(Collection<Change> into, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        Change first = changes.poll(timeout, unit);
+        if (first == null) {
+            return 0;
+        }
+        into.add(first);
+        return 1 + changes.drainTo(into, max - 1);
+    }
+
+    /**
+     * How long the stream has been disconnected, 0 if it is connected.
+     */
+    long disconnectedMillis() {
+        long since = disconnectedSince;
+        return since == 0 ? 0 : System.currentTimeMillis() - since;
+    }
+
+    @Override
+    public void run() {
+        long backoff = 0;
+        while (running) {
+            try {
+                read();
+                backoff = 0;
+            } catch (IOException | URISyntaxException e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("Error reading event stream {}", stream, e);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (disconnectedSince == 0) {
+                disconnectedSince = System.currentTimeMillis();
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2 + 100);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connect to the stream and read it until it ends.
+     */
+    private void read() throws IOException, URISyntaxException, InterruptedException {
+        HttpGet get = new HttpGet(connectUri());
+        get.setConfig(RequestConfig.custom().setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                .setSocketTimeout(SOCKET_TIMEOUT_MILLIS).build());
+        get.setHeader("Accept", "text/event-stream");
+        if (lastEventId != null) {
+            get.setHeader("Last-Event-ID", lastEventId);
+        }
+        request = get;
+        try (CloseableHttpResponse response = client.execute(get)) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("Non-200 response from event stream:  " + response.getStatusLine());
+            }
+            log.info("Connected to event stream {}", stream);
+            disconnectedSince = 0;
+            try (BufferedReader reader = new BufferedReader(utf8(response.getEntity().getContent()))) {
+                readEvents(reader);
+            }
+        }
+    }
+
+    /**
+     * Uri to connect to. We only ask for a start time if we can't resume
+     * after the last event id.
+     */
+    private URI connectUri() throws URISyntaxException {
+        if (lastEventId != null) {
+            return stream;
+        }
+        return new URIBuilder(stream).addParameter("since", Long.toString(since.getTime())).build();
+    }
+
+    /**
+     * Read server-sent events until the stream ends.
+     */
+    private void readEvents(BufferedReader reader) throws IOException, InterruptedException {
+        String id = null;
+        StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (data.length() > 0) {
+                    handle(data.toString());
+                }
+                if (id != null) {
+                    lastEventId = id;
+                }
+                id = null;
+                data.setLength(0);
+                continue;
+            }
+            if (line.startsWith(":")) {
+                // Comment, usually a keep alive
+                continue;
+            }
+            int colon = line.indexOf(':');
+            String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            switch (field) {
+            case "id":
+                id = value;
+                break;
+            case "data":
+                if (data.length() > 0) {
+                    data.append('\n');
+                }
+                data.append(value);
+                break;
+            default:
+                // We don't care about event types or retry hints
+            }
+        }
+    }
+
+    /**
+     * Queue the change in an event if it is one we care about.
+     */
+    private void handle(String data) throws InterruptedException {
+        Change change;
+        try {
+            change = parseEvent(data, serverName);
+        } catch (ParseException | ClassCastException e) {
+            log.warn("Skipping unparseable event:  {}", data, e);
+            return;
+        }
+        if (change != null) {
+            changes.put(change);
+        }
+    }
+
+    /**
+     * Parse a recent change event.
+     *
+     * @return the change or null if the event isn't about an entity on our
+     *         server
+     * @throws ParseException if the event isn't json
+     */
+    static Change parseEvent(String data, String serverName) throws ParseException {
+        JSONObject event = (JSONObject) new JSONParser().parse(data);
+        if (!serverName.equals(event.get("server_name"))) {
+            return null;
+        }
+        Long namespace = (Long) event.get("namespace");
+        if (namespace == null || (namespace != 0 && namespace != 120)) {
+            return null;
+        }
+        Object title = event.get("title");
+        Long seconds = (Long) event.get("timestamp");
+        if (title == null || seconds == null) {
+            return null;
+        }
+        long revision = -1;
+        JSONObject revisions = (JSONObject) event.get("revision");
+        if (revisions != null && revisions.get("new") != null) {
+            revision = (Long) revisions.get("new");
+        }
+        Long rcid = (Long) event.get("id");
+        return new Change(title.toString(), revision, new Date(TimeUnit.SECONDS.toMillis(seconds)), rcid == null ? -1 : rcid);
+    }
+}
@@ -2,18 +2,32 @@ package org.wikidata.query.rdf.tool.change;
 
 import static java.lang.Math.min;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
+import org.wikidata.query.rdf.tool.change.IdRangeCheckpoint.Shard;
+import org.wikidata.query.rdf.tool.exception.FatalException;
 import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
 
 import com.google.common.collect.ImmutableList;
 
 /**
  * Blindly iterates an id range and returns those as "changes". Can be used to
- * load known ids.
+ * load known ids. Can optionally ask wikibase which ids exist first so the
+ * gaps left by deleted and never created entities are skipped cheaply and can
+ * record its progress in a checkpoint so a crashed reload can resume.
  */
 public class IdRangeChangeSource implements Change.Source<IdRangeChangeSource.Batch> {
+    /**
+     * Most ids wikibase will check for existence at once.
+     */
+    private static final int EXISTS_CHUNK = 50;
+
     /**
      * Build and IdChangeSource for items as opposed to properties.
      */
@@ -37,6 +51,14 @@ public class IdRangeChangeSource implements Change.Source<IdRangeChangeSource.Ba
      * Batch size to split up ids.
      */
     private final long batchSize;
+    /**
+     * Used to skip ids that don't exist, null if we don't skip them.
+     */
+    private WikibaseRepository wikibase;
+    /**
+     * Shard whose progress we record, null if we don't record it.
+     */
+    private Shard checkpoint;
 
     public IdRangeChangeSource(String format, long start, long stop, long batchSize) {
         this.format = format;
@@ -45,6 +67,27 @@ public class IdRangeChangeSource implements Change.Source<IdRangeChangeSource.Ba
         this.batchSize = batchSize;
     }
 
+    /**
+     * Skip ids that wikibase says don't exist.
+     *
+     * @return this for chaining
+     */
+    public IdRangeChangeSource skipMissing(WikibaseRepository wikibase) {
+        this.wikibase = wikibase;
+        return this;
+    }
+
+    /**
+     * Record progress in a checkpoint shard. Each batch is recorded when the
+     * next one is requested because by then it has been synced.
+     *
+     * @return this for chaining
+     */
+    public IdRangeChangeSource checkpointTo(Shard checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
     @Override
     public Batch firstBatch() throws RetryableException {
         return batch(start);
@@ -52,6 +95,13 @@ public class IdRangeChangeSource implements Change.Source<IdRangeChangeSource.Ba
 
     @Override
     public Batch nextBatch(Batch lastBatch) throws RetryableException {
+        if (checkpoint != null) {
+            try {
+                checkpoint.advance(lastBatch.nextStart);
+            } catch (IOException e) {
+                throw new FatalException("Couldn't save checkpoint", e);
+            }
+        }
         return batch(lastBatch.nextStart);
     }
 
@@ -76,7 +126,8 @@ public class IdRangeChangeSource implements Change.Source<IdRangeChangeSource.Ba
 
         @Override
         public boolean last() {
-            return nextStart > stop;
+            // With a checkpoint the final batch is followed by an empty one so it gets recorded too
+            return nextStart > stop && (checkpoint == null || checkpoint.done());
         }
 
         @Override
@@ -86,14 +137,44 @@ public class IdRangeChangeSource implements Change.Source<IdRangeChangeSource.Ba
     }
 
     /**
-     * Build a batch starting at batchStart.
+     * Build a batch starting at batchStart. When skipping missing ids this
+     * keeps going until it has found some that exist or hit the end of the
+     * range because the updater sleeps after empty batches.
      */
-    private Batch batch(long batchStart) {
-        long batchStop = min(batchStart + batchSize, stop + 1);
+    private Batch batch(long batchStart) throws RetryableException {
+        long batchStop = batchStart;
         ImmutableList.Builder<Change> changes = ImmutableList.builder();
-        for (long id = batchStart; id < batchStop; id++) {
-            changes.add(new Change(String.format(Locale.ROOT, format, id), -1, null, id));
+        boolean found = false;
+        while (!found && batchStop <= stop) {
+            long windowStart = batchStop;
+            batchStop = min(windowStart + batchSize, stop + 1);
+            for (long id = windowStart; id < batchStop; id += EXISTS_CHUNK) {
+                found |= addExisting(changes, id, min(id + EXISTS_CHUNK, batchStop));
+            }
+            found |= wikibase == null;
         }
         return new Batch(changes.build(), batchStop - batchStart, batchStop);
     }
+
+    /**
+     * Add changes for the ids from chunkStart up to chunkStop that exist.
+     *
+     * @return true if any were added
+     */
+    private boolean addExisting(ImmutableList.Builder<Change> changes, long chunkStart, long chunkStop)
+            throws RetryableException {
+        List<String> ids = new ArrayList<>((int) (chunkStop - chunkStart));
+        for (long id = chunkStart; id < chunkStop; id++) {
+            ids.add(String.format(Locale.ROOT, format, id));
+        }
+        Set<String> existing = wikibase == null ? null : wikibase.existingEntities(ids);
+        boolean added = false;
+        for (int i = 0; i < ids.size(); i++) {
+            if (existing == null || existing.contains(ids.get(i))) {
+                changes.add(new Change(ids.get(i), -1, null, chunkStart + i));
+                added = true;
+            }
+        }
+        return added;
+    }
 }
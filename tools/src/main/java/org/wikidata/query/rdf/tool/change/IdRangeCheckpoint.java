@@ -0,0 +1,190 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.wikidata.query.rdf.tool.StreamUtils.utf8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits an id range into shards that can be reloaded concurrently and
+ * records how far each shard has gotten in a small text file so a reload can
+ * pick up where it left off after a crash. Each line of the file is a shard's
+ * first id, last id and the next id it needs to load. The file is rewritten
+ * and renamed into place every time a shard advances so it is never torn.
+ */
+public final class IdRangeCheckpoint {
+    /**
+     * The checkpoint file, null if progress isn't saved.
+     */
+    private final File file;
+    /**
+     * The shards.
+     */
+    private final List<Shard> shards;
+
+    /**
+     * Split a range into shards, loading their progress from the checkpoint
+     * file if it has some.
+     *
+     * @param file the checkpoint file or null to not save progress
+     * @param start first id in the range
+     * @param stop last id in the range
+     * @param shardCount number of shards to split the range into
+     * @throws IOException if the checkpoint can't be read or is for a
+     *             different range or number of shards
+     */
+    public static IdRangeCheckpoint open(File file, long start, long stop, int shardCount) throws IOException {
+        IdRangeCheckpoint checkpoint = new IdRangeCheckpoint(file, start, stop, shardCount);
+        if (file != null && file.exists()) {
+            checkpoint.load();
+        }
+        return checkpoint;
+    }
+
+    private IdRangeCheckpoint(File file, long start, long stop, int shardCount) {
+        this.file = file;
+        this.shards = split(start, stop, shardCount);
+    }
+
+    /**
+     * The shards.
+     */
+    public List<Shard> shards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Split a range into roughly equal shards.
+     */
+    private List<Shard> split(long start, long stop, int shardCount) {
+        List<Shard> shards = new ArrayList<>(shardCount);
+        long size = Math.max(1, (stop - start + shardCount) / shardCount);
+        for (long shardStart = start; shardStart <= stop && shards.size() < shardCount; shardStart += size) {
+            long shardStop = shards.size() == shardCount - 1 ? stop : Math.min(stop, shardStart + size - 1);
+            shards.add(new Shard(shardStart, shardStop, shardStart));
+        }
+        return shards;
+    }
+
+    /**
+     * Load progress from the checkpoint file.
+     */
+    private void load() throws IOException {
+        List<Shard> loaded = new ArrayList<>(shards.size());
+        try (BufferedReader reader = new BufferedReader(utf8(new FileInputStream(file)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split(" ");
+                if (parts.length != 3) {
+                    throw new IOException("Invalid line in checkpoint " + file + ":  " + line);
+                }
+                try {
+                    loaded.add(new Shard(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid line in checkpoint " + file + ":  " + line, e);
+                }
+            }
+        }
+        if (loaded.size() != shards.size()) {
+            throw new IOException("Checkpoint " + file + " has " + loaded.size() + " shards but we want "
+                    + shards.size());
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            Shard want = shards.get(i);
+            Shard have = loaded.get(i);
+            if (want.start != have.start || want.stop != have.stop) {
+                throw new IOException("Checkpoint " + file + " is for a different id range");
+            }
+            want.next = have.next;
+        }
+    }
+
+    /**
+     * Save progress to the checkpoint file.
+     */
+    private synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = utf8(new FileOutputStream(temp))) {
+            for (Shard shard : shards) {
+                writer.write(String.format(Locale.ROOT, "%d %d %d\n", shard.start, shard.stop, shard.next()));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * One shard of the range.
+     */
+    public final class Shard {
+        /**
+         * First id in the shard.
+         */
+        private final long start;
+        /**
+         * Last id in the shard.
+         */
+        private final long stop;
+        /**
+         * Next id the shard needs to load.
+         */
+        private volatile long next;
+
+        private Shard(long start, long stop, long next) {
+            this.start = start;
+            this.stop = stop;
+            this.next = next;
+        }
+
+        /**
+         * Last id in the shard.
+         */
+        public long stop() {
+            return stop;
+        }
+
+        /**
+         * Next id the shard needs to load.
+         */
+        public long next() {
+            return next;
+        }
+
+        /**
+         * Has the whole shard been loaded?
+         */
+        public boolean done() {
+            return next > stop;
+        }
+
+        /**
+         * Record that every id before next has been loaded.
+         *
+         * @throws IOException if the checkpoint can't be saved
+         */
+        public void advance(long next) throws IOException {
+            this.next = next;
+            save();
+        }
+
+        @Override
+        public String toString() {
+            return start + "-" + stop;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.wikidata.query.rdf.tool.change;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Wraps a change source and fetches the next few batches on a background
+ * thread while the caller is busy with the current one. Batches are still
+ * fetched one after the other, each from the one before it, so the order and
+ * the continuation state of the wrapped source are preserved. We stop
+ * prefetching after an empty batch because that means we've caught up and
+ * the caller is about to wait before polling again anyway.
+ * <p>
+ * Must only be used from a single thread, like all change sources.
+ *
+ * @param <B> type of the wrapped source's batches
+ */
+public class PrefetchingChangeSource<B extends Change.Batch> implements Change.Source<B>, Change.WaitsForChanges {
+    private static final Logger log = LoggerFactory.getLogger(PrefetchingChangeSource.class);
+
+    /**
+     * The wrapped source.
+     */
+    private final Change.Source<B> delegate;
+    /**
+     * How many batches to keep in flight.
+     */
+    private final int depth;
+    /**
+     * Runs the fetches. Single threaded so they happen in order.
+     */
+    private final ExecutorService executor;
+    /**
+     * Batches being fetched, in order. Each one continues from the one before
+     * it and the first one continues from handedOut. A fetch that decided not
+     * to fetch returns null.
+     */
+    private final Deque<Future<B>> prefetched = new ArrayDeque<>();
+    /**
+     * The last batch returned to the caller.
+     */
+    private B handedOut;
+
+    /**
+     * Build the source.
+     *
+     * @param delegate source to wrap
+     * @param depth number of batches to fetch ahead
+     */
+    public PrefetchingChangeSource(Change.Source<B> delegate, int depth) {
+        this.delegate = delegate;
+        this.depth = depth;
+        ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("prefetch %s");
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory.build());
+    }
+
+    @Override
+    public B firstBatch() throws RetryableException {
+        discardPrefetched();
+        return handOut(delegate.firstBatch());
+    }
+
+    @Override
+    public B nextBatch(B lastBatch) throws RetryableException {
+        if (lastBatch != handedOut || prefetched.isEmpty()) {
+            // The caller went off script so we can't use what we fetched
+            discardPrefetched();
+            return handOut(delegate.nextBatch(lastBatch));
+        }
+        B batch = takePrefetched();
+        if (batch == null) {
+            discardPrefetched();
+            batch = delegate.nextBatch(lastBatch);
+        }
+        return handOut(batch);
+    }
+
+    @Override
+    public boolean waitsForChanges() {
+        return Change.waitsForChanges(delegate);
+    }
+
+    /**
+     * Stop prefetching.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Should we fetch the batch after this one before we're asked?
+     */
+    private static boolean worthPrefetchingAfter(Change.Batch batch) {
+        return batch != null && !batch.last() && !batch.changes().isEmpty();
+    }
+
+    /**
+     * Record the batch we're returning and start fetching the ones after it.
+     */
+    private B handOut(B batch) {
+        handedOut = batch;
+        if (!worthPrefetchingAfter(batch)) {
+            // Anything still queued would just decide not to fetch
+            discardPrefetched();
+            return batch;
+        }
+        while (prefetched.size() < depth) {
+            final Future<B> previous = prefetched.peekLast();
+            final B first = batch;
+            prefetched.addLast(executor.submit(new Callable<B>() {
+                @Override
+                public B call() throws RetryableException, InterruptedException, ExecutionException {
+                    B from = previous == null ? first : previous.get();
+                    if (!worthPrefetchingAfter(from)) {
+                        return null;
+                    }
+                    return delegate.nextBatch(from);
+                }
+            }));
+        }
+        return batch;
+    }
+
+    /**
+     * Wait for the next prefetched batch.
+     *
+     * @return the batch or null if it wasn't prefetched
+     * @throws RetryableException if fetching the batch failed in a retryable
+     *             way, in which case all prefetched batches are discarded
+     */
+    private B takePrefetched() throws RetryableException {
+        Future<B> next = prefetched.removeFirst();
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            discardPrefetched();
+            if (e.getCause() instanceof RetryableException) {
+                throw (RetryableException) e.getCause();
+            }
+            log.warn("Error prefetching batch. Fetching it directly.", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Throw away everything we've prefetched.
+     */
+    private void discardPrefetched() {
+        for (Future<B> f : prefetched) {
+            f.cancel(true);
+        }
+        prefetched.clear();
+    }
+}
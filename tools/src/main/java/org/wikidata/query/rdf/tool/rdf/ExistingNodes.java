@@ -0,0 +1,213 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.query.AbstractTupleQueryResultHandler;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+/**
+ * Value and reference nodes that entities already have in the store, keyed by
+ * entity id. Each entity's nodes are kept as two plain arrays because there
+ * are lots of entities in a batch but each one only links to a handful of
+ * nodes.
+ */
+public final class ExistingNodes {
+    /**
+     * Shared empty node list.
+     */
+    private static final String[] NONE = new String[0];
+
+    /**
+     * Value nodes by entity id.
+     */
+    private final Map<String, String[]> values;
+    /**
+     * Reference nodes by entity id.
+     */
+    private final Map<String, String[]> refs;
+    /**
+     * Total number of value nodes.
+     */
+    private final int valueCount;
+    /**
+     * Total number of reference nodes.
+     */
+    private final int refCount;
+
+    private ExistingNodes(Map<String, String[]> values, Map<String, String[]> refs, int valueCount, int refCount) {
+        this.values = values;
+        this.refs = refs;
+        this.valueCount = valueCount;
+        this.refCount = refCount;
+    }
+
+    /**
+     * Value nodes the entity links to either directly or through its
+     * references.
+     */
+    public Collection<String> values(String entityId) {
+        return nodes(values, entityId);
+    }
+
+    /**
+     * Reference nodes the entity links to.
+     */
+    public Collection<String> refs(String entityId) {
+        return nodes(refs, entityId);
+    }
+
+    /**
+     * Value and reference nodes the entity has that aren't the subject of any
+     * of the statements. Used when the statements were munged without
+     * knowing what is in the store so they describe every node the entity
+     * still uses.
+     *
+     * @param entityId the entity's id
+     * @param statements the entity's munged statements
+     * @return nodes nothing will use once the statements are synced
+     */
+    public List<String> unused(String entityId, Collection<Statement> statements) {
+        Set<String> subjects = new HashSet<>();
+        for (Statement statement : statements) {
+            subjects.add(statement.getSubject().stringValue());
+        }
+        List<String> unused = new ArrayList<>();
+        for (String node : values(entityId)) {
+            if (!subjects.contains(node)) {
+                unused.add(node);
+            }
+        }
+        for (String node : refs(entityId)) {
+            if (!subjects.contains(node)) {
+                unused.add(node);
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Total number of value nodes across all entities.
+     */
+    public int valueCount() {
+        return valueCount;
+    }
+
+    /**
+     * Total number of reference nodes across all entities.
+     */
+    public int refCount() {
+        return refCount;
+    }
+
+    /**
+     * Look up an entity's nodes in one of the maps.
+     */
+    private static Collection<String> nodes(Map<String, String[]> nodes, String entityId) {
+        String[] result = nodes.get(entityId);
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(result));
+    }
+
+    /**
+     * Builds ExistingNodes either by hand or by streaming query results into
+     * it. Query results must bind the entity's uri to "entity" and the node to
+     * "s". Nodes are sorted into values and references by their uri.
+     * Restarting the results, like when a query is retried after a network
+     * error, throws away everything collected so far.
+     */
+    public static class Builder extends AbstractTupleQueryResultHandler {
+        /**
+         * Uris for the wikibase.
+         */
+        private final WikibaseUris uris;
+        /**
+         * Value nodes by entity id.
+         */
+        private final Map<String, List<String>> values = new HashMap<>();
+        /**
+         * Reference nodes by entity id.
+         */
+        private final Map<String, List<String>> refs = new HashMap<>();
+
+        public Builder(WikibaseUris uris) {
+            this.uris = uris;
+        }
+
+        /**
+         * Add a node to an entity.
+         *
+         * @param entityId the entity's id, not its uri
+         * @param node the node's uri
+         * @return this for chaining
+         */
+        public Builder add(String entityId, String node) {
+            Map<String, List<String>> target = node.startsWith(uris.reference()) ? refs : values;
+            List<String> nodes = target.get(entityId);
+            if (nodes == null) {
+                nodes = new ArrayList<>(4);
+                target.put(entityId, nodes);
+            }
+            nodes.add(node);
+            return this;
+        }
+
+        /**
+         * Build the ExistingNodes.
+         */
+        public ExistingNodes build() {
+            Map<String, String[]> builtValues = new HashMap<>(values.size() * 4 / 3 + 1);
+            int valueCount = freeze(values, builtValues);
+            Map<String, String[]> builtRefs = new HashMap<>(refs.size() * 4 / 3 + 1);
+            int refCount = freeze(refs, builtRefs);
+            return new ExistingNodes(builtValues, builtRefs, valueCount, refCount);
+        }
+
+        @Override
+        public void startQueryResult(List<String> bindingNames) {
+            values.clear();
+            refs.clear();
+        }
+
+        @Override
+        public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+            Value entity = bindingSet.getValue("entity");
+            Value node = bindingSet.getValue("s");
+            if (entity == null || node == null) {
+                return;
+            }
+            String entityUri = entity.stringValue();
+            if (!entityUri.startsWith(uris.entity())) {
+                throw new TupleQueryResultHandlerException("Unexpected entity uri:  " + entityUri);
+            }
+            add(entityUri.substring(uris.entity().length()), node.stringValue());
+        }
+
+        /**
+         * Copy lists into arrays.
+         *
+         * @return the number of nodes copied
+         */
+        private static int freeze(Map<String, List<String>> from, Map<String, String[]> to) {
+            int count = 0;
+            for (Map.Entry<String, List<String>> e : from.entrySet()) {
+                to.put(e.getKey(), e.getValue().toArray(NONE));
+                count += e.getValue().size();
+            }
+            return count;
+        }
+    }
+}
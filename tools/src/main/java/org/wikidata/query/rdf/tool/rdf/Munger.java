@@ -9,6 +9,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -21,6 +22,7 @@ import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
 import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
 import org.openrdf.model.impl.LiteralImpl;
 import org.openrdf.model.impl.NumericLiteralImpl;
 import org.openrdf.model.impl.StatementImpl;
@@ -28,8 +30,10 @@ import org.openrdf.model.impl.URIImpl;
 import org.openrdf.model.vocabulary.XMLSchema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.GeoCell;
 import org.wikidata.query.rdf.common.WikibasePoint;
 import org.wikidata.query.rdf.common.WikibasePoint.CoordinateOrder;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
 import org.wikidata.query.rdf.common.uri.OWL;
 import org.wikidata.query.rdf.common.uri.Ontology;
 import org.wikidata.query.rdf.common.uri.Provenance;
@@ -56,6 +60,11 @@ import com.google.common.collect.ListMultimap;
 public class Munger {
     private static final Logger log = LoggerFactory.getLogger(Munger.class);
 
+    /**
+     * Predicate linking entities to the geo cells of their coordinates.
+     */
+    private static final URI GEO_CELL = new URIImpl(Ontology.Geo.CELL);
+
     /**
      * Wikibase uris we're working with.
      */
@@ -81,6 +90,11 @@ public class Munger {
      */
     private boolean keepTypes;
 
+    /**
+     * True if we want to index truthy coordinates into geo cells.
+     */
+    private boolean indexGeoCells;
+
     /**
      * Format version we're dealing with.
      */
@@ -134,6 +148,17 @@ public class Munger {
         return this;
     }
 
+    /**
+     * Set whether to index coordinates into geo cells for the geo search
+     * service.
+     * @param index
+     * @return
+     */
+    public Munger indexGeoCells(boolean index) {
+        indexGeoCells = index;
+        return this;
+    }
+
     /**
      * Build a Munger that only imports labels in some languages.
      */
@@ -284,6 +309,10 @@ public class Munger {
          * will be removed from this multimap and added to restoredStatement.
          */
         private final ListMultimap<String, Statement> unknownSubjects = ArrayListMultimap.create();
+        /**
+         * Geo cells containing the entity's truthy coordinates.
+         */
+        private final Set<Long> geoCells = new LinkedHashSet<>();
         /**
          * Work used in single label mode to find the best label and null if not
          * in single label mode.
@@ -535,10 +564,38 @@ public class Munger {
             if (inNamespace(predicate, uris.property(PropertyType.CLAIM)) && inNamespace(object, uris.statement())) {
                 registerExtraValidSubject(object);
             }
+            if (indexGeoCells && inNamespace(predicate, uris.property(PropertyType.DIRECT))) {
+                registerGeoCells();
+            }
             // Most statements should be kept.
             return true;
         }
 
+        /**
+         * Register the geo cells of the current statement's object if it is a
+         * coordinate.
+         */
+        private void registerGeoCells() {
+            if (!(statement.getObject() instanceof Literal)) {
+                return;
+            }
+            Literal object = (Literal) statement.getObject();
+            if (!GeoSparql.WKT_LITERAL.equals(object.getDatatype()) && !GeoSparql.WKT_CRS_LITERAL.equals(object.getDatatype())) {
+                return;
+            }
+            try {
+                WikibasePoint point = new WikibasePoint(object.getLabel());
+                double latitude = Double.parseDouble(point.getLatitude());
+                double longitude = Double.parseDouble(point.getLongitude());
+                for (long cell : GeoCell.cells(GeoCell.partition(object.getDatatype(), point), latitude, longitude)) {
+                    geoCells.add(cell);
+                }
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException is an IllegalArgumentException too
+                log.debug("Not indexing unparseable coordinate {}", object);
+            }
+        }
+
         /**
          * Process a statement who's subject is in the entity statement prefix.
          *
@@ -766,6 +823,9 @@ public class Munger {
             }
             statements.add(new StatementImpl(entityUriImpl, new URIImpl(SchemaDotOrg.VERSION), revisionId));
             statements.add(new StatementImpl(entityUriImpl, new URIImpl(SchemaDotOrg.DATE_MODIFIED), lastModified));
+            for (Long cell : geoCells) {
+                statements.add(new StatementImpl(entityUriImpl, GEO_CELL, new NumericLiteralImpl(cell, XMLSchema.LONG)));
+            }
             statements.addAll(restoredStatements);
         }
 
@@ -5,11 +5,13 @@ import static org.wikidata.query.rdf.tool.FilteredStatements.filtered;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
@@ -30,6 +32,8 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
@@ -38,12 +42,17 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.query.AbstractTupleQueryResultHandler;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.QueryResultHandlerException;
 import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.TupleQueryResultHandler;
 import org.openrdf.query.impl.TupleQueryResultBuilder;
 import org.openrdf.query.resultio.QueryResultParseException;
 import org.openrdf.query.resultio.binary.BinaryQueryResultParser;
@@ -58,8 +67,6 @@ import org.wikidata.query.rdf.tool.exception.ContainedException;
 import org.wikidata.query.rdf.tool.exception.FatalException;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Resources;
 
@@ -74,11 +81,17 @@ public class RdfRepository {
      * UTC timezone.
      */
     private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    /**
+     * User agent sent with every request so the repository's admission
+     * control can put the updater's requests ahead of public queries. Must
+     * start with AdmissionControlFilter's updaterUserAgent.
+     */
+    public static final String USER_AGENT = "Wikidata Query Service Updater";
     /**
      * Http connection pool for the rdf repository.
      */
     private final CloseableHttpClient client = HttpClients.custom().setMaxConnPerRoute(100).setMaxConnTotal(100)
-            .build();
+            .setUserAgent(USER_AGENT).build();
     /**
      * URI for the wikibase rdf repository.
      */
@@ -98,17 +111,17 @@ public class RdfRepository {
      */
     private final String msyncBody;
     /**
-     * SPARQL for a portion of the update.
+     * SPARQL to fetch the value and reference nodes entities already have.
      */
-    private final String getValues;
+    private final String getExistingNodes;
     /**
      * SPARQL for a portion of the update.
      */
-    private final String getRefs;
+    private final String cleanUnused;
     /**
-     * SPARQL for a portion of the update.
+     * SPARQL to delete nodes that the reference count index says are unused.
      */
-    private final String cleanUnused;
+    private final String deleteNodes;
     /**
      * SPARQL to sync the left off time.
      */
@@ -145,9 +158,9 @@ public class RdfRepository {
         msyncBody = loadBody("multiSync");
         syncBody = loadBody("sync");
         updateLeftOffTimeBody = loadBody("updateLeftOffTime");
-        getValues = loadBody("GetValues");
-        getRefs = loadBody("GetRefs");
+        getExistingNodes = loadBody("GetExistingNodes");
         cleanUnused = loadBody("CleanUnused");
+        deleteNodes = loadBody("DeleteNodes");
         getRevisions = loadBody("GetRevisions");
         verify = loadBody("verify");
     }
@@ -206,84 +219,51 @@ public class RdfRepository {
     }
 
     /**
-     * Collect results of the query into string set.
+     * Run a query and collect one binding from its results into a string set
+     * as the results are streamed in.
      *
-     * @param result Result object
+     * @param sparql the query
      * @param binding Binding name to collect
      * @return Collection of strings resulting from the query.
      */
-    private Set<String> resultToSet(TupleQueryResult result, String binding) {
-        HashSet<String> values = new HashSet<String>();
-        try {
-            while (result.hasNext()) {
-                Binding value = result.next().getBinding(binding);
-                if (value == null) {
-                    continue;
-                }
-                values.add(value.getValue().stringValue());
+    private Set<String> queryToSet(String sparql, final String binding) {
+        final Set<String> values = new HashSet<>();
+        query(sparql, new AbstractTupleQueryResultHandler() {
+            @Override
+            public void startQueryResult(List<String> bindingNames) {
+                values.clear();
             }
-        } catch (QueryEvaluationException e) {
-            throw new FatalException("Can't load results: " + e, e);
-        }
-        return values;
-    }
 
-    /**
-     * Collect results of the query into a multimap by first parameter.
-     *
-     * @param result Result object
-     * @param keyBinding Binding name to serve as key
-     * @param valueBinding Binding name to serve as values
-     * @return Collection of strings resulting from the query.
-     */
-    private Multimap<String, String> resultToMap(TupleQueryResult result, String keyBinding, String valueBinding) {
-        Multimap<String, String> values = HashMultimap.create();
-        try {
-            while (result.hasNext()) {
-                BindingSet bindings = result.next();
-                Binding value = bindings.getBinding(valueBinding);
-                Binding key = bindings.getBinding(keyBinding);
-                if (value == null || key == null) {
-                    continue;
+            @Override
+            public void handleSolution(BindingSet bindings) {
+                Value value = bindings.getValue(binding);
+                if (value != null) {
+                    values.add(value.stringValue());
                 }
-                values.put(key.getValue().stringValue(), value.getValue().stringValue());
             }
-        } catch (QueryEvaluationException e) {
-            throw new FatalException("Can't load results: " + e, e);
-        }
+        });
         return values;
     }
 
     /**
-     * Get list of value subjects connected to entity. The connection is either
-     * via statement or via reference or via qualifier.
+     * Get the value and reference nodes connected to entities in a single
+     * query. Values can be connected via statement, reference, or qualifier.
+     * The results are streamed straight into the returned structure.
      *
-     * @param entityIds
-     * @return Set of value subjects
+     * @param entityIds uris of the entities
+     * @return nodes keyed by entity id
      */
-    public Multimap<String, String> getValues(Collection<String> entityIds) {
-        UpdateBuilder b = new UpdateBuilder(getValues);
+    public ExistingNodes getExistingNodes(Collection<String> entityIds) {
+        UpdateBuilder b = new UpdateBuilder(getExistingNodes);
         b.bindUris("entityList", entityIds);
         b.bind("uris.value", uris.value());
+        b.bind("uris.reference", uris.reference());
         b.bind("uris.statement", uris.statement());
         b.bindUri("prov:wasDerivedFrom", Provenance.WAS_DERIVED_FROM);
 
-        return resultToMap(query(b.toString()), "entity", "s");
-    }
-
-    /**
-     * Get list of reference subjects connected to entity.
-     *
-     * @param entityIds
-     * @return Set of references
-     */
-    public Multimap<String, String> getRefs(Collection<String> entityIds) {
-        UpdateBuilder b = new UpdateBuilder(getRefs);
-        b.bindUris("entityList", entityIds);
-        b.bind("uris.statement", uris.statement());
-        b.bindUri("prov:wasDerivedFrom", Provenance.WAS_DERIVED_FROM);
-
-        return resultToMap(query(b.toString()), "entity", "s");
+        ExistingNodes.Builder builder = new ExistingNodes.Builder(uris);
+        query(b.toString(), builder);
+        return builder.build();
     }
 
     /**
@@ -335,6 +315,17 @@ public class RdfRepository {
      * @return Number of triples modified.
      */
     public int syncFromChanges(Collection<Change> changes, boolean verifyResult) {
+        return syncFromChanges(changes, verifyResult, Collections.<String>emptySet());
+    }
+
+    /**
+     * Sync repository from changes list.
+     * @param changes List of changes.
+     * @param unusedNodes Value and reference nodes known to be unused after
+     *            the sync. They are deleted without checking.
+     * @return Number of triples modified.
+     */
+    public int syncFromChanges(Collection<Change> changes, boolean verifyResult, Collection<String> unusedNodes) {
         if (changes.size() == 0) {
             // no changes, we're done
             return 0;
@@ -375,13 +366,18 @@ public class RdfRepository {
         aboutStatements.removeAll(filtered(insertStatements).withSubjectStarts(uris.reference()));
         b.bindValues("aboutStatements", aboutStatements);
 
+        StringBuilder cleanupQuery = new StringBuilder();
         if (!valueList.isEmpty()) {
             UpdateBuilder cleanup = new UpdateBuilder(cleanUnused);
             cleanup.bindUris("values", valueList);
-            b.bind("cleanupQuery", cleanup.toString());
-        }  else {
-            b.bind("cleanupQuery", "");
+            cleanupQuery.append(cleanup.toString());
+        }
+        if (!unusedNodes.isEmpty()) {
+            UpdateBuilder delete = new UpdateBuilder(deleteNodes);
+            delete.bindUris("nodes", unusedNodes);
+            cleanupQuery.append(delete.toString());
         }
+        b.bind("cleanupQuery", cleanupQuery.toString());
 
         long start = System.currentTimeMillis();
         int modified = execute("update", UPDATE_COUNT_RESPONSE, b.toString());
@@ -389,11 +385,7 @@ public class RdfRepository {
                 System.currentTimeMillis() - start, modified);
 
         if (verifyResult) {
-            try {
-                verifyStatements(entityIds, insertStatements);
-            } catch (QueryEvaluationException e) {
-                throw new FatalException("Can't load verify results: " + e, e);
-            }
+            verifyStatements(entityIds, insertStatements);
         }
 
         return modified;
@@ -403,30 +395,48 @@ public class RdfRepository {
      * Verify that the database matches the statement data for these IDs.
      * @param entityIds List of IDs
      * @param statements List of statements for these IDs
-     * @throws QueryEvaluationException if there is a problem retrieving result.
      */
-    private void verifyStatements(Set<String> entityIds, List<Statement> statements)
-            throws QueryEvaluationException {
+    private void verifyStatements(Set<String> entityIds, List<Statement> statements) {
         log.debug("Verifying the update");
+        List<Statement> extra = findExtraStatements(entityIds, statements);
+        if (!extra.isEmpty()) {
+            log.error("Update failed, we have extra data!");
+            for (Statement statement : extra) {
+                log.error("{}\t{}\t{}", statement.getSubject().stringValue(),
+                        statement.getPredicate().stringValue(), statement.getObject().stringValue());
+            }
+            throw new FatalException("Update failed, bad old data in the store");
+        }
+        log.debug("Verification OK");
+    }
+
+    /**
+     * Find statements in the database about these IDs that aren't in the
+     * statement data for them.
+     * @param entityIds List of IDs
+     * @param statements All statements for these IDs
+     * @return the extra statements, empty if the database matches
+     */
+    public List<Statement> findExtraStatements(Set<String> entityIds, Collection<Statement> statements) {
         UpdateBuilder bv = new UpdateBuilder(verify);
         bv.bindUri("schema:about", SchemaDotOrg.ABOUT);
         bv.bind("uris.statement", uris.statement());
         bv.bindUris("entityList", entityIds, uris.entity());
         bv.bindValues("allStatements", statements);
-        TupleQueryResult result = query(bv.toString());
-        if (result.hasNext()) {
-            log.error("Update failed, we have extra data!");
-            while (result.hasNext()) {
-                BindingSet bindings = result.next();
-                Binding s = bindings.getBinding("s");
-                Binding p = bindings.getBinding("p");
-                Binding o = bindings.getBinding("o");
-                log.error("{}\t{}\t{}", s.getValue().stringValue(),
-                        p.getValue().stringValue(), o.getValue().stringValue());
+        final List<Statement> extra = new ArrayList<>();
+        query(bv.toString(), new AbstractTupleQueryResultHandler() {
+            @Override
+            public void startQueryResult(List<String> bindingNames) {
+                extra.clear();
             }
-            throw new FatalException("Update failed, bad old data in the store");
-        }
-        log.debug("Verification OK");
+
+            @Override
+            public void handleSolution(BindingSet bindings) {
+                extra.add(new StatementImpl((Resource) bindings.getValue("s"),
+                        (org.openrdf.model.URI) bindings.getValue("p"), bindings.getValue("o")));
+            }
+        });
+        return extra;
     }
 
     /**
@@ -467,6 +477,37 @@ public class RdfRepository {
 
     }
 
+    /**
+     * Load a file the triple store can read itself with a LOAD update.
+     *
+     * @param fileUri uri of the file as the triple store sees it
+     * @return the number of statements modified
+     */
+    public int load(String fileUri) {
+        return execute("update", UPDATE_COUNT_RESPONSE, "LOAD <" + fileUri + ">");
+    }
+
+    /**
+     * Post turtle straight to the triple store, streaming it rather than
+     * buffering it. Isn't retried because the stream can only be read once.
+     *
+     * @return the number of statements modified
+     * @throws ContainedException if the triple store doesn't accept it
+     */
+    public int loadTurtle(InputStream turtle) {
+        HttpPost post = new HttpPost(uri);
+        post.setEntity(new InputStreamEntity(turtle, ContentType.create("application/x-turtle", Consts.UTF_8)));
+        try (CloseableHttpResponse response = client.execute(post)) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new ContainedException("Non-200 response from triple store:  " + response + " body=\n"
+                        + responseBodyAsString(response));
+            }
+            return UPDATE_COUNT_RESPONSE.parse(response.getEntity());
+        } catch (IOException e) {
+            throw new ContainedException("Error posting turtle to triple store", e);
+        }
+    }
+
     /**
      * Synchronizes the RDF repository's representation.
      * See also: sync(String, Collection<Statement>, Collection<String>)
@@ -492,7 +533,7 @@ public class RdfRepository {
         }
         b.bind("values", values.toString());
         b.bindUri("schema:version", SchemaDotOrg.VERSION);
-        return resultToSet(query(b.toString()), "s");
+        return queryToSet(b.toString(), "s");
     }
 
     /**
@@ -556,12 +597,23 @@ public class RdfRepository {
     }
 
     /**
-     * Execute some SPARQL which returns a results table.
+     * Execute some SPARQL which returns a results table. The whole table is
+     * collected in memory before this returns so prefer
+     * {@link #query(String, TupleQueryResultHandler)} for large results.
      */
     public TupleQueryResult query(String sparql) {
         return execute("query", TUPLE_QUERY_RESPONSE, sparql);
     }
 
+    /**
+     * Execute some SPARQL which returns a results table, streaming the results
+     * into a handler rather than collecting them. If the request has to be
+     * retried the handler sees startQueryResult again.
+     */
+    public void query(String sparql, TupleQueryResultHandler handler) {
+        execute("query", new StreamingTupleQueryResponse(handler), sparql);
+    }
+
     /**
      * Execute some raw SPARQL.
      *
@@ -789,6 +841,37 @@ public class RdfRepository {
         }
     }
 
+    /**
+     * Streams responses to regular queries into a handler.
+     */
+    private static class StreamingTupleQueryResponse implements ResponseHandler<Void> {
+        /**
+         * Handler receiving the results.
+         */
+        private final TupleQueryResultHandler handler;
+
+        StreamingTupleQueryResponse(TupleQueryResultHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String acceptHeader() {
+            return TUPLE_QUERY_RESPONSE.acceptHeader();
+        }
+
+        @Override
+        public Void parse(HttpEntity entity) throws IOException {
+            BinaryQueryResultParser p = new BinaryQueryResultParser();
+            p.setQueryResultHandler(handler);
+            try {
+                p.parseQueryResult(entity.getContent());
+            } catch (QueryResultParseException | QueryResultHandlerException | IllegalStateException e) {
+                throw new RuntimeException("Error parsing query", e);
+            }
+            return null;
+        }
+    }
+
     /**
      * Parses responses to ask queries into booleans.
      */
@@ -0,0 +1,477 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.wikidata.query.rdf.tool.StreamUtils.utf8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+/**
+ * Counts how many entities use each shared value and reference node so the
+ * updater can delete nodes as soon as nothing uses them instead of probing
+ * the store for every candidate. Entities count against the values and
+ * references their statements link to directly. References count once
+ * against each value they link to for as long as any entity uses them.
+ * <p>
+ * The index lives in memory and is persisted to an append only log file. Each
+ * line either sets the nodes an entity uses or records the values a
+ * reference links to. The log is replayed on open and compacted on close. A
+ * torn last line, like the one left by a crash, is ignored. Changes are only
+ * appended on commit so callers can commit after the store has been
+ * successfully updated and roll back if updating the store fails.
+ * <p>
+ * Munge builds the index while munging a dump and Update keeps it up to date.
+ * If the index is lost or gets out of sync with the store it should be rebuilt
+ * from a dump. Out of date counts leave orphaned nodes behind or, if
+ * references were added to the store without the index seeing their values,
+ * delete values early.
+ */
+public class RefCountIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RefCountIndex.class);
+
+    /**
+     * Log line prefix for the nodes used by an entity.
+     */
+    private static final String ENTITY = "E";
+    /**
+     * Log line prefix for the values linked by a reference.
+     */
+    private static final String REFERENCE = "R";
+    /**
+     * Short form prefix for value nodes.
+     */
+    private static final char VALUE_NODE = 'v';
+    /**
+     * Short form prefix for reference nodes.
+     */
+    private static final char REFERENCE_NODE = 'r';
+
+    /**
+     * Uris for the wikibase. Used to shorten node uris.
+     */
+    private final WikibaseUris uris;
+    /**
+     * The log file.
+     */
+    private final File file;
+    /**
+     * Nodes each entity uses directly in short form. Guarded by this.
+     */
+    private final Map<String, Set<String>> entityNodes = new HashMap<>();
+    /**
+     * Values each live reference links to in short form. Guarded by this.
+     */
+    private final Map<String, Set<String>> referenceValues = new HashMap<>();
+    /**
+     * Number of users of each node in short form. Guarded by this.
+     */
+    private final Map<String, Integer> counts = new HashMap<>();
+    /**
+     * Log lines not yet committed. Guarded by this.
+     */
+    private final List<String> pending = new ArrayList<>();
+    /**
+     * Committed nodes of each entity changed since the last commit, null for
+     * entities that didn't have any. Guarded by this.
+     */
+    private final Map<String, Set<String>> entityNodesUndo = new HashMap<>();
+    /**
+     * Committed values of each reference changed since the last commit, null
+     * for references that weren't live. Guarded by this.
+     */
+    private final Map<String, Set<String>> referenceValuesUndo = new HashMap<>();
+    /**
+     * Committed count of each node changed since the last commit, null for
+     * nodes that weren't used. Guarded by this.
+     */
+    private final Map<String, Integer> countsUndo = new HashMap<>();
+    /**
+     * Appends to the log. Guarded by this.
+     */
+    private Writer writer;
+
+    /**
+     * Open an index, creating it if the file doesn't exist.
+     *
+     * @throws IOException if the log can't be read or opened for appending
+     */
+    public static RefCountIndex open(File file, WikibaseUris uris) throws IOException {
+        RefCountIndex index = new RefCountIndex(file, uris);
+        index.load();
+        return index;
+    }
+
+    private RefCountIndex(File file, WikibaseUris uris) {
+        this.file = file;
+        this.uris = uris;
+    }
+
+    /**
+     * Nodes the store already has for an entity: the values and references
+     * its statements link to and the values those references link to. This is
+     * what the munger needs to skip nodes that are already loaded.
+     *
+     * @return full node uris
+     */
+    public synchronized Set<String> existingNodes(String entityId) {
+        Set<String> nodes = entityNodes.get(entityId);
+        if (nodes == null) {
+            return Collections.emptySet();
+        }
+        Set<String> result = new HashSet<>();
+        for (String node : nodes) {
+            result.add(expand(node));
+            Set<String> values = referenceValues.get(node);
+            if (values != null) {
+                for (String value : values) {
+                    result.add(expand(value));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Record the statements an entity now has. The change is visible
+     * immediately but only persisted on commit and undone on rollback.
+     *
+     * @param entityId the entity
+     * @param statements all of the entity's munged statements, empty if the
+     *            entity was deleted
+     * @return full uris of nodes nothing uses anymore
+     */
+    public synchronized Set<String> update(String entityId, Collection<Statement> statements) {
+        Set<String> direct = new HashSet<>();
+        Map<String, Set<String>> links = new HashMap<>();
+        for (Statement statement : statements) {
+            String object = shorten(statement.getObject().stringValue());
+            if (object == null) {
+                continue;
+            }
+            String subject = shorten(statement.getSubject().stringValue());
+            if (subject == null) {
+                direct.add(object);
+            } else if (subject.charAt(0) == REFERENCE_NODE && object.charAt(0) == VALUE_NODE) {
+                Set<String> values = links.get(subject);
+                if (values == null) {
+                    values = new HashSet<>();
+                    links.put(subject, values);
+                }
+                values.add(object);
+            }
+        }
+        Set<String> old = entityNodes.get(entityId);
+        if (old == null) {
+            old = Collections.emptySet();
+        }
+        Set<String> orphans = new LinkedHashSet<>();
+        for (String node : direct) {
+            if (!old.contains(node)) {
+                increment(node, links);
+            }
+        }
+        for (String node : old) {
+            if (!direct.contains(node)) {
+                decrement(node, orphans);
+            }
+        }
+        remember(entityNodesUndo, entityNodes, entityId);
+        if (direct.isEmpty()) {
+            entityNodes.remove(entityId);
+        } else {
+            entityNodes.put(entityId, direct);
+        }
+        pending.add(line(ENTITY, entityId, direct));
+        Set<String> expanded = new LinkedHashSet<>(orphans.size());
+        for (String orphan : orphans) {
+            expanded.add(expand(orphan));
+        }
+        return expanded;
+    }
+
+    /**
+     * Number of entities and references using a node.
+     *
+     * @param node full node uri
+     */
+    public synchronized int count(String node) {
+        String shortNode = shorten(node);
+        if (shortNode == null) {
+            return 0;
+        }
+        Integer count = counts.get(shortNode);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Persist all updates since the last commit.
+     *
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void commit() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (String line : pending) {
+            writer.write(line);
+        }
+        writer.flush();
+        forgetUndo();
+    }
+
+    /**
+     * Undo all updates since the last commit.
+     */
+    public synchronized void rollback() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        undo(entityNodesUndo, entityNodes);
+        undo(referenceValuesUndo, referenceValues);
+        undo(countsUndo, counts);
+        forgetUndo();
+    }
+
+    /**
+     * Compact the log. Updates that weren't committed are dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        rollback();
+        writer.close();
+        compact();
+    }
+
+    /**
+     * Remember the committed value of a key before changing it for the
+     * first time since the last commit.
+     */
+    private static <V> void remember(Map<String, V> undo, Map<String, V> map, String key) {
+        if (!undo.containsKey(key)) {
+            undo.put(key, map.get(key));
+        }
+    }
+
+    /**
+     * Put the remembered committed values back.
+     */
+    private static <V> void undo(Map<String, V> undo, Map<String, V> map) {
+        for (Map.Entry<String, V> e : undo.entrySet()) {
+            if (e.getValue() == null) {
+                map.remove(e.getKey());
+            } else {
+                map.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Forget the uncommitted updates once they are committed or undone.
+     */
+    private void forgetUndo() {
+        pending.clear();
+        entityNodesUndo.clear();
+        referenceValuesUndo.clear();
+        countsUndo.clear();
+    }
+
+    /**
+     * Count a new user of a node, recording the values a reference links to
+     * the first time it is used.
+     */
+    private void increment(String node, Map<String, Set<String>> links) {
+        remember(countsUndo, counts, node);
+        Integer count = counts.get(node);
+        if (count != null) {
+            counts.put(node, count + 1);
+            return;
+        }
+        counts.put(node, 1);
+        if (node.charAt(0) != REFERENCE_NODE) {
+            return;
+        }
+        Set<String> values = links.get(node);
+        if (values == null) {
+            values = Collections.emptySet();
+        }
+        remember(referenceValuesUndo, referenceValues, node);
+        referenceValues.put(node, values);
+        pending.add(line(REFERENCE, node, values));
+        for (String value : values) {
+            increment(value, links);
+        }
+    }
+
+    /**
+     * Remove a user of a node, collecting nodes without users.
+     */
+    private void decrement(String node, Set<String> orphans) {
+        Integer count = counts.get(node);
+        if (count == null) {
+            log.warn("Reference count for {} already zero. Index is out of sync with the store.", node);
+            return;
+        }
+        remember(countsUndo, counts, node);
+        if (count > 1) {
+            counts.put(node, count - 1);
+            return;
+        }
+        counts.remove(node);
+        orphans.add(node);
+        remember(referenceValuesUndo, referenceValues, node);
+        Set<String> values = referenceValues.remove(node);
+        if (values != null) {
+            for (String value : values) {
+                decrement(value, orphans);
+            }
+        }
+    }
+
+    /**
+     * Replay the log and open it for appending.
+     */
+    private void load() throws IOException {
+        if (file.exists()) {
+            int lines = 0;
+            try (BufferedReader reader = new BufferedReader(utf8(new FileInputStream(file)))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                    lines++;
+                }
+            }
+            for (Set<String> nodes : entityNodes.values()) {
+                for (String node : nodes) {
+                    recount(node);
+                }
+            }
+            referenceValues.keySet().retainAll(counts.keySet());
+            log.info("Loaded reference counts for {} entities and {} nodes from {} log lines", entityNodes.size(),
+                    counts.size(), lines);
+            compact();
+        }
+        writer = new BufferedWriter(utf8(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Replay a single log line.
+     */
+    private void replay(String line) {
+        String[] parts = line.split("\t", -1);
+        if (parts.length != 3) {
+            log.warn("Skipping malformed reference count log line: {}", line);
+            return;
+        }
+        Set<String> nodes = parts[2].isEmpty() ? Collections.<String>emptySet() : new HashSet<>(
+                Arrays.asList(parts[2].split(" ")));
+        switch (parts[0]) {
+        case ENTITY:
+            if (nodes.isEmpty()) {
+                entityNodes.remove(parts[1]);
+            } else {
+                entityNodes.put(parts[1], nodes);
+            }
+            break;
+        case REFERENCE:
+            referenceValues.put(parts[1], nodes);
+            break;
+        default:
+            log.warn("Skipping malformed reference count log line: {}", line);
+        }
+    }
+
+    /**
+     * Count a node while loading.
+     */
+    private void recount(String node) {
+        Integer count = counts.get(node);
+        counts.put(node, count == null ? 1 : count + 1);
+        if (count != null) {
+            return;
+        }
+        Set<String> values = referenceValues.get(node);
+        if (values != null) {
+            for (String value : values) {
+                recount(value);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log with just the current state.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(utf8(new FileOutputStream(tmp)))) {
+            for (Map.Entry<String, Set<String>> e : referenceValues.entrySet()) {
+                out.write(line(REFERENCE, e.getKey(), e.getValue()));
+            }
+            for (Map.Entry<String, Set<String>> e : entityNodes.entrySet()) {
+                out.write(line(ENTITY, e.getKey(), e.getValue()));
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file + " with " + tmp);
+        }
+    }
+
+    /**
+     * Build a log line.
+     */
+    private static String line(String type, String key, Set<String> nodes) {
+        StringBuilder b = new StringBuilder();
+        b.append(type).append('\t').append(key).append('\t');
+        boolean first = true;
+        for (String node : nodes) {
+            if (!first) {
+                b.append(' ');
+            }
+            b.append(node);
+            first = false;
+        }
+        return b.append('\n').toString();
+    }
+
+    /**
+     * Shorten a value or reference uri.
+     *
+     * @return the short form or null if the uri isn't a value or reference
+     */
+    private String shorten(String uri) {
+        if (uri.startsWith(uris.value())) {
+            return VALUE_NODE + uri.substring(uris.value().length());
+        }
+        if (uri.startsWith(uris.reference())) {
+            return REFERENCE_NODE + uri.substring(uris.reference().length());
+        }
+        return null;
+    }
+
+    /**
+     * Expand a short form node back into its uri.
+     */
+    private String expand(String node) {
+        String prefix = node.charAt(0) == VALUE_NODE ? uris.value() : uris.reference();
+        return prefix + node.substring(1);
+    }
+}
@@ -0,0 +1,266 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Syncs batches the updater has already fetched and munged to another rdf
+ * repository on a background thread so several query servers can be fed from
+ * one fetch and munge. Each replica has its own queue, retries and left off
+ * time so a slow or broken replica doesn't hold up the updater or the other
+ * replicas.
+ * <p>
+ * The changes must be munged without knowing what is in any store so they
+ * describe every value and reference the entity uses. The replica works out
+ * for itself which of the changes it needs and which nodes it can clean up.
+ * <p>
+ * Errors syncing a batch, including the replica being down, are retried
+ * forever. If that or plain slowness puts the replica more than a queue's
+ * worth of batches behind it is detached and gets no more batches. Its left
+ * off time stays at the last batch it finished so restarting the updater
+ * picks it up from there.
+ */
+public class ReplicaSyncer {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaSyncer.class);
+
+    /**
+     * Longest we wait between retries.
+     */
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The replica.
+     */
+    private final RdfRepository rdfRepository;
+    /**
+     * Uris for wikibase.
+     */
+    private final WikibaseUris uris;
+    /**
+     * Name of the replica for logging and metrics.
+     */
+    private final String name;
+    /**
+     * Syncs the batches one at a time in order.
+     */
+    private final ExecutorService executor;
+    /**
+     * Entities synced to the replica.
+     */
+    private final Meter synced;
+    /**
+     * Retried errors syncing to the replica.
+     */
+    private final Meter retries;
+    /**
+     * Set when the replica stops getting batches.
+     */
+    private volatile boolean detached;
+
+    /**
+     * Build the syncer.
+     *
+     * @param rdfRepository the replica
+     * @param uris uris for wikibase
+     * @param name name of the replica for logging and metrics
+     * @param maxQueuedBatches the replica is detached if it falls this many
+     *            batches behind
+     * @param metrics registry in which to record replica metrics
+     */
+    public ReplicaSyncer(RdfRepository rdfRepository, WikibaseUris uris, String name, int maxQueuedBatches,
+            MetricRegistry metrics) {
+        this.rdfRepository = rdfRepository;
+        this.uris = uris;
+        this.name = name;
+        ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + " sync %s");
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                Math.max(1, maxQueuedBatches)), threadFactory.build());
+        synced = metrics.meter(name + "-updates");
+        retries = metrics.meter(name + "-retries");
+    }
+
+    /**
+     * The replica.
+     */
+    public RdfRepository rdfRepository() {
+        return rdfRepository;
+    }
+
+    /**
+     * Has the replica been detached?
+     */
+    public boolean detached() {
+        return detached;
+    }
+
+    /**
+     * Stop syncing, abandoning anything queued.
+     */
+    public void shutdown() {
+        detached = true;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stop taking batches, wait for the queued ones to sync, and shut down.
+     * Logs if the replica was detached or didn't sync everything in time.
+     * Either way its left off time is at the last batch it finished so
+     * restarting the updater picks it up from there.
+     *
+     * @return true if every batch queued for the replica was synced
+     */
+    public boolean finish(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        boolean drained;
+        try {
+            drained = executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        boolean wasDetached = detached;
+        shutdown();
+        if (wasDetached) {
+            log.warn("{} was detached and missed batches.  It will catch up from where it left off when the updater "
+                    + "restarts.", name);
+            return false;
+        }
+        if (!drained) {
+            log.warn("{} didn't sync its queued batches in {} {}.  It will catch up from where it left off when the "
+                    + "updater restarts.", name, timeout, unit);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a munged batch to be synced to the replica.
+     *
+     * @param changes changes munged without knowing what is in the store
+     * @param leftOffDate where the batch left off, null if it doesn't have a
+     *            date
+     */
+    public void sync(Collection<Change> changes, final Date leftOffDate) {
+        if (detached) {
+            return;
+        }
+        final List<Change> copies = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            if (change.getStatements() != null) {
+                // Each replica gets its own copy because the cleanup list is different for each one
+                Change copy = new Change(change.entityId(), change.revision(), change.timestamp(), change.rcid());
+                copy.setStatements(change.getStatements());
+                copies.add(copy);
+            }
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!detached) {
+                        syncWithRetries(copies, leftOffDate);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            detach();
+        }
+    }
+
+    /**
+     * Sync a batch, retrying until it works or the replica is detached.
+     */
+    private void syncWithRetries(List<Change> changes, Date leftOffDate) {
+        long backoff = 0;
+        while (!detached) {
+            try {
+                syncBatch(changes);
+                if (leftOffDate != null) {
+                    // Back one second for the same reason the updater does
+                    rdfRepository.updateLeftOffTime(new Date(leftOffDate.getTime() - TimeUnit.SECONDS.toMillis(1)));
+                }
+                return;
+            } catch (ContainedException | FatalException e) {
+                retries.mark();
+                backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2 + 1000);
+                log.warn("Error syncing {}.  Retrying in {} ms.", name, backoff, e);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sync the changes the replica doesn't already have.
+     */
+    private void syncBatch(List<Change> changes) {
+        Map<String, Change> byUri = new HashMap<>(changes.size() * 4 / 3 + 1);
+        List<Change> candidates = new ArrayList<>(changes.size());
+        Set<Change> needed = new HashSet<>();
+        for (Change change : changes) {
+            byUri.put(uris.entity() + change.entityId(), change);
+            if (change.revision() >= 0) {
+                candidates.add(change);
+            } else {
+                needed.add(change);
+            }
+        }
+        if (!candidates.isEmpty()) {
+            for (String entityUri : rdfRepository.hasRevisions(candidates)) {
+                needed.add(byUri.get(entityUri));
+            }
+        }
+        if (needed.isEmpty()) {
+            return;
+        }
+        List<String> entityUris = new ArrayList<>(needed.size());
+        for (Change change : needed) {
+            entityUris.add(uris.entity() + change.entityId());
+        }
+        ExistingNodes existingNodes = rdfRepository.getExistingNodes(entityUris);
+        for (Change change : needed) {
+            change.setCleanupList(existingNodes.unused(change.entityId(), change.getStatements()));
+        }
+        rdfRepository.syncFromChanges(needed, false);
+        synced.mark(needed.size());
+    }
+
+    /**
+     * Stop sending the replica batches. Doesn't touch the replica because it
+     * is called from the updater's thread and the replica might be stuck.
+     */
+    private void detach() {
+        if (detached) {
+            return;
+        }
+        detached = true;
+        log.error("Detaching {} because it fell too far behind.  It will catch up from where it left off when the "
+                + "updater restarts.", name);
+    }
+}
@@ -0,0 +1,177 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openrdf.model.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Verifies a random sample of each batch of synced entities on a background
+ * thread. Unlike verifying every entity in the batch this has a small,
+ * bounded cost so it can be left on to continuously check the updater is
+ * doing its job. Entities that don't match are counted and remembered so the
+ * updater can sync them again rather than giving up.
+ * <p>
+ * Because verification happens after the batch is synced, an entity edited
+ * again in the meantime can show up as a mismatch. That costs an extra sync
+ * of the entity which is cheap enough not to worry about.
+ */
+public class SampledVerifier {
+    private static final Logger log = LoggerFactory.getLogger(SampledVerifier.class);
+
+    /**
+     * Repository to verify against.
+     */
+    private final RdfRepository rdfRepository;
+    /**
+     * Entities to verify from each batch.
+     */
+    private final int samplesPerBatch;
+    /**
+     * Limits how quickly we verify entities so verification can't load the
+     * repository.
+     */
+    private final RateLimiter rateLimiter;
+    /**
+     * Runs the verification. Single threaded with a bounded queue so
+     * verification can never pile up.
+     */
+    private final ExecutorService executor;
+    /**
+     * Entities that didn't match and need to be synced again.
+     */
+    private final Set<String> resync = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Picks the sample.
+     */
+    private final Random random = new Random();
+    /**
+     * Entities verified.
+     */
+    private final Meter verified;
+    /**
+     * Entities that didn't match.
+     */
+    private final Meter mismatches;
+    /**
+     * Entities we couldn't verify because of an error.
+     */
+    private final Meter errors;
+    /**
+     * Entities we skipped because the verification queue was full.
+     */
+    private final Meter skipped;
+
+    /**
+     * Build the verifier.
+     *
+     * @param rdfRepository repository to verify against
+     * @param samplesPerBatch entities to verify from each batch
+     * @param entitiesPerSecond maximum rate to verify entities
+     * @param metrics registry in which to record verification metrics
+     */
+    public SampledVerifier(RdfRepository rdfRepository, int samplesPerBatch, double entitiesPerSecond,
+            MetricRegistry metrics) {
+        this.rdfRepository = rdfRepository;
+        this.samplesPerBatch = samplesPerBatch;
+        rateLimiter = RateLimiter.create(entitiesPerSecond);
+        ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("verify %s");
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                Math.max(1, samplesPerBatch * 10)), threadFactory.build());
+        verified = metrics.meter("verify-checked");
+        mismatches = metrics.meter("verify-mismatches");
+        errors = metrics.meter("verify-errors");
+        skipped = metrics.meter("verify-skipped");
+    }
+
+    /**
+     * Queue a sample of a synced batch for verification.
+     *
+     * @param changes the changes that were just synced
+     */
+    public void sample(Collection<Change> changes) {
+        List<Change> candidates = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            if (change.getStatements() != null) {
+                candidates.add(change);
+            }
+        }
+        Collections.shuffle(candidates, random);
+        for (final Change change : candidates.subList(0, Math.min(samplesPerBatch, candidates.size()))) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        rateLimiter.acquire();
+                        verify(change);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                skipped.mark();
+            }
+        }
+    }
+
+    /**
+     * Take the entities that need to be synced again.
+     */
+    public Set<String> drainResync() {
+        if (resync.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> drained = ImmutableSet.copyOf(resync);
+        resync.removeAll(drained);
+        return drained;
+    }
+
+    /**
+     * Stop verifying, dropping anything still queued.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Verify a single entity.
+     */
+    void verify(Change change) {
+        List<Statement> extra;
+        try {
+            extra = rdfRepository.findExtraStatements(Collections.singleton(change.entityId()),
+                    change.getStatements());
+        } catch (ContainedException | FatalException e) {
+            log.warn("Couldn't verify {}", change.entityId(), e);
+            errors.mark();
+            return;
+        }
+        verified.mark();
+        if (extra.isEmpty()) {
+            return;
+        }
+        mismatches.mark();
+        log.warn("{} has {} unexpected statements (first is {}), will sync it again", change.entityId(),
+                extra.size(), extra.get(0));
+        resync.add(change.entityId());
+    }
+}
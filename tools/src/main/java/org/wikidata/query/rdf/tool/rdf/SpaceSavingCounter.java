@@ -0,0 +1,134 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Approximate top-k counter using the space saving algorithm. It tracks at
+ * most capacity terms. When a new term shows up and there isn't room for it
+ * the term with the lowest count is evicted and the new term inherits its
+ * count. Any term whose real count is larger than total / capacity is
+ * guaranteed to be tracked and every tracked count overestimates the real
+ * count by at most the count of the term it replaced. That is plenty accurate
+ * for picking vocabulary terms out of billions of statements in bounded
+ * memory.
+ */
+public class SpaceSavingCounter {
+    /**
+     * Orders counters by count and then by term so the set's first entry is
+     * the one to evict.
+     */
+    private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+        @Override
+        public int compare(Counter lhs, Counter rhs) {
+            int cmp = Long.compare(lhs.count, rhs.count);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return lhs.term.compareTo(rhs.term);
+        }
+    };
+
+    /**
+     * Maximum number of terms to track.
+     */
+    private final int capacity;
+    /**
+     * Tracked terms by term.
+     */
+    private final Map<String, Counter> counters;
+    /**
+     * Tracked terms ordered by count.
+     */
+    private final TreeSet<Counter> byCount = new TreeSet<>(BY_COUNT);
+    /**
+     * Total number of terms offered.
+     */
+    private long total;
+
+    public SpaceSavingCounter(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive but was " + capacity);
+        }
+        this.capacity = capacity;
+        counters = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * Count a term.
+     */
+    public void offer(String term) {
+        total++;
+        Counter counter = counters.get(term);
+        if (counter != null) {
+            byCount.remove(counter);
+            counter.count++;
+            byCount.add(counter);
+            return;
+        }
+        long count = 1;
+        if (counters.size() >= capacity) {
+            Counter evicted = byCount.pollFirst();
+            counters.remove(evicted.term);
+            count += evicted.count;
+        }
+        counter = new Counter(term, count);
+        counters.put(term, counter);
+        byCount.add(counter);
+    }
+
+    /**
+     * Total number of terms offered.
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * The most frequent terms, most frequent first.
+     *
+     * @param limit maximum number of terms to return
+     */
+    public List<String> top(int limit) {
+        List<String> top = new ArrayList<>(Math.min(limit, counters.size()));
+        Iterator<Counter> itr = byCount.descendingIterator();
+        while (itr.hasNext() && top.size() < limit) {
+            top.add(itr.next().term);
+        }
+        return top;
+    }
+
+    /**
+     * Estimated count of a term.
+     *
+     * @return the count or 0 if the term isn't tracked
+     */
+    public long count(String term) {
+        Counter counter = counters.get(term);
+        return counter == null ? 0 : counter.count;
+    }
+
+    /**
+     * Mutable count for a term.
+     */
+    private static final class Counter {
+        /**
+         * The term.
+         */
+        private final String term;
+        /**
+         * The estimated number of times it was seen.
+         */
+        private long count;
+
+        private Counter(String term, long count) {
+            this.term = term;
+            this.count = count;
+        }
+    }
+}
@@ -12,8 +12,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.apache.http.Consts;
@@ -48,6 +50,7 @@ import org.wikidata.query.rdf.tool.exception.RetryableException;
 import org.wikidata.query.rdf.tool.rdf.NormalizingRdfHandler;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 
 /**
  * Wraps Wikibase api.
@@ -138,6 +141,42 @@ public class WikibaseRepository {
         return collector.getStatements();
     }
 
+    /**
+     * Find which of some entities exist. Much cheaper than fetching the rdf
+     * for ids that turn out to have been deleted or never to have existed.
+     * Redirects count as existing because syncing them cleans them up.
+     *
+     * @param entityIds ids to check, no more than wikibase's limit of 50
+     * @return the ids that exist
+     * @throws RetryableException thrown if there is an error communicating with
+     *             wikibase
+     */
+    public Set<String> existingEntities(Collection<String> entityIds) throws RetryableException {
+        URI uri = uris.entityInfo(entityIds);
+        log.debug("Checking which entities exist with {}", uri);
+        try {
+            JSONObject entities = (JSONObject) checkApi(getJson(new HttpGet(uri))).get("entities");
+            Set<String> existing = new HashSet<>();
+            if (entities == null) {
+                return existing;
+            }
+            for (Object value : entities.values()) {
+                JSONObject entity = (JSONObject) value;
+                if (entity.containsKey("missing")) {
+                    continue;
+                }
+                existing.add(entity.get("id").toString());
+                JSONObject redirects = (JSONObject) entity.get("redirects");
+                if (redirects != null) {
+                    existing.add(redirects.get("from").toString());
+                }
+            }
+            return existing;
+        } catch (IOException | ParseException e) {
+            throw new RetryableException("Error checking which entities exist", e);
+        }
+    }
+
     /**
      * Get the first id with the provided label in the provided language.
      *
@@ -318,6 +357,19 @@ public class WikibaseRepository {
             return build(builder);
         }
 
+        /**
+         * Uri to get basic information about some entities.
+         *
+         * @param entityIds the entities, no more than 50
+         */
+        public URI entityInfo(Collection<String> entityIds) {
+            URIBuilder builder = apiBuilder();
+            builder.addParameter("action", "wbgetentities");
+            builder.addParameter("ids", Joiner.on('|').join(entityIds));
+            builder.addParameter("props", "info");
+            return build(builder);
+        }
+
         /**
          * Uri to fetch a csrf token.
          */
@@ -0,0 +1,136 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ChunkSpoolUnitTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void chunksAreServedOnceFinished() throws IOException, InterruptedException, ExecutionException,
+            TimeoutException {
+        final ChunkSpool spool = new ChunkSpool(temp.newFolder(), Long.MAX_VALUE);
+        Writer one = spool.start(1);
+        one.write("one");
+        Future<File> waiting = executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws InterruptedException {
+                return spool.await(1);
+            }
+        });
+        try {
+            waiting.get(100, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Chunk shouldn't be available before it is finished");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        one.close();
+        File file = waiting.get(10, TimeUnit.SECONDS);
+        assertEquals("one", Files.toString(file, Charsets.UTF_8));
+
+        spool.served(1);
+        assertFalse(file.exists());
+        assertNull(spool.await(1));
+        assertFalse(spool.drained());
+        spool.finish();
+        assertNull(spool.await(2));
+        assertTrue(spool.drained());
+    }
+
+    @Test
+    public void chunkStartedBeforeTheLastIsFinishedIsWaitedFor() throws IOException, InterruptedException,
+            ExecutionException, TimeoutException {
+        final ChunkSpool spool = new ChunkSpool(temp.newFolder(), Long.MAX_VALUE);
+        // The munger starts the next chunk before it closes the last one
+        Writer one = spool.start(1);
+        Writer two = spool.start(2);
+        one.write("one");
+        Future<File> waiting = executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws InterruptedException {
+                return spool.await(1);
+            }
+        });
+        try {
+            waiting.get(100, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Chunk shouldn't be available before it is finished");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        one.close();
+        assertEquals("one", Files.toString(waiting.get(10, TimeUnit.SECONDS), Charsets.UTF_8));
+        spool.served(1);
+        spool.finish();
+        assertFalse(spool.drained());
+        two.close();
+        spool.served(2);
+        assertTrue(spool.drained());
+    }
+
+    @Test
+    public void fullSpoolWaitsForLoaders() throws IOException, InterruptedException, ExecutionException,
+            TimeoutException {
+        final ChunkSpool spool = new ChunkSpool(temp.newFolder(), 2);
+        Writer one = spool.start(1);
+        one.write("one");
+        one.close();
+        Future<Writer> two = executor.submit(new Callable<Writer>() {
+            @Override
+            public Writer call() throws IOException, InterruptedException {
+                return spool.start(2);
+            }
+        });
+        try {
+            two.get(100, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Shouldn't start a chunk while the spool is full");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        spool.served(1);
+        two.get(10, TimeUnit.SECONDS).close();
+        assertTrue(spool.await(2).exists());
+    }
+
+    @Test
+    public void clearsLeftovers() throws IOException {
+        File dir = temp.newFolder();
+        File leftover = new File(dir, "00000001.ttl.tmp");
+        File other = new File(dir, "notes.txt");
+        assertTrue(leftover.createNewFile());
+        assertTrue(other.createNewFile());
+        new ChunkSpool(dir, 1);
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+    }
+}
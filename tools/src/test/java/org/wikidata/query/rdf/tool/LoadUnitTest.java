@@ -0,0 +1,93 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class LoadUnitTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final RdfRepository repository = mock(RdfRepository.class);
+
+    @Test
+    public void loadsEveryChunkAndRecordsProgress() throws IOException {
+        List<File> chunks = chunks(3);
+        File progress = new File(temp.getRoot(), "progress");
+        when(repository.load(anyString())).thenReturn(10);
+        new Load(repository, chunks, 2, 0, false, progress).run();
+        for (File chunk : chunks) {
+            verify(repository).load("file://" + chunk.getAbsolutePath());
+        }
+        assertEquals(3, Files.readLines(progress, Charsets.UTF_8).size());
+    }
+
+    @Test
+    public void retriesFailedChunks() throws IOException {
+        List<File> chunks = chunks(1);
+        when(repository.load(anyString())).thenThrow(new ContainedException("boom")).thenReturn(10);
+        new Load(repository, chunks, 1, 1, false, null).run();
+        verify(repository, times(2)).load(anyString());
+    }
+
+    @Test(expected = FatalException.class)
+    public void givesUpAfterRetries() throws IOException {
+        List<File> chunks = chunks(1);
+        when(repository.load(anyString())).thenThrow(new ContainedException("boom"));
+        new Load(repository, chunks, 1, 2, false, null).run();
+    }
+
+    @Test
+    public void resumesFromProgress() throws IOException {
+        List<File> chunks = chunks(3);
+        File progress = new File(temp.getRoot(), "progress");
+        Files.write(chunks.get(0).getName() + " 100 10\n" + chunks.get(1).getName() + " 1", progress, Charsets.UTF_8);
+        when(repository.load(anyString())).thenReturn(10);
+        new Load(repository, chunks, 2, 0, false, progress).run();
+        verify(repository, never()).load("file://" + chunks.get(0).getAbsolutePath());
+        // The torn record doesn't count
+        verify(repository).load("file://" + chunks.get(1).getAbsolutePath());
+        verify(repository).load("file://" + chunks.get(2).getAbsolutePath());
+    }
+
+    @Test
+    public void postsChunks() throws IOException {
+        List<File> chunks = chunks(2);
+        when(repository.loadTurtle(any(InputStream.class))).thenReturn(10);
+        new Load(repository, chunks, 2, 0, true, null).run();
+        verify(repository, times(2)).loadTurtle(any(InputStream.class));
+        verify(repository, never()).load(anyString());
+    }
+
+    private List<File> chunks(int count) throws IOException {
+        List<File> chunks = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            File chunk = temp.newFile(String.format(Locale.ROOT, "wikidump-%09d.ttl", i));
+            Files.write("<a> <b> <c> .\n", chunk, Charsets.UTF_8);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,70 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.google.common.io.CharStreams;
+
+public class MungeCheckpointUnitTest {
+    private final WikibaseUris uris = WikibaseUris.WIKIDATA;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void savesAndLoads() throws IOException {
+        File file = new File(temp.getRoot(), "checkpoint");
+        MungeCheckpoint checkpoint = MungeCheckpoint.load(file, 10);
+        assertEquals(0, checkpoint.entities());
+        assertNull(checkpoint.subject());
+        checkpoint.save(20, uris.entityData() + "Q21");
+
+        checkpoint = MungeCheckpoint.load(file, 10);
+        assertEquals(20, checkpoint.entities());
+        assertEquals(uris.entityData() + "Q21", checkpoint.subject());
+    }
+
+    @Test(expected = IOException.class)
+    public void differentChunkSize() throws IOException {
+        File file = new File(temp.getRoot(), "checkpoint");
+        new MungeCheckpoint(file, 10).save(20, uris.entityData() + "Q21");
+        MungeCheckpoint.load(file, 100);
+    }
+
+    @Test
+    public void resumeKeepsHeaderAndSkipsFinishedEntities() throws IOException {
+        String header = "@prefix data: <" + uris.entityData() + "> .\n"
+                + "@prefix wd: <" + uris.entity() + "> .\n"
+                + "@prefix schema: <http://schema.org/> .\n"
+                + "\n"
+                + "<http://wikiba.se/ontology-beta#Dump> schema:softwareVersion \"0.0.3\" .\n";
+        String q1 = "data:Q1 a schema:Dataset ;\n\tschema:about wd:Q1 .\n\nwd:Q1 schema:name \"one\" .\n\n";
+        String q2 = "data:Q2 a schema:Dataset ;\n\tschema:about wd:Q2 .\n\nwd:Q2 schema:name \"two\" .\n\n";
+        String q3 = "<" + uris.entityData() + "Q3> a schema:Dataset ;\n\tschema:about wd:Q3 .\n";
+
+        MungeCheckpoint checkpoint = new MungeCheckpoint(new File(temp.getRoot(), "checkpoint"), 1);
+        checkpoint.save(1, uris.entityData() + "Q2");
+        String resumed = CharStreams.toString(checkpoint.resume(new StringReader(header + q1 + q2 + q3), uris));
+        assertEquals(header + q2 + q3, resumed);
+
+        checkpoint.save(2, uris.entityData() + "Q3");
+        resumed = CharStreams.toString(checkpoint.resume(new StringReader(header + q1 + q2 + q3), uris));
+        assertEquals(header + q3, resumed);
+    }
+
+    @Test(expected = IOException.class)
+    public void resumeFromMissingEntity() throws IOException {
+        MungeCheckpoint checkpoint = new MungeCheckpoint(new File(temp.getRoot(), "checkpoint"), 1);
+        checkpoint.save(1, uris.entityData() + "Q9");
+        checkpoint.resume(new StringReader("@prefix data: <" + uris.entityData() + "> .\ndata:Q1 a <x> .\n"), uris);
+    }
+}
@@ -0,0 +1,293 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+import org.wikidata.query.rdf.tool.rdf.ExistingNodes;
+import org.wikidata.query.rdf.tool.rdf.Munger;
+import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+import org.wikidata.query.rdf.tool.rdf.RefCountIndex;
+import org.wikidata.query.rdf.tool.rdf.ReplicaSyncer;
+import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+public class UpdateUnitTest {
+    private static final WikibaseUris uris = WikibaseUris.WIKIDATA;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final RdfRepository rdfRepository = mock(RdfRepository.class);
+    private final ExecutorService executor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void largeEntitiesAreSyncedOnTheirOwn() {
+        when(rdfRepository.getExistingNodes(anyCollectionOf(String.class))).thenReturn(
+                new ExistingNodes.Builder(uris).build());
+        Change small = replayed("Q1", value("a"));
+        Change large1 = replayed("Q2", value("a"), value("b"), value("c"));
+        Change large2 = replayed("Q3", value("a"), value("b"), value("c"));
+        update(small, large1, large2).largeEntityLane(2, 2).run();
+        verify(rdfRepository).syncFromChanges(eq(Arrays.asList(small)), eq(false),
+                eq(Collections.<String>emptySet()));
+        verify(rdfRepository).syncFromChanges(Collections.singleton(large1), false);
+        verify(rdfRepository).syncFromChanges(Collections.singleton(large2), false);
+        verify(rdfRepository).updateLeftOffTime(any(Date.class));
+    }
+
+    @Test
+    public void withoutTheLaneLargeEntitiesAreSyncedTogether() {
+        when(rdfRepository.getExistingNodes(anyCollectionOf(String.class))).thenReturn(
+                new ExistingNodes.Builder(uris).build());
+        Change large = replayed("Q2", value("a"), value("b"), value("c"));
+        update(large).run();
+        verify(rdfRepository).syncFromChanges(eq(Arrays.asList(large)), eq(false),
+                eq(Collections.<String>emptySet()));
+        verify(rdfRepository, never()).syncFromChanges(anyCollectionOf(Change.class), anyBoolean());
+    }
+
+    @Test
+    public void unusedNodesRideAlongWithALargeEntity() throws IOException {
+        try (RefCountIndex refCounts = RefCountIndex.open(new File(temp.getRoot(), "refcounts"), uris)) {
+            refCounts.update("Q1", entity("Q1", value("a")));
+            refCounts.commit();
+            Change large = replayed("Q1", value("b"), value("c"), value("d"));
+            update(large).largeEntityLane(2, 1).refCounts(refCounts).run();
+            verify(rdfRepository).syncFromChanges(eq(Arrays.asList(large)), eq(false),
+                    eq(Collections.singleton(value("a"))));
+            verify(rdfRepository, never()).syncFromChanges(anyCollectionOf(Change.class), anyBoolean());
+            assertEquals(0, refCounts.count(value("a")));
+        }
+    }
+
+    @Test
+    public void largeEntityFailureStopsTheUpdate() throws IOException {
+        try (RefCountIndex refCounts = RefCountIndex.open(new File(temp.getRoot(), "refcounts"), uris)) {
+            when(rdfRepository.syncFromChanges(anyCollectionOf(Change.class), anyBoolean())).thenThrow(
+                    new FatalException("large entity is too large"));
+            Change small = replayed("Q1", value("a"));
+            Change large = replayed("Q2", value("a"), value("b"), value("c"));
+            try {
+                update(small, large).largeEntityLane(2, 1).refCounts(refCounts).run();
+                fail("Expected the sync to fail");
+            } catch (FatalException e) {
+                // Expected
+            }
+            verify(rdfRepository).syncFromChanges(eq(Arrays.asList(small)), eq(false),
+                    anyCollectionOf(String.class));
+            // The batch isn't marked done and the counts aren't committed
+            verify(rdfRepository, never()).updateLeftOffTime(any(Date.class));
+            assertEquals(0, refCounts.count(value("a")));
+        }
+    }
+
+    @Test
+    public void failedSyncRollsBackRefCounts() throws IOException {
+        File file = new File(temp.getRoot(), "refcounts");
+        try (RefCountIndex refCounts = RefCountIndex.open(file, uris)) {
+            refCounts.update("Q1", entity("Q1", value("a")));
+            refCounts.commit();
+            when(rdfRepository.syncFromChanges(anyCollectionOf(Change.class), anyBoolean(),
+                    anyCollectionOf(String.class))).thenThrow(new FatalException("store is down"));
+            Update<?> update = update(replayed("Q1", value("b"))).refCounts(refCounts);
+            try {
+                update.run();
+                fail("Expected the sync to fail");
+            } catch (FatalException e) {
+                // Expected
+            }
+            assertThat(refCounts.existingNodes("Q1"), containsInAnyOrder(value("a")));
+            assertEquals(1, refCounts.count(value("a")));
+            assertEquals(0, refCounts.count(value("b")));
+        }
+        try (RefCountIndex refCounts = RefCountIndex.open(file, uris)) {
+            assertThat(refCounts.existingNodes("Q1"), containsInAnyOrder(value("a")));
+            assertEquals(0, refCounts.count(value("b")));
+        }
+    }
+
+    @Test
+    public void queuedBatchesReachReplicasBeforeRunReturns() {
+        when(rdfRepository.getExistingNodes(anyCollectionOf(String.class))).thenReturn(
+                new ExistingNodes.Builder(uris).build());
+        RdfRepository replicaRepository = mock(RdfRepository.class);
+        when(replicaRepository.getExistingNodes(anyCollectionOf(String.class))).thenAnswer(new Answer<ExistingNodes>() {
+            @Override
+            public ExistingNodes answer(InvocationOnMock invocation) throws InterruptedException {
+                // Slow enough that the primary finishes first
+                Thread.sleep(200);
+                return new ExistingNodes.Builder(uris).build();
+            }
+        });
+        ReplicaSyncer replica = new ReplicaSyncer(replicaRepository, uris, "replica", 10, new MetricRegistry());
+        Change change = replayed("Q1", value("a"));
+        update(change).replicas(Collections.singletonList(replica), null, 10).run();
+        verify(replicaRepository).syncFromChanges(anyCollectionOf(Change.class), eq(false));
+        verify(replicaRepository).updateLeftOffTime(new Date(-1000));
+        // And then it was shut down
+        assertTrue(replica.detached());
+    }
+
+    @Test(timeout = 10000)
+    public void sourcesThatWaitForChangesArentPolled() {
+        when(rdfRepository.getExistingNodes(anyCollectionOf(String.class))).thenReturn(
+                new ExistingNodes.Builder(uris).build());
+        Change change = replayed("Q1", value("a"));
+        // An hour long poll delay would time the test out
+        new Update<>(new WaitingSource(change), mock(WikibaseRepository.class), rdfRepository, new Munger(uris),
+                executor, 3600, uris, false).run();
+        verify(rdfRepository).syncFromChanges(eq(Arrays.asList(change)), eq(false),
+                eq(Collections.<String>emptySet()));
+    }
+
+    private Update<OneBatch.Batch> update(Change... changes) {
+        return new Update<>(new OneBatch(changes), mock(WikibaseRepository.class), rdfRepository, new Munger(uris),
+                executor, 0, uris, false);
+    }
+
+    /**
+     * A change replayed from a change log so it is already munged.
+     */
+    private static Change replayed(String id, String... nodes) {
+        Change change = new Change(id, -1, null, -1);
+        change.setStatements(entity(id, nodes));
+        return change;
+    }
+
+    private static List<Statement> entity(String id, String... nodes) {
+        List<Statement> statements = new ArrayList<>();
+        String statement = uris.statement() + id + "-s";
+        statements.add(statement(uris.entity() + id, statement));
+        for (String node : nodes) {
+            statements.add(statement(statement, node));
+        }
+        return statements;
+    }
+
+    private static Statement statement(String subject, String object) {
+        return new StatementImpl(new URIImpl(subject), new URIImpl("http://example.com/p"), new URIImpl(object));
+    }
+
+    private static String value(String name) {
+        return uris.value() + name;
+    }
+
+    /**
+     * Source that waits for changes itself and returns a couple of empty
+     * batches before its only change.
+     */
+    private static class WaitingSource implements Change.Source<OneBatch.Batch>, Change.WaitsForChanges {
+        private final Change change;
+        private int empties = 2;
+
+        WaitingSource(Change change) {
+            this.change = change;
+        }
+
+        @Override
+        public OneBatch.Batch firstBatch() {
+            return nextBatch(null);
+        }
+
+        @Override
+        public OneBatch.Batch nextBatch(OneBatch.Batch lastBatch) {
+            if (empties-- > 0) {
+                return new OneBatch.Batch(ImmutableList.<Change>of(), false);
+            }
+            return new OneBatch.Batch(ImmutableList.of(change), true);
+        }
+
+        @Override
+        public boolean waitsForChanges() {
+            return true;
+        }
+    }
+
+    /**
+     * Source with a single batch.
+     */
+    private static class OneBatch implements Change.Source<OneBatch.Batch> {
+        private final Change[] changes;
+
+        OneBatch(Change... changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        public Batch firstBatch() {
+            return new Batch(ImmutableList.copyOf(changes), true);
+        }
+
+        @Override
+        public Batch nextBatch(Batch lastBatch) {
+            throw new UnsupportedOperationException();
+        }
+
+        private static class Batch extends Change.Batch.AbstractDefaultImplementation {
+            private final boolean last;
+
+            Batch(ImmutableList<Change> changes, boolean last) {
+                super(changes, changes.size(), "the end");
+                this.last = last;
+            }
+
+            @Override
+            public String advancedUnits() {
+                return "changes";
+            }
+
+            @Override
+            public Date leftOffDate() {
+                return new Date(0);
+            }
+
+            @Override
+            public boolean last() {
+                return last;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.contains;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+@RunWith(RandomizedRunner.class)
+public class VocabularyFrequenciesUnitTest extends RandomizedTest {
+    private final WikibaseUris uris = WikibaseUris.WIKIDATA;
+
+    @Test
+    public void countsEntitiesAndProperties() throws RDFParseException, RDFHandlerException, IOException {
+        VocabularyFrequencies frequencies = new VocabularyFrequencies(uris, 100);
+        StringBuilder rdf = new StringBuilder();
+        rdf.append("@prefix wd: <").append(uris.entity()).append("> .\n");
+        rdf.append("@prefix wdt: <").append(uris.property(WikibaseUris.PropertyType.DIRECT)).append("> .\n");
+        rdf.append("@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n");
+        rdf.append("wd:Q1 wdt:P31 wd:Q5 ; rdfs:label \"cat\" .\n");
+        rdf.append("wd:Q2 wdt:P31 wd:Q5 ; wdt:P17 wd:Q30 .\n");
+        rdf.append("wd:Q3 wdt:P31 wd:Q5 ; wdt:P17 <").append(uris.entity()).append("Q30foo> .\n");
+        frequencies.scan(new StringReader(rdf.toString()));
+
+        StringWriter out = new StringWriter();
+        frequencies.write(out, 3);
+        assertThat(uris(out.toString()), contains(
+                uris.property(WikibaseUris.PropertyType.DIRECT) + "P31",
+                uris.entity() + "Q5",
+                uris.property(WikibaseUris.PropertyType.DIRECT) + "P17"));
+    }
+
+    private List<String> uris(String output) {
+        List<String> result = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            if (!line.startsWith("#")) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+}
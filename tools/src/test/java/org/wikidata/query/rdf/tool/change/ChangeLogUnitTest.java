@@ -0,0 +1,245 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+
+public class ChangeLogUnitTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void replaysWhatWasLogged() throws IOException, RetryableException {
+        File dir = temp.newFolder();
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement(new URIImpl("http://example.com/o")));
+        statements.add(statement(new LiteralImpl("plain")));
+        statements.add(statement(new LiteralImpl("chat", "fr")));
+        statements.add(statement(new LiteralImpl("1", new URIImpl("http://www.w3.org/2001/XMLSchema#integer"))));
+        statements.add(statement(new BNodeImpl("b1")));
+        try (ChangeLog log = open(dir, 1024 * 1024)) {
+            log.append(Arrays.asList(change("Q1", 1, statements), new Change("Q2", 2, new Date(2000), 2)),
+                    new Date(2000));
+            log.append(Arrays.asList(change("Q3", 3, new ArrayList<Statement>())), new Date(3000));
+        }
+
+        ChangeLogChangeSource source = new ChangeLogChangeSource(dir, new Date(0));
+        ChangeLogChangeSource.Batch batch = source.firstBatch();
+        // Q2 has no statements so it failed to sync and wasn't logged
+        assertThat(entityIds(batch), contains("Q1"));
+        assertEquals(statements, batch.changes().get(0).getStatements());
+        assertEquals(1, batch.changes().get(0).revision());
+        assertEquals(new Date(1000), batch.changes().get(0).timestamp());
+        assertEquals(new Date(2000), batch.leftOffDate());
+        assertFalse(batch.last());
+        batch = source.nextBatch(batch);
+        assertThat(entityIds(batch), contains("Q3"));
+        assertThat(batch.changes().get(0).getStatements(), empty());
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void startsWhereItIsTold() throws IOException, RetryableException {
+        File dir = temp.newFolder();
+        long now = System.currentTimeMillis();
+        // Tiny segments so each batch gets its own
+        try (ChangeLog log = open(dir, 1)) {
+            for (int i = 1; i <= 5; i++) {
+                log.append(Arrays.asList(change("Q" + i, i, statements())), new Date(now + i * 1000));
+            }
+        }
+        assertEquals(5, ChangeLog.segments(dir).size());
+        ChangeLogChangeSource source = new ChangeLogChangeSource(dir, new Date(now + 3000));
+        ChangeLogChangeSource.Batch batch = source.firstBatch();
+        assertThat(entityIds(batch), contains("Q3"));
+        batch = source.nextBatch(batch);
+        assertThat(entityIds(batch), contains("Q4"));
+        batch = source.nextBatch(batch);
+        assertThat(entityIds(batch), contains("Q5"));
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void skipsTornBatches() throws IOException, RetryableException {
+        File dir = temp.newFolder();
+        try (ChangeLog log = open(dir, 1024 * 1024)) {
+            log.append(Arrays.asList(change("Q1", 1, statements())), new Date(1000));
+        }
+        File segment = ChangeLog.segments(dir).get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 20);
+        }
+        try (ChangeLog log = open(dir, 1024 * 1024)) {
+            log.append(Arrays.asList(change("Q2", 2, statements())), new Date(2000));
+        }
+        ChangeLogChangeSource source = new ChangeLogChangeSource(dir, new Date(0));
+        ChangeLogChangeSource.Batch batch = source.firstBatch();
+        assertThat(entityIds(batch), contains("Q2"));
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void startsAtAnRcid() throws IOException, RetryableException {
+        File dir = temp.newFolder();
+        long now = System.currentTimeMillis();
+        try (ChangeLog log = open(dir, 1)) {
+            for (int i = 1; i <= 5; i++) {
+                log.append(Arrays.asList(change("Q" + i, i, statements())), new Date(now + i * 1000));
+            }
+        }
+        assertEquals(3, ChangeLog.startRcid(ChangeLog.segments(dir).get(2)));
+        ChangeLogChangeSource source = new ChangeLogChangeSource(dir, 4L);
+        ChangeLogChangeSource.Batch batch = source.firstBatch();
+        assertThat(entityIds(batch), contains("Q4"));
+        batch = source.nextBatch(batch);
+        assertThat(entityIds(batch), contains("Q5"));
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void openingCutsTheTornEndOffTheNewestSegment() throws IOException, RetryableException {
+        File dir = temp.newFolder();
+        long intactLength;
+        try (ChangeLog log = open(dir, 1024 * 1024)) {
+            log.append(Arrays.asList(change("Q1", 1, statements())), new Date(1000));
+            intactLength = ChangeLog.segments(dir).get(0).length();
+            log.append(Arrays.asList(change("Q2", 2, statements())), new Date(2000));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(ChangeLog.segments(dir).get(0), "rw")) {
+            file.setLength(intactLength);
+        }
+        try (ChangeLog log = open(dir, 1024 * 1024)) {
+            log.append(Arrays.asList(change("Q3", 3, statements())), new Date(3000));
+        }
+        assertEquals(2, ChangeLog.segments(dir).size());
+        ChangeLogChangeSource source = new ChangeLogChangeSource(dir, new Date(0));
+        ChangeLogChangeSource.Batch batch = source.firstBatch();
+        assertThat(entityIds(batch), contains("Q1"));
+        batch = source.nextBatch(batch);
+        assertThat(entityIds(batch), contains("Q3"));
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void skipsTheTornEndOfTheNewestSegment() throws IOException, RetryableException {
+        File dir = temp.newFolder();
+        long now = System.currentTimeMillis();
+        try (ChangeLog log = open(dir, 1)) {
+            log.append(Arrays.asList(change("Q1", 1, statements())), new Date(now + 1000));
+            log.append(Arrays.asList(change("Q2", 2, statements())), new Date(now + 2000));
+        }
+        tear(ChangeLog.segments(dir).get(1));
+        ChangeLogChangeSource.Batch batch = new ChangeLogChangeSource(dir, new Date(0)).firstBatch();
+        assertThat(entityIds(batch), contains("Q1"));
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void failsOnATornOlderSegment() throws IOException, RetryableException {
+        File dir = temp.newFolder();
+        long now = System.currentTimeMillis();
+        try (ChangeLog log = open(dir, 1)) {
+            log.append(Arrays.asList(change("Q1", 1, statements())), new Date(now + 1000));
+            log.append(Arrays.asList(change("Q2", 2, statements())), new Date(now + 2000));
+        }
+        tear(ChangeLog.segments(dir).get(0));
+        try {
+            new ChangeLogChangeSource(dir, new Date(0)).firstBatch();
+            fail("Expected the replay to fail");
+        } catch (FatalException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void emptyLog() throws RetryableException, IOException {
+        ChangeLogChangeSource.Batch batch = new ChangeLogChangeSource(temp.newFolder(), new Date(0)).firstBatch();
+        assertThat(batch.changes(), empty());
+        assertNull(batch.leftOffDate());
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void deletesOldSegments() throws IOException {
+        File dir = temp.newFolder();
+        long now = System.currentTimeMillis();
+        try (ChangeLog log = ChangeLog.open(dir, 1, 1, TimeUnit.DAYS, Long.MAX_VALUE)) {
+            log.append(Arrays.asList(change("Q1", 1, statements())), new Date(now - TimeUnit.DAYS.toMillis(3)));
+            log.append(Arrays.asList(change("Q2", 2, statements())), new Date(now - TimeUnit.DAYS.toMillis(2)));
+            log.append(Arrays.asList(change("Q3", 3, statements())), new Date(now));
+        }
+        // The second segment holds changes up to when the third starts so it is kept
+        assertEquals(2, ChangeLog.segments(dir).size());
+    }
+
+    @Test
+    public void deletesSegmentsOverTheSizeLimit() throws IOException {
+        File dir = temp.newFolder();
+        try (ChangeLog log = ChangeLog.open(dir, 1, 365, TimeUnit.DAYS, 1)) {
+            for (int i = 1; i <= 3; i++) {
+                log.append(Arrays.asList(change("Q" + i, i, statements())), new Date());
+            }
+        }
+        assertEquals(1, ChangeLog.segments(dir).size());
+    }
+
+    private static void tear(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 20);
+        }
+    }
+
+    private static ChangeLog open(File dir, long maxSegmentBytes) throws IOException {
+        return ChangeLog.open(dir, maxSegmentBytes, 365, TimeUnit.DAYS, Long.MAX_VALUE);
+    }
+
+    private static Change change(String id, long revision, List<Statement> statements) {
+        Change change = new Change(id, revision, new Date(revision * 1000), revision);
+        change.setStatements(statements);
+        return change;
+    }
+
+    private static List<Statement> statements() {
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement(new LiteralImpl("plain")));
+        return statements;
+    }
+
+    private static Statement statement(Value object) {
+        return new StatementImpl(new URIImpl("http://example.com/s"), new URIImpl("http://example.com/p"), object);
+    }
+
+    private static List<String> entityIds(Change.Batch batch) {
+        List<String> ids = new ArrayList<>();
+        for (Change change : batch.changes()) {
+            ids.add(change.entityId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,163 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+public class CoalescingChangeSourceUnitTest {
+    private final ScriptedSource source = new ScriptedSource();
+    private final FakeTicker ticker = new FakeTicker();
+    private final CoalescingChangeSource<ScriptedSource.Batch> coalescing = new CoalescingChangeSource<>(source, 60,
+            TimeUnit.SECONDS, ticker);
+
+    @Test
+    public void quietEntitiesPassStraightThrough() throws RetryableException {
+        source.add(change("Q1", 1), change("Q2", 2));
+        source.add(change("Q3", 3));
+        CoalescingChangeSource.Batch<ScriptedSource.Batch> batch = coalescing.firstBatch();
+        assertThat(describe(batch), contains("Q1@1", "Q2@2"));
+        assertThat(describe(coalescing.nextBatch(batch)), contains("Q3@3"));
+    }
+
+    @Test
+    public void hotEntitiesAreHeldAndMerged() throws RetryableException {
+        source.add(change("Q1", 1));
+        source.add(change("Q1", 2), change("Q2", 3));
+        source.add(change("Q1", 5), change("Q1", 4));
+        source.add();
+        CoalescingChangeSource.Batch<ScriptedSource.Batch> batch = coalescing.firstBatch();
+        assertThat(describe(batch), contains("Q1@1"));
+        ticker.advance(10);
+        batch = coalescing.nextBatch(batch);
+        assertThat(describe(batch), contains("Q2@3"));
+        ticker.advance(10);
+        batch = coalescing.nextBatch(batch);
+        assertThat(describe(batch), empty());
+        assertEquals(1, coalescing.heldCount());
+        ticker.advance(40);
+        batch = coalescing.nextBatch(batch);
+        assertThat(describe(batch), contains("Q1@5"));
+        assertEquals(0, coalescing.heldCount());
+    }
+
+    @Test
+    public void leftOffDateDoesntPassHeldChanges() throws RetryableException {
+        source.add(change("Q1", 1));
+        source.add(change("Q1", 2));
+        CoalescingChangeSource.Batch<ScriptedSource.Batch> batch = coalescing.firstBatch();
+        assertEquals(new Date(1000), batch.leftOffDate());
+        batch = coalescing.nextBatch(batch);
+        assertThat(describe(batch), empty());
+        assertEquals(new Date(2000), batch.leftOffDate());
+        source.add(change("Q2", 3));
+        batch = coalescing.nextBatch(batch);
+        // Q1@2 is still held so we can't say we're past it
+        assertEquals(new Date(2000), batch.leftOffDate());
+    }
+
+    @Test
+    public void lastBatchReleasesEverything() throws RetryableException {
+        source.add(change("Q1", 1));
+        source.add(change("Q1", 2));
+        source.last = true;
+        CoalescingChangeSource.Batch<ScriptedSource.Batch> batch = coalescing.firstBatch();
+        assertThat(describe(coalescing.nextBatch(batch)), contains("Q1@2"));
+    }
+
+    private static Change change(String id, long revision) {
+        return new Change(id, revision, new Date(revision * 1000), revision);
+    }
+
+    private static List<String> describe(Change.Batch batch) {
+        List<String> result = new ArrayList<>();
+        for (Change change : batch.changes()) {
+            result.add(change.entityId() + "@" + change.revision());
+        }
+        return result;
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        void advance(long seconds) {
+            nanos += TimeUnit.SECONDS.toNanos(seconds);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Source that returns batches from a script.
+     */
+    private static class ScriptedSource implements Change.Source<ScriptedSource.Batch> {
+        private final List<ImmutableList<Change>> script = new ArrayList<>();
+        private boolean last;
+
+        void add(Change... changes) {
+            script.add(ImmutableList.copyOf(changes));
+        }
+
+        @Override
+        public Batch firstBatch() {
+            return batch(0);
+        }
+
+        @Override
+        public Batch nextBatch(Batch lastBatch) {
+            return batch(lastBatch.number + 1);
+        }
+
+        private Batch batch(int number) {
+            ImmutableList<Change> changes = number < script.size() ? script.get(number) : ImmutableList.<Change>of();
+            long leftOff = 0;
+            for (Change change : changes) {
+                leftOff = Math.max(leftOff, change.timestamp().getTime());
+            }
+            return new Batch(changes, number, last && number == script.size() - 1, leftOff == 0 ? null
+                    : new Date(leftOff));
+        }
+
+        private static class Batch extends Change.Batch.AbstractDefaultImplementation {
+            private final int number;
+            private final boolean last;
+            private final Date leftOffDate;
+
+            Batch(ImmutableList<Change> changes, int number, boolean last, Date leftOffDate) {
+                super(changes, 1, number);
+                this.number = number;
+                this.last = last;
+                this.leftOffDate = leftOffDate;
+            }
+
+            @Override
+            public String advancedUnits() {
+                return "batches";
+            }
+
+            @Override
+            public Date leftOffDate() {
+                return leftOffDate;
+            }
+
+            @Override
+            public boolean last() {
+                return last;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
+
+import fi.iki.elonen.NanoHTTPD;
+
+public class EventStreamChangeSourceUnitTest {
+    private static final String SERVER = "www.wikidata.org";
+
+    private final Stub stub = new Stub();
+    private final WikibaseRepository wikibase = mock(WikibaseRepository.class);
+    private EventStreamChangeSource source;
+
+    @Before
+    public void startStub() throws IOException {
+        stub.start();
+    }
+
+    @After
+    public void stop() {
+        if (source != null) {
+            source.stop();
+        }
+        stub.stop();
+    }
+
+    @Test
+    public void readsChangesFromTheStream() throws RetryableException {
+        long now = System.currentTimeMillis();
+        stub.bodies.add(event("1", "Q1", 0, 1, now) + event("2", "Q2", 0, 2, now, "en.wikipedia.org")
+                + event("3", "User:Foo", 2, 3, now) + event("4", "Property:P3", 120, 4, now));
+        source = source(TimeUnit.MINUTES.toMillis(5));
+        assertThat(entityIds(readAtLeast(2)), contains("Q1", "P3"));
+    }
+
+    @Test
+    public void resumesAfterTheLastEvent() throws RetryableException {
+        long now = System.currentTimeMillis();
+        stub.bodies.add(event("a", "Q1", 0, 1, now));
+        stub.bodies.add(event("b", "Q2", 0, 2, now));
+        Date start = new Date(now - 1000);
+        source = new EventStreamChangeSource(stub.uri(), wikibase, SERVER, start, 10, TimeUnit.MINUTES.toMillis(5),
+                100);
+        assertThat(entityIds(readAtLeast(2)), contains("Q1", "Q2"));
+        assertEquals(Long.toString(start.getTime()), stub.requests.get(0).get("since"));
+        assertNull(stub.requests.get(0).get("last-event-id"));
+        assertEquals("a", stub.requests.get(1).get("last-event-id"));
+        assertNull(stub.requests.get(1).get("since"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void fallsBackToPollingWhenBehind() throws RetryableException {
+        long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        stub.bodies.add(event("1", "Q1", 0, 1, old));
+        JSONObject result = new JSONObject();
+        JSONObject query = new JSONObject();
+        result.put("query", query);
+        query.put("recentchanges", new JSONArray());
+        when(wikibase.fetchRecentChanges(any(Date.class), any(JSONObject.class), anyInt())).thenReturn(result);
+        source = source(TimeUnit.MINUTES.toMillis(1));
+
+        Change.Batch batch = source.firstBatch();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!(batch instanceof RecentChangesPoller.Batch) && System.currentTimeMillis() < deadline) {
+            batch = source.nextBatch(batch);
+        }
+        assertThat(batch, instanceOf(RecentChangesPoller.Batch.class));
+        // Polling found nothing so we've caught up and should go back to the stream
+        batch = source.nextBatch(batch);
+        assertThat(batch.changes(), empty());
+        stub.bodies.add(event("2", "Q2", 0, 2, System.currentTimeMillis()));
+        batch = source.nextBatch(batch);
+        deadline = System.currentTimeMillis() + 10000;
+        while (batch.changes().isEmpty() && System.currentTimeMillis() < deadline) {
+            batch = source.nextBatch(batch);
+        }
+        assertThat(batch, instanceOf(EventStreamChangeSource.Batch.class));
+        assertThat(entityIds(batch.changes()), contains("Q2"));
+    }
+
+    @Test
+    public void parseEvents() throws ParseException {
+        Change change = EventStreamReader.parseEvent(data("Q1", 0, 12, 1000), SERVER);
+        assertEquals("Q1", change.entityId());
+        assertEquals(12, change.revision());
+        assertEquals(new Date(1000000), change.timestamp());
+        assertEquals(7, change.rcid());
+        assertNull(EventStreamReader.parseEvent(data("Q1", 0, 12, 1000).replace(SERVER, "en.wikipedia.org"), SERVER));
+        assertNull(EventStreamReader.parseEvent(data("Talk:Q1", 1, 12, 1000), SERVER));
+    }
+
+    @Test
+    public void logEventsForceASync() throws ParseException {
+        Change change = EventStreamReader.parseEvent("{\"type\":\"log\",\"namespace\":0,\"title\":\"Q1\","
+                + "\"timestamp\":1000,\"id\":7,\"server_name\":\"" + SERVER + "\"}", SERVER);
+        assertNotNull(change);
+        assertEquals(-1, change.revision());
+    }
+
+    private EventStreamChangeSource source(long maxLagMillis) {
+        return new EventStreamChangeSource(stub.uri(), wikibase, SERVER, new Date(), 10, maxLagMillis, 100);
+    }
+
+    private List<Change> readAtLeast(int count) throws RetryableException {
+        List<Change> changes = new ArrayList<>();
+        Change.Batch batch = source.firstBatch();
+        changes.addAll(batch.changes());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (changes.size() < count && System.currentTimeMillis() < deadline) {
+            batch = source.nextBatch(batch);
+            changes.addAll(batch.changes());
+        }
+        return changes;
+    }
+
+    private static List<String> entityIds(List<Change> changes) {
+        List<String> ids = new ArrayList<>();
+        for (Change change : changes) {
+            ids.add(change.entityId());
+        }
+        return ids;
+    }
+
+    private static String event(String id, String title, int namespace, long revision, long timestamp) {
+        return event(id, title, namespace, revision, timestamp, SERVER);
+    }
+
+    private static String event(String id, String title, int namespace, long revision, long timestamp, String server) {
+        return "event: message\nid: " + id + "\ndata: "
+                + data(title, namespace, revision, TimeUnit.MILLISECONDS.toSeconds(timestamp)).replace(SERVER, server)
+                + "\n\n";
+    }
+
+    private static String data(String title, int namespace, long revision, long timestamp) {
+        return "{\"type\":\"edit\",\"namespace\":" + namespace + ",\"title\":\"" + title + "\",\"timestamp\":"
+                + timestamp + ",\"id\":7,\"server_name\":\"" + SERVER + "\",\"revision\":{\"old\":1,\"new\":"
+                + revision + "}}";
+    }
+
+    /**
+     * Serves queued bodies as event streams, one per request, and records
+     * each request's since parameter and Last-Event-ID header.
+     */
+    private static class Stub extends NanoHTTPD {
+        private final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<>();
+        private final List<Map<String, String>> requests = new CopyOnWriteArrayList<>();
+
+        Stub() {
+            super(0);
+        }
+
+        URI uri() {
+            return URI.create("http://localhost:" + getListeningPort() + "/v2/stream/recentchange");
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            String body = bodies.poll();
+            if (body == null) {
+                return new Response(Response.Status.NOT_FOUND, "text/plain", "no more events");
+            }
+            Map<String, String> request = session.getHeaders();
+            String since = session.getParms().get("since");
+            if (since != null) {
+                request.put("since", since);
+            }
+            requests.add(request);
+            return new Response(Response.Status.OK, "text/event-stream", ": keep alive\n" + body);
+        }
+    }
+}
@@ -1,14 +1,33 @@
 package org.wikidata.query.rdf.tool.change;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.wikidata.query.rdf.tool.change.IdRangeChangeSource.forItems;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
 
 public class IdRangeChangeSourceUnitTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
     @Test
     public void empty() throws RetryableException {
         IdRangeChangeSource changeSource = forItems(0, -1, 1);
@@ -54,4 +73,65 @@ public class IdRangeChangeSourceUnitTest {
         }
         assertEquals(1, batch.advanced());
     }
+
+    @Test
+    public void skipsMissing() throws RetryableException {
+        WikibaseRepository wikibase = mock(WikibaseRepository.class);
+        when(wikibase.existingEntities(anyCollectionOf(String.class))).thenReturn(
+                new HashSet<>(Arrays.asList("Q3", "Q57", "Q58")));
+        IdRangeChangeSource changeSource = forItems(0, 99, 10).skipMissing(wikibase);
+        IdRangeChangeSource.Batch batch = changeSource.firstBatch();
+        assertThat(entityIds(batch), contains("Q3"));
+        assertFalse(batch.last());
+        // Windows without any existing ids are skipped rather than returned empty
+        batch = changeSource.nextBatch(batch);
+        assertThat(entityIds(batch), contains("Q57", "Q58"));
+        assertEquals(50, batch.advanced());
+        batch = changeSource.nextBatch(batch);
+        assertThat(entityIds(batch), hasSize(0));
+        assertTrue(batch.last());
+    }
+
+    @Test
+    public void checkpointResumes() throws RetryableException, IOException {
+        File file = new File(temp.getRoot(), "checkpoint");
+        IdRangeCheckpoint checkpoint = IdRangeCheckpoint.open(file, 1, 100, 3);
+        assertEquals(3, checkpoint.shards().size());
+        IdRangeCheckpoint.Shard shard = checkpoint.shards().get(1);
+        IdRangeChangeSource changeSource = forItems(shard.next(), shard.stop(), 10).checkpointTo(shard);
+        IdRangeChangeSource.Batch batch = changeSource.firstBatch();
+        changeSource.nextBatch(batch);
+
+        checkpoint = IdRangeCheckpoint.open(file, 1, 100, 3);
+        assertEquals(1, checkpoint.shards().get(0).next());
+        assertEquals(45, checkpoint.shards().get(1).next());
+        assertEquals(68, checkpoint.shards().get(1).stop());
+        assertEquals(100, checkpoint.shards().get(2).stop());
+        assertFalse(checkpoint.shards().get(1).done());
+
+        // The final batch is recorded when the empty batch after it is fetched
+        shard = checkpoint.shards().get(2);
+        changeSource = forItems(shard.next(), shard.stop(), 100).checkpointTo(shard);
+        batch = changeSource.firstBatch();
+        assertFalse(batch.last());
+        batch = changeSource.nextBatch(batch);
+        assertThat(entityIds(batch), hasSize(0));
+        assertTrue(batch.last());
+        assertTrue(IdRangeCheckpoint.open(file, 1, 100, 3).shards().get(2).done());
+    }
+
+    @Test(expected = IOException.class)
+    public void checkpointForAnotherRange() throws IOException {
+        File file = new File(temp.getRoot(), "checkpoint");
+        IdRangeCheckpoint.open(file, 1, 100, 3).shards().get(0).advance(10);
+        IdRangeCheckpoint.open(file, 1, 200, 3);
+    }
+
+    private static List<String> entityIds(Change.Batch batch) {
+        List<String> ids = new ArrayList<>();
+        for (Change change : batch.changes()) {
+            ids.add(change.entityId());
+        }
+        return ids;
+    }
 }
@@ -0,0 +1,125 @@
+package org.wikidata.query.rdf.tool.change;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wikidata.query.rdf.tool.exception.RetryableException;
+
+import com.google.common.collect.ImmutableList;
+
+public class PrefetchingChangeSourceUnitTest {
+    private final CountingSource source = new CountingSource();
+    private final PrefetchingChangeSource<CountingSource.Batch> prefetching = new PrefetchingChangeSource<>(source, 2);
+
+    @After
+    public void shutdown() {
+        prefetching.shutdown();
+    }
+
+    @Test
+    public void batchesComeOutInOrder() throws RetryableException {
+        CountingSource.Batch batch = prefetching.firstBatch();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, batch.number);
+            batch = prefetching.nextBatch(batch);
+        }
+        assertEquals(10, batch.number);
+    }
+
+    @Test
+    public void fetchesAhead() throws RetryableException, InterruptedException {
+        prefetching.firstBatch();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (source.fetches.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, source.fetches.get());
+    }
+
+    @Test
+    public void stopsAfterEmptyBatch() throws RetryableException, InterruptedException {
+        source.emptyAfter = 0;
+        CountingSource.Batch batch = prefetching.nextBatch(prefetching.firstBatch());
+        assertTrue(batch.changes().isEmpty());
+        Thread.sleep(100);
+        assertEquals(2, source.fetches.get());
+        // The caller polls again after waiting and gets a fresh fetch
+        source.emptyAfter = Integer.MAX_VALUE;
+        assertEquals(2, prefetching.nextBatch(batch).number);
+    }
+
+    @Test
+    public void retryableErrorsReachTheCaller() throws RetryableException {
+        source.failOn = 2;
+        CountingSource.Batch batch = prefetching.nextBatch(prefetching.firstBatch());
+        try {
+            prefetching.nextBatch(batch);
+            fail("Expected a RetryableException");
+        } catch (RetryableException e) {
+            // Expected
+        }
+        source.failOn = -1;
+        assertEquals(2, prefetching.nextBatch(batch).number);
+    }
+
+    @Test
+    public void offScriptCallsFetchDirectly() throws RetryableException {
+        CountingSource.Batch first = prefetching.firstBatch();
+        CountingSource.Batch second = prefetching.nextBatch(first);
+        assertEquals(1, prefetching.nextBatch(first).number);
+        assertEquals(2, prefetching.nextBatch(second).number);
+    }
+
+    /**
+     * Source that numbers its batches.
+     */
+    private static class CountingSource implements Change.Source<CountingSource.Batch> {
+        private final AtomicInteger fetches = new AtomicInteger();
+        private volatile int emptyAfter = Integer.MAX_VALUE;
+        private volatile int failOn = -1;
+
+        @Override
+        public Batch firstBatch() {
+            return batch(0);
+        }
+
+        @Override
+        public Batch nextBatch(Batch lastBatch) throws RetryableException {
+            if (lastBatch.number + 1 == failOn) {
+                throw new RetryableException("test");
+            }
+            return batch(lastBatch.number + 1);
+        }
+
+        private Batch batch(int number) {
+            fetches.incrementAndGet();
+            ImmutableList<Change> changes = number > emptyAfter ? ImmutableList.<Change>of() : ImmutableList.of(new Change(
+                    "Q" + number, number, null, number));
+            return new Batch(changes, number);
+        }
+
+        private static class Batch extends Change.Batch.AbstractDefaultImplementation {
+            private final int number;
+
+            Batch(ImmutableList<Change> changes, int number) {
+                super(changes, 1, number);
+                this.number = number;
+            }
+
+            @Override
+            public String advancedUnits() {
+                return "batches";
+            }
+
+            @Override
+            public java.util.Date leftOffDate() {
+                return null;
+            }
+        }
+    }
+}
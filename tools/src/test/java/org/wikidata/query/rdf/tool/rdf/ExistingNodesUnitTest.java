@@ -0,0 +1,76 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.wikidata.query.rdf.test.StatementHelper.statement;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.impl.MapBindingSet;
+import org.wikidata.query.rdf.common.uri.RDF;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+public class ExistingNodesUnitTest {
+    private static final WikibaseUris uris = WikibaseUris.WIKIDATA;
+
+    @Test
+    public void sortsNodesIntoValuesAndRefs() throws TupleQueryResultHandlerException {
+        ExistingNodes.Builder builder = new ExistingNodes.Builder(uris);
+        builder.startQueryResult(Arrays.asList("entity", "s"));
+        builder.handleSolution(row("Q1", uris.value() + "a"));
+        builder.handleSolution(row("Q1", uris.reference() + "r"));
+        builder.handleSolution(row("Q1", uris.value() + "b"));
+        builder.handleSolution(row("Q2", uris.value() + "a"));
+        builder.endQueryResult();
+        ExistingNodes nodes = builder.build();
+
+        assertThat(nodes.values("Q1"), containsInAnyOrder(uris.value() + "a", uris.value() + "b"));
+        assertThat(nodes.refs("Q1"), containsInAnyOrder(uris.reference() + "r"));
+        assertThat(nodes.values("Q2"), containsInAnyOrder(uris.value() + "a"));
+        assertThat(nodes.refs("Q2"), empty());
+        assertThat(nodes.values("Q3"), empty());
+        assertEquals(3, nodes.valueCount());
+        assertEquals(1, nodes.refCount());
+    }
+
+    @Test
+    public void restartingResultsStartsOver() throws TupleQueryResultHandlerException {
+        ExistingNodes.Builder builder = new ExistingNodes.Builder(uris);
+        builder.startQueryResult(Arrays.asList("entity", "s"));
+        builder.handleSolution(row("Q1", uris.value() + "a"));
+        builder.startQueryResult(Arrays.asList("entity", "s"));
+        builder.handleSolution(row("Q1", uris.value() + "a"));
+        builder.endQueryResult();
+        assertEquals(1, builder.build().valueCount());
+    }
+
+    @Test
+    public void unusedNodesArentSubjectsOfTheStatements() {
+        ExistingNodes nodes = new ExistingNodes.Builder(uris).add("Q1", uris.value() + "a")
+                .add("Q1", uris.value() + "b").add("Q1", uris.reference() + "r").add("Q2", uris.value() + "c").build();
+        assertThat(nodes.unused("Q1", Arrays.asList(statement(uris.value() + "a", RDF.TYPE, "cat"))),
+                contains(uris.value() + "b", uris.reference() + "r"));
+        assertThat(nodes.unused("Q3", Arrays.asList(statement(uris.value() + "a", RDF.TYPE, "cat"))), empty());
+    }
+
+    @Test(expected = TupleQueryResultHandlerException.class)
+    public void unexpectedEntity() throws TupleQueryResultHandlerException {
+        MapBindingSet row = new MapBindingSet();
+        row.addBinding("entity", new URIImpl("http://example.com/Q1"));
+        row.addBinding("s", new URIImpl(uris.value() + "a"));
+        new ExistingNodes.Builder(uris).handleSolution(row);
+    }
+
+    private MapBindingSet row(String entityId, String node) {
+        MapBindingSet row = new MapBindingSet();
+        row.addBinding("entity", new URIImpl(uris.entity() + entityId));
+        row.addBinding("s", new URIImpl(node));
+        return row;
+    }
+}
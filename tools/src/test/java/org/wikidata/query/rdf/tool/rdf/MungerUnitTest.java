@@ -18,8 +18,11 @@ import org.junit.runner.RunWith;
 import org.openrdf.model.Statement;
 import org.openrdf.model.impl.IntegerLiteralImpl;
 import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.NumericLiteralImpl;
 import org.openrdf.model.impl.StatementImpl;
 import org.openrdf.model.vocabulary.XMLSchema;
+import org.wikidata.query.rdf.common.GeoCell;
+import org.wikidata.query.rdf.common.uri.GeoSparql;
 import org.wikidata.query.rdf.common.uri.Ontology;
 import org.wikidata.query.rdf.common.uri.Provenance;
 import org.wikidata.query.rdf.common.uri.RDF;
@@ -317,6 +320,27 @@ public class MungerUnitTest extends RandomizedTest {
         assertThat(result, hasItem(expected));
     }
 
+    @Test
+    public void geoCellsIndexed() {
+        List<Statement> result = entity("Q23")
+                .indexGeoCells()
+                .retain(statement("Q23", uris.property(PropertyType.DIRECT) + "P625", new LiteralImpl("POINT(52.5 13.4)", GeoSparql.WKT_LITERAL)))
+                .test();
+        for (long cell : GeoCell.cells(GeoCell.EARTH, 52.5, 13.4)) {
+            assertThat(result, hasItem(statement("Q23", Ontology.Geo.CELL, new NumericLiteralImpl(cell, XMLSchema.LONG))));
+        }
+    }
+
+    @Test
+    public void geoCellsNotIndexedByDefault() {
+        List<Statement> result = entity("Q23")
+                .retain(statement("Q23", uris.property(PropertyType.DIRECT) + "P625", new LiteralImpl("POINT(52.5 13.4)", GeoSparql.WKT_LITERAL)))
+                .test();
+        for (long cell : GeoCell.cells(GeoCell.EARTH, 52.5, 13.4)) {
+            assertThat(result, not(hasItem(statement("Q23", Ontology.Geo.CELL, new NumericLiteralImpl(cell, XMLSchema.LONG)))));
+        }
+    }
+
 //    @Test
  //   public void coordinateSwitch() {
  //       List<Statement> result = entity("Q23")
@@ -390,6 +414,11 @@ public class MungerUnitTest extends RandomizedTest {
             return this;
         }
 
+        private Mungekin indexGeoCells() {
+            munger = munger.indexGeoCells(true);
+            return this;
+        }
+
         private Mungekin removeSiteLinks() {
             munger = munger.removeSiteLinks();
             return this;
@@ -0,0 +1,184 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+public class RefCountIndexUnitTest {
+    private static final WikibaseUris uris = WikibaseUris.WIKIDATA;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File file;
+    private RefCountIndex index;
+
+    @Before
+    public void open() throws IOException {
+        file = new File(temp.getRoot(), "refcounts");
+        index = RefCountIndex.open(file, uris);
+    }
+
+    @After
+    public void close() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void sharedValuesArentOrphaned() {
+        assertThat(index.update("Q1", entity("Q1", value("a"))), empty());
+        assertThat(index.update("Q2", entity("Q2", value("a"))), empty());
+        assertEquals(2, index.count(value("a")));
+        assertThat(index.update("Q1", entity("Q1")), empty());
+        assertEquals(1, index.count(value("a")));
+        assertThat(index.update("Q2", entity("Q2")), containsInAnyOrder(value("a")));
+        assertEquals(0, index.count(value("a")));
+    }
+
+    @Test
+    public void referencesCascadeToTheirValues() {
+        List<Statement> q1 = entity("Q1", ref("r"));
+        q1.add(statement(ref("r"), value("a")));
+        index.update("Q1", q1);
+        assertThat(index.existingNodes("Q1"), containsInAnyOrder(ref("r"), value("a")));
+        assertEquals(1, index.count(value("a")));
+
+        // Q2 shares the reference so it doesn't repeat its values
+        index.update("Q2", entity("Q2", ref("r")));
+        assertEquals(2, index.count(ref("r")));
+        assertEquals(1, index.count(value("a")));
+
+        assertThat(index.update("Q1", Collections.<Statement>emptyList()), empty());
+        assertThat(index.update("Q2", Collections.<Statement>emptyList()), containsInAnyOrder(ref("r"), value("a")));
+        assertThat(index.existingNodes("Q2"), empty());
+    }
+
+    @Test
+    public void onlyCommittedChangesArePersisted() throws IOException {
+        index.update("Q1", entity("Q1", value("a")));
+        index.commit();
+        index.update("Q2", entity("Q2", value("a")));
+        reopen(false);
+        assertEquals(1, index.count(value("a")));
+        assertThat(index.existingNodes("Q2"), empty());
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        List<Statement> q1 = entity("Q1", ref("r"), value("b"));
+        q1.add(statement(ref("r"), value("a")));
+        index.update("Q1", q1);
+        index.update("Q2", entity("Q2", ref("r"), value("b")));
+        index.update("Q3", entity("Q3", value("c")));
+        index.update("Q3", Collections.<Statement>emptyList());
+        reopen(true);
+        assertThat(index.existingNodes("Q1"), containsInAnyOrder(ref("r"), value("a"), value("b")));
+        assertThat(index.existingNodes("Q3"), empty());
+        assertEquals(2, index.count(ref("r")));
+        assertEquals(1, index.count(value("a")));
+        assertEquals(2, index.count(value("b")));
+        assertEquals(0, index.count(value("c")));
+    }
+
+    @Test
+    public void rollbackRestoresTheCommittedCounts() throws IOException {
+        List<Statement> q1 = entity("Q1", ref("r"));
+        q1.add(statement(ref("r"), value("a")));
+        index.update("Q1", q1);
+        index.update("Q2", entity("Q2", value("b")));
+        index.commit();
+
+        assertThat(index.update("Q1", entity("Q1", value("c"))), containsInAnyOrder(ref("r"), value("a")));
+        index.update("Q2", entity("Q2", value("b"), value("c")));
+        index.update("Q3", entity("Q3", ref("r")));
+        index.rollback();
+        assertThat(index.existingNodes("Q1"), containsInAnyOrder(ref("r"), value("a")));
+        assertThat(index.existingNodes("Q2"), containsInAnyOrder(value("b")));
+        assertThat(index.existingNodes("Q3"), empty());
+        assertEquals(1, index.count(ref("r")));
+        assertEquals(1, index.count(value("a")));
+        assertEquals(1, index.count(value("b")));
+        assertEquals(0, index.count(value("c")));
+
+        // Nothing that was rolled back makes it into the log
+        index.update("Q2", entity("Q2"));
+        index.commit();
+        reopen(false);
+        assertThat(index.existingNodes("Q1"), containsInAnyOrder(ref("r"), value("a")));
+        assertThat(index.existingNodes("Q2"), empty());
+        assertEquals(0, index.count(value("c")));
+    }
+
+    @Test
+    public void closeDropsUncommittedChanges() throws IOException {
+        index.update("Q1", entity("Q1", value("a")));
+        index.commit();
+        index.update("Q1", entity("Q1", value("b")));
+        index.close();
+        index = RefCountIndex.open(file, uris);
+        assertThat(index.existingNodes("Q1"), containsInAnyOrder(value("a")));
+        assertEquals(0, index.count(value("b")));
+    }
+
+    @Test
+    public void tornLinesAreSkipped() throws IOException {
+        index.update("Q1", entity("Q1", value("a")));
+        index.commit();
+        index.close();
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write("E\tQ2".getBytes("UTF-8"));
+        }
+        index = RefCountIndex.open(file, uris);
+        assertEquals(1, index.count(value("a")));
+        assertThat(index.existingNodes("Q2"), empty());
+    }
+
+    private void reopen(boolean commit) throws IOException {
+        if (commit) {
+            index.commit();
+        }
+        // Drop the index on the floor like a crash would
+        index = RefCountIndex.open(file, uris);
+    }
+
+    private static List<Statement> entity(String id, String... nodes) {
+        List<Statement> statements = new ArrayList<>();
+        String statement = uris.statement() + id + "-s";
+        statements.add(statement(uris.entity() + id, statement));
+        for (String node : nodes) {
+            statements.add(statement(statement, node));
+        }
+        return statements;
+    }
+
+    private static Statement statement(String subject, String object) {
+        return new StatementImpl(new URIImpl(subject), new URIImpl("http://example.com/p"), new URIImpl(object));
+    }
+
+    private static String value(String name) {
+        return uris.value() + name;
+    }
+
+    private static String ref(String name) {
+        return uris.reference() + name;
+    }
+}
@@ -0,0 +1,108 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.wikidata.query.rdf.test.StatementHelper.statement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikidata.query.rdf.common.uri.RDF;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class ReplicaSyncerUnitTest {
+    private static final WikibaseUris uris = WikibaseUris.WIKIDATA;
+
+    private final RdfRepository repository = mock(RdfRepository.class);
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final ReplicaSyncer syncer = new ReplicaSyncer(repository, uris, "replica", 1, metrics);
+
+    @After
+    public void shutdown() {
+        syncer.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void syncsOnlyWhatTheReplicaNeeds() {
+        when(repository.hasRevisions(anyCollectionOf(Change.class))).thenReturn(
+                Collections.singleton(uris.entity() + "Q1"));
+        when(repository.getExistingNodes(anyCollectionOf(String.class))).thenReturn(
+                new ExistingNodes.Builder(uris).add("Q1", uris.value() + "old").add("Q1", uris.value() + "kept").build());
+        syncer.sync(Arrays.asList(change("Q1"), change("Q2")), new Date(10000));
+
+        ArgumentCaptor<Collection> synced = ArgumentCaptor.forClass(Collection.class);
+        verify(repository, timeout(1000)).updateLeftOffTime(new Date(9000));
+        verify(repository).syncFromChanges(synced.capture(), eq(false));
+        List<Change> changes = new ArrayList<>(synced.getValue());
+        assertEquals(1, changes.size());
+        assertEquals("Q1", changes.get(0).entityId());
+        assertThat(changes.get(0).getCleanupList(), contains(uris.value() + "old"));
+        assertEquals(1, metrics.meter("replica-updates").getCount());
+    }
+
+    @Test
+    public void retriesErrors() {
+        when(repository.hasRevisions(anyCollectionOf(Change.class))).thenThrow(new ContainedException("test"))
+                .thenReturn(Collections.<String>emptySet());
+        syncer.sync(Arrays.asList(change("Q1")), new Date(10000));
+        verify(repository, timeout(5000)).updateLeftOffTime(new Date(9000));
+        assertEquals(1, metrics.meter("replica-retries").getCount());
+        assertFalse(syncer.detached());
+    }
+
+    @Test
+    public void detachesWhenTooFarBehind() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(repository.hasRevisions(anyCollectionOf(Change.class))).thenAnswer(new Answer<Set<String>>() {
+            @Override
+            public Set<String> answer(InvocationOnMock invocation) throws InterruptedException {
+                started.countDown();
+                release.await();
+                return Collections.emptySet();
+            }
+        });
+        try {
+            syncer.sync(Arrays.asList(change("Q1")), null);
+            started.await();
+            syncer.sync(Arrays.asList(change("Q2")), null);
+            assertFalse(syncer.detached());
+            syncer.sync(Arrays.asList(change("Q3")), null);
+            assertTrue(syncer.detached());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static Change change(String id) {
+        Change change = new Change(id, 1, new Date(), 1);
+        change.setStatements(Arrays.asList(statement(uris.entity() + id, RDF.TYPE, "cat"),
+                statement(uris.value() + "kept", RDF.TYPE, "cat")));
+        return change;
+    }
+}
@@ -0,0 +1,92 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class SampledVerifierUnitTest {
+    private final RdfRepository repository = mock(RdfRepository.class);
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final SampledVerifier verifier = new SampledVerifier(repository, 2, 1000, metrics);
+
+    @After
+    public void shutdown() {
+        verifier.shutdown();
+    }
+
+    @Test
+    public void matchingEntitiesArentResynced() {
+        when(repository.findExtraStatements(anySetOf(String.class), anyCollectionOf(Statement.class))).thenReturn(
+                Collections.<Statement>emptyList());
+        verifier.verify(change("Q1"));
+        assertThat(verifier.drainResync(), empty());
+        assertEquals(1, metrics.meter("verify-checked").getCount());
+        assertEquals(0, metrics.meter("verify-mismatches").getCount());
+    }
+
+    @Test
+    public void mismatchesAreResynced() {
+        Statement extra = new StatementImpl(new URIImpl("http://example.com/Q1"), new URIImpl("http://example.com/p"),
+                new URIImpl("http://example.com/o"));
+        when(repository.findExtraStatements(eq(Collections.singleton("Q1")), anyCollectionOf(Statement.class)))
+                .thenReturn(Collections.singletonList(extra));
+        verifier.verify(change("Q1"));
+        assertEquals(1, metrics.meter("verify-mismatches").getCount());
+        assertThat(verifier.drainResync(), contains("Q1"));
+        assertThat(verifier.drainResync(), empty());
+    }
+
+    @Test
+    public void errorsAreCounted() {
+        when(repository.findExtraStatements(anySetOf(String.class), anyCollectionOf(Statement.class))).thenThrow(
+                new ContainedException("test"));
+        verifier.verify(change("Q1"));
+        assertEquals(1, metrics.meter("verify-errors").getCount());
+        assertThat(verifier.drainResync(), empty());
+    }
+
+    @Test
+    public void samplesSomeOfTheBatch() {
+        when(repository.findExtraStatements(anySetOf(String.class), anyCollectionOf(Statement.class))).thenReturn(
+                Collections.<Statement>emptyList());
+        List<Change> changes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            changes.add(change("Q" + i));
+        }
+        // Changes without statements failed to sync so they aren't verified
+        changes.add(new Change("Q100", 1, null, 100));
+        verifier.sample(changes);
+        verify(repository, timeout(10000).times(2)).findExtraStatements(anySetOf(String.class),
+                anyCollectionOf(Statement.class));
+        verify(repository, times(2)).findExtraStatements(anySetOf(String.class), anyCollectionOf(Statement.class));
+    }
+
+    private Change change(String id) {
+        Change change = new Change(id, 1, null, 1);
+        change.setStatements(new ArrayList<Statement>());
+        return change;
+    }
+}
@@ -0,0 +1,58 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+@RunWith(RandomizedRunner.class)
+public class SpaceSavingCounterUnitTest extends RandomizedTest {
+    @Test
+    public void exactWhenUnderCapacity() {
+        SpaceSavingCounter counter = new SpaceSavingCounter(10);
+        offer(counter, "a", 3);
+        offer(counter, "b", 5);
+        offer(counter, "c", 1);
+        assertThat(counter.top(10), contains("b", "a", "c"));
+        assertThat(counter.top(2), contains("b", "a"));
+        assertEquals(5, counter.count("b"));
+        assertEquals(9, counter.total());
+    }
+
+    @Test
+    public void emptyCounter() {
+        assertThat(new SpaceSavingCounter(10).top(10), empty());
+    }
+
+    @Test
+    public void heavyHittersSurviveNoise() {
+        SpaceSavingCounter counter = new SpaceSavingCounter(20);
+        for (int i = 0; i < 5000; i++) {
+            if (i % 5 == 0) {
+                counter.offer("hot");
+            } else if (i % 7 == 0) {
+                counter.offer("warm");
+            } else {
+                counter.offer("noise" + randomIntBetween(0, 1000));
+            }
+        }
+        assertThat(counter.top(2), contains("hot", "warm"));
+        assertThat(counter.count("hot"), greaterThanOrEqualTo(1000L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new SpaceSavingCounter(0);
+    }
+
+    private void offer(SpaceSavingCounter counter, String term, int times) {
+        for (int i = 0; i < times; i++) {
+            counter.offer(term);
+        }
+    }
+}